@@ -0,0 +1,152 @@
+package com.github.thisisforever.keeper.agent;
+
+import com.github.thisisforever.crypto.CryptographicFailureException;
+import com.github.thisisforever.crypto.Utility;
+import com.github.thisisforever.keeper.cryptox.Entry;
+import com.github.thisisforever.keeper.cryptox.PasswordArchiveManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how quickly an {@link UnlockAgent} answers password lookups from several clients at once. The agent runs
+ * in the benchmark's own process, serving a vault of synthetic entries over the loopback interface; each benchmark
+ * thread is a client with its own connection, looking up the entries in turn.
+ * <p>
+ * Change the number of clients with {@code -t}. The {@code SampleTime} mode reports the latency percentiles of single
+ * lookups, and the {@code Throughput} mode the lookups answered per second by every client together.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class AgentLookupBenchmark {
+
+    // Defines the master password of the benchmark's vault
+    private static final char[] PASSWORD = "benchmark password".toCharArray();
+    // Defines the number of usernames shared between the entries
+    private static final int USERNAMES = 16;
+    // Defines how long to wait for the agent to start listening, in milliseconds
+    private static final long START_TIMEOUT = 10000;
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    // References the directory holding the key file and the agent file
+    private File directory, agentFile;
+    // References the agent and the thread it serves clients on
+    private UnlockAgent agent;
+    private Thread server;
+
+    /**
+     * Holds a client's connection to the agent and the next entry it looks up
+     */
+    @State(Scope.Thread)
+    public static class Client {
+
+        private AgentClient connection;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void connect(AgentLookupBenchmark benchmark) throws IOException {
+            connection = new AgentClient(benchmark.agentFile);
+            next = (int) (Thread.currentThread().getId() % benchmark.entries);
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            connection.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void startAgent() throws IOException, CryptographicFailureException, InterruptedException {
+        directory = Files.createTempDirectory("keeper-benchmark").toFile();
+        File keyFile = new File(directory, "vault.key");
+        agentFile = AgentProtocol.agentFileFor(keyFile);
+        PasswordArchiveManager manager = new PasswordArchiveManager(PASSWORD.clone(), keyFile);
+        manager.populateEntryKeys();
+        ArrayList<Entry> vault = new ArrayList<>(entries);
+        for(int i = 0; i < entries; i++) {
+            Entry entry = manager.getEntryStore().add(website(i), username(i));
+            char[] password = ("password" + i).toCharArray();
+            entry.setPassword(manager, password);
+            Utility.erase(password);
+            vault.add(entry);
+        }
+        Entry.sort(vault);
+        agent = new UnlockAgent(manager, vault, agentFile, TimeUnit.HOURS.toMillis(1),
+                new PrintStream(OutputStream.nullOutputStream()));
+        server = new Thread(() -> {
+            try {
+                agent.serve();
+            } catch (IOException e) {
+                throw new IllegalStateException("The agent stopped", e);
+            }
+        }, "Keeper benchmark agent");
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while(!agentFile.exists()) {
+            if(System.currentTimeMillis() > deadline || !server.isAlive()) {
+                throw new IOException("The agent didn't start");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopAgent() throws InterruptedException {
+        agent.lock();
+        server.join();
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Looks up the password of the client's next entry
+     */
+    @Benchmark
+    public byte[] get(Client client) throws IOException {
+        int entry = client.next;
+        client.next = (entry + 1) % entries;
+        byte[] password = client.connection.get(website(entry), username(entry));
+        if(password == null) {
+            throw new IOException("The agent found no entry for " + website(entry));
+        }
+        Utility.erase(password);
+        return password;
+    }
+
+    /**
+     * Gets the website of a synthetic entry
+     * @param i The entry's number
+     * @return the website
+     */
+    private static String website(int i) {
+        return "site" + i + ".example.com";
+    }
+
+    /**
+     * Gets the username of a synthetic entry
+     * @param i The entry's number
+     * @return the username
+     */
+    private static String username(int i) {
+        return "user" + (i % USERNAMES) + "@example.com";
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.WipeableArena;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the archive codec on its own, with encryption stubbed out: parsing decrypted archive data into an
+ * {@link EntryStore} as {@link PasswordArchiveManager#openDatabase} does, and serializing entries as
+ * {@link PasswordArchiveManager#closeDatabase} does before encrypting them. Both work on plaintext held in memory, so
+ * neither encryption nor the disk is measured.
+ * <p>
+ * Each operation handles a whole vault. Run with {@code -prof gc} and divide {@code gc.alloc.rate.norm} by the number
+ * of entries to find the bytes allocated per entry.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArchiveCodecBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entries;
+
+    // Holds the vault's entries, and the vault as decrypted archive data outside the heap
+    private WipeableArena vaultArena;
+    private ArrayList<Entry> vault;
+    private ByteBuffer plaintext;
+
+    @Setup(Level.Trial)
+    public void createVault() {
+        vaultArena = new WipeableArena();
+        vault = SyntheticVault.create(new EntryStore(vaultArena), entries);
+        ErasableByteStream stream = new ErasableByteStream(16384);
+        PasswordArchiveManager.writeArchive(stream, 1, vault);
+        plaintext = vaultArena.allocate(stream.size());
+        plaintext.put(stream.getBuffer(), 0, stream.size());
+        plaintext.flip();
+        stream.erase();
+    }
+
+    @TearDown(Level.Trial)
+    public void wipeVault() {
+        vaultArena.wipe();
+    }
+
+    /**
+     * Parses the vault into a new store, as opening an archive does once it's decrypted
+     */
+    @Benchmark
+    public void parse(Blackhole blackhole) throws IOException {
+        WipeableArena arena = new WipeableArena();
+        ByteBuffer dataReader = plaintext.duplicate();
+        int version = PasswordArchiveManager.readFormatVersion(dataReader);
+        blackhole.consume(dataReader.getLong());
+        blackhole.consume(PasswordArchiveManager.readEntries(dataReader, version, new EntryStore(arena)));
+        arena.wipe();
+    }
+
+    /**
+     * Serializes the vault, as saving an archive does before encrypting it
+     */
+    @Benchmark
+    public void serialize(Blackhole blackhole) {
+        ErasableByteStream stream = new ErasableByteStream(16384);
+        PasswordArchiveManager.writeArchive(stream, 2, vault);
+        blackhole.consume(stream.size());
+        stream.erase();
+    }
+}
@@ -0,0 +1,95 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.CryptographicFailureException;
+import com.github.thisisforever.crypto.KeyDerivationCache;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures opening and saving a vault end to end, as Keeper does: reading the archive from disk, authenticating and
+ * decrypting it with AES-GCM and parsing it, or serializing, encrypting and writing it. The master password's key is
+ * derived once, before measuring, through a {@link KeyDerivationCache}, since scrypt would otherwise dwarf everything
+ * else.
+ * <p>
+ * Each operation handles a whole vault. Run with {@code -prof gc} and divide {@code gc.alloc.rate.norm} by the number
+ * of entries to find the bytes allocated per entry.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArchiveRoundTripBenchmark {
+
+    // Defines the master password of the benchmark's archive
+    private static final char[] PASSWORD = "benchmark password".toCharArray();
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entries;
+
+    // References the directory holding the archive and its key file, and the cache holding the derived key
+    private File directory, archive, keyFile;
+    private KeyDerivationCache cache;
+
+    @Setup(Level.Trial)
+    public void createArchive() throws IOException, CryptographicFailureException {
+        directory = Files.createTempDirectory("keeper-benchmark").toFile();
+        archive = new File(directory, "vault.keeper");
+        keyFile = new File(directory, "vault.key");
+        cache = new KeyDerivationCache();
+        PasswordArchiveManager manager = unlock();
+        ArrayList<Entry> vault = SyntheticVault.create(manager.getEntryStore(), entries);
+        if(!manager.closeDatabase(archive, vault)) {
+            throw new IOException("Unable to save the benchmark archive");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteArchive() {
+        cache.clear();
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Creates a manager for the archive and decrypts its key file
+     * @return the unlocked {@link PasswordArchiveManager}
+     */
+    private PasswordArchiveManager unlock() throws IOException, CryptographicFailureException {
+        PasswordArchiveManager manager = new PasswordArchiveManager(PASSWORD.clone(), keyFile, cache);
+        manager.populateEntryKeys();
+        return manager;
+    }
+
+    /**
+     * Opens the archive and locks it again, erasing its contents
+     */
+    @Benchmark
+    public void open(Blackhole blackhole) throws IOException, CryptographicFailureException {
+        PasswordArchiveManager manager = unlock();
+        blackhole.consume(manager.openDatabase(archive));
+        manager.discard();
+    }
+
+    /**
+     * Opens the archive and saves it unchanged, which serializes, encrypts and writes every entry
+     */
+    @Benchmark
+    public void openAndSave(Blackhole blackhole) throws IOException, CryptographicFailureException {
+        PasswordArchiveManager manager = unlock();
+        ArrayList<Entry> vault = manager.openDatabase(archive);
+        blackhole.consume(manager.closeDatabase(archive, vault));
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.WipeableArena;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the memory used per entry by an {@link EntryStore}, in and outside the heap, compared with holding each
+ * entry's fields in its own objects as entries once did. Both hold the entries of the same synthetic vault.
+ * <p>
+ * Each operation builds a whole vault and measures the heap it retains once garbage has been collected, reported by
+ * the {@code bytesPerEntry} and {@code offHeapBytesPerEntry} counters; the time reported is that of building the vault
+ * and collecting garbage, and isn't meaningful on its own.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class EntryMemoryBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int entries;
+
+    // Holds the vault whose entries are copied into each store or set of objects
+    private WipeableArena vaultArena;
+    private ArrayList<Entry> vault;
+
+    /**
+     * Reports the memory retained per entry by the last vault built
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public double bytesPerEntry, offHeapBytesPerEntry;
+    }
+
+    @Setup(Level.Trial)
+    public void createVault() {
+        vaultArena = new WipeableArena();
+        vault = SyntheticVault.create(new EntryStore(vaultArena), entries);
+    }
+
+    @TearDown(Level.Trial)
+    public void wipeVault() {
+        vaultArena.wipe();
+    }
+
+    /**
+     * Copies the vault into a new store and sorts its entries, as opening an archive does
+     */
+    @Benchmark
+    public void entryStore(Footprint footprint) {
+        long before = usedHeap();
+        WipeableArena arena = new WipeableArena();
+        EntryStore store = new EntryStore(arena);
+        ArrayList<Entry> copies = new ArrayList<>(vault.size());
+        for(Entry e : vault) {
+            copies.add(store.add(e.getId(), e.getWebsite(), e.getUsername(), e.getPasswordData(), e.getFingerprint(),
+                    e.getCreated(), e.getModified()));
+        }
+        Entry.sort(copies);
+        long heapBytes = usedHeap() - before, offHeapBytes = arena.getCapacity();
+        footprint.bytesPerEntry = (double) (heapBytes + offHeapBytes) / copies.size();
+        footprint.offHeapBytesPerEntry = (double) offHeapBytes / copies.size();
+        arena.wipe();
+    }
+
+    /**
+     * Copies the vault into objects of its own for each entry
+     */
+    @Benchmark
+    public void separateObjects(Footprint footprint) {
+        long before = usedHeap();
+        ArrayList<HeapEntry> copies = new ArrayList<>(vault.size());
+        for(Entry e : vault) {
+            copies.add(new HeapEntry(e.getId(), e.getWebsite(), e.getUsername(), e.getPasswordData(),
+                    e.getFingerprint(), e.getCreated(), e.getModified()));
+        }
+        long heapBytes = usedHeap() - before;
+        footprint.bytesPerEntry = (double) heapBytes / copies.size();
+        footprint.offHeapBytesPerEntry = 0;
+    }
+
+    /**
+     * Measures the heap in use after collecting garbage
+     * @return the number of bytes of heap in use
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Holds an entry's fields in their own objects, as entries were held before they were kept in an
+     * {@link EntryStore}
+     */
+    private static class HeapEntry {
+        private final UUID id;
+        private final String website, username, sortKey;
+        private final byte[] passwordData, fingerprint;
+        private final long created, modified;
+
+        private HeapEntry(UUID id, String website, String username, byte[] passwordData, byte[] fingerprint,
+                          long created, long modified) {
+            this.id = id;
+            this.website = website;
+            this.username = username;
+            this.passwordData = passwordData;
+            this.fingerprint = fingerprint;
+            this.created = created;
+            this.modified = modified;
+            sortKey = (website + '\0' + username).toLowerCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the password generator's modes: random characters with the generator's flags or a site's policy,
+ * passphrases and pronounceable passwords, one at a time and in parallel batches. Run with {@code -prof gc} to see
+ * the bytes allocated per password in {@code gc.alloc.rate.norm}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordGeneratorBenchmark {
+
+    // Defines the number of passwords generated by each batch operation
+    private static final int BATCH_SIZE = 10000;
+
+    @Param({"16"})
+    public int length;
+
+    private PasswordGenerator generator;
+    private PasswordPolicy policy;
+
+    @Setup(Level.Trial)
+    public void createGenerator() {
+        generator = new PasswordGenerator();
+        generator.setFlags(true, true, true, true);
+        policy = PasswordPolicy.parse("length=12-20 symbols=required:!@#$%^&* forbid=0O1lI");
+        // Load the wordlist and train the model before measuring
+        generator.generatePassphrase(1);
+        generator.generatePronounceable(1);
+    }
+
+    @Benchmark
+    public char[] characters() {
+        return generator.generatePassword(length);
+    }
+
+    @Benchmark
+    public char[] sitePolicy() {
+        return generator.generatePassword(policy, length);
+    }
+
+    @Benchmark
+    public char[] passphrase() {
+        return generator.generatePassphrase(6);
+    }
+
+    @Benchmark
+    public char[] pronounceable() {
+        return generator.generatePronounceable(length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public char[][] charactersBatch() {
+        return generator.generatePasswords(BATCH_SIZE, length, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Fills an {@link EntryStore} with entries resembling a real vault for the benchmarks: distinct websites of varying
+ * length, a handful of usernames shared between many entries, encrypted password data the size AES-GCM produces for
+ * passwords of 8 to 32 characters, and fingerprints. The same seed always produces the same vault.
+ */
+final class SyntheticVault {
+
+    // Defines the number of usernames shared between the entries
+    private static final int USERNAMES = 16;
+    // Defines the length AES-GCM adds to each password: IV and authentication tag
+    private static final int ENCRYPTION_OVERHEAD = 12 + 16;
+    // Defines the length of each fingerprint
+    private static final int FINGERPRINT_LENGTH = 16;
+    // Defines the seed entries are generated from
+    private static final long SEED = 0x4B656570L;
+
+    private SyntheticVault() {
+
+    }
+
+    /**
+     * Adds synthetic entries to a store
+     * @param store The store to add entries to
+     * @param count The number of entries
+     * @return an {@link ArrayList} of the entries, sorted as Keeper sorts them
+     */
+    static ArrayList<Entry> create(EntryStore store, int count) {
+        SplittableRandom random = new SplittableRandom(SEED);
+        long now = 1_700_000_000_000L;
+        ArrayList<Entry> entries = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            byte[] passwordData = new byte[ENCRYPTION_OVERHEAD + 8 + random.nextInt(25)];
+            byte[] fingerprint = new byte[FINGERPRINT_LENGTH];
+            fill(random, passwordData);
+            fill(random, fingerprint);
+            String website = (i % 3 == 0 ? "https://" : "") + "site" + i
+                    + (i % 5 == 0 ? ".example.co.uk" : ".example.com");
+            String username = "user" + (i % USERNAMES) + "@example.com";
+            long created = now - random.nextLong(1L << 36);
+            entries.add(store.add(new UUID(random.nextLong(), random.nextLong()), website, username, passwordData,
+                    fingerprint, created, created + random.nextLong(1L << 30)));
+        }
+        Entry.sort(entries);
+        return entries;
+    }
+
+    /**
+     * Fills an array with random bytes
+     * @param random The source of the bytes
+     * @param bytes The array to fill
+     */
+    private static void fill(SplittableRandom random, byte[] bytes) {
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) random.nextInt(256);
+        }
+    }
+}
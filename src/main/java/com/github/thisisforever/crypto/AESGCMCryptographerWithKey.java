@@ -28,18 +28,35 @@ public class AESGCMCryptographerWithKey implements Cryptographer {
 
     @Override
     public byte[] encrypt(byte[] plaintext) {
+        return encrypt(plaintext, 0, plaintext.length);
+    }
+
+    @Override
+    public byte[] encrypt(byte[] plaintext, int offset, int length) {
+        return encrypt(plaintext, offset, length, 0);
+    }
+
+    /**
+     * Encrypts plaintext data, leaving room at the start of the result for a header, so that subclasses can add one
+     * without copying the ciphertext
+     * @param plaintext An array holding the data to encrypt
+     * @param offset The index of the first byte to encrypt
+     * @param length The number of bytes to encrypt
+     * @param headerLength The number of bytes to leave empty at the start of the result
+     * @return a new byte[] holding the header space, then the IV and then the ciphertext
+     */
+    protected byte[] encrypt(byte[] plaintext, int offset, int length, int headerLength) {
+        byte[] iv = BufferPool.acquire(GCM_IV_LENGTH);
         try {
             Cipher cipher = Cipher.getInstance(ALGORITHM_MODE_PADDING);
-            byte[] iv = Utility.generateRandomBytes(GCM_IV_LENGTH);
-            GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv);
+            Utility.fillRandomly(iv);
+            GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv, 0, GCM_IV_LENGTH);
             cipher.init(Cipher.ENCRYPT_MODE, key, parameterSpec);
-            byte[] ciphertext = cipher.doFinal(plaintext);
-            ByteBuffer buffer = ByteBuffer.allocate(iv.length + ciphertext.length);
-            buffer.put(iv);
-            buffer.put(ciphertext);
-            Utility.erase(iv);
-            Utility.erase(ciphertext);
-            return buffer.array();
+            // Encrypt straight into the result, after the IV, rather than into an array of its own
+            byte[] result = new byte[headerLength + GCM_IV_LENGTH + cipher.getOutputSize(length)];
+            System.arraycopy(iv, 0, result, headerLength, GCM_IV_LENGTH);
+            cipher.doFinal(plaintext, offset, length, result, headerLength + GCM_IV_LENGTH);
+            return result;
         } catch (NoSuchPaddingException | NoSuchAlgorithmException
                 | BadPaddingException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException("Fatal error: system does not support AES in GCM mode");
@@ -47,18 +64,71 @@ public class AESGCMCryptographerWithKey implements Cryptographer {
             throw new RuntimeException("Fatal error: derived key failed to decrypt data");
         } catch (IllegalBlockSizeException e) {
             throw new RuntimeException("Fatal error: illegal block size; was the data tampered with?");
+        } catch (ShortBufferException e) {
+            throw new RuntimeException("Fatal error: ciphertext is longer than the cipher reported");
+        } finally {
+            BufferPool.release(iv);
         }
     }
 
     @Override
     public byte[] decrypt(byte[] data) throws CryptographicFailureException {
+        return decrypt(data, 0, data.length);
+    }
+
+    /**
+     * Decrypts data which follows a header, without copying it out of the array holding it
+     * @param data An array holding the IV and ciphertext
+     * @param offset The index of the IV's first byte
+     * @param length The number of bytes of IV and ciphertext
+     * @return a new byte[] holding the plaintext
+     */
+    protected byte[] decrypt(byte[] data, int offset, int length) throws CryptographicFailureException {
+        try {
+            Cipher cipher = Cipher.getInstance(ALGORITHM_MODE_PADDING);
+            GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH_BITS, data, offset, GCM_IV_LENGTH);
+            cipher.init(Cipher.DECRYPT_MODE, key, parameterSpec);
+            return SecretTracker.track(cipher.doFinal(data, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH));
+        } catch (AEADBadTagException e) {
+            throw new CryptographicFailureException("Tag mismatch!");
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException
+                | BadPaddingException | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException("Fatal error: system does not support AES in GCM mode");
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("Fatal error: derived key failed to decrypt data");
+        } catch (IllegalBlockSizeException e) {
+            throw new RuntimeException("Fatal error: illegal block size; was the data tampered with?");
+        }
+    }
+
+    @Override
+    public ByteBuffer decrypt(byte[] data, WipeableArena arena) throws CryptographicFailureException {
+        return decrypt(data, 0, data.length, arena);
+    }
+
+    /**
+     * Decrypts data which follows a header into a buffer outside the heap, without copying it out of the array
+     * holding it
+     * @param data An array holding the IV and ciphertext
+     * @param offset The index of the IV's first byte
+     * @param length The number of bytes of IV and ciphertext
+     * @param arena The arena to allocate the buffer holding the plaintext from
+     * @return a {@link ByteBuffer} holding the plaintext between its position and limit
+     */
+    protected ByteBuffer decrypt(byte[] data, int offset, int length, WipeableArena arena)
+            throws CryptographicFailureException {
+        ByteBuffer plaintext = null;
         try {
             Cipher cipher = Cipher.getInstance(ALGORITHM_MODE_PADDING);
-            GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH_BITS, data, 0, GCM_IV_LENGTH);
+            GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH_BITS, data, offset, GCM_IV_LENGTH);
             cipher.init(Cipher.DECRYPT_MODE, key, parameterSpec);
-            byte[] plaintext = cipher.doFinal(data, GCM_IV_LENGTH, data.length - GCM_IV_LENGTH);
+            // Decrypt straight into the arena, so the plaintext never exists in the heap
+            plaintext = arena.allocate(cipher.getOutputSize(length - GCM_IV_LENGTH));
+            cipher.doFinal(ByteBuffer.wrap(data, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH), plaintext);
+            plaintext.flip();
             return plaintext;
         } catch (AEADBadTagException e) {
+            arena.release(plaintext);
             throw new CryptographicFailureException("Tag mismatch!");
         } catch (NoSuchPaddingException | NoSuchAlgorithmException
                 | BadPaddingException | InvalidAlgorithmParameterException e) {
@@ -67,6 +137,8 @@ public class AESGCMCryptographerWithKey implements Cryptographer {
             throw new RuntimeException("Fatal error: derived key failed to decrypt data");
         } catch (IllegalBlockSizeException e) {
             throw new RuntimeException("Fatal error: illegal block size; was the data tampered with?");
+        } catch (ShortBufferException e) {
+            throw new RuntimeException("Fatal error: plaintext is longer than the cipher reported");
         }
     }
 
@@ -5,35 +5,71 @@ import java.nio.ByteBuffer;
 public class AESGCMCryptographerWithPasswordBasedKeyDerivation extends AESGCMCryptographerWithKey {
 
     private byte[] password;
+    // Optional cache shared between cryptographers, allowing keys derived from the same password to be reused
+    private final KeyDerivationCache cache;
 
     public AESGCMCryptographerWithPasswordBasedKeyDerivation(char[] password) {
+        this(password, null);
+    }
+
+    /**
+     * Creates a cryptographer which derives its keys through a shared {@link KeyDerivationCache}, so that data
+     * encrypted with the same password and salt does not require another scrypt run
+     * @param password The password to derive keys from
+     * @param cache The cache to derive keys through, or null to always derive keys directly
+     */
+    public AESGCMCryptographerWithPasswordBasedKeyDerivation(char[] password, KeyDerivationCache cache) {
         this.password = Utility.encode(password);
+        this.cache = cache;
     }
 
     @Override
-    public byte[] encrypt(byte[] data) {
-        SCryptKeyFactory.SCryptKey key = SCryptKeyFactory.deriveKey(password);
-        byte[] ciphertextAndIV = null;
+    public byte[] encrypt(byte[] data, int offset, int length) {
+        SCryptKeyFactory.SCryptKey key = cache == null ? SCryptKeyFactory.deriveKey(password)
+                : cache.deriveKey(password);
         try {
             byte[] salt = key.getSalt();
             this.key = key;
-            ciphertextAndIV = super.encrypt(data);
-            ByteBuffer buffer = ByteBuffer.allocate(Byte.BYTES + salt.length
-                    + Integer.BYTES + ciphertextAndIV.length);
+            // Encrypt after room for the salt and length, then fill them in
+            int headerLength = Byte.BYTES + salt.length + Integer.BYTES;
+            byte[] result = super.encrypt(data, offset, length, headerLength);
+            ByteBuffer buffer = ByteBuffer.wrap(result, 0, headerLength);
             buffer.put((byte) salt.length);
             buffer.put(salt);
-            buffer.putInt(ciphertextAndIV.length);
-            buffer.put(ciphertextAndIV);
-            return buffer.array();
+            buffer.putInt(result.length - headerLength);
+            return result;
         } finally {
             key.destroy();
             this.key = null;
-            Utility.erase(ciphertextAndIV);
         }
     }
 
     @Override
     public byte[] decrypt(byte[] data) throws CryptographicFailureException {
+        int offset = deriveDecryptionKey(data);
+        try {
+            return super.decrypt(data, offset, data.length - offset);
+        } finally {
+            forgetDecryptionKey();
+        }
+    }
+
+    @Override
+    public ByteBuffer decrypt(byte[] data, WipeableArena arena) throws CryptographicFailureException {
+        int offset = deriveDecryptionKey(data);
+        try {
+            return super.decrypt(data, offset, data.length - offset, arena);
+        } finally {
+            forgetDecryptionKey();
+        }
+    }
+
+    /**
+     * Reads the salt from encrypted data and derives the key the data was encrypted with
+     * @param data The encrypted data
+     * @return the index of the IV and ciphertext which follow the salt
+     */
+    private int deriveDecryptionKey(byte[] data) {
         ByteBuffer buffer = ByteBuffer.wrap(data);
         final int saltLength = buffer.get();
         if(saltLength <= 0) {
@@ -47,18 +83,17 @@ public class AESGCMCryptographerWithPasswordBasedKeyDerivation extends AESGCMCry
             Utility.erase(salt);
             throw new RuntimeException("Fatal error: ciphertext length in encrypted data is of wrong length");
         }
-        byte[] ciphertextAndIV = new byte[ciphertextAndIVLength];
-        buffer.get(ciphertextAndIV);
 
-        SCryptKeyFactory.SCryptKey key = SCryptKeyFactory.deriveKey(password, salt);
-        this.key = key;
-        try {
-            return super.decrypt(ciphertextAndIV);
-        } finally {
-            key.destroy();
-            Utility.erase(ciphertextAndIV);
-            this.key = null;
-        }
+        this.key = cache == null ? SCryptKeyFactory.deriveKey(password, salt) : cache.deriveKey(password, salt);
+        return buffer.position();
+    }
+
+    /**
+     * Destroys the key derived by {@link #deriveDecryptionKey(byte[])} once the data has been decrypted
+     */
+    private void forgetDecryptionKey() {
+        key.destroy();
+        this.key = null;
     }
 
     @Override
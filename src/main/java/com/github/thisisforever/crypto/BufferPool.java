@@ -0,0 +1,104 @@
+package com.github.thisisforever.crypto;
+
+/**
+ * Lends out byte arrays for temporary sensitive data, such as IVs, MACs and plaintext being assembled for encryption,
+ * so that encrypting or decrypting many items doesn't allocate a new array for each. Arrays come in power-of-two size
+ * classes from {@value #MIN_SIZE} to {@value #MAX_SIZE} bytes; a borrowed array may be longer than requested, so
+ * callers must track the length of the data they put in it.
+ * <p>
+ * Every array is overwritten with zeros when it's returned with {@link #release(byte[])}, before any other caller can
+ * borrow it, so data never leaks from one borrower to the next. Each size class keeps at most {@value #MAX_POOLED}
+ * arrays, and no more than {@value #MAX_POOLED_BYTES} bytes; arrays beyond that, or larger than the largest size
+ * class, are erased and left to the garbage collector.
+ */
+public final class BufferPool {
+
+    // Define the smallest and largest size classes
+    private static final int MIN_SIZE_SHIFT = 4;
+    private static final int MAX_SIZE_SHIFT = 20;
+    public static final int MIN_SIZE = 1 << MIN_SIZE_SHIFT;
+    public static final int MAX_SIZE = 1 << MAX_SIZE_SHIFT;
+    // Define the most arrays and bytes kept in each size class
+    public static final int MAX_POOLED = 64;
+    public static final int MAX_POOLED_BYTES = 1 << 20;
+
+    // Holds the arrays available in each size class, and the number available
+    private static final byte[][][] pools = new byte[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1][][];
+    private static final int[] counts = new int[pools.length];
+
+    static {
+        for(int i = 0; i < pools.length; i++) {
+            pools[i] = new byte[Math.max(1, Math.min(MAX_POOLED, MAX_POOLED_BYTES >> (MIN_SIZE_SHIFT + i)))][];
+        }
+    }
+
+    private BufferPool() {
+
+    }
+
+    /**
+     * Borrows an array filled with zeros
+     * @param length The number of bytes needed
+     * @return a byte[] at least as long as requested, which should be returned with {@link #release(byte[])} once it's
+     * no longer needed
+     */
+    public static byte[] acquire(int length) {
+        if(length > MAX_SIZE) {
+            return new byte[length];
+        }
+        int sizeClass = sizeClass(length);
+        byte[][] pool = pools[sizeClass];
+        synchronized(pool) {
+            if(counts[sizeClass] > 0) {
+                byte[] buffer = pool[--counts[sizeClass]];
+                pool[counts[sizeClass]] = null;
+                return buffer;
+            }
+        }
+        return new byte[MIN_SIZE << sizeClass];
+    }
+
+    /**
+     * Overwrites a borrowed array with zeros and returns it to the pool. Arrays which didn't come from the pool are
+     * erased as well, but aren't kept. Releasing an array more than once has no further effect.
+     * @param buffer The array to release, or null
+     */
+    public static void release(byte[] buffer) {
+        if(buffer == null) {
+            return;
+        }
+        Utility.erase(buffer);
+        int length = buffer.length;
+        if(length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1) {
+            return;
+        }
+        int sizeClass = Integer.numberOfTrailingZeros(length) - MIN_SIZE_SHIFT;
+        byte[][] pool = pools[sizeClass];
+        synchronized(pool) {
+            int count = counts[sizeClass];
+            if(count == pool.length) {
+                return;
+            }
+            // Keep an array released twice from being lent to two borrowers at once
+            for(int i = 0; i < count; i++) {
+                if(pool[i] == buffer) {
+                    return;
+                }
+            }
+            pool[count] = buffer;
+            counts[sizeClass] = count + 1;
+        }
+    }
+
+    /**
+     * Finds the smallest size class holding arrays of a given length
+     * @param length The length, no greater than {@link #MAX_SIZE}
+     * @return the index of the size class
+     */
+    private static int sizeClass(int length) {
+        if(length <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SIZE_SHIFT;
+    }
+}
@@ -1,5 +1,8 @@
 package com.github.thisisforever.crypto;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
  * The {@link Cryptographer} interface defines an object that can encrypt and decrypt data, along with a method
  * to be called upon to delete sensitive data when the object is no longer needed.
@@ -14,6 +17,22 @@ public interface Cryptographer {
      */
     byte[] encrypt(byte[] plaintext);
 
+    /**
+     * Encrypts part of an array, such as a buffer borrowed from the {@link BufferPool}
+     * @param plaintext An array holding the data to encrypt
+     * @param offset The index of the first byte to encrypt
+     * @param length The number of bytes to encrypt
+     * @return The resulting data as a byte array
+     */
+    default byte[] encrypt(byte[] plaintext, int offset, int length) {
+        byte[] data = Arrays.copyOfRange(plaintext, offset, offset + length);
+        try {
+            return encrypt(data);
+        } finally {
+            Utility.erase(data);
+        }
+    }
+
     /**
      * Decrypts ciphertext data and returns the result
      * @param ciphertext The data to decrypt; data should be encrypted using the encrypt method of a similar
@@ -22,6 +41,17 @@ public interface Cryptographer {
      */
     byte[] decrypt(byte[] ciphertext) throws CryptographicFailureException;
 
+    /**
+     * Decrypts ciphertext data into a buffer outside the heap, so the plaintext can be wiped along with the rest of
+     * the arena's contents
+     * @param ciphertext The data to decrypt
+     * @param arena The arena to allocate the buffer holding the plaintext from
+     * @return a {@link ByteBuffer} holding the plaintext between its position and limit
+     */
+    default ByteBuffer decrypt(byte[] ciphertext, WipeableArena arena) throws CryptographicFailureException {
+        return arena.take(decrypt(ciphertext));
+    }
+
     /**
      * Safely deletes all sensitive information associated with this {@link Cryptographer} object.
      */
@@ -0,0 +1,136 @@
+package com.github.thisisforever.crypto;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} which decrypts data written by an {@link EncryptingOutputStream}, one chunk at a time, so
+ * that data of any size can be decrypted without holding all of it in memory. Each chunk's sequence number is checked
+ * against its position, and the data must end with the chunk flagged as final, so reordered, removed or truncated
+ * chunks are reported as errors rather than read as if the data were complete. Each chunk's plaintext is erased once it
+ * has been read.
+ */
+public class DecryptingInputStream extends InputStream {
+
+    // Defines the number of bytes preceding the data in each chunk's plaintext
+    private static final int CHUNK_HEADER_LENGTH = Long.BYTES + Byte.BYTES;
+    // Defines the longest encrypted chunk accepted, so that a corrupt length can't exhaust the heap
+    private static final int MAX_CHUNK_LENGTH = 1 << 24;
+
+    // References the stream encrypted chunks are read from
+    private final DataInputStream in;
+    // References the cryptographer used to decrypt each chunk
+    private final Cryptographer cryptographer;
+    // Holds the plaintext of the chunk being read, including its header, or null before the first chunk is read
+    private byte[] chunk;
+    // The position in the chunk of the next byte to be read
+    private int position;
+    // The sequence number expected of the next chunk
+    private long sequence;
+    // Flags set once the final chunk has been read, and once the stream has been closed
+    private boolean last, closed;
+
+    /**
+     * Creates a stream which decrypts data read from another stream
+     * @param in The stream to read encrypted data from
+     * @param cryptographer The cryptographer the data was encrypted with
+     */
+    public DecryptingInputStream(InputStream in, Cryptographer cryptographer) {
+        this.in = new DataInputStream(in);
+        this.cryptographer = cryptographer;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill()) {
+            return -1;
+        }
+        return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if(length == 0) {
+            return 0;
+        }
+        if(!fill()) {
+            return -1;
+        }
+        int count = Math.min(length, chunk.length - position);
+        System.arraycopy(chunk, position, data, offset, count);
+        position += count;
+        return count;
+    }
+
+    /**
+     * Erases the plaintext of the chunk being read and closes the underlying stream
+     * @throws IOException if an error occurs while closing the underlying stream
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        Utility.erase(chunk);
+        chunk = null;
+        in.close();
+    }
+
+    /**
+     * Reads and decrypts the next chunk once the current one has been read
+     * @return true if there is data to read, or false if the final chunk has been read in full
+     * @throws IOException if the data couldn't be read, fails to decrypt, or isn't complete
+     */
+    private boolean fill() throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed");
+        }
+        while(chunk == null || position == chunk.length) {
+            if(last) {
+                return false;
+            }
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                throw new IOException("The encrypted data is incomplete", e);
+            }
+            if(length <= 0 || length > MAX_CHUNK_LENGTH) {
+                throw new IOException("The encrypted data is corrupt");
+            }
+            byte[] ciphertext = new byte[length];
+            try {
+                in.readFully(ciphertext);
+            } catch (EOFException e) {
+                throw new IOException("The encrypted data is incomplete", e);
+            }
+            Utility.erase(chunk);
+            chunk = null;
+            byte[] plaintext;
+            try {
+                plaintext = cryptographer.decrypt(ciphertext);
+            } catch (CryptographicFailureException e) {
+                throw new IOException("The encrypted data could not be decrypted; the password is wrong or the data "
+                        + "was changed", e);
+            }
+            ByteBuffer header = ByteBuffer.wrap(plaintext);
+            if(plaintext.length < CHUNK_HEADER_LENGTH || header.getLong() != sequence++) {
+                Utility.erase(plaintext);
+                throw new IOException("The encrypted data is out of order");
+            }
+            last = header.get() != 0;
+            if(last && in.read() >= 0) {
+                Utility.erase(plaintext);
+                throw new IOException("The encrypted data continues after its final chunk");
+            }
+            chunk = plaintext;
+            position = CHUNK_HEADER_LENGTH;
+        }
+        return true;
+    }
+
+}
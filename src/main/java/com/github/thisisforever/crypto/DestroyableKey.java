@@ -26,7 +26,7 @@ public class DestroyableKey implements SecretKey {
      *                security purposes.
      */
     public DestroyableKey(byte[] keyData) {
-        this.keyData = Arrays.copyOf(keyData, keyData.length);
+        this.keyData = SecretTracker.track(Arrays.copyOf(keyData, keyData.length));
         destroyed = false;
     }
 
@@ -39,7 +39,7 @@ public class DestroyableKey implements SecretKey {
      * @param length The number of bytes to read from the source array
      */
     public DestroyableKey(byte[] keyData, int start, int length) {
-        this.keyData = Arrays.copyOfRange(keyData, start, start + length);
+        this.keyData = SecretTracker.track(Arrays.copyOfRange(keyData, start, start + length));
         destroyed = false;
     }
 
@@ -62,7 +62,9 @@ public class DestroyableKey implements SecretKey {
     }
 
     /**
-     * Creates a copy of this key's underlying array and returns a reference to the copy
+     * Creates a copy of this key's underlying array and returns a reference to the copy. The copy isn't tracked by
+     * {@link SecretTracker}: ciphers and MACs call this when they're initialised with the key and erase the copy
+     * themselves, without {@link Utility#erase(byte[])}, so tracking it would report every such copy as leaked.
      * @return a references to the key's underlying byte data
      * @throws IllegalStateException if the key has been destroyed
      */
@@ -84,7 +86,7 @@ public class DestroyableKey implements SecretKey {
             throw new IllegalStateException("Key has already been destroyed");
         }
         destroyed = true;
-        Arrays.fill(keyData, (byte)0);
+        Utility.erase(keyData);
         keyData = null;
     }
 
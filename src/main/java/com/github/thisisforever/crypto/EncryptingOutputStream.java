@@ -0,0 +1,152 @@
+package com.github.thisisforever.crypto;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An {@link OutputStream} which encrypts data written to it using a {@link Cryptographer}, allowing data of any size
+ * to be encrypted without holding all of it in memory. Data is split into fixed-size chunks, each of which is
+ * encrypted separately and written as a 4-byte length followed by the chunk's ciphertext. Each chunk's plaintext
+ * begins with an 8-byte sequence number and a 1-byte flag set on the final chunk, so that reordered, removed or
+ * truncated chunks are detected by the {@link DecryptingInputStream} which reads the data back. A stream whose data
+ * can't be completed should be ended with {@link #abort()} rather than closed, so that it's never marked as complete.
+ */
+public class EncryptingOutputStream extends OutputStream {
+
+    // Defines the default number of bytes of data encrypted in each chunk
+    public static final int DEFAULT_CHUNK_SIZE = 65536;
+    // Defines the number of bytes preceding the data in each chunk's plaintext
+    private static final int CHUNK_HEADER_LENGTH = Long.BYTES + Byte.BYTES;
+
+    // References the stream encrypted chunks are written to
+    private final DataOutputStream out;
+    // References the cryptographer used to encrypt each chunk
+    private final Cryptographer cryptographer;
+    // Holds the plaintext of the chunk currently being filled, beginning with the chunk's header, in a buffer
+    // borrowed from the pool which may be longer than a chunk
+    private final byte[] chunk;
+    // The length of a full chunk's plaintext
+    private final int chunkEnd;
+    // The position in the chunk at which the next byte will be written
+    private int position;
+    // The sequence number of the chunk currently being filled
+    private long sequence;
+    // Flag set once the stream has been closed
+    private boolean closed;
+
+    /**
+     * Creates a stream which encrypts data in chunks of {@link #DEFAULT_CHUNK_SIZE} bytes
+     * @param out The stream to write encrypted data to
+     * @param cryptographer The cryptographer used to encrypt each chunk
+     */
+    public EncryptingOutputStream(OutputStream out, Cryptographer cryptographer) {
+        this(out, cryptographer, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a stream which encrypts data in chunks of a given size
+     * @param out The stream to write encrypted data to
+     * @param cryptographer The cryptographer used to encrypt each chunk
+     * @param chunkSize The number of bytes of data encrypted in each chunk
+     */
+    public EncryptingOutputStream(OutputStream out, Cryptographer cryptographer, int chunkSize) {
+        this.out = new DataOutputStream(out);
+        this.cryptographer = cryptographer;
+        chunkEnd = CHUNK_HEADER_LENGTH + chunkSize;
+        chunk = BufferPool.acquire(chunkEnd);
+        position = CHUNK_HEADER_LENGTH;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(position == chunkEnd) {
+            writeChunk(false);
+        }
+        chunk[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while(length > 0) {
+            if(position == chunkEnd) {
+                writeChunk(false);
+            }
+            int count = Math.min(length, chunkEnd - position);
+            System.arraycopy(data, offset, chunk, position, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Flushes the underlying stream. Data in the current chunk is not written until the chunk fills or the stream is
+     * closed.
+     * @throws IOException if an error occurs while flushing
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Encrypts and writes any remaining data as the final chunk, closes the underlying stream and erases the chunk
+     * buffer, returning it to the pool
+     * @throws IOException if an error occurs while writing
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeChunk(true);
+            out.close();
+        } finally {
+            BufferPool.release(chunk);
+        }
+    }
+
+    /**
+     * Abandons the stream, such as when the data being written can't be completed. Unlike {@link #close()}, no final
+     * chunk is written, so the truncated data fails to decrypt rather than passing as complete. Data not yet written
+     * is erased, the underlying stream is closed and the chunk buffer is returned to the pool.
+     * @throws IOException if an error occurs while closing the underlying stream
+     */
+    public void abort() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        try {
+            Arrays.fill(chunk, 0, position, (byte) 0);
+            out.close();
+        } finally {
+            BufferPool.release(chunk);
+        }
+    }
+
+    /**
+     * Encrypts the current chunk and writes it to the underlying stream, then begins a new chunk
+     * @param last true if this is the final chunk
+     * @throws IOException if an error occurs while writing
+     */
+    private void writeChunk(boolean last) throws IOException {
+        ByteBuffer header = ByteBuffer.wrap(chunk, 0, CHUNK_HEADER_LENGTH);
+        header.putLong(sequence++);
+        header.put((byte) (last ? 1 : 0));
+        try {
+            byte[] ciphertext = cryptographer.encrypt(chunk, 0, position);
+            out.writeInt(ciphertext.length);
+            out.write(ciphertext);
+        } finally {
+            Arrays.fill(chunk, 0, position, (byte) 0);
+        }
+        position = CHUNK_HEADER_LENGTH;
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.github.thisisforever.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Caches keys derived by {@link SCryptKeyFactory} so that several files protected by the same password and salt only
+ * require a single scrypt run. Passwords are never stored by the cache; they are identified by a keyed hash using a
+ * random secret that only lives as long as the cache does. Call {@link KeyDerivationCache#clear()} to erase all
+ * cached key data once it is no longer needed.
+ * <p>
+ * Encrypting through the cache reuses the salt last used with the same password, so every file encrypted under one
+ * password shares a salt, and so an AES key, with the others; only their IVs differ. This is what lets archives sharing
+ * a master password be unlocked with one derivation. Distinct salts per file would add nothing here: anyone who can
+ * derive the key for one of the files has found the password to all of them.
+ */
+public class KeyDerivationCache {
+
+    // The algorithm used to identify passwords without storing them
+    private static final String IDENTITY_ALGORITHM = "HmacSHA256";
+    // The length of the random secret used while identifying passwords
+    private static final int IDENTITY_SECRET_LENGTH = 32;
+
+    // Random secret used to identify passwords; erased when the cache is cleared
+    private final byte[] identitySecret;
+    // Maps password identities and salts to derived key data, computed at most once per pair
+    private final ConcurrentHashMap<ByteBuffer, FutureTask<byte[]>> derivedKeys;
+    // Maps password identities to the salt most recently used with that password
+    private final ConcurrentHashMap<ByteBuffer, byte[]> latestSalts;
+
+    /**
+     * Creates a new, empty {@link KeyDerivationCache}
+     */
+    public KeyDerivationCache() {
+        identitySecret = Utility.generateRandomBytes(IDENTITY_SECRET_LENGTH);
+        derivedKeys = new ConcurrentHashMap<>();
+        latestSalts = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Derives a key from a password using a new salt, unless a key was already derived for the same password, in
+     * which case the existing key and its salt are reused.
+     * @param password The encoded password to derive a key from
+     * @return a new {@link SCryptKeyFactory.SCryptKey} which the caller is responsible for destroying
+     */
+    public SCryptKeyFactory.SCryptKey deriveKey(byte[] password) {
+        ByteBuffer identity = identify(password, null);
+        byte[] salt = latestSalts.get(identity);
+        if(salt == null) {
+            salt = Utility.generateRandomBytes(SCryptKeyFactory.SCRYPT_SALT_LENGTH);
+        }
+        return deriveKey(password, salt);
+    }
+
+    /**
+     * Derives a key from a password and salt, reusing a previously derived key if one exists. If another thread is
+     * already deriving the same key, waits for that thread to finish rather than running scrypt again.
+     * @param password The encoded password to derive a key from
+     * @param salt The salt to derive the key with
+     * @return a new {@link SCryptKeyFactory.SCryptKey} which the caller is responsible for destroying
+     */
+    public SCryptKeyFactory.SCryptKey deriveKey(byte[] password, byte[] salt) {
+        final byte[] saltCopy = Arrays.copyOf(salt, salt.length);
+        ByteBuffer identity = identify(password, saltCopy);
+        FutureTask<byte[]> task = new FutureTask<>(() -> {
+            SCryptKeyFactory.SCryptKey key = SCryptKeyFactory.deriveKey(password, Arrays.copyOf(saltCopy,
+                    saltCopy.length));
+            try {
+                return key.getEncoded();
+            } finally {
+                key.destroy();
+            }
+        });
+        FutureTask<byte[]> existing = derivedKeys.putIfAbsent(identity, task);
+        if(existing == null) {
+            existing = task;
+            task.run();
+        }
+        byte[] keyData;
+        try {
+            keyData = existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while deriving key");
+        } catch (ExecutionException e) {
+            derivedKeys.remove(identity, existing);
+            throw new RuntimeException("Unable to derive key");
+        }
+        latestSalts.put(identify(password, null), Arrays.copyOf(saltCopy, saltCopy.length));
+        return new SCryptKeyFactory.SCryptKey(keyData, saltCopy);
+    }
+
+    /**
+     * Erases all cached key data and salts. The cache may continue to be used afterwards, but every key will need to
+     * be derived again.
+     */
+    public void clear() {
+        for(FutureTask<byte[]> task : derivedKeys.values()) {
+            if(task.isDone()) {
+                try {
+                    Utility.erase(task.get());
+                } catch (InterruptedException | ExecutionException e) {
+                    // Nothing was derived, so there is nothing to erase
+                }
+            }
+        }
+        derivedKeys.clear();
+        for(byte[] salt : latestSalts.values()) {
+            Utility.erase(salt);
+        }
+        latestSalts.clear();
+    }
+
+    /**
+     * Computes a keyed hash identifying a password and, optionally, a salt
+     * @param password The encoded password to identify
+     * @param salt The salt to include in the identity, or null to identify the password alone
+     * @return a {@link ByteBuffer} suitable for use as a map key
+     */
+    private ByteBuffer identify(byte[] password, byte[] salt) {
+        try {
+            Mac mac = Mac.getInstance(IDENTITY_ALGORITHM);
+            mac.init(new SecretKeySpec(identitySecret, IDENTITY_ALGORITHM));
+            mac.update(password);
+            if(salt != null) {
+                mac.update(salt);
+            }
+            return ByteBuffer.wrap(mac.doFinal());
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new RuntimeException("Fatal error: system does not support " + IDENTITY_ALGORITHM);
+        }
+    }
+
+}
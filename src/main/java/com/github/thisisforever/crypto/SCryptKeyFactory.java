@@ -3,6 +3,8 @@ package com.github.thisisforever.crypto;
 import com.lambdaworks.crypto.SCrypt;
 
 import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SCryptKeyFactory {
 
@@ -16,7 +18,12 @@ public class SCryptKeyFactory {
     private static final int SCRYPT_KEY_LENGTH_BITS = 256;
     private static final int SCRYPT_KEY_LENGTH = SCRYPT_KEY_LENGTH_BITS / 8;
 
-    private static final int SCRYPT_SALT_LENGTH = 32;
+    static final int SCRYPT_SALT_LENGTH = 32;
+
+    // Track the number of keys derived and the time spent deriving them, so key derivation can be measured apart
+    // from everything else
+    private static final AtomicInteger derivationCount = new AtomicInteger();
+    private static final AtomicLong derivationNanos = new AtomicLong();
 
     public static SCryptKey deriveKey(byte[] password) {
         byte[] salt = Utility.generateRandomBytes(SCRYPT_SALT_LENGTH);
@@ -24,16 +31,40 @@ public class SCryptKeyFactory {
     }
 
     public static SCryptKey deriveKey(byte[] password, byte[] salt) {
+        final long start = System.nanoTime();
         try {
             byte[] keyData = SCrypt.scrypt(password, salt, SCRYPT_ITERATIONS_COUNT,
                     SCRYPT_BLOCK_SIZE, SCRYPT_PARALLELISM_FACTOR, SCRYPT_KEY_LENGTH);
-            return new SCryptKey(keyData, salt);
+            try {
+                return new SCryptKey(keyData, salt);
+            } finally {
+                Utility.erase(keyData);
+            }
         } catch (GeneralSecurityException e) {
             e.printStackTrace();
             throw new RuntimeException("Unable to derive key");
+        } finally {
+            derivationNanos.addAndGet(System.nanoTime() - start);
+            derivationCount.incrementAndGet();
         }
     }
 
+    /**
+     * Gets the number of keys derived since the program started
+     * @return the number of scrypt runs
+     */
+    public static int getDerivationCount() {
+        return derivationCount.get();
+    }
+
+    /**
+     * Gets the total time spent deriving keys since the program started
+     * @return the time spent in scrypt, in nanoseconds
+     */
+    public static long getDerivationNanos() {
+        return derivationNanos.get();
+    }
+
     public static class SCryptKey extends DestroyableKey {
         private final byte[] salt;
 
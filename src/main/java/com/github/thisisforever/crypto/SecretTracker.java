@@ -0,0 +1,230 @@
+package com.github.thisisforever.crypto;
+
+import java.io.PrintStream;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps count of the arrays holding secrets, such as keys, decrypted plaintext and encoded passwords, from when
+ * they're created until they're erased with {@link Utility#erase(byte[])} or {@link Utility#erase(char[])}, and reports
+ * any which the garbage collector reclaims without their ever having been erased.
+ * <p>
+ * Tracking is off unless the {@value #PROPERTY} system property is set when Keeper starts: {@code track} counts
+ * secrets, and {@code debug} also records where each was created, so that a report of a leaked secret includes the
+ * stack trace of its creation. While tracking is off, {@link #track(Object, int)} returns as soon as it's called and
+ * erasing an array costs nothing more than filling it.
+ */
+public final class SecretTracker {
+
+    // Defines the system property which turns tracking on, and its values
+    public static final String PROPERTY = "keeper.secrets";
+    private static final String TRACK = "track";
+    private static final String DEBUG = "debug";
+
+    // Flags read once, when the class is loaded, so that checking them costs nothing while tracking is off
+    private static final boolean ENABLED;
+    private static final boolean CAPTURE_SITES;
+
+    static {
+        String mode = System.getProperty(PROPERTY, "");
+        CAPTURE_SITES = mode.equalsIgnoreCase(DEBUG);
+        ENABLED = CAPTURE_SITES || mode.equalsIgnoreCase(TRACK);
+    }
+
+    // Notices when tracked arrays become unreachable
+    private static final Cleaner cleaner = ENABLED ? Cleaner.create() : null;
+    // Holds the record of each live tracked array, keyed by the array's identity without keeping it reachable
+    private static final ConcurrentHashMap<ArrayKey, Secret> live = ENABLED ? new ConcurrentHashMap<>() : null;
+    // Count the secrets and bytes tracked, live, erased and leaked
+    private static final AtomicLong trackedCount = new AtomicLong(), trackedBytes = new AtomicLong();
+    private static final AtomicLong liveCount = new AtomicLong(), liveBytes = new AtomicLong();
+    private static final AtomicLong leakedCount = new AtomicLong(), leakedBytes = new AtomicLong();
+    // References the stream leaks are reported to
+    private static volatile PrintStream log = System.err;
+
+    private SecretTracker() {
+
+    }
+
+    /**
+     * Determines whether secrets are being tracked
+     * @return true if the {@value #PROPERTY} system property turned tracking on
+     */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Starts tracking an array holding a secret, if tracking is on
+     * @param secret The byte[] or char[] holding the secret
+     * @param bytes The number of bytes the array occupies
+     * @param <T> The type of the array
+     * @return the array, so that tracking can wrap the expression creating it
+     */
+    public static <T> T track(T secret, int bytes) {
+        if(!ENABLED || secret == null) {
+            return secret;
+        }
+        ArrayKey key = new ArrayKey(secret);
+        Secret record = new Secret(key, bytes, CAPTURE_SITES ? new Throwable("Secret created here") : null);
+        if(live.putIfAbsent(key, record) == null) {
+            trackedCount.incrementAndGet();
+            trackedBytes.addAndGet(bytes);
+            liveCount.incrementAndGet();
+            liveBytes.addAndGet(bytes);
+            cleaner.register(secret, record);
+        }
+        return secret;
+    }
+
+    /**
+     * Starts tracking a byte[] holding a secret, if tracking is on
+     * @param secret The array
+     * @return the array
+     */
+    public static byte[] track(byte[] secret) {
+        return ENABLED && secret != null ? track(secret, secret.length) : secret;
+    }
+
+    /**
+     * Starts tracking a char[] holding a secret, if tracking is on
+     * @param secret The array
+     * @return the array
+     */
+    public static char[] track(char[] secret) {
+        return ENABLED && secret != null ? track(secret, secret.length * Character.BYTES) : secret;
+    }
+
+    /**
+     * Records that an array has been erased. Called by {@link Utility}; arrays which aren't tracked are ignored.
+     * @param array The array which was erased
+     */
+    static void erased(Object array) {
+        if(!ENABLED) {
+            return;
+        }
+        Secret record = live.remove(new ArrayKey(array));
+        if(record != null) {
+            record.erased = true;
+            liveCount.decrementAndGet();
+            liveBytes.addAndGet(-record.bytes);
+        }
+    }
+
+    /**
+     * Gets the number of tracked secrets which have yet to be erased, including any unreachable ones which the
+     * garbage collector has yet to reclaim
+     * @return the number of live secrets
+     */
+    public static long getLiveCount() {
+        return liveCount.get();
+    }
+
+    /**
+     * Gets the number of bytes held by tracked secrets which have yet to be erased
+     * @return the number of bytes of live secrets
+     */
+    public static long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    /**
+     * Gets the number of tracked secrets reclaimed by the garbage collector without having been erased
+     * @return the number of leaked secrets
+     */
+    public static long getLeakedCount() {
+        return leakedCount.get();
+    }
+
+    /**
+     * Gets the number of bytes held by tracked secrets reclaimed without having been erased
+     * @return the number of bytes of leaked secrets
+     */
+    public static long getLeakedBytes() {
+        return leakedBytes.get();
+    }
+
+    /**
+     * Changes the stream leaks are reported to as they're found
+     * @param stream The stream to report leaks to
+     */
+    public static void setLog(PrintStream stream) {
+        log = stream;
+    }
+
+    /**
+     * Describes the secrets tracked so far in a line of text
+     * @return a {@link String} with the numbers of secrets tracked, live and leaked
+     */
+    public static String getSummary() {
+        return String.format("Secrets: %d tracked (%d bytes), %d live (%d bytes), %d leaked (%d bytes)",
+                trackedCount.get(), trackedBytes.get(), liveCount.get(), liveBytes.get(), leakedCount.get(),
+                leakedBytes.get());
+    }
+
+    /**
+     * Identifies an array by identity, without keeping it reachable
+     */
+    private static class ArrayKey extends WeakReference<Object> {
+        private final int hash;
+
+        private ArrayKey(Object array) {
+            super(array);
+            hash = System.identityHashCode(array);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(this == other) {
+                return true;
+            }
+            if(!(other instanceof ArrayKey)) {
+                return false;
+            }
+            Object referent = get();
+            return referent != null && referent == ((ArrayKey) other).get();
+        }
+    }
+
+    /**
+     * Records a tracked secret, and reports it as leaked if the garbage collector reclaims it before it's erased
+     */
+    private static class Secret implements Runnable {
+        private final ArrayKey key;
+        private final int bytes;
+        private final Throwable site;
+        private volatile boolean erased;
+
+        private Secret(ArrayKey key, int bytes, Throwable site) {
+            this.key = key;
+            this.bytes = bytes;
+            this.site = site;
+        }
+
+        /**
+         * Called by the cleaner once the array has become unreachable
+         */
+        @Override
+        public void run() {
+            if(erased || !live.remove(key, this)) {
+                return;
+            }
+            liveCount.decrementAndGet();
+            liveBytes.addAndGet(-bytes);
+            leakedCount.incrementAndGet();
+            leakedBytes.addAndGet(bytes);
+            PrintStream stream = log;
+            stream.println("Secret of " + bytes + " bytes was reclaimed without being erased");
+            if(site != null) {
+                site.printStackTrace(stream);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.github.thisisforever.crypto;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 public class SensitiveFileScribe {
 
@@ -12,16 +13,40 @@ public class SensitiveFileScribe {
 
     public void encryptAndWrite(File f, byte[] data) throws IOException {
         try(FileOutputStream out = new FileOutputStream(f)) {
-            out.write(cryptographer.encrypt(data));
+            out.write(encrypt(data));
+        }
+    }
+
+    public byte[] encrypt(byte[] data) {
+        return cryptographer.encrypt(data);
+    }
+
+    public void encryptAndWrite(File f, byte[] data, int offset, int length) throws IOException {
+        try(FileOutputStream out = new FileOutputStream(f)) {
+            out.write(cryptographer.encrypt(data, offset, length));
         }
     }
 
     public byte[] readAndDecrypt(File f) throws IOException, CryptographicFailureException {
         try(FileInputStream in = new FileInputStream(f)) {
-            return cryptographer.decrypt(in.readAllBytes());
+            return decrypt(in.readAllBytes());
+        }
+    }
+
+    public byte[] decrypt(byte[] fileData) throws CryptographicFailureException {
+        return cryptographer.decrypt(fileData);
+    }
+
+    public ByteBuffer readAndDecrypt(File f, WipeableArena arena) throws IOException, CryptographicFailureException {
+        try(FileInputStream in = new FileInputStream(f)) {
+            return decrypt(in.readAllBytes(), arena);
         }
     }
 
+    public ByteBuffer decrypt(byte[] fileData, WipeableArena arena) throws CryptographicFailureException {
+        return cryptographer.decrypt(fileData, arena);
+    }
+
     public void destroy() {
         cryptographer.destroy();
         cryptographer = null;
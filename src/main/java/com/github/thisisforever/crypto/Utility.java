@@ -1,5 +1,6 @@
 package com.github.thisisforever.crypto;
 
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -30,15 +31,23 @@ public class Utility {
     public static void erase(byte[] array) {
         if(array != null) {
             Arrays.fill(array, BYTE_FILL_VALUE);
+            SecretTracker.erased(array);
         }
     }
 
     public static void erase(char[] array) {
         if(array != null) {
             Arrays.fill(array, CHAR_FILL_VALUE);
+            SecretTracker.erased(array);
         }
     }
 
+    /**
+     * Encodes text which isn't secret, such as a website, username or query. The result isn't tracked by
+     * {@link SecretTracker}; use {@link #encode(char[])} for secrets.
+     * @param s The text to encode
+     * @return a byte[] containing the encoded text
+     */
     public static byte[] encode(String s) {
         return s.getBytes(ENCODING_CHARSET);
     }
@@ -47,8 +56,26 @@ public class Utility {
         return new String(encodedString, ENCODING_CHARSET);
     }
 
+    /**
+     * Decodes a string into a char[], which unlike a {@link String} can be erased once it is no longer needed
+     * @param encodedString The encoded string
+     * @return a char[] containing the decoded characters
+     */
+    public static char[] decodeChars(byte[] encodedString) {
+        CharBuffer decoded = ENCODING_CHARSET.decode(ByteBuffer.wrap(encodedString));
+        char[] chars = Arrays.copyOfRange(decoded.array(), decoded.arrayOffset(),
+                decoded.arrayOffset() + decoded.remaining());
+        erase(decoded.array());
+        return SecretTracker.track(chars);
+    }
+
+    /**
+     * Encodes a secret, such as a password, tracking the result with {@link SecretTracker} until it's erased
+     * @param chars The characters to encode
+     * @return a byte[] containing the encoded characters
+     */
     public static byte[] encode(char[] chars) {
-        return ENCODING_CHARSET.encode(CharBuffer.wrap(chars)).array();
+        return SecretTracker.track(ENCODING_CHARSET.encode(CharBuffer.wrap(chars)).array());
     }
 
 }
@@ -0,0 +1,95 @@
+package com.github.thisisforever.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Allocates buffers outside the Java heap for sensitive data, and overwrites all of them at once when the data is no
+ * longer needed. Unlike byte arrays, direct buffers are never moved by the garbage collector, so no stale copies of
+ * their contents are left behind in the heap, and every one can be found again to be wiped.
+ * <p>
+ * A buffer can be released early with {@link #release(ByteBuffer)}, which overwrites it immediately. Every buffer
+ * still allocated is overwritten by {@link #wipe()}, after which the arena can be used again.
+ */
+public class WipeableArena {
+
+    // Holds zeros to copy over buffers being wiped, so that large buffers are wiped a block at a time
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(8192).asReadOnlyBuffer();
+
+    // Holds every buffer allocated and not yet released
+    private final Set<ByteBuffer> buffers = Collections.newSetFromMap(new IdentityHashMap<>());
+    // The total capacity of the buffers, in bytes
+    private long capacity;
+
+    /**
+     * Allocates a buffer in the arena
+     * @param size The buffer's capacity, in bytes
+     * @return a new direct {@link ByteBuffer} filled with zeros, positioned at its start
+     */
+    public synchronized ByteBuffer allocate(int size) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffers.add(buffer);
+        capacity += size;
+        return buffer;
+    }
+
+    /**
+     * Allocates a buffer in the arena holding a copy of an array, and erases the array
+     * @param data The array to copy
+     * @return a new direct {@link ByteBuffer} holding the array's contents, positioned at its start
+     */
+    public ByteBuffer take(byte[] data) {
+        ByteBuffer buffer = allocate(data.length);
+        buffer.put(data);
+        buffer.flip();
+        Utility.erase(data);
+        return buffer;
+    }
+
+    /**
+     * Overwrites a buffer with zeros and removes it from the arena, once its contents are no longer needed
+     * @param buffer A buffer allocated by this arena
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if(buffers.remove(buffer)) {
+            erase(buffer);
+            capacity -= buffer.capacity();
+        }
+    }
+
+    /**
+     * Overwrites every buffer in the arena with zeros and removes them all from the arena. Buffers still referred to
+     * remain usable, but read only zeros until they're written to again.
+     */
+    public synchronized void wipe() {
+        for(ByteBuffer buffer : buffers) {
+            erase(buffer);
+        }
+        buffers.clear();
+        capacity = 0;
+    }
+
+    /**
+     * Gets the total size of the buffers in the arena
+     * @return the number of bytes allocated and not yet released or wiped
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Overwrites the whole of a buffer with zeros, regardless of its position and limit, which are left unchanged
+     * @param buffer The buffer to overwrite
+     */
+    public static void erase(ByteBuffer buffer) {
+        ByteBuffer target = buffer.duplicate();
+        target.clear();
+        while(target.hasRemaining()) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit(Math.min(zeros.capacity(), target.remaining()));
+            target.put(zeros);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.thisisforever.keeper.agent;
+
+import com.github.thisisforever.crypto.Utility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * A connection to a running {@link UnlockAgent}, through which passwords can be looked up without unlocking the
+ * archive. A single connection may be used for any number of requests, but not by several threads at once.
+ */
+public class AgentClient implements Closeable {
+
+    // References the connection to the agent and its streams
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    /**
+     * Connects to the agent described by an agent file and authenticates with its token
+     * @param agentFile The agent file written by the agent
+     * @throws IOException if the agent file couldn't be read, the agent couldn't be reached, or the agent rejected
+     * the token
+     */
+    public AgentClient(File agentFile) throws IOException {
+        byte[] data = Files.readAllBytes(agentFile.toPath());
+        byte[] token = null;
+        Socket connection = null;
+        try {
+            if(data.length != Integer.BYTES + AgentProtocol.TOKEN_LENGTH) {
+                throw new IOException("Agent file is malformed");
+            }
+            token = AgentProtocol.readToken(data);
+            connection = new Socket(InetAddress.getLoopbackAddress(), AgentProtocol.readPort(data));
+            connection.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            out.writeInt(AgentProtocol.MAGIC);
+            out.write(token);
+            out.flush();
+            if(in.readByte() != AgentProtocol.STATUS_OK) {
+                throw new IOException("Agent rejected the token");
+            }
+            socket = connection;
+        } catch (IOException e) {
+            // Close the connection whichever step of the handshake failed
+            if(connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        } finally {
+            Utility.erase(data);
+            Utility.erase(token);
+        }
+    }
+
+    /**
+     * Looks up the password of an entry
+     * @param website The entry's website, ignoring case
+     * @param username The entry's username, ignoring case, or null to match any username
+     * @return a byte[] containing the encoded password, which the caller should erase, or null if no entry matched
+     * @throws IOException if an error occurs while communicating with the agent, or the agent failed to decrypt the
+     * password
+     */
+    public byte[] get(String website, String username) throws IOException {
+        out.writeByte(AgentProtocol.GET);
+        AgentProtocol.writeField(out, Utility.encode(website));
+        AgentProtocol.writeField(out, Utility.encode(username == null ? "" : username));
+        out.flush();
+        ArrayList<byte[]> fields = readResponse();
+        return fields == null ? null : fields.get(0);
+    }
+
+    /**
+     * Searches for entries whose website or username contains some text
+     * @param query The text to search for, ignoring case; an empty query matches every entry
+     * @return a list of alternating websites and usernames, which is empty if no entries matched
+     * @throws IOException if an error occurs while communicating with the agent
+     */
+    public ArrayList<String> search(String query) throws IOException {
+        out.writeByte(AgentProtocol.SEARCH);
+        AgentProtocol.writeField(out, Utility.encode(query));
+        out.flush();
+        ArrayList<byte[]> fields = readResponse();
+        ArrayList<String> results = new ArrayList<>();
+        if(fields != null) {
+            for(byte[] field : fields) {
+                results.add(Utility.decode(field));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Asks the agent to erase its keys and stop
+     * @throws IOException if an error occurs while communicating with the agent
+     */
+    public void lock() throws IOException {
+        out.writeByte(AgentProtocol.LOCK);
+        out.flush();
+        readResponse();
+    }
+
+    /**
+     * Disconnects from the agent
+     * @throws IOException if an error occurs while closing the connection
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Reads a response from the agent
+     * @return the response's fields, or null if the agent found nothing
+     * @throws IOException if an error occurs while reading, or the agent reported an error
+     */
+    private ArrayList<byte[]> readResponse() throws IOException {
+        byte status = in.readByte();
+        int count = in.readInt();
+        ArrayList<byte[]> fields = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            fields.add(AgentProtocol.readField(in));
+        }
+        if(status == AgentProtocol.STATUS_ERROR) {
+            throw new IOException("Agent was unable to complete the request");
+        }
+        return status == AgentProtocol.STATUS_NOT_FOUND ? null : fields;
+    }
+
+}
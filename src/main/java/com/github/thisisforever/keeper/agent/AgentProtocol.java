@@ -0,0 +1,122 @@
+package com.github.thisisforever.keeper.agent;
+
+import com.github.thisisforever.crypto.Utility;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+
+/**
+ * Defines the binary protocol spoken between an {@link UnlockAgent} and an {@link AgentClient}, along with the agent
+ * file through which clients find the agent.
+ * <p>
+ * After connecting, a client sends {@link #MAGIC} followed by the agent's {@link #TOKEN_LENGTH}-byte token, which the
+ * agent wrote to the agent file when it started. The agent replies with {@link #STATUS_OK} and then serves requests
+ * until the client disconnects, or closes the connection if the token didn't match. Each request is an opcode byte
+ * followed by a fixed number of fields; each response is a status byte followed by an int field count and the fields
+ * themselves. A field is an unsigned short length followed by that many bytes of UTF-8 data.
+ */
+public class AgentProtocol {
+
+    // Sent by clients at the start of each connection, identifying the protocol and its version
+    public static final int MAGIC = 0x4B504131;
+    // Defines the length of the token clients must present
+    public static final int TOKEN_LENGTH = 32;
+
+    // Requests the password of the entry with a given website and username (an empty username matches any)
+    public static final byte GET = 1;
+    // Requests the website and username of each entry matching the given text, as searched by a SearchIndex
+    public static final byte SEARCH = 2;
+    // Asks the agent to wipe its keys and exit
+    public static final byte LOCK = 3;
+
+    // Status bytes sent in responses
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_NOT_FOUND = 1;
+    public static final byte STATUS_ERROR = 2;
+
+    // Defines the extension appended to an archive's key file name to form the name of its agent file
+    private static final String AGENT_FILE_EXTENSION = ".agent";
+
+    /**
+     * Determines where the agent file for an archive is stored, next to the archive's key file
+     * @param keyFile The key file of the archive the agent serves
+     * @return a reference to the agent {@link File}
+     */
+    public static File agentFileFor(File keyFile) {
+        return new File(keyFile.getPath() + AGENT_FILE_EXTENSION);
+    }
+
+    /**
+     * Writes an agent file containing the port the agent listens on and its token. On systems supporting POSIX
+     * permissions, the file is created readable only by its owner.
+     * @param agentFile The file to write
+     * @param port The port the agent listens on
+     * @param token The token clients must present
+     * @throws IOException if the file could not be written
+     */
+    public static void writeAgentFile(File agentFile, int port, byte[] token) throws IOException {
+        Files.deleteIfExists(agentFile.toPath());
+        try {
+            Files.createFile(agentFile.toPath(), PosixFilePermissions.asFileAttribute(
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(agentFile.toPath());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + TOKEN_LENGTH);
+        buffer.putInt(port);
+        buffer.put(token);
+        Files.write(agentFile.toPath(), buffer.array());
+        Utility.erase(buffer.array());
+    }
+
+    /**
+     * Reads the port stored in an agent file
+     * @param data The contents of the agent file
+     * @return the port the agent listens on
+     */
+    public static int readPort(byte[] data) {
+        return ByteBuffer.wrap(data).getInt();
+    }
+
+    /**
+     * Reads the token stored in an agent file
+     * @param data The contents of the agent file
+     * @return a new byte[] containing the token, which the caller should erase once connected
+     */
+    public static byte[] readToken(byte[] data) {
+        byte[] token = new byte[TOKEN_LENGTH];
+        ByteBuffer.wrap(data, Integer.BYTES, TOKEN_LENGTH).get(token);
+        return token;
+    }
+
+    /**
+     * Writes a field
+     * @param out The stream to write to
+     * @param data The field's bytes
+     * @throws IOException if an error occurs while writing
+     */
+    public static void writeField(DataOutputStream out, byte[] data) throws IOException {
+        out.writeShort(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Reads a field
+     * @param in The stream to read from
+     * @return a new byte[] containing the field's bytes
+     * @throws IOException if an error occurs while reading, or the stream ends in the middle of the field
+     */
+    public static byte[] readField(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readUnsignedShort()];
+        in.readFully(data);
+        return data;
+    }
+
+}
@@ -0,0 +1,364 @@
+package com.github.thisisforever.keeper.agent;
+
+import com.github.thisisforever.crypto.CryptographicFailureException;
+import com.github.thisisforever.crypto.SecretTracker;
+import com.github.thisisforever.crypto.Utility;
+import com.github.thisisforever.keeper.cryptox.Entry;
+import com.github.thisisforever.keeper.cryptox.PasswordArchiveManager;
+import com.github.thisisforever.keeper.cryptox.SearchIndex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps an unlocked archive in memory and answers lookups from {@link AgentClient}s over a loopback socket, so that
+ * scripted lookups don't each pay for key derivation. Clients authenticate with a random token the agent writes to
+ * its agent file, which only the user can read. Entries are indexed by website, so lookups take constant time. Once
+ * no requests have arrived for the idle timeout, or a client sends {@link AgentProtocol#LOCK}, the agent erases its
+ * keys, deletes its agent file and stops. Requests read the keys and entries under a shared lock, which locking the
+ * agent takes exclusively before erasing them, so no request can decrypt with a key or read an entry as it's being
+ * wiped. See {@link AgentProtocol} for the protocol itself.
+ */
+public class UnlockAgent {
+
+    // Defines how often, in milliseconds, the agent checks whether it has been idle for too long
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+    // Defines how long, in milliseconds, locking waits for requests in progress to finish
+    private static final long LOCK_WAIT = 2000;
+
+    // References the manager used to decrypt passwords; erased when the agent locks
+    private final PasswordArchiveManager manager;
+    // Maps lowercase websites to the entries with that website
+    private final HashMap<String, List<Entry>> index;
+    // Indexes every entry's website and username for searches, in sorted order
+    private final SearchIndex searchIndex;
+    // References the file clients read the agent's port and token from
+    private final File agentFile;
+    // Defines how long the agent may go without requests before locking, in milliseconds
+    private final long idleTimeout;
+    // References the stream status messages are printed to
+    private final PrintStream log;
+
+    // The token clients must present; erased when the agent locks
+    private final byte[] token;
+    // Runs each client connection on its own thread
+    private final ExecutorService connections;
+    // Contains the sockets of connected clients, closed when the agent locks
+    private final Set<Socket> clients;
+    // Held shared while serving a request, and exclusively while erasing the keys and entries
+    private final ReadWriteLock requestLock;
+    private ServerSocket serverSocket;
+    // The time at which the last request arrived
+    private volatile long lastActivity;
+    // Flag set once the agent has locked
+    private volatile boolean locked;
+
+    /**
+     * Creates an agent serving an unlocked archive
+     * @param manager A manager whose entry keys have been populated
+     * @param entries The archive's entries, sorted
+     * @param agentFile The file the agent's port and token are written to
+     * @param idleTimeout The number of milliseconds without requests after which the agent locks
+     * @param log The stream status messages are printed to
+     */
+    public UnlockAgent(PasswordArchiveManager manager, List<Entry> entries, File agentFile, long idleTimeout,
+                       PrintStream log) {
+        this.manager = manager;
+        this.agentFile = agentFile;
+        this.idleTimeout = idleTimeout;
+        this.log = log;
+        index = new HashMap<>(entries.size() * 2);
+        for(Entry e : entries) {
+            index.computeIfAbsent(e.getWebsite().toLowerCase(Locale.ROOT), k -> new ArrayList<>(1)).add(e);
+        }
+        searchIndex = new SearchIndex(entries);
+        token = Utility.generateRandomBytes(AgentProtocol.TOKEN_LENGTH);
+        connections = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "Keeper agent connection");
+            thread.setDaemon(true);
+            return thread;
+        });
+        clients = ConcurrentHashMap.newKeySet();
+        requestLock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Begins listening for clients on a loopback port, writes the agent file, and serves clients until the agent
+     * locks. Blocks until then.
+     * @throws IOException if the agent was unable to listen or write its agent file
+     */
+    public void serve() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        AgentProtocol.writeAgentFile(agentFile, serverSocket.getLocalPort(), token);
+        Thread shutdownHook = new Thread(this::lock);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        lastActivity = System.currentTimeMillis();
+        startIdleWatchdog();
+        log.println("Agent listening on " + serverSocket.getLocalSocketAddress() + " with " + searchIndex.size()
+                + " entries; locking after " + idleTimeout / 1000 + " s idle");
+        try {
+            while(!locked) {
+                Socket client = serverSocket.accept();
+                connections.execute(() -> handle(client));
+            }
+        } catch (SocketException e) {
+            // The server socket was closed because the agent locked
+        } finally {
+            lock();
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down
+            }
+        }
+    }
+
+    /**
+     * Erases the agent's keys and token, deletes the agent file and stops accepting clients. Connected clients are
+     * disconnected, and requests in progress are given a moment to finish; the keys aren't erased until none are still
+     * using them. Safe to call more than once.
+     */
+    public synchronized void lock() {
+        if(locked) {
+            return;
+        }
+        locked = true;
+        try {
+            Files.deleteIfExists(agentFile.toPath());
+        } catch (IOException e) {
+            log.println("Unable to delete agent file " + agentFile);
+        }
+        try {
+            if(serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Nothing more to do; the socket is unusable either way
+        }
+        connections.shutdownNow();
+        for(Socket client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // The connection is being dropped either way
+            }
+        }
+        try {
+            connections.awaitTermination(LOCK_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        requestLock.writeLock().lock();
+        try {
+            manager.discard();
+            Utility.erase(token);
+            index.clear();
+            searchIndex.clear();
+        } finally {
+            requestLock.writeLock().unlock();
+        }
+        log.println("Agent locked");
+        if(SecretTracker.isEnabled()) {
+            log.println(SecretTracker.getSummary());
+        }
+    }
+
+    /**
+     * Starts a daemon thread which locks the agent once no requests have arrived for the idle timeout
+     */
+    private void startIdleWatchdog() {
+        Thread watchdog = new Thread(() -> {
+            while(!locked) {
+                try {
+                    Thread.sleep(IDLE_CHECK_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if(System.currentTimeMillis() - lastActivity > idleTimeout) {
+                    lock();
+                }
+            }
+        }, "Keeper agent idle watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /**
+     * Authenticates a client and serves its requests until it disconnects
+     * @param client The client's socket
+     */
+    private void handle(Socket client) {
+        clients.add(client);
+        try(Socket socket = client) {
+            if(locked) {
+                return;
+            }
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if(!authenticate(in)) {
+                return;
+            }
+            out.writeByte(AgentProtocol.STATUS_OK);
+            out.flush();
+            while(!locked) {
+                byte opcode;
+                try {
+                    opcode = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                switch(opcode) {
+                    case AgentProtocol.GET:
+                        get(in, out);
+                        break;
+                    case AgentProtocol.SEARCH:
+                        search(in, out);
+                        break;
+                    case AgentProtocol.LOCK:
+                        out.writeByte(AgentProtocol.STATUS_OK);
+                        out.writeInt(0);
+                        out.flush();
+                        // Lock from another thread, since locking waits for connection threads such as this one
+                        new Thread(this::lock, "Keeper agent lock").start();
+                        return;
+                    default:
+                        out.writeByte(AgentProtocol.STATUS_ERROR);
+                        out.writeInt(0);
+                        out.flush();
+                        return;
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client disconnected or sent a malformed request; drop the connection
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    /**
+     * Reads a client's handshake and compares its token with the agent's in constant time
+     * @param in The client's input stream
+     * @return true if the client presented the agent's token, otherwise false
+     * @throws IOException if an error occurs while reading
+     */
+    private boolean authenticate(DataInputStream in) throws IOException {
+        if(in.readInt() != AgentProtocol.MAGIC) {
+            return false;
+        }
+        byte[] presented = new byte[AgentProtocol.TOKEN_LENGTH];
+        in.readFully(presented);
+        try {
+            return !locked && MessageDigest.isEqual(presented, token);
+        } finally {
+            Utility.erase(presented);
+        }
+    }
+
+    /**
+     * Answers a {@link AgentProtocol#GET} request with the password of the first matching entry
+     * @param in The client's input stream
+     * @param out The client's output stream
+     * @throws IOException if an error occurs while communicating
+     */
+    private void get(DataInputStream in, DataOutputStream out) throws IOException {
+        String website = Utility.decode(AgentProtocol.readField(in)).toLowerCase(Locale.ROOT);
+        String username = Utility.decode(AgentProtocol.readField(in));
+        requestLock.readLock().lock();
+        try {
+            if(locked) {
+                out.writeByte(AgentProtocol.STATUS_ERROR);
+                out.writeInt(0);
+                return;
+            }
+            getLocked(website, username, out);
+        } finally {
+            requestLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Answers a {@link AgentProtocol#GET} request while holding the request lock
+     * @param website The lowercase website requested
+     * @param username The username requested, or an empty string to match any username
+     * @param out The client's output stream
+     * @throws IOException if an error occurs while communicating
+     */
+    private void getLocked(String website, String username, DataOutputStream out) throws IOException {
+        List<Entry> candidates = index.getOrDefault(website, Collections.emptyList());
+        for(Entry e : candidates) {
+            if(username.isEmpty() || e.getUsername().equalsIgnoreCase(username)) {
+                byte[] passwordData = e.getPasswordData();
+                byte[] password = null;
+                try {
+                    password = passwordData == null ? new byte[0] : manager.decryptPasswordBytes(passwordData);
+                    out.writeByte(AgentProtocol.STATUS_OK);
+                    out.writeInt(1);
+                    AgentProtocol.writeField(out, password);
+                } catch (CryptographicFailureException ex) {
+                    out.writeByte(AgentProtocol.STATUS_ERROR);
+                    out.writeInt(0);
+                } finally {
+                    Utility.erase(password);
+                }
+                return;
+            }
+        }
+        out.writeByte(AgentProtocol.STATUS_NOT_FOUND);
+        out.writeInt(0);
+    }
+
+    /**
+     * Answers a {@link AgentProtocol#SEARCH} request with the website and username of each matching entry
+     * @param in The client's input stream
+     * @param out The client's output stream
+     * @throws IOException if an error occurs while communicating
+     */
+    private void search(DataInputStream in, DataOutputStream out) throws IOException {
+        String query = Utility.decode(AgentProtocol.readField(in));
+        requestLock.readLock().lock();
+        try {
+            if(locked) {
+                out.writeByte(AgentProtocol.STATUS_ERROR);
+                out.writeInt(0);
+                return;
+            }
+            ArrayList<Entry> matches = searchIndex.search(query);
+            out.writeByte(matches.isEmpty() ? AgentProtocol.STATUS_NOT_FOUND : AgentProtocol.STATUS_OK);
+            out.writeInt(matches.size() * 2);
+            for(Entry e : matches) {
+                AgentProtocol.writeField(out, Utility.encode(e.getWebsite()));
+                AgentProtocol.writeField(out, Utility.encode(e.getUsername()));
+            }
+        } finally {
+            requestLock.readLock().unlock();
+        }
+    }
+
+}
@@ -0,0 +1,1041 @@
+package com.github.thisisforever.keeper.application;
+
+import com.github.thisisforever.crypto.AESGCMCryptographerWithPasswordBasedKeyDerivation;
+import com.github.thisisforever.crypto.Cryptographer;
+import com.github.thisisforever.crypto.CryptographicFailureException;
+import com.github.thisisforever.crypto.DecryptingInputStream;
+import com.github.thisisforever.crypto.KeyDerivationCache;
+import com.github.thisisforever.crypto.SCryptKeyFactory;
+import com.github.thisisforever.crypto.SecretTracker;
+import com.github.thisisforever.crypto.Utility;
+import com.github.thisisforever.keeper.agent.AgentClient;
+import com.github.thisisforever.keeper.agent.AgentProtocol;
+import com.github.thisisforever.keeper.agent.UnlockAgent;
+import com.github.thisisforever.keeper.cryptox.ArchiveMerger;
+import com.github.thisisforever.keeper.cryptox.AuditReport;
+import com.github.thisisforever.keeper.cryptox.BreachedPasswordChecker;
+import com.github.thisisforever.keeper.cryptox.Entry;
+import com.github.thisisforever.keeper.cryptox.PasswordArchiveManager;
+import com.github.thisisforever.keeper.cryptox.PasswordGenerator;
+import com.github.thisisforever.keeper.cryptox.PasswordPolicy;
+import com.github.thisisforever.keeper.cryptox.SearchIndex;
+import com.github.thisisforever.keeper.cryptox.VaultAuditor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Console;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs Keeper from the command line without a GUI, allowing passwords to be looked up and added from shell scripts.
+ * Only the archive manager and the classes it needs are loaded; no AWT or Swing classes are touched, which keeps
+ * startup fast. The master password is read from the console, or from the first line of standard input when
+ * --password-stdin is given. When an {@link UnlockAgent} is running for the archive, lookups are sent to it instead,
+ * so no master password or key derivation is needed.
+ */
+public class CommandLine {
+
+    // Exit codes returned by run
+    public static final int SUCCESS = 0;
+    public static final int NOT_FOUND = 1;
+    public static final int FAILURE = 2;
+
+    // Defines the help text printed when the command line is invalid
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: keeper [options] <command> [arguments]",
+            "Commands:",
+            "  get <website> [username]    Print the password for an entry",
+            "  list                        List the website and username of every entry",
+            "  search <text>               List entries whose website or username contains the text; one or two",
+            "                              letters match the start of a word",
+            "  add <website> <username>    Add an entry, reading its password or generating one",
+            "  reused                      List entries sharing a password, one group per paragraph",
+            "  audit [issue]               Report on the health of every password, or list the entries with an",
+            "                              issue: short, low-entropy, common-word, sequence, repetition,",
+            "                              contains-name, old, reused, breached or unreadable",
+            "  breach-filter               Build a Bloom filter for the breached password list, speeding up checks",
+            "  change-password             Change the archive's master password, reading the new one twice",
+            "  rotate-key                  Re-encrypt every password with a new entry key, resuming an interrupted",
+            "                              rotation if there is one",
+            "  merge <base> <other>        Merge another copy of the archive, which diverged from the base copy,",
+            "                              into the archive",
+            "  agent                       Unlock the archive and serve lookups to later commands until idle",
+            "  lock                        Make the running agent erase its keys and exit",
+            "  decrypt-export <file>       Print the JSON of an export encrypted with a password, reading the",
+            "                              export's password like the master password",
+            "  generate [count] [length]   Print newly generated passwords, one per line, using the configured",
+            "                              generator settings (default 1, of the configured length), and report",
+            "                              their entropy on standard error",
+            "Options:",
+            "  --archive <file>            Use the given archive instead of the configured one",
+            "  --password-stdin            Read the master password (and the new entry's password for add) from",
+            "                              standard input, one per line, instead of the console",
+            "  --generate [length]         With add, generate the password using the configured generator settings",
+            "                              and print it",
+            "  --pronounceable             Generate pronounceable passwords of lowercase invented words instead of",
+            "                              random characters, for passwords read aloud",
+            "  --site <website>            With generate, follow the website's configured password policy",
+            "  --passphrase [words]        Generate passphrases of words from the built-in wordlist instead of",
+            "                              characters (default 6 words, or the length given to generate)",
+            "  --timing                    Report startup, key derivation and lookup times on standard error, or",
+            "                              the rate passwords were generated at",
+            "  --idle-timeout <seconds>    With agent, lock after this long without requests (default 900)",
+            "  --no-agent                  Unlock the archive directly even if an agent is running",
+            "  --breach-list <file>        Check passwords against a sorted file of SHA-1 hashes of breached passwords,",
+            "                              such as the list from Have I Been Pwned, instead of the configured one");
+
+    // Defines how long the agent waits for requests before locking, in seconds, unless --idle-timeout is given
+    private static final int DEFAULT_IDLE_TIMEOUT = 900;
+    // Defines the number of words in generated passphrases unless --passphrase or the configuration gives another
+    private static final int DEFAULT_PASSPHRASE_WORDS = 6;
+
+    // References the streams results and errors are printed to
+    private final PrintStream out, err;
+    // Records when the command line began running, for --timing
+    private final long startNanos;
+
+    // Options parsed from the command line
+    private File archiveFile, breachList;
+    private String site;
+    private boolean passwordFromStdin, timing, generate, passphrase, pronounceable, noAgent;
+    private int generateLength, passphraseWords;
+    private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    // Reads passwords from standard input when --password-stdin is given
+    private BufferedReader stdin;
+    // Tracks the time spent waiting for the user to type passwords, which is excluded from timings
+    private long promptNanos;
+    // Flag set once the archive has been saved or handed to an agent, either of which erases the manager's keys
+    private boolean released;
+
+    /**
+     * Creates a command line runner which prints to the given streams
+     * @param out The stream results are printed to
+     * @param err The stream errors and timings are printed to
+     */
+    public CommandLine(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Runs a command given on the command line, printing results to standard output
+     * @param args The command line arguments
+     * @return {@link #SUCCESS} if the command succeeded, {@link #NOT_FOUND} if no entries matched, otherwise
+     * {@link #FAILURE}
+     */
+    public static int run(String[] args) {
+        int result = new CommandLine(System.out, System.err).execute(args);
+        if(SecretTracker.isEnabled()) {
+            reportSecrets(System.err);
+        }
+        return result;
+    }
+
+    /**
+     * Reports how many secrets are still in memory and how many were leaked, once the command has finished, giving
+     * the garbage collector a chance to reclaim and report any secrets which were never erased
+     * @param err The stream to print the report to
+     */
+    private static void reportSecrets(PrintStream err) {
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        err.println(SecretTracker.getSummary());
+    }
+
+    /**
+     * Parses and runs a command
+     * @param args The command line arguments
+     * @return {@link #SUCCESS} if the command succeeded, {@link #NOT_FOUND} if no entries matched, otherwise
+     * {@link #FAILURE}
+     */
+    public int execute(String[] args) {
+        // Parse options, which precede the command
+        int i = 0;
+        for(; i < args.length && args[i].startsWith("--"); i++) {
+            switch(args[i]) {
+                case "--archive":
+                    if(++i == args.length) {
+                        return usage();
+                    }
+                    archiveFile = new File(args[i]);
+                    break;
+                case "--password-stdin":
+                    passwordFromStdin = true;
+                    break;
+                case "--generate":
+                    generate = true;
+                    if(i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                        generateLength = Integer.parseInt(args[++i]);
+                    }
+                    break;
+                case "--passphrase":
+                    passphrase = true;
+                    if(i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                        passphraseWords = Integer.parseInt(args[++i]);
+                    }
+                    break;
+                case "--pronounceable":
+                    pronounceable = true;
+                    break;
+                case "--site":
+                    if(++i == args.length) {
+                        return usage();
+                    }
+                    site = args[i];
+                    break;
+                case "--timing":
+                    timing = true;
+                    break;
+                case "--idle-timeout":
+                    if(++i == args.length || !args[i].matches("\\d+")) {
+                        return usage();
+                    }
+                    idleTimeout = Integer.parseInt(args[i]);
+                    break;
+                case "--no-agent":
+                    noAgent = true;
+                    break;
+                case "--breach-list":
+                    if(++i == args.length) {
+                        return usage();
+                    }
+                    breachList = new File(args[i]);
+                    break;
+                default:
+                    return usage();
+            }
+        }
+        if(i == args.length) {
+            return usage();
+        }
+        String command = args[i];
+        String[] arguments = Arrays.copyOfRange(args, i + 1, args.length);
+        switch(command) {
+            case "get":
+                if(arguments.length < 1 || arguments.length > 2) {
+                    return usage();
+                }
+                break;
+            case "audit":
+                if(arguments.length > 1 || (arguments.length == 1 && issueNamed(arguments[0]) == null)) {
+                    return usage();
+                }
+                break;
+            case "list":
+            case "reused":
+            case "breach-filter":
+            case "rotate-key":
+            case "change-password":
+            case "agent":
+            case "lock":
+                if(arguments.length != 0) {
+                    return usage();
+                }
+                break;
+            case "generate":
+                if(arguments.length > 2 || !Arrays.stream(arguments).allMatch(a -> a.matches("[1-9]\\d{0,7}"))) {
+                    return usage();
+                }
+                break;
+            case "search":
+            case "decrypt-export":
+            case "add":
+            case "merge":
+                if(arguments.length != (command.equals("search") || command.equals("decrypt-export") ? 1 : 2)) {
+                    return usage();
+                }
+                break;
+            default:
+                return usage();
+        }
+
+        ConfigurationManager configuration = new ConfigurationManager(Main.getConfigurationFile());
+        configuration.load();
+        String configuredPath = configuration.getProperty("archiveFile");
+        File primaryArchive = configuredPath == null ? null : new File(configuredPath);
+        String configuredBreachList = configuration.getProperty("breachList");
+        if(breachList == null && configuredBreachList != null) {
+            breachList = new File(configuredBreachList);
+        }
+        if(command.equals("breach-filter")) {
+            return buildBreachFilter();
+        }
+        if(command.equals("generate")) {
+            return generate(configuration, arguments.length > 0 ? Integer.parseInt(arguments[0]) : 1,
+                    arguments.length > 1 ? Integer.parseInt(arguments[1]) : 0);
+        }
+        if(command.equals("decrypt-export")) {
+            return decryptExport(new File(arguments[0]));
+        }
+        if(archiveFile == null) {
+            archiveFile = primaryArchive;
+        }
+        if(archiveFile == null) {
+            err.println("No archive has been configured; use --archive <file>");
+            return FAILURE;
+        }
+        File keyFile = Main.getKeyFile(archiveFile, primaryArchive);
+        File agentFile = AgentProtocol.agentFileFor(keyFile);
+        switch(command) {
+            case "lock":
+                return lock(agentFile);
+            case "get":
+            case "list":
+            case "search":
+                if(!noAgent && agentFile.exists()) {
+                    int result = lookUpWithAgent(agentFile, command, arguments);
+                    if(result != FAILURE) {
+                        return result;
+                    }
+                    err.println("Agent is not responding; unlocking the archive directly");
+                }
+                break;
+        }
+        if(!archiveFile.exists() && !command.equals("add")) {
+            err.println("Archive " + archiveFile + " does not exist");
+            return FAILURE;
+        }
+        if(archiveFile.exists() && !keyFile.exists()) {
+            err.println("Unable to find key file " + keyFile + " for archive " + archiveFile);
+            return FAILURE;
+        }
+
+        char[] password = readPassword("Master password: ");
+        if(password == null || password.length == 0) {
+            err.println("A master password is required");
+            return FAILURE;
+        }
+        KeyDerivationCache cache = new KeyDerivationCache();
+        PasswordArchiveManager manager = new PasswordArchiveManager(password, keyFile, cache);
+        Utility.erase(password);
+
+        try {
+            // Unlock the archive
+            Stage unlock = new Stage();
+            manager.populateEntryKeys();
+            ArrayList<Entry> entries = archiveFile.exists() ? manager.openDatabase(archiveFile) : new ArrayList<>();
+            if(entries == null) {
+                err.println("Error: Unable to open archive!");
+                return FAILURE;
+            }
+            unlock.end(0);
+
+            // Run the command
+            Stage run = new Stage();
+            long promptNanosBefore = promptNanos;
+            int result;
+            switch(command) {
+                case "get":
+                    result = get(manager, entries, arguments[0], arguments.length > 1 ? arguments[1] : null);
+                    break;
+                case "list":
+                    result = list(entries, null);
+                    break;
+                case "search":
+                    result = list(entries, arguments[0]);
+                    break;
+                case "merge":
+                    result = merge(manager, entries, new File(arguments[0]), new File(arguments[1]));
+                    break;
+                case "reused":
+                    result = reused(manager, entries);
+                    break;
+                case "rotate-key":
+                    result = rotateKey(manager, entries);
+                    break;
+                case "change-password":
+                    result = changePassword(manager);
+                    break;
+                case "audit":
+                    try(BreachedPasswordChecker checker = openBreachChecker()) {
+                        result = audit(manager, entries, checker,
+                                arguments.length > 0 ? issueNamed(arguments[0]) : null);
+                    }
+                    break;
+                case "agent":
+                    if(timing) {
+                        reportTiming(unlock, null);
+                    }
+                    released = true;
+                    new UnlockAgent(manager, entries, agentFile, idleTimeout * 1000L, err).serve();
+                    return SUCCESS;
+                default:
+                    result = add(manager, entries, configuration, arguments[0], arguments[1]);
+                    break;
+            }
+            out.flush();
+            run.end(promptNanos - promptNanosBefore);
+            if(timing) {
+                reportTiming(unlock, run);
+            }
+            return result;
+        } catch (CryptographicFailureException e) {
+            err.println("Opening archive failed - Unable to authenticate data!");
+            return FAILURE;
+        } catch (IOException e) {
+            err.println("Error occurred while opening archive: " + e.getMessage());
+            return FAILURE;
+        } finally {
+            if(!released) {
+                manager.discard();
+            }
+            cache.clear();
+        }
+    }
+
+    /**
+     * Prints the password of the entry with a given website and, optionally, username. Matching ignores case.
+     * @param manager The manager used to decrypt the password
+     * @param entries The archive's entries
+     * @param website The website to look up
+     * @param username The username to look up, or null to match any username
+     * @return {@link #SUCCESS} if an entry was found, otherwise {@link #NOT_FOUND}
+     */
+    private int get(PasswordArchiveManager manager, ArrayList<Entry> entries, String website, String username)
+            throws CryptographicFailureException {
+        Entry match = null;
+        int matches = 0;
+        for(Entry e : entries) {
+            if(e.getWebsite().equalsIgnoreCase(website)
+                    && (username == null || e.getUsername().equalsIgnoreCase(username))) {
+                if(match == null) {
+                    match = e;
+                }
+                matches++;
+            }
+        }
+        if(match == null) {
+            err.println("No entry found");
+            return NOT_FOUND;
+        }
+        if(matches > 1) {
+            err.println(matches + " entries match; printing the password for " + match.getUsername());
+        }
+        byte[] passwordData = match.getPasswordData();
+        if(passwordData == null) {
+            out.println();
+            return SUCCESS;
+        }
+        char[] password = manager.decryptPasswordChars(passwordData);
+        out.println(password);
+        Utility.erase(password);
+        return SUCCESS;
+    }
+
+    /**
+     * Prints the website and username of each entry, separated by a tab, optionally only those matching a search
+     * @param entries The archive's entries, sorted
+     * @param query Text to search for, as with a {@link SearchIndex}, or null to list every entry
+     * @return {@link #SUCCESS} if any entries were printed, otherwise {@link #NOT_FOUND}
+     */
+    private int list(ArrayList<Entry> entries, String query) {
+        List<Entry> matches = query == null ? entries : new SearchIndex(entries).search(query);
+        for(Entry e : matches) {
+            out.println(e.getWebsite() + "\t" + e.getUsername());
+        }
+        return matches.isEmpty() ? NOT_FOUND : SUCCESS;
+    }
+
+    /**
+     * Prints the website and username of each entry whose password is shared with another entry, grouping entries
+     * which share the same password. Passwords are compared by their fingerprints; if the archive was saved before
+     * passwords were fingerprinted, the missing fingerprints are computed and the archive is saved with them.
+     * @param manager The manager holding the archive's fingerprint index
+     * @param entries The archive's entries
+     * @return {@link #SUCCESS} if any passwords are reused, {@link #NOT_FOUND} if none are, or {@link #FAILURE} if the
+     * archive couldn't be saved with its new fingerprints
+     */
+    private int reused(PasswordArchiveManager manager, ArrayList<Entry> entries) throws CryptographicFailureException {
+        int fingerprinted = manager.fingerprintMissing(entries);
+        ArrayList<ArrayList<Entry>> groups = manager.getFingerprintIndex().findReused();
+        int reusedEntries = 0;
+        for(ArrayList<Entry> group : groups) {
+            Entry.sort(group);
+            reusedEntries += group.size();
+        }
+        groups.sort((a, b) -> a.get(0).compareTo(b.get(0)));
+        for(int i = 0; i < groups.size(); i++) {
+            if(i > 0) {
+                out.println();
+            }
+            for(Entry e : groups.get(i)) {
+                out.println(e.getWebsite() + "\t" + e.getUsername());
+            }
+        }
+        err.println(groups.size() + " passwords are shared by " + reusedEntries + " entries");
+        if(fingerprinted > 0) {
+            released = true;
+            if(!manager.closeDatabase(archiveFile, entries)) {
+                err.println("Unable to save archive!");
+                return FAILURE;
+            }
+        }
+        return groups.isEmpty() ? NOT_FOUND : SUCCESS;
+    }
+
+    /**
+     * Changes the archive's master password, reading the new password twice
+     * @param manager The manager of the archive, opened with the current password
+     * @return {@link #SUCCESS}, or {@link #FAILURE} if the passwords didn't match or the archive couldn't be written
+     */
+    private int changePassword(PasswordArchiveManager manager) throws IOException, CryptographicFailureException {
+        char[] password = readPassword("New master password: ");
+        char[] confirmation = readPassword("Confirm new master password: ");
+        try {
+            if(password == null || password.length == 0) {
+                err.println("A master password is required");
+                return FAILURE;
+            }
+            if(!Arrays.equals(password, confirmation)) {
+                err.println("Passwords do not match");
+                return FAILURE;
+            }
+            manager.changePassword(archiveFile, password);
+            err.println("Master password changed");
+            return SUCCESS;
+        } catch (IllegalStateException e) {
+            err.println(e.getMessage() + "; run rotate-key to finish rotating its key first");
+            return FAILURE;
+        } finally {
+            Utility.erase(password);
+            Utility.erase(confirmation);
+        }
+    }
+
+    /**
+     * Re-encrypts every password in the archive with a new entry key and saves the archive with it
+     * @param manager The manager whose entry key is rotated
+     * @param entries The archive's entries
+     * @return {@link #SUCCESS}, or {@link #FAILURE} if the rotation couldn't be journaled or the archive couldn't be
+     * saved; an interrupted rotation resumes the next time the archive is opened
+     */
+    private int rotateKey(PasswordArchiveManager manager, ArrayList<Entry> entries) throws IOException {
+        int rotated = manager.rotateEntryKey(entries, Runtime.getRuntime().availableProcessors());
+        released = true;
+        if(!manager.closeDatabase(archiveFile, entries)) {
+            err.println("Unable to save archive! The rotation will resume the next time it is opened.");
+            return FAILURE;
+        }
+        err.println("Re-encrypted " + rotated + " passwords with a new entry key");
+        return SUCCESS;
+    }
+
+    /**
+     * Audits every password in the archive, printing a summary of the report or the entries with a given issue
+     * @param manager The manager used to decrypt the passwords
+     * @param entries The archive's entries
+     * @param checker The checker used to find breached passwords, or null if no breached password list is configured
+     * @param issue The issue whose entries should be listed, or null to print a summary
+     * @return {@link #SUCCESS}, or {@link #NOT_FOUND} if an issue was given and no entries have it
+     */
+    private int audit(PasswordArchiveManager manager, ArrayList<Entry> entries, BreachedPasswordChecker checker,
+                      AuditReport.Issue issue) {
+        AuditReport report = new VaultAuditor(manager, Runtime.getRuntime().availableProcessors(), checker)
+                .audit(entries);
+        if(issue == null) {
+            out.print(report.getSummary());
+            return SUCCESS;
+        }
+        for(Entry e : report.getFindings(issue)) {
+            out.println(e.getWebsite() + "\t" + e.getUsername());
+        }
+        return report.getFindings(issue).isEmpty() ? NOT_FOUND : SUCCESS;
+    }
+
+    /**
+     * Opens the breached password list given with --breach-list or configured in the app, if there is one
+     * @return a {@link BreachedPasswordChecker} for the list, or null if there is no list or it couldn't be opened
+     */
+    private BreachedPasswordChecker openBreachChecker() {
+        if(breachList == null) {
+            return null;
+        }
+        try {
+            return new BreachedPasswordChecker(breachList);
+        } catch (IOException e) {
+            err.println("Unable to open breached password list: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Builds a Bloom filter for the breached password list, saving it next to the list
+     * @return {@link #SUCCESS} if the filter was built, otherwise {@link #FAILURE}
+     */
+    private int buildBreachFilter() {
+        if(breachList == null) {
+            err.println("No breached password list has been configured; use --breach-list <file>");
+            return FAILURE;
+        }
+        try {
+            long start = System.nanoTime();
+            long count = BreachedPasswordChecker.buildBloomFilter(breachList);
+            err.println("Added " + count + " hashes to " + breachList + BreachedPasswordChecker.BLOOM_FILTER_EXTENSION
+                    + " in " + Duration.ofNanos(System.nanoTime() - start).toMillis() + " ms");
+            return SUCCESS;
+        } catch (IOException e) {
+            err.println("Unable to build Bloom filter: " + e.getMessage());
+            return FAILURE;
+        }
+    }
+
+    /**
+     * Finds the audit issue with a name given on the command line, such as low-entropy
+     * @param name The issue's name, in lowercase with words separated by dashes
+     * @return the {@link AuditReport.Issue}, or null if there is none with the name
+     */
+    private static AuditReport.Issue issueNamed(String name) {
+        for(AuditReport.Issue issue : AuditReport.Issue.values()) {
+            if(issue.name().replace('_', '-').toLowerCase(Locale.ROOT).equals(name)) {
+                return issue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds an entry to the archive and saves it. The password is generated if --generate was given, otherwise it is
+     * read from the console or standard input.
+     * @param manager The manager used to encrypt the password and save the archive
+     * @param entries The archive's entries
+     * @param configuration The configuration holding the password generator's settings
+     * @param website The new entry's website
+     * @param username The new entry's username
+     * @return {@link #SUCCESS} if the entry was added and saved, otherwise {@link #FAILURE}
+     */
+    private int add(PasswordArchiveManager manager, ArrayList<Entry> entries, ConfigurationManager configuration,
+                    String website, String username) throws IOException {
+        for(Entry e : entries) {
+            if(e.getWebsite().equalsIgnoreCase(website) && e.getUsername().equalsIgnoreCase(username)) {
+                err.println("An entry for " + username + " at " + website + " already exists");
+                return FAILURE;
+            }
+        }
+        char[] password;
+        if(generate && passphrase) {
+            password = new PasswordGenerator().generatePassphrase(passphraseWords > 0 ? passphraseWords
+                    : configuration.getIntProperty("passphraseWords", DEFAULT_PASSPHRASE_WORDS));
+        } else if(generate && pronounceable) {
+            password = new PasswordGenerator().generatePronounceable(generateLength > 0 ? generateLength
+                    : configuration.getIntProperty("passwordLength", 12));
+        } else if(generate) {
+            PasswordPolicy policy;
+            try {
+                policy = PasswordPolicy.forSite(website, configuration);
+            } catch (IllegalArgumentException e) {
+                err.println("Invalid password policy for " + website + ": " + e.getMessage());
+                return FAILURE;
+            }
+            PasswordGenerator generator = policy != null ? new PasswordGenerator() : configuredGenerator(configuration);
+            if(generator == null) {
+                return FAILURE;
+            }
+            int length = generateLength > 0 ? generateLength : configuration.getIntProperty("passwordLength", 12);
+            password = policy != null ? generator.generatePassword(policy, length) : generator.generatePassword(length);
+        } else {
+            password = readPassword("Password for " + username + " at " + website + ": ");
+            if(password == null) {
+                err.println("No password was given");
+                return FAILURE;
+            }
+        }
+        try(BreachedPasswordChecker checker = openBreachChecker()) {
+            if(checker != null && checker.isBreached(password)) {
+                err.println("Warning: this password appears in the breached password list");
+            }
+        }
+        Entry entry = manager.getEntryStore().add(website, username);
+        entry.setPassword(manager, password);
+        if(generate) {
+            out.println(password);
+        }
+        Utility.erase(password);
+        entries.add(Entry.insertionPoint(entries, entry), entry);
+        released = true;
+        if(!manager.closeDatabase(archiveFile, entries)) {
+            err.println("Unable to save archive!");
+            return FAILURE;
+        }
+        return SUCCESS;
+    }
+
+    /**
+     * Merges another copy of the archive, such as one synced from another machine, into the archive and saves it.
+     * Both copies must share the archive's master password and key file.
+     * @param manager The manager used to read the copies and save the archive
+     * @param entries The archive's entries
+     * @param baseFile The copy both the archive and the other copy diverged from
+     * @param otherFile The other copy
+     * @return {@link #SUCCESS} if the merged archive was saved, otherwise {@link #FAILURE}
+     */
+    private int merge(PasswordArchiveManager manager, ArrayList<Entry> entries, File baseFile, File otherFile)
+            throws CryptographicFailureException, IOException {
+        for(File f : new File[] {baseFile, otherFile}) {
+            if(!f.exists()) {
+                err.println("Archive " + f + " does not exist");
+                return FAILURE;
+            }
+        }
+        ArrayList<Entry> base = manager.openDatabaseCopy(baseFile);
+        ArrayList<Entry> other = manager.openDatabaseCopy(otherFile);
+        ArchiveMerger merger = new ArchiveMerger(manager);
+        ArrayList<Entry> merged = merger.merge(base, entries, other);
+        out.println("Merged into " + merged.size() + " entries");
+        if(merger.getConflictCount() > 0) {
+            out.println(merger.getConflictCount() + " entries were changed in both copies; both versions were kept " +
+                    "where passwords disagreed");
+        }
+        released = true;
+        if(!manager.closeDatabase(archiveFile, merged)) {
+            err.println("Unable to save archive!");
+            return FAILURE;
+        }
+        return SUCCESS;
+    }
+
+    /**
+     * Runs get, list or search against a running agent
+     * @param agentFile The agent file written by the agent
+     * @param command The command to run
+     * @param arguments The command's arguments
+     * @return {@link #SUCCESS} or {@link #NOT_FOUND} as the command would when run directly, or {@link #FAILURE} if
+     * the agent couldn't be reached
+     */
+    private int lookUpWithAgent(File agentFile, String command, String[] arguments) {
+        long lookupStart = System.nanoTime();
+        try(AgentClient client = new AgentClient(agentFile)) {
+            int result;
+            if(command.equals("get")) {
+                byte[] encoded = client.get(arguments[0], arguments.length > 1 ? arguments[1] : null);
+                if(encoded == null) {
+                    err.println("No entry found");
+                    result = NOT_FOUND;
+                } else {
+                    char[] password = Utility.decodeChars(encoded);
+                    out.println(password);
+                    Utility.erase(password);
+                    Utility.erase(encoded);
+                    result = SUCCESS;
+                }
+            } else {
+                ArrayList<String> matches = client.search(command.equals("list") ? "" : arguments[0]);
+                for(int i = 0; i < matches.size(); i += 2) {
+                    out.println(matches.get(i) + "\t" + matches.get(i + 1));
+                }
+                result = matches.isEmpty() ? NOT_FOUND : SUCCESS;
+            }
+            out.flush();
+            if(timing) {
+                long lookupNanos = System.nanoTime() - lookupStart;
+                err.printf("%-45s %10.3f ms%n", "Agent connection and lookup", millis(lookupNanos));
+                err.printf("%-45s %10.3f ms%n", "Time since command line started", millis(System.nanoTime() - startNanos));
+            }
+            return result;
+        } catch (IOException e) {
+            return FAILURE;
+        }
+    }
+
+    /**
+     * Asks the running agent to erase its keys and exit
+     * @param agentFile The agent file written by the agent
+     * @return {@link #SUCCESS} if the agent locked, {@link #NOT_FOUND} if no agent was running, otherwise
+     * {@link #FAILURE}
+     */
+    private int lock(File agentFile) {
+        if(!agentFile.exists()) {
+            err.println("No agent is running");
+            return NOT_FOUND;
+        }
+        try(AgentClient client = new AgentClient(agentFile)) {
+            client.lock();
+            return SUCCESS;
+        } catch (IOException e) {
+            err.println("Unable to reach the agent: " + e.getMessage());
+            return FAILURE;
+        }
+    }
+
+    /**
+     * Creates a password generator with the configured character types
+     * @param configuration The configuration holding the password generator's settings
+     * @return the {@link PasswordGenerator}, or null if no character types are selected
+     */
+    private PasswordGenerator configuredGenerator(ConfigurationManager configuration) {
+        PasswordGenerator generator = new PasswordGenerator();
+        generator.setFlags(configuration.getBooleanProperty("uppercase", true),
+                configuration.getBooleanProperty("lowercase", true),
+                configuration.getBooleanProperty("numbers", true),
+                configuration.getBooleanProperty("symbols", false));
+        if(!generator.anySelected()) {
+            err.println("The password generator has no character types selected");
+            return null;
+        }
+        return generator;
+    }
+
+    /**
+     * Decrypts an export which was encrypted with a password and prints its JSON, a chunk at a time. An export which
+     * was truncated or altered fails with an error once the damage is reached, after printing what came before it.
+     * @param file The encrypted export
+     * @return {@link #SUCCESS} if the whole export was decrypted, otherwise {@link #FAILURE}
+     */
+    private int decryptExport(File file) {
+        if(!file.exists()) {
+            err.println("Export " + file + " does not exist");
+            return FAILURE;
+        }
+        char[] password = readPassword("Export password: ");
+        if(password == null || password.length == 0) {
+            err.println("The export's password is required");
+            return FAILURE;
+        }
+        // Every chunk is encrypted with the same salt, so the key is only derived once
+        KeyDerivationCache cache = new KeyDerivationCache();
+        Cryptographer cryptographer = new AESGCMCryptographerWithPasswordBasedKeyDerivation(password, cache);
+        Utility.erase(password);
+        byte[] buffer = new byte[8192];
+        try(InputStream in = new DecryptingInputStream(new BufferedInputStream(new FileInputStream(file)),
+                cryptographer)) {
+            int count;
+            while((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            out.flush();
+            return SUCCESS;
+        } catch (IOException e) {
+            out.flush();
+            err.println("Unable to decrypt export: " + e.getMessage());
+            return FAILURE;
+        } finally {
+            Utility.erase(buffer);
+            cryptographer.destroy();
+            cache.clear();
+        }
+    }
+
+    /**
+     * Prints a batch of generated passwords, pronounceable passwords if --pronounceable was given, or passphrases if
+     * --passphrase was given, one per line, such as for provisioning many accounts at once. The passwords are
+     * generated on every available processor, and erased once printed. Their entropy is reported on standard error.
+     * @param configuration The configuration holding the password generator's settings
+     * @param count The number of passwords to generate
+     * @param length The length of each password, or number of words in each passphrase, or 0 for the configured
+     *               length
+     * @return {@link #SUCCESS} if the passwords were generated, otherwise {@link #FAILURE}
+     */
+    private int generate(ConfigurationManager configuration, int count, int length) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        char[][] passwords;
+        double entropy, minEntropy = -1;
+        long start = System.nanoTime();
+        if(pronounceable) {
+            if(length == 0) {
+                length = generateLength > 0 ? generateLength : configuration.getIntProperty("passwordLength", 12);
+            }
+            passwords = new PasswordGenerator().generatePronounceables(count, length, threads);
+            entropy = PasswordGenerator.getPronounceableEntropy(length, false);
+            minEntropy = PasswordGenerator.getPronounceableEntropy(length, true);
+        } else if(passphrase) {
+            if(length == 0) {
+                length = passphraseWords > 0 ? passphraseWords
+                        : configuration.getIntProperty("passphraseWords", DEFAULT_PASSPHRASE_WORDS);
+            }
+            passwords = new PasswordGenerator().generatePassphrases(count, length, threads);
+            entropy = PasswordGenerator.getPassphraseEntropy(length);
+        } else {
+            PasswordPolicy policy = null;
+            if(site != null) {
+                try {
+                    policy = PasswordPolicy.forSite(site, configuration);
+                } catch (IllegalArgumentException e) {
+                    err.println("Invalid password policy for " + site + ": " + e.getMessage());
+                    return FAILURE;
+                }
+                if(policy == null) {
+                    err.println("No password policy is configured for " + site);
+                    return FAILURE;
+                }
+            }
+            PasswordGenerator generator = policy != null ? new PasswordGenerator() : configuredGenerator(configuration);
+            if(generator == null) {
+                return FAILURE;
+            }
+            if(length == 0) {
+                length = generateLength > 0 ? generateLength : configuration.getIntProperty("passwordLength", 12);
+            }
+            if(policy != null) {
+                length = policy.clampLength(length);
+                passwords = generator.generatePasswords(policy, count, length, threads);
+                entropy = policy.getEntropy(length);
+            } else {
+                passwords = generator.generatePasswords(count, length, threads);
+                entropy = generator.getEntropy(length);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        for(char[] password : passwords) {
+            out.println(password);
+            Utility.erase(password);
+        }
+        out.flush();
+        if(minEntropy >= 0) {
+            err.printf("%.1f bits of entropy per password on average, %.1f for the likeliest%n", entropy, minEntropy);
+        } else {
+            err.printf("%.1f bits of entropy per %s%n", entropy, passphrase ? "passphrase" : "password");
+        }
+        if(timing) {
+            err.printf("%-45s %10.3f ms%n", "Generating " + count + " passwords", millis(elapsed));
+            err.printf("%-45s %10.0f passwords/s%n", "Rate", count / (elapsed / 1_000_000_000.0));
+        }
+        return SUCCESS;
+    }
+
+    /**
+     * Reads a password from the console without echoing it, or from the next line of standard input if
+     * --password-stdin was given
+     * @param prompt The prompt to display on the console
+     * @return a char[] containing the password, or null if none could be read
+     */
+    private char[] readPassword(String prompt) {
+        long start = System.nanoTime();
+        try {
+            if(passwordFromStdin) {
+                return readLine();
+            }
+            Console console = System.console();
+            if(console == null) {
+                err.println("No console is available; use --password-stdin");
+                return null;
+            }
+            return console.readPassword(prompt);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            promptNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Reads a line from standard input into a char[] without creating a {@link String}
+     * @return the line's characters, or null if standard input has ended
+     * @throws IOException if an error occurs while reading
+     */
+    private char[] readLine() throws IOException {
+        if(stdin == null) {
+            stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        }
+        char[] line = new char[64];
+        int length = 0;
+        int c;
+        while((c = stdin.read()) != -1 && c != '\n') {
+            if(c == '\r') {
+                continue;
+            }
+            if(length == line.length) {
+                char[] grown = Arrays.copyOf(line, line.length * 2);
+                Utility.erase(line);
+                line = grown;
+            }
+            line[length++] = (char) c;
+        }
+        if(c == -1 && length == 0) {
+            Utility.erase(line);
+            return null;
+        }
+        char[] result = Arrays.copyOf(line, length);
+        Utility.erase(line);
+        return result;
+    }
+
+    /**
+     * Prints how long each stage of the command took, separating the cost of key derivation from everything else
+     * @param unlock The stage which unlocked the archive
+     * @param command The stage which ran the command itself, or null if the command hasn't finished
+     */
+    private void reportTiming(Stage unlock, Stage command) {
+        long derivationNanos = unlock.derivationNanos + (command == null ? 0 : command.derivationNanos);
+        long totalNanos = System.nanoTime() - startNanos - promptNanos;
+        long jvmStartupNanos = ProcessHandle.current().info().startInstant()
+                .map(started -> Duration.between(started, Instant.now()).toNanos() - (System.nanoTime() - startNanos))
+                .orElse(0L);
+        err.printf("%-50s %10.3f ms%n", "JVM startup", millis(jvmStartupNanos));
+        err.printf("%-50s %10.3f ms%n", "Key derivation during unlock (" + unlock.derivations + " scrypt runs)",
+                millis(unlock.derivationNanos));
+        err.printf("%-50s %10.3f ms%n", "Archive unlock excluding key derivation",
+                millis(unlock.nanos - unlock.derivationNanos));
+        if(command != null) {
+            err.printf("%-50s %10.3f ms%n", "Key derivation during command (" + command.derivations + " scrypt runs)",
+                    millis(command.derivationNanos));
+            err.printf("%-50s %10.3f ms%n", "Command excluding key derivation",
+                    millis(command.nanos - command.derivationNanos));
+        }
+        err.printf("%-50s %10.3f ms%n", "Time to result excluding key derivation",
+                millis(jvmStartupNanos + totalNanos - derivationNanos));
+    }
+
+    /**
+     * Converts nanoseconds to milliseconds
+     * @param nanos A duration in nanoseconds
+     * @return the duration in milliseconds
+     */
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    /**
+     * Prints the usage text
+     * @return {@link #FAILURE}
+     */
+    private int usage() {
+        err.println(USAGE);
+        return FAILURE;
+    }
+
+    /**
+     * Measures a stage of the command, snapshotting the key derivation counters when the stage starts and ends so
+     * that only the scrypt runs made during the stage are attributed to it
+     */
+    private static class Stage {
+
+        // The time, and the key derivation counters, when the stage started
+        private final long start = System.nanoTime();
+        private final long derivationStart = SCryptKeyFactory.getDerivationNanos();
+        private final int derivationCountStart = SCryptKeyFactory.getDerivationCount();
+        // The time the stage took, the part of it spent deriving keys, and the number of keys derived
+        private long nanos, derivationNanos;
+        private int derivations;
+
+        /**
+         * Ends the stage
+         * @param excludedNanos Time spent during the stage which shouldn't be counted, such as waiting on a prompt
+         */
+        private void end(long excludedNanos) {
+            nanos = System.nanoTime() - start - excludedNanos;
+            derivationNanos = SCryptKeyFactory.getDerivationNanos() - derivationStart;
+            derivations = SCryptKeyFactory.getDerivationCount() - derivationCountStart;
+        }
+
+    }
+
+}
@@ -3,21 +3,84 @@ package com.github.thisisforever.keeper.application;
 import com.github.thisisforever.keeper.application.ui.AppMainFrame;
 
 import javax.swing.*;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Program entry point
  */
 public class Main {
 
+    // Defines the filename for the configuration file
+    private static final String CONFIGURATION_FILE_NAME = "keeper.cfg";
+    // Defines the filename for the key file, whose data is used to encrypt/decrypt the user's passwords
+    private static final String KEY_FILE_NAME = "keeper.key";
+    // Defines the extension appended to the paths of additional archives to form the paths of their key files
+    private static final String KEY_FILE_EXTENSION = ".key";
+
     /**
-     * Runs the program.
-     * @param args Currently unused arguments from the command line
+     * Runs the program. With no arguments, the GUI is shown; otherwise the arguments are run as a command by
+     * {@link CommandLine} without loading any GUI classes.
+     * @param args Arguments from the command line
      */
     public static void main(String[] args) {
+        if(args.length > 0) {
+            System.exit(CommandLine.run(args));
+        }
+        launchGui();
+    }
+
+    /**
+     * Creates the application's main window and shows it on the Swing UI thread
+     */
+    private static void launchGui() {
         AppMainFrame app = new AppMainFrame();
         SwingUtilities.invokeLater(app::createAndShow);
     }
 
+    /**
+     * Gets the configuration file, which is stored in the program's directory
+     * @return a reference to a {@link File} for the configuration file
+     */
+    public static File getConfigurationFile() {
+        return new File(getExecutableDirectory() + CONFIGURATION_FILE_NAME);
+    }
+
+    /**
+     * Determines where the key file for an archive is stored. The primary archive uses {@link #KEY_FILE_NAME} within
+     * the program's directory, while each additional archive uses a key file next to it, named after it, so that no
+     * two archives share a key file. Archives are compared by their canonical paths, so the primary archive is
+     * recognised however its path is written.
+     * @param archive The archive file
+     * @param primaryArchive The primary archive file, or null if the primary archive is being determined
+     * @return a reference to a {@link File} for the archive's key file
+     */
+    public static File getKeyFile(File archive, File primaryArchive) {
+        File primaryKeyFile = new File(getExecutableDirectory() + KEY_FILE_NAME);
+        if(primaryArchive == null || canonical(archive).equals(canonical(primaryArchive))) {
+            return primaryKeyFile;
+        }
+        File keyFile = new File(canonical(archive).getPath() + KEY_FILE_EXTENSION);
+        // An archive named like the primary key file, less its extension, would otherwise share it
+        if(keyFile.equals(canonical(primaryKeyFile))) {
+            keyFile = new File(keyFile.getPath() + KEY_FILE_EXTENSION);
+        }
+        return keyFile;
+    }
+
+    /**
+     * Resolves a file to its canonical form, or its absolute form if it can't be resolved
+     * @param file The file
+     * @return the canonical {@link File}
+     */
+    private static File canonical(File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (IOException e) {
+            return file.getAbsoluteFile();
+        }
+    }
+
     /**
      * Gets the root directory of the currently running program, for the sake of loading configuration
      * @return a {@link String} representing the directory of the program
@@ -2,10 +2,21 @@ package com.github.thisisforever.keeper.application.ui;
 
 import com.github.thisisforever.keeper.application.ConfigurationManager;
 import com.github.thisisforever.keeper.application.Main;
+import com.github.thisisforever.crypto.AESGCMCryptographerWithPasswordBasedKeyDerivation;
+import com.github.thisisforever.crypto.Cryptographer;
 import com.github.thisisforever.crypto.CryptographicFailureException;
+import com.github.thisisforever.crypto.EncryptingOutputStream;
+import com.github.thisisforever.crypto.KeyDerivationCache;
+import com.github.thisisforever.crypto.Utility;
+import com.github.thisisforever.keeper.cryptox.AuditReport;
+import com.github.thisisforever.keeper.cryptox.BreachedPasswordChecker;
+import com.github.thisisforever.keeper.cryptox.CsvEntryImporter;
 import com.github.thisisforever.keeper.cryptox.Entry;
+import com.github.thisisforever.keeper.cryptox.JsonEntryExporter;
 import com.github.thisisforever.keeper.cryptox.PasswordArchiveManager;
 import com.github.thisisforever.keeper.cryptox.PasswordGenerator;
+import com.github.thisisforever.keeper.cryptox.PasswordPolicy;
+import com.github.thisisforever.keeper.cryptox.VaultAuditor;
 import com.github.thisisforever.keeper.swingx.*;
 
 import javax.swing.*;
@@ -17,8 +28,15 @@ import java.awt.*;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.ActionEvent;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -30,24 +48,30 @@ public class AppMainFrame extends ExLayeredFrame {
     public static final String APPLICATION_NAME = "Keeper";
     // Defines the font used in the form fields
     public static Font FORM_FONT;
-    // Defines the filename for the configuration file
-    private static final String CONFIGURATION_FILE_NAME = "keeper.cfg";
-    // Defines the filename for the key file, whose data is used to encrypt/decrypt the user's passwords
-    private static final String KEY_FILE_NAME = "keeper.key";
+    // Defines the color of passwords found in the breached password list
+    private static final Color BREACHED_PASSWORD_COLOR = new Color(200, 0, 0);
+    // Defines the number of words in generated passphrases unless the configuration gives another
+    private static final int PASSPHRASE_WORDS = 6;
 
     // References the text fields used for editing password entries
     private JTextField websiteField, usernameField;
     private ExFocusShowPasswordField passwordField;
     // References the menu bar, where the Settings menu will appear
     private JMenuBar menuBar;
-    // References the UI component which displays the list of UIEntries
-    private Box entriesBox;
-    // References the scroll pane that displays entriesBox, allowing the user to scroll when lots of password entries
-    // are being displayed
+    // References the scroll pane that displays the current session's entries, allowing the user to scroll when lots
+    // of password entries are being displayed
     private JScrollPane entryScrollPane;
-    private JCheckBoxMenuItem lowercaseItem, uppercaseItem, numbersItem, symbolsItem;
-
-    // References the manager that will load and save app settings to and from CONFIGURATION_FILE_NAME
+    // References the combo box used to switch between open archives
+    private JComboBox<ArchiveSession> archiveSelector;
+    // References the field used to search the current archive's entries
+    private JTextField searchField;
+    // References the menu item used to close the current archive
+    private JMenuItem closeArchiveItem;
+    // References the file chooser used when opening additional archives, importing and exporting entries
+    private JFileChooser archiveChooser;
+    private JCheckBoxMenuItem lowercaseItem, uppercaseItem, numbersItem, symbolsItem, passphraseItem;
+
+    // References the manager that will load and save app settings to and from the configuration file
     private final ConfigurationManager configuration;
 
     // References the various dialogs used by the program
@@ -57,25 +81,33 @@ public class AppMainFrame extends ExLayeredFrame {
     private ExIntegerDialog passwordLengthDialog;
 
     private final PasswordGenerator passwordGenerator;
+    // References the checker used to warn about breached passwords, or null if no breached password list is set
+    private BreachedPasswordChecker breachChecker;
+    // The password field's usual text color, restored once a breached password is changed
+    private Color passwordForeground;
 
     // Flag set when the user has altered the current password entry
     private boolean changedWithoutSaving;
     // Flag set as the app is saving the archive, configuration and key files
     private boolean saving;
-    // References the UIEntry being edited by the user
-    private UIEntry currentEntry;
-    // References a list of UIEntry objects, representing the archive's passwords after loading
-    private ArrayList<UIEntry> entries;
+    // References the entry being edited by the user
+    private Entry currentEntry;
     // References a list of UI components that will be disabled when no entry is currently being edited
     private final ArrayList<Component> toggledComponents;
     // Determines how long generated passwords will be; loaded from config and altered through Settings menu
     private int passwordGeneratorLength;
-    // References the output file location for the archive and the key file
-    private File archiveFile, keyFile;
-
-    // References the app's password archive manager, used to encrypt and decrypt password entries and the archive
-    // itself
-    private PasswordArchiveManager archiveManager;
+    // References the primary archive, whose key file is keeper.key
+    private File archiveFile;
+
+    // References the archives currently open, each with its own password archive manager, and the archive currently
+    // being displayed
+    private final ArrayList<ArchiveSession> sessions;
+    private ArchiveSession currentSession;
+    // Caches keys derived from master passwords, allowing archives sharing a password to be unlocked with one
+    // derivation
+    private final KeyDerivationCache keyDerivationCache;
+    // Counts the archives currently being loaded on background threads
+    private int pendingLoads;
 
     public AppMainFrame() {
         // Place 5 pixels of spacing between layers and around the edges of the frame
@@ -89,8 +121,11 @@ public class AppMainFrame extends ExLayeredFrame {
         // Start the toggled components list as an empty list
         toggledComponents = new ArrayList<>();
 
+        sessions = new ArrayList<>();
+        keyDerivationCache = new KeyDerivationCache();
+
         // Create a handle to the configuration file
-        File configFile = new File(Main.getExecutableDirectory() + CONFIGURATION_FILE_NAME);
+        File configFile = Main.getConfigurationFile();
         // Load the app's configuration
         configuration = new ConfigurationManager(configFile);
         configuration.load();
@@ -98,6 +133,16 @@ public class AppMainFrame extends ExLayeredFrame {
         // Set the password generator's length to the value defined in the user's config, or 12 if not configured
         passwordGeneratorLength = configuration.getIntProperty("passwordLength", 12);
 
+        // Open the breached password list, if the user has chosen one
+        String breachList = configuration.getProperty("breachList");
+        if(breachList != null) {
+            try {
+                breachChecker = new BreachedPasswordChecker(new File(breachList));
+            } catch (IOException e) {
+                System.err.println("Unable to open breached password list " + breachList);
+            }
+        }
+
         // Determine where the user's archive is saved
         String path = configuration.getProperty("archiveFile");
         // Was the archive file's path defined?
@@ -129,22 +174,22 @@ public class AppMainFrame extends ExLayeredFrame {
         // Initialize the setup dialog
         initialSetupDialog = new InitialSetupDialog(this, archiveFile);
         // Determine where the key file is saved
-        keyFile = new File(Main.getExecutableDirectory() + KEY_FILE_NAME);
+        File keyFile = Main.getKeyFile(archiveFile, null);
 
         // If the archive file was defined in the config and it exists, prompt the user for the archive password
+        char[] password;
         if(archiveFile != null && archiveFile.exists()) {
-            char[] password = passwordDialog.showAndWait();
+            password = passwordDialog.showAndWait();
             if(password == null) {
                 System.exit(0);
             }
-            archiveManager = new PasswordArchiveManager(password, keyFile);
         } else {
             // Otherwise, show the initial setup dialog and wait for the user to finish
             if(!initialSetupDialog.showAndWait()) {
                 System.exit(0);
             }
             archiveFile = new File(initialSetupDialog.getArchivePath());
-            archiveManager = new PasswordArchiveManager(initialSetupDialog.getPassword(), keyFile);
+            password = initialSetupDialog.getPassword();
 
             // If the key file doesn't exist yet the archive file does, we have a problem - they key file is required
             // in order to access the archive's passwords
@@ -164,6 +209,44 @@ public class AppMainFrame extends ExLayeredFrame {
         menuBar = new JMenuBar();
         setJMenuBar(menuBar);
 
+        archiveChooser = new JFileChooser();
+
+        JMenu fileMenu = new JMenu("File");
+        menuBar.add(fileMenu);
+
+        JMenuItem openArchiveItem = new JMenuItem("Open archive...");
+        openArchiveItem.addActionListener(this::openArchiveItemPressed);
+        fileMenu.add(openArchiveItem);
+
+        closeArchiveItem = new JMenuItem("Close archive");
+        closeArchiveItem.addActionListener(this::closeArchiveItemPressed);
+        closeArchiveItem.setEnabled(false);
+        fileMenu.add(closeArchiveItem);
+
+        fileMenu.addSeparator();
+
+        JMenuItem importItem = new JMenuItem("Import entries from CSV...");
+        importItem.addActionListener(this::importItemPressed);
+        fileMenu.add(importItem);
+
+        JMenuItem exportItem = new JMenuItem("Export entries to JSON...");
+        exportItem.addActionListener(this::exportItemPressed);
+        fileMenu.add(exportItem);
+
+        fileMenu.addSeparator();
+
+        JMenuItem auditItem = new JMenuItem("Check password health...");
+        auditItem.addActionListener(this::auditItemPressed);
+        fileMenu.add(auditItem);
+
+        JMenuItem rotateKeyItem = new JMenuItem("Re-encrypt passwords with a new key...");
+        rotateKeyItem.addActionListener(this::rotateKeyItemPressed);
+        fileMenu.add(rotateKeyItem);
+
+        JMenuItem changePasswordItem = new JMenuItem("Change master password...");
+        changePasswordItem.addActionListener(this::changePasswordItemPressed);
+        fileMenu.add(changePasswordItem);
+
         JMenu settingsMenu = new JMenu("Settings");
         menuBar.add(settingsMenu);
 
@@ -187,17 +270,36 @@ public class AppMainFrame extends ExLayeredFrame {
         symbolsItem.setState(configuration.getBooleanProperty("symbols", false));
         settingsMenu.add(symbolsItem);
 
-        entriesBox = Box.createVerticalBox();
-        entryScrollPane = new JScrollPane(entriesBox);
-        entriesBox.add(Box.createVerticalGlue());
-
+        passphraseItem = new JCheckBoxMenuItem("Generate passphrases of words instead");
+        passphraseItem.setState(configuration.getBooleanProperty("passphrase", false));
+        settingsMenu.add(passphraseItem);
+
+        settingsMenu.addSeparator();
+
+        JMenuItem breachListItem = new JMenuItem("Set breached password list...");
+        breachListItem.addActionListener(this::breachListItemPressed);
+        settingsMenu.add(breachListItem);
+
+        ExLayer layer = newLayer(ExLayer.NONE);
+        layer.add(new JLabel("Archive:"));
+        archiveSelector = new JComboBox<>();
+        archiveSelector.setFocusable(false);
+        archiveSelector.addActionListener(this::archiveSelected);
+        layer.add(archiveSelector);
+        layer.add(new JLabel("Search:"));
+        searchField = new JTextField(12);
+        searchField.getDocument().addDocumentListener(new SearchChangedListener());
+        layer.add(searchField);
+        layer.setMaximumSize(new Dimension(10000, layer.getPreferredSize().height));
+
+        entryScrollPane = new JScrollPane();
         entryScrollPane.setPreferredSize(new Dimension(-1, 400));
         Color borderColor = ((LineBorder)entryScrollPane.getBorder()).getLineColor();
         entryScrollPane.setBorder(new MatteBorder(0, 0, 1, 0, borderColor));
         entryScrollPane.getVerticalScrollBar().setUnitIncrement(10);
         add(entryScrollPane);
 
-        ExLayer layer = newLayer(ExLayer.CENTER);
+        layer = newLayer(ExLayer.CENTER);
 
         DocumentListener formChangedListener = new FieldChangedListener();
         websiteField = new JTextField(16);
@@ -222,6 +324,8 @@ public class AppMainFrame extends ExLayeredFrame {
         passwordField.enableInputMethods(true);
         passwordField.setFont(FORM_FONT);
         passwordField.getDocument().addDocumentListener(formChangedListener);
+        passwordField.getDocument().addDocumentListener(new PasswordChangedListener());
+        passwordForeground = passwordField.getForeground();
         toggledComponents.add(passwordField);
         layer.add(passwordField);
 
@@ -294,93 +398,168 @@ public class AppMainFrame extends ExLayeredFrame {
         setLocationByPlatform(true);
         // Make the window visible
         setVisible(true);
-        // Does the archive file exist?
-        if(!archiveFile.exists()) {
-            // It doesn't, just create a new list of entries which we'll add to when the user starts making some
-            entries = new ArrayList<>();
+        // Open the primary archive, along with any additional archives that were open when the app was last closed.
+        // Additional archives are first tried with the primary archive's password, which only requires a single key
+        // derivation if they share it.
+        openArchive(archiveFile, keyFile, password, false);
+        String additionalArchives = configuration.getProperty("openArchives");
+        if(additionalArchives != null) {
+            for(String path : additionalArchives.split(File.pathSeparator)) {
+                File f = new File(path);
+                if(!path.isEmpty() && f.exists() && !f.equals(archiveFile)) {
+                    openArchive(f, keyFileFor(f), password, true);
+                }
+            }
+        }
+        Utility.erase(password);
+    }
+
+    /**
+     * Creates a session for an archive and begins loading it on a separate thread, showing the wait dialog until all
+     * pending archives have loaded. If the archive doesn't exist yet, a new empty archive is created.
+     * @param archive The archive file to open
+     * @param keyFile The key file associated with the archive
+     * @param password The archive's password; a copy is kept by the session's archive manager
+     * @param sharedPassword true if the password was borrowed from another archive, in which case the user is
+     *                       prompted for the correct password should it fail to unlock this archive
+     */
+    private void openArchive(File archive, File keyFile, char[] password, boolean sharedPassword) {
+        ArchiveSession session = new ArchiveSession(this, archive, keyFile,
+                new PasswordArchiveManager(password, keyFile, keyDerivationCache));
+        sessions.add(session);
+        archiveSelector.addItem(session);
+        if(!sharedPassword) {
+            archiveSelector.setSelectedItem(session);
+        }
+        if(pendingLoads++ == 0) {
+            SwingUtilities.invokeLater(() -> waitDialog.showSelf(PleaseWaitDialog.OPENING_MESSAGE));
+        }
+        new Thread(() -> {
+            PasswordArchiveManager manager = session.getManager();
             try {
-                archiveManager.populateEntryKeys();
+                manager.populateEntryKeys();
             } catch (CryptographicFailureException e) {
-                JOptionPane.showMessageDialog(this,
-                        "Opening key file failed - Unable to authenticate data!",
-                        "Error", JOptionPane.ERROR_MESSAGE);
-                System.exit(0);
+                SwingUtilities.invokeLater(() -> archiveFailed(session,
+                        "Opening key file failed - Unable to authenticate data!", sharedPassword));
+                return;
             } catch (IOException e) {
-                JOptionPane.showMessageDialog(this,
-                        "Error occurred while opening key file",
-                        "Error", JOptionPane.ERROR_MESSAGE);
-                System.exit(0);
+                SwingUtilities.invokeLater(() -> archiveFailed(session,
+                        "Error occurred while opening key file", false));
+                return;
             }
-        } else {
-            // It does; show the wait dialog and begin opening the archive on a separate thread
-            SwingUtilities.invokeLater(() ->
-                    waitDialog.showSelf(PleaseWaitDialog.OPENING_MESSAGE));
-            new Thread(() ->{
-                try {
-                    archiveManager.populateEntryKeys();
-                } catch (CryptographicFailureException e) {
-                    JOptionPane.showMessageDialog(this,
-                            "Opening key file failed - Unable to authenticate data!",
-                            "Error", JOptionPane.ERROR_MESSAGE);
-                    System.exit(0);
-                } catch (IOException e) {
-                    JOptionPane.showMessageDialog(this,
-                            "Error occurred while opening key file",
-                            "Error", JOptionPane.ERROR_MESSAGE);
-                    System.exit(0);
-                }
-                try {
-                    final ArrayList<Entry> archive = archiveManager.openDatabase(archiveFile);
-                    if(archive == null) {
-                        JOptionPane.showMessageDialog(this, "Error: Unable to open archive!",
-                                "Error", JOptionPane.ERROR_MESSAGE);
-                        System.exit(0);
-                    }
-                    // Sort the list by website and then by username if websites are the same
-                    Collections.sort(archive);
-                    SwingUtilities.invokeLater(() -> {
-                        // Add the entries on the Swing event thread and display them
-                        entries = new ArrayList<>(archive.size());
-                        for (Entry e : archive) {
-                            UIEntry entry = new UIEntry(this, e);
-                            entries.add(entry);
-                            entriesBox.add(entry, entriesBox.getComponentCount() - 1);
-                        }
-                        entryScrollPane.validate();
-                        // Get rid of the wait dialog now that we're done
-                        waitDialog.setVisible(false);
-                    });
-                } catch (CryptographicFailureException e) {
-                    JOptionPane.showMessageDialog(this,
-                            "Opening archive failed - Unable to authenticate archive data!",
-                            "Error", JOptionPane.ERROR_MESSAGE);
-                    System.exit(0);
-                } catch (IOException e) {
-                    JOptionPane.showMessageDialog(this,
-                            "Error occurred while opening archive",
-                            "Error", JOptionPane.ERROR_MESSAGE);
-                    System.exit(0);
+            // Does the archive file exist?
+            if(!archive.exists()) {
+                // It doesn't, just start with an empty list of entries which we'll add to when the user starts making
+                // some
+                SwingUtilities.invokeLater(() -> archiveLoaded(session, new ArrayList<>()));
+                return;
+            }
+            try {
+                final ArrayList<Entry> entries = manager.openDatabase(archive);
+                if(entries == null) {
+                    SwingUtilities.invokeLater(() -> archiveFailed(session,
+                            "Error: Unable to open archive!", false));
+                    return;
                 }
-            }).start();
+                // Sort the list by website and then by username if websites are the same
+                Entry.sort(entries);
+                SwingUtilities.invokeLater(() -> archiveLoaded(session, entries));
+            } catch (CryptographicFailureException e) {
+                SwingUtilities.invokeLater(() -> archiveFailed(session,
+                        "Opening archive failed - Unable to authenticate archive data!", sharedPassword));
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> archiveFailed(session,
+                        "Error occurred while opening archive", false));
+            }
+        }).start();
+    }
+
+    /**
+     * Method called on the Swing event thread once an archive has been loaded. Displays the archive's entries and
+     * hides the wait dialog if no other archives are still loading.
+     * @param session The session that finished loading
+     * @param archive The entries loaded from the session's archive
+     */
+    private void archiveLoaded(ArchiveSession session, ArrayList<Entry> archive) {
+        session.populate(archive);
+        entryScrollPane.validate();
+        loadFinished();
+    }
+
+    /**
+     * Method called on the Swing event thread when an archive fails to load. The session is discarded. If the primary
+     * archive failed or no archives remain open, the app exits; if the archive was opened with a password borrowed
+     * from another archive, the user is prompted for the archive's own password and loading is retried.
+     * @param session The session that failed to load
+     * @param message A message describing the failure
+     * @param promptForPassword true if the user should be prompted for a different password
+     */
+    private void archiveFailed(ArchiveSession session, String message, boolean promptForPassword) {
+        loadFinished();
+        session.getManager().discard();
+        session.close();
+        sessions.remove(session);
+        archiveSelector.removeItem(session);
+        if(sessions.isEmpty() || session.getArchiveFile().equals(archiveFile)) {
+            JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(0);
+        }
+        if(!promptForPassword) {
+            JOptionPane.showMessageDialog(this, session + ": " + message, "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        char[] password = promptArchivePassword(session.getArchiveFile());
+        if(password != null) {
+            openArchive(session.getArchiveFile(), session.getKeyFile(), password, false);
+            Utility.erase(password);
+        }
+    }
+
+    /**
+     * Decrements the number of archives being loaded, hiding the wait dialog once none remain
+     */
+    private void loadFinished() {
+        if(--pendingLoads == 0) {
+            waitDialog.setVisible(false);
         }
     }
 
     /**
-     * Method called by a {@link UIEntry} object when the object is double-clicked by the user.
+     * Prompts the user for the password to a given archive
+     * @param archive The archive the password is needed for
+     * @return a char[] containing the password, or null if the user canceled
+     */
+    private char[] promptArchivePassword(File archive) {
+        passwordDialog.setTitle("Password required - " + archive.getName());
+        passwordDialog.clear();
+        return passwordDialog.showAndWait();
+    }
+
+    /**
+     * Determines where the key file for an archive is stored. See {@link Main#getKeyFile}.
+     * @param archive The archive file
+     * @return a reference to a {@link File} for the archive's key file
+     */
+    private File keyFileFor(File archive) {
+        return Main.getKeyFile(archive, archiveFile);
+    }
+
+    /**
+     * Method called by an {@link ArchiveSession} when one of its entries is double-clicked by the user.
      * If changes have been made to the currently selected object, the user is prompted to see if they want to save
      * changes. The clicked entry is only selected if the user clicks Yes or No, no changes were made to the
      * currently selected entry, or no entry had been selected yet.
      * If any of the above are true, the double-clicked entry is displayed in the form.
-     * @param uiEntry The calling {@link UIEntry}
+     * @param entry The double-clicked {@link Entry}
      */
-    public void entryClicked(UIEntry uiEntry) {
+    public void entryClicked(Entry entry) {
         if(changedWithoutSaving) {
             if(!promptSaveEntry())
                 return;
         } else if(currentEntry != null) {
-            currentEntry.deselected(false);
+            currentSession.deselect(false);
         }
-        displayEntry(uiEntry);
+        displayEntry(entry);
         setFormEnabled(true);
         websiteField.requestFocus();
     }
@@ -412,15 +591,30 @@ public class AppMainFrame extends ExLayeredFrame {
                 configuration.putBooleanProperty("lowercase", lowercaseItem.getState());
                 configuration.putBooleanProperty("numbers", numbersItem.getState());
                 configuration.putBooleanProperty("symbols", symbolsItem.getState());
+                configuration.putBooleanProperty("passphrase", passphraseItem.getState());
 
                 configuration.putIntProperty("passwordLength", passwordGeneratorLength);
                 if(archiveFile != null) {
                     configuration.put("archiveFile", archiveFile.getPath());
                 }
+
+                StringBuilder additionalArchives = new StringBuilder();
+                for(ArchiveSession session : sessions) {
+                    if(!session.getArchiveFile().equals(archiveFile)) {
+                        if(additionalArchives.length() > 0) {
+                            additionalArchives.append(File.pathSeparator);
+                        }
+                        additionalArchives.append(session.getArchiveFile().getPath());
+                    }
+                }
+                configuration.put("openArchives", additionalArchives.toString());
                 configuration.store();
 
                 copyToClipboard("");
-                archiveManager.closeDatabase(archiveFile, entries);
+                for(ArchiveSession session : sessions) {
+                    session.getManager().closeDatabase(session.getArchiveFile(), session.getArchiveEntries());
+                }
+                keyDerivationCache.clear();
                 passwordDialog.dispose();
                 waitDialog.dispose();
                 passwordLengthDialog.dispose();
@@ -441,10 +635,28 @@ public class AppMainFrame extends ExLayeredFrame {
     /**
      * Method called when the user clicks the Generate New Password button. Generates a new password defined by the
      * user's settings with a given length and list of possible symbols. Options for password generation are changed in
-     * the Settings menu and are loaded & saved upon program start and exit, respectively.
+     * the Settings menu and are loaded & saved upon program start and exit, respectively. If a password policy is
+     * configured for the entry's website, the policy is followed instead.
      * @param eventInfo Event information passed by Swing
      */
     private void generateButtonPressed(ActionEvent eventInfo) {
+        PasswordPolicy policy;
+        try {
+            policy = PasswordPolicy.forSite(websiteField.getText(), configuration);
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(this, "The password policy for this website is invalid:\n"
+                    + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if(policy != null) {
+            passwordField.setText(new String(passwordGenerator.generatePassword(policy, passwordGeneratorLength)));
+            return;
+        }
+        if(passphraseItem.getState()) {
+            passwordField.setText(new String(passwordGenerator.generatePassphrase(
+                    configuration.getIntProperty("passphraseWords", PASSPHRASE_WORDS))));
+            return;
+        }
         passwordGenerator.setFlags(uppercaseItem.getState(), lowercaseItem.getState(),
                 numbersItem.getState(), symbolsItem.getState());
         if(!passwordGenerator.anySelected()) {
@@ -463,12 +675,8 @@ public class AppMainFrame extends ExLayeredFrame {
      */
     private void removeButtonPressed(ActionEvent eventInfo) {
         if(currentEntry != null) {
-            int index = entries.indexOf(currentEntry);
+            currentSession.removeEntry(currentEntry);
             currentEntry = null;
-            entries.remove(index);
-            entriesBox.remove(index);
-            entriesBox.revalidate();
-            entriesBox.repaint();
         }
         clearForm();
         setFormEnabled(false);
@@ -479,12 +687,12 @@ public class AppMainFrame extends ExLayeredFrame {
      * @param eventInfo Event information passed by Swing
      */
     private void saveChangesButtonPressed(ActionEvent eventInfo) {
-        Entry e = currentEntry.getEntry();
-        e.setWebsite(websiteField.getText());
-        e.setUsername(usernameField.getText());
-        e.setPassword(archiveManager, passwordField.getPassword());
-        currentEntry.updateLabels();
-        currentEntry.changesMade();
+        final Entry e = currentEntry;
+        currentSession.changeEntry(e, websiteField.getText(), usernameField.getText());
+        e.setPassword(currentSession.getManager(), passwordField.getPassword());
+        currentSession.changesMade(e);
+        final ArchiveSession session = currentSession;
+        SwingUtilities.invokeLater(() -> session.scrollTo(e));
         changedWithoutSaving = false;
     }
 
@@ -494,11 +702,11 @@ public class AppMainFrame extends ExLayeredFrame {
      * @param eventInfo Event info passed by Swing
      */
     private void discardChangesButtonPressed(ActionEvent eventInfo) {
-        Entry entry = currentEntry.getEntry();
+        Entry entry = currentEntry;
         websiteField.setText(entry.getWebsite());
         usernameField.setText(entry.getUsername());
         try {
-            passwordField.setText(entry.getPassword(archiveManager));
+            passwordField.setText(entry.getPassword(currentSession.getManager()));
         } catch (CryptographicFailureException e) {
             JOptionPane.showMessageDialog(this,
                     "Decrypting this password entry failed!",
@@ -521,22 +729,408 @@ public class AppMainFrame extends ExLayeredFrame {
                 changedWithoutSaving = false;
             }
         } else if(currentEntry != null) {
-            currentEntry.deselected(false);
+            currentSession.deselect(false);
         }
-        UIEntry newEntry = new UIEntry(this, new Entry("", "", null));
-        newEntry.selected();
+        Entry newEntry = currentSession.getManager().getEntryStore().add("", "");
+        currentSession.insertEntry(newEntry);
         displayEntry(newEntry);
-        entriesBox.add(newEntry, entriesBox.getComponentCount() - 1);
-        entries.add(newEntry);
-        entryScrollPane.revalidate();
-        SwingUtilities.invokeLater(() -> {
-            JScrollBar scrollBar = entryScrollPane.getVerticalScrollBar();
-            scrollBar.setValue(scrollBar.getMaximum());
-        });
         setFormEnabled(true);
         websiteField.requestFocus();
     }
 
+    /**
+     * Method called when the Open Archive menu item under the File menu is pressed. Prompts the user for an archive
+     * file and its password, then opens it alongside the archives already open. If the chosen file doesn't exist, a
+     * new archive is created.
+     * @param eventInfo Event information passed by Swing
+     */
+    private void openArchiveItemPressed(ActionEvent eventInfo) {
+        if(archiveChooser.showDialog(this, "Open") != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File archive = archiveChooser.getSelectedFile();
+        // Switch to the archive if it's already open
+        for(ArchiveSession session : sessions) {
+            if(session.getArchiveFile().getAbsoluteFile().equals(archive.getAbsoluteFile())) {
+                archiveSelector.setSelectedItem(session);
+                return;
+            }
+        }
+        File keyFile = keyFileFor(archive);
+        // The key file is required in order to access an existing archive's passwords
+        if(archive.exists() && !keyFile.exists()) {
+            JOptionPane.showMessageDialog(this, "Unable to find key file for the chosen " +
+                    "archive file!", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        char[] password = promptArchivePassword(archive);
+        if(password != null) {
+            openArchive(archive, keyFile, password, false);
+            Utility.erase(password);
+        }
+    }
+
+    /**
+     * Method called when the Close Archive menu item under the File menu is pressed. Saves and closes the archive
+     * currently being displayed, prompting the user to save changes to the current entry first. The primary archive
+     * remains open until the app is closed.
+     * @param eventInfo Event information passed by Swing
+     */
+    private void closeArchiveItemPressed(ActionEvent eventInfo) {
+        final ArchiveSession session = currentSession;
+        if(session == null || session.getArchiveFile().equals(archiveFile) || !deselectCurrentEntry()) {
+            return;
+        }
+        sessions.remove(session);
+        archiveSelector.removeItem(session);
+        session.close();
+        SwingUtilities.invokeLater(() -> waitDialog.showSelf(PleaseWaitDialog.SAVING_MESSAGE));
+        new Thread(() -> {
+            session.getManager().closeDatabase(session.getArchiveFile(), session.getArchiveEntries());
+            SwingUtilities.invokeLater(() -> waitDialog.setVisible(false));
+        }).start();
+    }
+
+    /**
+     * Method called when the Import Entries menu item under the File menu is pressed. Prompts the user for a CSV file,
+     * then imports its entries into the current archive on a separate thread. Entries whose website and username
+     * match an existing entry are skipped.
+     * @param eventInfo Event information passed by Swing
+     */
+    private void importItemPressed(ActionEvent eventInfo) {
+        final ArchiveSession session = currentSession;
+        if(session == null || archiveChooser.showDialog(this, "Import") != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File csvFile = archiveChooser.getSelectedFile();
+        final CsvEntryImporter importer = new CsvEntryImporter(session.getManager(), session.getArchiveEntries());
+        SwingUtilities.invokeLater(() -> waitDialog.showSelf(PleaseWaitDialog.IMPORTING_MESSAGE));
+        new Thread(() -> {
+            try(Reader in = new FileReader(csvFile, StandardCharsets.UTF_8)) {
+                final ArrayList<Entry> imported = importer.importEntries(in);
+                SwingUtilities.invokeLater(() -> {
+                    session.merge(imported);
+                    waitDialog.setVisible(false);
+                    JOptionPane.showMessageDialog(this, "Imported " + importer.getImportedCount()
+                            + " entries. Skipped " + importer.getDuplicateCount() + " duplicate and "
+                            + importer.getRejectedCount() + " invalid entries.", APPLICATION_NAME,
+                            JOptionPane.INFORMATION_MESSAGE);
+                });
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> {
+                    waitDialog.setVisible(false);
+                    JOptionPane.showMessageDialog(this, "Error occurred while importing entries",
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Method called when the Check Password Health menu item under the File menu is pressed. Audits every password in
+     * the current archive on a separate thread and displays a summary of the report.
+     * @param eventInfo Event information passed by Swing
+     */
+    private void auditItemPressed(ActionEvent eventInfo) {
+        final ArchiveSession session = currentSession;
+        if(session == null) {
+            return;
+        }
+        final ArrayList<Entry> entries = session.getArchiveEntries();
+        SwingUtilities.invokeLater(() -> waitDialog.showSelf(PleaseWaitDialog.AUDITING_MESSAGE));
+        new Thread(() -> {
+            final AuditReport report = new VaultAuditor(session.getManager(),
+                    Runtime.getRuntime().availableProcessors(), breachChecker).audit(entries);
+            SwingUtilities.invokeLater(() -> {
+                waitDialog.setVisible(false);
+                JTextArea summary = new JTextArea(report.getSummary());
+                summary.setEditable(false);
+                JOptionPane.showMessageDialog(this, summary, APPLICATION_NAME + " - " + session,
+                        JOptionPane.INFORMATION_MESSAGE);
+            });
+        }).start();
+    }
+
+    /**
+     * Method called when the Re-encrypt Passwords menu item under the File menu is pressed. Rotates the current
+     * archive's entry key on a separate thread. The new key is saved along with the archive when it's closed, and an
+     * interrupted rotation resumes the next time the archive is opened.
+     * @param eventInfo Event information passed by Swing
+     */
+    private void rotateKeyItemPressed(ActionEvent eventInfo) {
+        final ArchiveSession session = currentSession;
+        if(session == null || !deselectCurrentEntry()) {
+            return;
+        }
+        final ArrayList<Entry> entries = session.getArchiveEntries();
+        SwingUtilities.invokeLater(() -> waitDialog.showSelf(PleaseWaitDialog.ROTATING_MESSAGE));
+        new Thread(() -> {
+            String message;
+            int messageType = JOptionPane.INFORMATION_MESSAGE;
+            try {
+                int rotated = session.getManager().rotateEntryKey(entries, Runtime.getRuntime().availableProcessors());
+                message = "Re-encrypted " + rotated + " passwords. The new key will be saved when the archive is " +
+                        "closed.";
+            } catch (IOException e) {
+                message = "Error occurred while re-encrypting passwords: " + e.getMessage();
+                messageType = JOptionPane.ERROR_MESSAGE;
+            } catch (IllegalStateException e) {
+                message = "New archives can't be re-encrypted until they've been saved.";
+                messageType = JOptionPane.ERROR_MESSAGE;
+            }
+            final String finalMessage = message;
+            final int finalMessageType = messageType;
+            SwingUtilities.invokeLater(() -> {
+                waitDialog.setVisible(false);
+                JOptionPane.showMessageDialog(this, finalMessage, APPLICATION_NAME + " - " + session,
+                        finalMessageType);
+            });
+        }).start();
+    }
+
+    /**
+     * Method called when the Change Master Password menu item under the File menu is pressed. Prompts the user for the
+     * current archive's new password twice, then re-encrypts the archive and its key file with it on a separate
+     * thread.
+     * @param eventInfo Event information passed by Swing
+     */
+    private void changePasswordItemPressed(ActionEvent eventInfo) {
+        final ArchiveSession session = currentSession;
+        if(session == null) {
+            return;
+        }
+        passwordDialog.setTitle("New password - " + session.getArchiveFile().getName());
+        passwordDialog.clear();
+        final char[] password = passwordDialog.showAndWait();
+        if(password == null) {
+            return;
+        }
+        passwordDialog.setTitle("Confirm new password - " + session.getArchiveFile().getName());
+        passwordDialog.clear();
+        char[] confirmation = passwordDialog.showAndWait();
+        boolean matches = password.length > 0 && Arrays.equals(password, confirmation);
+        Utility.erase(confirmation);
+        if(!matches) {
+            Utility.erase(password);
+            JOptionPane.showMessageDialog(this, "The passwords did not match", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        SwingUtilities.invokeLater(() -> waitDialog.showSelf(PleaseWaitDialog.SAVING_MESSAGE));
+        new Thread(() -> {
+            String error = null;
+            try {
+                session.getManager().changePassword(session.getArchiveFile(), password);
+            } catch (IOException | CryptographicFailureException e) {
+                error = "Error occurred while changing the master password";
+            } catch (IllegalStateException e) {
+                error = "The master password can't be changed until the archive has been saved.";
+            } finally {
+                Utility.erase(password);
+            }
+            final String finalError = error;
+            SwingUtilities.invokeLater(() -> {
+                waitDialog.setVisible(false);
+                if(finalError == null) {
+                    JOptionPane.showMessageDialog(this, "Master password changed", APPLICATION_NAME + " - "
+                            + session, JOptionPane.INFORMATION_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(this, finalError, "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            });
+        }).start();
+    }
+
+    /**
+     * Method called when the Export Entries menu item under the File menu is pressed. Prompts the user for a file and
+     * whether to encrypt it with a password, then exports the current archive's entries as JSON on a separate thread.
+     * Passwords are decrypted one at a time as they're written.
+     * @param eventInfo Event information passed by Swing
+     */
+    private void exportItemPressed(ActionEvent eventInfo) {
+        final ArchiveSession session = currentSession;
+        if(session == null || archiveChooser.showDialog(this, "Export") != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        final File jsonFile = archiveChooser.getSelectedFile();
+        final int option = JOptionPane.showConfirmDialog(this, "Do you want to encrypt the exported" +
+                " file with a password?");
+        if(option == JOptionPane.CANCEL_OPTION || option == JOptionPane.CLOSED_OPTION) {
+            return;
+        }
+        // Derive the export key once rather than once per encrypted chunk, using a cache which is cleared as soon as
+        // the export finishes
+        final KeyDerivationCache exportCache = new KeyDerivationCache();
+        final Cryptographer cryptographer;
+        if(option == JOptionPane.YES_OPTION) {
+            // Ask for the password twice, since nothing in Keeper can recover an export encrypted with a mistyped one
+            passwordDialog.setTitle("Export password - " + jsonFile.getName());
+            passwordDialog.clear();
+            char[] password = passwordDialog.showAndWait();
+            if(password == null) {
+                return;
+            }
+            passwordDialog.setTitle("Confirm export password - " + jsonFile.getName());
+            passwordDialog.clear();
+            char[] confirmation = passwordDialog.showAndWait();
+            boolean matches = password.length > 0 && Arrays.equals(password, confirmation);
+            Utility.erase(confirmation);
+            if(!matches) {
+                Utility.erase(password);
+                JOptionPane.showMessageDialog(this, "The passwords did not match", "Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            cryptographer = new AESGCMCryptographerWithPasswordBasedKeyDerivation(password, exportCache);
+            Utility.erase(password);
+        } else {
+            cryptographer = null;
+        }
+        SwingUtilities.invokeLater(() -> waitDialog.showSelf(PleaseWaitDialog.EXPORTING_MESSAGE));
+        new Thread(() -> {
+            String error = null;
+            boolean exported = false;
+            OutputStream file = null;
+            EncryptingOutputStream encrypted = null;
+            try {
+                file = new BufferedOutputStream(new FileOutputStream(jsonFile));
+                OutputStream out = file;
+                if(cryptographer != null) {
+                    out = encrypted = new EncryptingOutputStream(file, cryptographer);
+                }
+                new JsonEntryExporter(session.getManager()).export(
+                        session.getEntryIndex().iterator(),
+                        new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                exported = true;
+            } catch (IOException | RuntimeException e) {
+                error = "Error occurred while exporting entries";
+            } catch (CryptographicFailureException e) {
+                error = "Decrypting a password entry failed!";
+            } finally {
+                if(!exported) {
+                    abandonExport(jsonFile, file, encrypted);
+                }
+                if(cryptographer != null) {
+                    cryptographer.destroy();
+                }
+                exportCache.clear();
+                final String message = error;
+                SwingUtilities.invokeLater(() -> {
+                    waitDialog.setVisible(false);
+                    if(message != null) {
+                        JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
+            }
+        }).start();
+    }
+
+    /**
+     * Abandons an export which failed partway through, closing the file without marking encrypted data as complete
+     * and deleting what was written
+     * @param jsonFile The export file
+     * @param file The stream writing the file, or null if it was never opened
+     * @param encrypted The stream encrypting the exported data, or null if the export wasn't encrypted
+     */
+    private static void abandonExport(File jsonFile, OutputStream file, EncryptingOutputStream encrypted) {
+        if(file == null) {
+            return;
+        }
+        try {
+            if(encrypted != null) {
+                encrypted.abort();
+            }
+            // Closing again is harmless, and ensures the file is closed if encryption failed while closing
+            file.close();
+        } catch (IOException e) {
+            System.err.println("Error: unable to close incomplete export " + jsonFile);
+        }
+        if(jsonFile.exists() && !jsonFile.delete()) {
+            System.err.println("Error: unable to delete incomplete export " + jsonFile);
+        }
+    }
+
+    /**
+     * Method called when the user picks an archive from the archive selector. Displays the chosen archive's entries,
+     * prompting the user to save changes to the current entry first.
+     * @param eventInfo Event information passed by Swing
+     */
+    private void archiveSelected(ActionEvent eventInfo) {
+        ArchiveSession session = (ArchiveSession) archiveSelector.getSelectedItem();
+        if(session == null || session == currentSession) {
+            return;
+        }
+        if(!deselectCurrentEntry()) {
+            archiveSelector.setSelectedItem(currentSession);
+            return;
+        }
+        currentSession = session;
+        if(!session.getQuery().equals(searchField.getText().trim())) {
+            session.filter(searchField.getText().trim());
+        }
+        entryScrollPane.setViewportView(session.getEntryList());
+        entryScrollPane.revalidate();
+        entryScrollPane.repaint();
+        setTitle(APPLICATION_NAME + " - " + session);
+        closeArchiveItem.setEnabled(!session.getArchiveFile().equals(archiveFile));
+    }
+
+    /**
+     * Deselects the entry being edited, prompting the user to save any changes made to it, and clears the form.
+     * @return true if the entry was deselected, or false if the user canceled
+     */
+    private boolean deselectCurrentEntry() {
+        if(changedWithoutSaving) {
+            if(!promptSaveEntry()) {
+                return false;
+            }
+        } else if(currentEntry != null) {
+            currentSession.deselect(false);
+        }
+        currentEntry = null;
+        clearForm();
+        setFormEnabled(false);
+        return true;
+    }
+
+    /**
+     * Method called when the Set Breached Password List menu item under the Settings menu is pressed. Lets the user
+     * choose a breached password list, such as one downloaded from Have I Been Pwned, to check passwords against.
+     * @param eventInfo Even information passed by Swing
+     */
+    private void breachListItemPressed(ActionEvent eventInfo) {
+        if(archiveChooser.showDialog(this, "Use") != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File breachList = archiveChooser.getSelectedFile();
+        try {
+            BreachedPasswordChecker checker = new BreachedPasswordChecker(breachList);
+            if(breachChecker != null) {
+                breachChecker.close();
+            }
+            breachChecker = checker;
+            configuration.put("breachList", breachList.getPath());
+            checkBreachedPassword();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(this, "Unable to open the breached password list: " + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Checks the password being edited against the breached password list, coloring it and explaining why in its
+     * tooltip if it was found
+     */
+    private void checkBreachedPassword() {
+        boolean breached = false;
+        if(breachChecker != null) {
+            char[] password = passwordField.getPassword();
+            breached = password.length > 0 && breachChecker.isBreached(password);
+            Utility.erase(password);
+        }
+        passwordField.setForeground(breached ? BREACHED_PASSWORD_COLOR : passwordForeground);
+        passwordField.setToolTipText(breached ? "This password appears in the breached password list" : null);
+    }
+
     /**
      * Method called when the Configure Password Generator Length menu item under the Settings menu is pressed. Shows
      * the generator length dialog, allowing the user to change how long generated passwords will be.
@@ -591,22 +1185,21 @@ public class AppMainFrame extends ExLayeredFrame {
     /**
      * Displays a given password entry, filling the form with its information. Resets the changedWithoutSaving flag in
      * the process.
-     * @param uiEntry A reference to a {@link UIEntry to display} object representing the password entry to display
+     * @param entry A reference to the {@link Entry} to display
      */
-    private void displayEntry(UIEntry uiEntry) {
-        Entry entry = uiEntry.getEntry();
+    private void displayEntry(Entry entry) {
         websiteField.setText(entry.getWebsite());
         usernameField.setText(entry.getUsername());
         try {
-            passwordField.setText(entry.getPassword(archiveManager));
+            passwordField.setText(entry.getPassword(currentSession.getManager()));
         } catch (CryptographicFailureException e) {
             JOptionPane.showMessageDialog(this,
                     "Decrypting this password entry failed!",
                     "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(0);
         }
-        currentEntry = uiEntry;
-        currentEntry.selected();
+        currentEntry = entry;
+        currentSession.select(entry);
 
         changedWithoutSaving = false;
     }
@@ -626,14 +1219,12 @@ public class AppMainFrame extends ExLayeredFrame {
         // Update the current entry if one was being edited
         if(currentEntry != null) {
             if (option == JOptionPane.YES_OPTION) {
-                Entry e = currentEntry.getEntry();
-                e.setWebsite(websiteField.getText());
-                e.setUsername(usernameField.getText());
-                e.setPassword(archiveManager, passwordField.getPassword());
-                currentEntry.updateLabels();
-                currentEntry.deselected(true);
+                Entry e = currentEntry;
+                currentSession.changeEntry(e, websiteField.getText(), usernameField.getText());
+                e.setPassword(currentSession.getManager(), passwordField.getPassword());
+                currentSession.deselect(true);
             } else {
-                currentEntry.deselected(false);
+                currentSession.deselect(false);
             }
         }
         // Notify the user either saved or chose not to
@@ -661,4 +1252,54 @@ public class AppMainFrame extends ExLayeredFrame {
         }
 
     }
+
+    /**
+     * Inner class used to filter the current archive's entries as the user types in the search field
+     */
+    private class SearchChangedListener implements DocumentListener {
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            searchChanged();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            searchChanged();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            searchChanged();
+        }
+
+        private void searchChanged() {
+            if(currentSession != null) {
+                currentSession.filter(searchField.getText().trim());
+            }
+        }
+
+    }
+
+    /**
+     * Inner class used to check the password being edited against the breached password list as the user types
+     */
+    private class PasswordChangedListener implements DocumentListener {
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            checkBreachedPassword();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            checkBreachedPassword();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            checkBreachedPassword();
+        }
+
+    }
 }
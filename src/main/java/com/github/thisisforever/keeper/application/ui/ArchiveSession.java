@@ -0,0 +1,414 @@
+package com.github.thisisforever.keeper.application.ui;
+
+import com.github.thisisforever.keeper.cryptox.CsvEntryImporter;
+import com.github.thisisforever.keeper.cryptox.Entry;
+import com.github.thisisforever.keeper.cryptox.EntryIndex;
+import com.github.thisisforever.keeper.cryptox.PasswordArchiveManager;
+import com.github.thisisforever.keeper.cryptox.SearchIndex;
+
+import javax.swing.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An archive opened by the application. Holds the archive's file, key file and {@link PasswordArchiveManager}, along
+ * with the list displaying its passwords. Several sessions may be open at once, each with its own manager.
+ * <p>
+ * The list is virtual: its model is a view of the session's sorted entries, and a single {@link UIEntry} renderer
+ * paints only the rows on screen, each the same height, so archives with a million entries scroll as smoothly as
+ * small ones. The session keeps track of the entry being edited and the entries changed since the archive was opened,
+ * which the renderer colors accordingly.
+ */
+public class ArchiveSession {
+
+    // References the archive file and the key file used to encrypt and decrypt the archive's passwords
+    private final File archiveFile, keyFile;
+    // References the manager used to encrypt and decrypt this archive's passwords and the archive itself
+    private final PasswordArchiveManager manager;
+    // Holds the archive's entries indexed by ID
+    private final EntryIndex entries;
+    // Holds every entry in display order, and the entries matching the current query; the two are the same list while
+    // every entry is displayed
+    private ArrayList<Entry> sorted, shown;
+    // Holds the entries changed since the archive was opened
+    private final HashSet<Entry> changed;
+    // References the entry being edited, or null if there is none
+    private Entry selected;
+    // Indexes the entries' websites and usernames for the search field
+    private final SearchIndex searchIndex;
+    // Holds the query last used to filter the displayed entries
+    private String query;
+    // References the model the list displays, the list itself and the renderer painting its rows
+    private final EntryListModel model;
+    private final JList<Entry> entryList;
+    private final UIEntry renderer;
+
+    /**
+     * Creates a new session for an archive which has yet to be loaded
+     * @param parent The window notified when an entry is double-clicked
+     * @param archiveFile The archive file, which may not exist yet
+     * @param keyFile The key file associated with the archive
+     * @param manager A manager created with the archive's password and key file
+     */
+    public ArchiveSession(AppMainFrame parent, File archiveFile, File keyFile, PasswordArchiveManager manager) {
+        this.archiveFile = archiveFile;
+        this.keyFile = keyFile;
+        this.manager = manager;
+        entries = new EntryIndex();
+        sorted = new ArrayList<>();
+        shown = sorted;
+        changed = new HashSet<>();
+        searchIndex = new SearchIndex();
+        query = "";
+        model = new EntryListModel();
+        entryList = new JList<>(model);
+        renderer = new UIEntry(this);
+        entryList.setCellRenderer(renderer);
+        // Give every row the same height, so the list never measures rows which aren't on screen, and let rows
+        // stretch to the width of the scroll pane
+        entryList.setFixedCellHeight(renderer.getRowHeight());
+        entryList.setFixedCellWidth(1);
+        // Entries are selected by double-clicking them, rather than through the list's own selection
+        entryList.setFocusable(false);
+        entryList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent eventInfo) {
+                if(eventInfo.getClickCount() != 2 || !SwingUtilities.isLeftMouseButton(eventInfo)) {
+                    return;
+                }
+                int index = entryList.locationToIndex(eventInfo.getPoint());
+                if(index >= 0 && entryList.getCellBounds(index, index).contains(eventInfo.getPoint())
+                        && shown.get(index) != selected) {
+                    parent.entryClicked(shown.get(index));
+                }
+            }
+        });
+    }
+
+    /**
+     * Displays the given entries in this session's list. Must be called on the Swing event thread.
+     * @param archive The entries loaded from the archive file, sorted in the same order as {@link Entry#compareTo}
+     */
+    public void populate(ArrayList<Entry> archive) {
+        for(Entry e : archive) {
+            entries.add(e);
+            searchIndex.add(e);
+        }
+        sorted.addAll(archive);
+        filter(query);
+    }
+
+    /**
+     * Merges a sorted list of new entries into this session's list, sorting the existing entries first and merging
+     * the two in a single pass. The new entries are marked as changed. Must be called on the Swing event thread.
+     * @param imported The new entries, sorted in the same order as {@link Entry#compareTo}
+     */
+    public void merge(ArrayList<Entry> imported) {
+        Entry.sort(sorted);
+        for(Entry e : imported) {
+            changed.add(e);
+            searchIndex.add(e);
+            manager.getFingerprintIndex().add(e);
+        }
+        ArrayList<Entry> merged = CsvEntryImporter.merge(sorted, imported, Comparator.naturalOrder());
+        entries.clear();
+        for(Entry e : merged) {
+            entries.add(e);
+        }
+        sorted = merged;
+        filter(query);
+    }
+
+    /**
+     * Gets the entries in this session
+     * @return a new {@link ArrayList} of this session's {@link Entry} objects
+     */
+    public ArrayList<Entry> getArchiveEntries() {
+        return entries.toList();
+    }
+
+    /**
+     * Gets the index of this session's entries
+     * @return a reference to the session's {@link EntryIndex}
+     */
+    public EntryIndex getEntryIndex() {
+        return entries;
+    }
+
+    /**
+     * Adds an entry to this session's list in its sorted position, found with a binary search of the list. The entry
+     * is displayed even if it doesn't match the current query.
+     * @param entry The entry to add
+     */
+    public void insertEntry(Entry entry) {
+        entries.add(entry);
+        searchIndex.add(entry);
+        int index = Entry.insertionPoint(sorted, entry);
+        sorted.add(index, entry);
+        if(shown != sorted) {
+            index = Entry.insertionPoint(shown, entry);
+            shown.add(index, entry);
+        }
+        model.added(index);
+    }
+
+    /**
+     * Changes an entry's website and username, updating the search index and moving the entry to its new sorted
+     * position in the list. The entry is found in the list before it's changed, while it's still in sorted order.
+     * @param entry The entry to change
+     * @param website The entry's new website
+     * @param username The entry's new username
+     */
+    public void changeEntry(Entry entry, String website, String username) {
+        if(!entries.contains(entry.getId())) {
+            entry.setWebsite(website);
+            entry.setUsername(username);
+            return;
+        }
+        int from = Entry.indexOf(shown, entry);
+        int sortedFrom = shown == sorted ? from : Entry.indexOf(sorted, entry);
+        entry.setWebsite(website);
+        entry.setUsername(username);
+        searchIndex.update(entry);
+        if(shown != sorted && sortedFrom >= 0) {
+            sorted.remove(sortedFrom);
+            sorted.add(Entry.insertionPoint(sorted, entry), entry);
+        }
+        if(from < 0) {
+            return;
+        }
+        shown.remove(from);
+        int to = Entry.insertionPoint(shown, entry);
+        shown.add(to, entry);
+        model.changed(Math.min(from, to), Math.max(from, to));
+    }
+
+    /**
+     * Marks an entry as being edited, coloring it as selected and scrolling the list to it
+     * @param entry The entry to select
+     */
+    public void select(Entry entry) {
+        selected = entry;
+        scrollTo(entry);
+        entryList.repaint();
+    }
+
+    /**
+     * Marks the entry being edited, if there is one, as no longer being edited, coloring it to reflect whether the
+     * user changed it
+     * @param changesMade true if changes were made, otherwise false
+     */
+    public void deselect(boolean changesMade) {
+        if(selected != null && changesMade) {
+            changed.add(selected);
+        }
+        selected = null;
+        entryList.repaint();
+    }
+
+    /**
+     * Marks an entry as changed since the archive was opened
+     * @param entry The changed entry
+     */
+    public void changesMade(Entry entry) {
+        changed.add(entry);
+        entryList.repaint();
+    }
+
+    /**
+     * Scrolls the list so that an entry is visible, if it's displayed
+     * @param entry The entry to scroll to
+     */
+    public void scrollTo(Entry entry) {
+        int index = Entry.indexOf(shown, entry);
+        if(index >= 0) {
+            entryList.ensureIndexIsVisible(index);
+        }
+    }
+
+    /**
+     * Determines whether an entry is being edited. Used by {@link UIEntry} while painting the list.
+     * @param entry The entry
+     * @return true if the entry is selected, otherwise false
+     */
+    boolean isSelected(Entry entry) {
+        return entry == selected;
+    }
+
+    /**
+     * Determines whether an entry has been changed since the archive was opened. Used by {@link UIEntry} while
+     * painting the list.
+     * @param entry The entry
+     * @return true if the entry has been changed, otherwise false
+     */
+    boolean isChanged(Entry entry) {
+        return changed.contains(entry);
+    }
+
+    /**
+     * Displays only the entries whose website or username matches a query, as described by {@link SearchIndex}. Must
+     * be called on the Swing event thread.
+     * @param query The text to search for; every entry is displayed if it is empty
+     */
+    public void filter(String query) {
+        this.query = query;
+        int previous = shown.size();
+        if(query.isEmpty()) {
+            shown = sorted;
+        } else {
+            // The index finds matches without visiting every entry; only the matches need sorting into display order
+            shown = searchIndex.search(query);
+            Entry.sort(shown);
+        }
+        model.replaced(previous);
+    }
+
+    /**
+     * Gets the query last used to filter this session's entries
+     * @return the query, or an empty string if every entry is displayed
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Removes an entry from this session's list, finding it by its ID
+     * @param entry The entry to remove
+     */
+    public void removeEntry(Entry entry) {
+        UUID id = entry.getId();
+        if(entries.remove(id) == null) {
+            return;
+        }
+        searchIndex.remove(id);
+        manager.getFingerprintIndex().remove(entry);
+        changed.remove(entry);
+        if(selected == entry) {
+            selected = null;
+        }
+        int index = Entry.indexOf(shown, entry);
+        if(shown != sorted) {
+            int sortedIndex = Entry.indexOf(sorted, entry);
+            if(sortedIndex >= 0) {
+                sorted.remove(sortedIndex);
+            }
+        }
+        if(index >= 0) {
+            shown.remove(index);
+            model.removed(index);
+        }
+    }
+
+    /**
+     * Drops the search index and empties the renderer's labels once the archive is closed, so that neither keeps
+     * fragments of its websites and usernames on the heap while the app stays open. Called on the Swing event thread.
+     */
+    public void close() {
+        searchIndex.clear();
+        renderer.clear();
+    }
+
+    /**
+     * Gets the archive file for this session
+     * @return a reference to the archive's {@link File}
+     */
+    public File getArchiveFile() {
+        return archiveFile;
+    }
+
+    /**
+     * Gets the key file associated with this session's archive
+     * @return a reference to the key {@link File}
+     */
+    public File getKeyFile() {
+        return keyFile;
+    }
+
+    /**
+     * Gets the manager used to encrypt and decrypt this archive
+     * @return a reference to the session's {@link PasswordArchiveManager}
+     */
+    public PasswordArchiveManager getManager() {
+        return manager;
+    }
+
+    /**
+     * Gets the component displaying this session's entries
+     * @return a reference to the {@link JList} displaying the session's entries
+     */
+    public JList<Entry> getEntryList() {
+        return entryList;
+    }
+
+    /**
+     * Gets the name displayed for this session in the archive selector
+     * @return the archive file's name
+     */
+    @Override
+    public String toString() {
+        return archiveFile.getName();
+    }
+
+    /**
+     * The model behind the session's list, presenting the entries currently displayed
+     */
+    private class EntryListModel extends AbstractListModel<Entry> {
+
+        @Override
+        public int getSize() {
+            return shown.size();
+        }
+
+        @Override
+        public Entry getElementAt(int index) {
+            return shown.get(index);
+        }
+
+        /**
+         * Notifies the list that an entry has been displayed
+         * @param index The entry's row
+         */
+        private void added(int index) {
+            fireIntervalAdded(this, index, index);
+        }
+
+        /**
+         * Notifies the list that an entry is no longer displayed
+         * @param index The row the entry was displayed in
+         */
+        private void removed(int index) {
+            fireIntervalRemoved(this, index, index);
+        }
+
+        /**
+         * Notifies the list that a range of rows now display different entries
+         * @param from The first row changed
+         * @param to The last row changed
+         */
+        private void changed(int from, int to) {
+            fireContentsChanged(this, from, to);
+        }
+
+        /**
+         * Notifies the list that every row may have changed, such as after filtering
+         * @param previous The number of rows displayed before the change
+         */
+        private void replaced(int previous) {
+            int size = shown.size();
+            if(previous > size) {
+                fireIntervalRemoved(this, size, previous - 1);
+            } else if(size > previous) {
+                fireIntervalAdded(this, previous, size - 1);
+            }
+            if(size > 0) {
+                fireContentsChanged(this, 0, size - 1);
+            }
+        }
+    }
+}
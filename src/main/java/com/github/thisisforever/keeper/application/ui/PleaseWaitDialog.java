@@ -14,6 +14,11 @@ public class PleaseWaitDialog extends JDialog implements WindowFocusListener {
     // Flags used to determine which message to show when showSelf(boolean) is called
     public static final boolean OPENING_MESSAGE = true;
     public static final boolean SAVING_MESSAGE = false;
+    // Messages shown while entries are being imported, exported, audited and re-encrypted
+    public static final String IMPORTING_MESSAGE = "Importing entries, please wait...";
+    public static final String EXPORTING_MESSAGE = "Exporting entries, please wait...";
+    public static final String AUDITING_MESSAGE = "Checking passwords, please wait...";
+    public static final String ROTATING_MESSAGE = "Re-encrypting passwords, please wait...";
 
     // References the parent window, for location and modality purposes
     private final JFrame parent;
@@ -96,11 +101,20 @@ public class PleaseWaitDialog extends JDialog implements WindowFocusListener {
         // Was the opening flag set?
         if(opening) {
             // Yes; display the opening message
-            label.setText("Opening archive, please wait...");
+            showSelf("Opening archive, please wait...");
         } else {
             // No; display the saving message
-            label.setText("Saving archive, please wait...");
+            showSelf("Saving archive, please wait...");
         }
+    }
+
+    /**
+     * Shows the dialog with a given message, blocking the parent window's event thread until
+     * {@link PleaseWaitDialog#setVisible}(false) is called by another thread.
+     * @param message The message to display, such as {@link PleaseWaitDialog#IMPORTING_MESSAGE}
+     */
+    public void showSelf(String message) {
+        label.setText(message);
         // Resize the window to fit the altered label text
         pack();
         // Show the dialog
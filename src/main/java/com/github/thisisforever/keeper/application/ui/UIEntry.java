@@ -6,14 +6,14 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.LineBorder;
 import java.awt.*;
-import java.awt.event.MouseEvent;
-import java.awt.event.MouseListener;
 
 /**
- * A clickable UI component with a website, username and password. The application's main frame's entry list is filled
- * with {@link UIEntry} objects.
+ * Paints the rows of an archive's entry list, each with a website, username and dummy password. A single
+ * {@link UIEntry} is shared by every row of a session's list: the list asks it to show each visible entry in turn and
+ * paints it in the entry's place, so only the rows on screen are ever laid out, however many entries the archive
+ * holds.
  */
-public class UIEntry extends JPanel implements MouseListener {
+public class UIEntry extends JPanel implements ListCellRenderer<Entry> {
 
     // Defines the border thickness for UIEntries
     private static final int BORDER_THICKNESS = 1;
@@ -32,25 +32,14 @@ public class UIEntry extends JPanel implements MouseListener {
     private static Font FONT;
     // String that holds dummy text for the password label
     private static String ECHO_CHAR_STRING;
-    // Determines the amount of time between clicks that will register a double click
-    private static int DOUBLE_CLICK_INTERVAL;
 
-    // References this UI component's underlying entry data
-    private final Entry entry;
+    // References the session whose entries this renderer paints; used to determine which entry is selected and which
+    // have been changed
+    private final ArchiveSession session;
 
-    // References the text components for this UI entry that display the website, username and dummy password
+    // References the text components that display the website, username and dummy password of the entry being painted
     private final JLabel websiteLabel, usernameLabel, passwordLabel;
 
-    // References the parent frame of this UI component; used to notify the parent when the component is double-clicked
-    private final AppMainFrame parent;
-
-    // Flags set when the UI entry is selected and when the entry has been changed since the application opened
-    private boolean selected, changed;
-
-    // Determines a point in time at which point a second click on this component will no longer be considered a
-    // double-click
-    private long doubleClickExpire;
-
     /**
      * Changes fonts, colors, borders, etc. for all {@link UIEntry} components based on the set look and feel
      */
@@ -73,36 +62,26 @@ public class UIEntry extends JPanel implements MouseListener {
 
         // Create the dummy String with 12 echo characters
         UIEntry.ECHO_CHAR_STRING = Character.toString(echoChar).repeat(12);
-
-        // Determine the double-click interval for the user's system, defaulting to .5 seconds if one isn't set
-        Object clickIntervalObj = Toolkit.getDefaultToolkit().getDesktopProperty("awt.multiClickInterval");
-        if(clickIntervalObj instanceof Integer) {
-            UIEntry.DOUBLE_CLICK_INTERVAL = (int) clickIntervalObj;
-        } else {
-            UIEntry.DOUBLE_CLICK_INTERVAL = 500;
-        }
     }
 
     /**
-     * Instantiates a {@link UIEntry} object with a given parent and underlying {@link Entry}.
-     * @param parent A reference to the parent window
-     * @param entry A reference to a password entry to be displayed
+     * Instantiates a {@link UIEntry} renderer for a session's entry list
+     * @param session The session whose entries will be painted
      */
-    public UIEntry(AppMainFrame parent, Entry entry) {
-        this.parent = parent;
-        this.entry = entry;
+    public UIEntry(ArchiveSession session) {
+        this.session = session;
         // Set up the layout with 3 columns for the 3 fields, with 5 pixels between them
         setLayout(new GridLayout(0, 3, 5, 5));
         // Create each label and add it to the component
-        websiteLabel = new JLabel("");
+        websiteLabel = new JLabel(" ");
         websiteLabel.setOpaque(true);
         websiteLabel.setFont(FONT);
         add(websiteLabel);
-        usernameLabel = new JLabel("");
+        usernameLabel = new JLabel(" ");
         usernameLabel.setOpaque(true);
         usernameLabel.setFont(FONT);
         add(usernameLabel);
-        passwordLabel = new JLabel("");
+        passwordLabel = new JLabel(ECHO_CHAR_STRING);
         passwordLabel.setOpaque(true);
         passwordLabel.setFont(FONT);
         add(passwordLabel);
@@ -110,101 +89,69 @@ public class UIEntry extends JPanel implements MouseListener {
         // Default to unselected colors and border
         setColors(UNSELECTED_FOREGROUND_COLOR, UNSELECTED_BACKGROUND_COLOR, UNSELECTED_BORDER);
 
-        // Begin listening for mouse events, so we know when the user clicks the component
-        usernameLabel.addMouseListener(this);
-        websiteLabel.addMouseListener(this);
-        passwordLabel.addMouseListener(this);
-        addMouseListener(this);
-
-        // Fill the labels with text
-        updateLabels();
-
-        // Ensure the component doesn't resize vertically in the event there aren't enough entries to fill the
-        // parent container
-        setMaximumSize(new Dimension(10000, (int)getPreferredSize().getHeight()));
-
         // Add 3 px padding around the component
         setBorder(new EmptyBorder(3, 3, 3, 3));
     }
 
     /**
-     * Gets the underlying password entry for this UI element
-     * @return a reference to the component's underlying {@link Entry} object
+     * Gets the height of every row painted by this renderer, so the list never has to measure its rows one by one
+     * @return the height in pixels
      */
-    public Entry getEntry() {
-        return entry;
+    public int getRowHeight() {
+        return getPreferredSize().height;
     }
 
     /**
-     * Fills the entry's labels with the underlying {@link Entry} object's information
+     * Fills the renderer's labels with an entry's information and colors them to reflect whether the entry is being
+     * edited or has been changed. The list's own selection is ignored; entries are selected by double-clicking them.
+     * @param list The list being painted
+     * @param entry The entry to paint
+     * @param index The entry's row in the list
+     * @param isSelected Whether the list considers the row selected
+     * @param cellHasFocus Whether the row has focus
+     * @return this renderer, ready to paint the entry
      */
-    public void updateLabels() {
-        String website = entry.getWebsite();
-        if(website.length() > 18) {
-            websiteLabel.setText(website.substring(0, 15) + "...");
-        } else {
-            websiteLabel.setText(website);
-        }
-        String username = entry.getUsername();
-        if(username.length() > 18) {
-            usernameLabel.setText(username.substring(0, 15) + "...");
+    @Override
+    public Component getListCellRendererComponent(JList<? extends Entry> list, Entry entry, int index,
+                                                  boolean isSelected, boolean cellHasFocus) {
+        websiteLabel.setText(truncate(entry.getWebsite()));
+        usernameLabel.setText(truncate(entry.getUsername()));
+        if(entry.hasPassword()) {
+            passwordLabel.setText(ECHO_CHAR_STRING);
         } else {
-            usernameLabel.setText(username);
-        }
-        if(entry.getPasswordData() == null) {
             passwordLabel.setText(" ");
-        } else {
-            passwordLabel.setText(ECHO_CHAR_STRING);
         }
-        // Resize the component and redraw it to reflect the changes
-        validate();
-    }
-
-    /**
-     * Method called by the parent frame when the component was successfully selected. Changes the component's
-     * colors to the L&F's colors for selected list components and sets the selected flag.
-     */
-    public void selected() {
-        selected = true;
-        setColors(SELECTED_FOREGROUND_COLOR, SELECTED_BACKGROUND_COLOR, SELECTED_BORDER);
-        validate();
-    }
-
-    /**
-     *  Changes the component's colors to reflect that it is no longer selected. Notifies the component whether the
-     *  user made changes to the underlying entry
-     * @param changesMade true if changes were made, otherwise false
-     */
-    public void deselected(boolean changesMade) {
-        selected = false;
-        changed = changesMade || changed;
-        if(changed) {
+        if(session.isSelected(entry)) {
+            setColors(SELECTED_FOREGROUND_COLOR, SELECTED_BACKGROUND_COLOR, SELECTED_BORDER);
+        } else if(session.isChanged(entry)) {
             setColors(CHANGED_FOREGROUND_COLOR, CHANGED_BACKGROUND_COLOR, CHANGED_BORDER);
         } else {
             setColors(UNSELECTED_FOREGROUND_COLOR, UNSELECTED_BACKGROUND_COLOR, UNSELECTED_BORDER);
         }
-        validate();
+        return this;
     }
 
     /**
-     * Sets the component's {@link UIEntry#changed} flag
+     * Empties the labels, so that the website and username of the last entry painted aren't kept once its archive is
+     * closed
      */
-    public void changesMade() {
-        changed = true;
+    public void clear() {
+        websiteLabel.setText(" ");
+        usernameLabel.setText(" ");
+        passwordLabel.setText(" ");
     }
 
     /**
-     * Method called as the user releases the mouse button. If the entry was double-clicked, notifies the parent
-     * frame that this component was double-clicked.
-     * @param eventInfo Event information passed by Swing
+     * Shortens text too long to fit in a label
+     * @param text The text to display
+     * @return the text, or its first 15 characters followed by an ellipsis if it's longer than 18 characters; empty
+     * text is replaced with a space so the row keeps its height
      */
-    @Override
-    public void mouseReleased(MouseEvent eventInfo) {
-        long time = eventInfo.getWhen();
-        if(time < doubleClickExpire && !selected) {
-            parent.entryClicked(this);
+    private static String truncate(String text) {
+        if(text.length() > 18) {
+            return text.substring(0, 15) + "...";
         }
-        doubleClickExpire = time + DOUBLE_CLICK_INTERVAL;
+        return text.isEmpty() ? " " : text;
     }
 
     /**
@@ -225,22 +172,17 @@ public class UIEntry extends JPanel implements MouseListener {
         passwordLabel.setBorder(border);
     }
 
-    // Remaining methods are required while implementing the MouseListener interface
+    // Painting a row never needs to revalidate or repaint the renderer itself; skipping these, as Swing's own list
+    // renderers do, avoids queuing work for every row painted
     @Override
-    public void mouseClicked(MouseEvent e) {
+    public void revalidate() {
     }
 
     @Override
-    public void mousePressed(MouseEvent e) {
+    public void repaint(long tm, int x, int y, int width, int height) {
     }
 
     @Override
-    public void mouseEntered(MouseEvent e) {
-
-    }
-
-    @Override
-    public void mouseExited(MouseEvent e) {
-
+    public void repaint(Rectangle r) {
     }
 }
@@ -0,0 +1,359 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.CryptographicFailureException;
+import com.github.thisisforever.crypto.Utility;
+
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Merges two copies of an archive which diverged from a common base, such as copies synced between machines or saved
+ * by two Keeper processes. Each entry in either copy is matched to the base entry it came from, and each of its
+ * fields is merged separately, so that changes to different fields of the same entry both survive.
+ * <p>
+ * Entries are matched by their IDs first. Entries from archives which predate IDs may have been given different IDs
+ * by each copy, so the remaining entries are matched by a hash of their encrypted password data, which finds entries
+ * whose website or username was changed, since passwords are encrypted with a random IV and an unchanged password
+ * has exactly the same encrypted data as in the base. Entries still unmatched are matched by website and username,
+ * which finds entries whose password was changed. When both copies changed the same password, their fingerprints
+ * tell whether they changed it to the same thing; passwords are only decrypted if either has no fingerprint.
+ * Matching takes expected linear time and sorting the result takes O(n log n).
+ */
+public class ArchiveMerger {
+
+    // References the manager used to compare passwords both copies changed, or null if they can't be compared
+    private final PasswordArchiveManager manager;
+    // Counts the conflicts found by the last merge
+    private int conflictCount;
+
+    /**
+     * Creates a merger which never decrypts passwords; passwords both copies changed are treated as conflicting
+     */
+    public ArchiveMerger() {
+        this(null);
+    }
+
+    /**
+     * Creates a merger which decrypts passwords both copies changed to tell whether they were changed to the same
+     * password
+     * @param manager A manager whose entry keys have been populated, or null if passwords shouldn't be decrypted
+     */
+    public ArchiveMerger(PasswordArchiveManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Merges two copies of an archive. For each field of each entry, a change made by only one copy is kept. When
+     * both copies changed a website or username differently, our change is kept; when both changed a password
+     * differently, both versions of the entry are kept, so that no password is lost. An entry removed by one copy is
+     * removed unless the other copy changed it.
+     * @param base The entries of the copy both copies diverged from
+     * @param ours Our copy's entries
+     * @param theirs Their copy's entries
+     * @return a sorted {@link ArrayList} of the merged entries
+     */
+    public ArrayList<Entry> merge(List<Entry> base, List<Entry> ours, List<Entry> theirs) {
+        conflictCount = 0;
+        int[] ourMatches = match(base, ours);
+        int[] theirMatches = match(base, theirs);
+        int[] baseToOurs = invert(ourMatches, base.size());
+        int[] baseToTheirs = invert(theirMatches, base.size());
+
+        ArrayList<Entry> merged = new ArrayList<>(Math.max(ours.size(), theirs.size()));
+        for(int i = 0; i < base.size(); i++) {
+            Entry b = base.get(i);
+            Entry o = baseToOurs[i] < 0 ? null : ours.get(baseToOurs[i]);
+            Entry t = baseToTheirs[i] < 0 ? null : theirs.get(baseToTheirs[i]);
+            if(o == null && t == null) {
+                continue;
+            }
+            if(o == null || t == null) {
+                // Removed by one copy; keep the other copy's version only if it was changed
+                Entry remaining = o == null ? t : o;
+                if(changed(b, remaining)) {
+                    merged.add(remaining);
+                    conflictCount++;
+                }
+                continue;
+            }
+            mergeEntry(b, o, t, merged);
+        }
+
+        // Add entries either copy added, keeping one copy of entries both added identically
+        HashMap<String, ArrayDeque<Entry>> theirAdditions = new HashMap<>();
+        for(int i = 0; i < theirs.size(); i++) {
+            if(theirMatches[i] < 0) {
+                theirAdditions.computeIfAbsent(nameKey(theirs.get(i)), k -> new ArrayDeque<>(1)).add(theirs.get(i));
+            }
+        }
+        for(int i = 0; i < ours.size(); i++) {
+            if(ourMatches[i] >= 0) {
+                continue;
+            }
+            Entry o = ours.get(i);
+            merged.add(o);
+            ArrayDeque<Entry> sameName = theirAdditions.get(nameKey(o));
+            Entry t = sameName == null ? null : sameName.poll();
+            if(t != null && !samePassword(o, t)) {
+                merged.add(t.getId().equals(o.getId()) ? withNewId(t) : t);
+                conflictCount++;
+            }
+        }
+        for(ArrayDeque<Entry> remaining : theirAdditions.values()) {
+            merged.addAll(remaining);
+        }
+        Entry.sort(merged);
+        return merged;
+    }
+
+    /**
+     * Gets the number of conflicts found by the last merge: entries both copies changed differently, entries one
+     * copy changed and the other removed, and entries both copies added with different passwords
+     * @return the number of conflicts
+     */
+    public int getConflictCount() {
+        return conflictCount;
+    }
+
+    /**
+     * Merges the fields of an entry present in the base and both copies
+     * @param b The entry in the base
+     * @param o Our version of the entry
+     * @param t Their version of the entry
+     * @param merged The list the merged entry, and their version if its password conflicts, are added to
+     */
+    private void mergeEntry(Entry b, Entry o, Entry t, ArrayList<Entry> merged) {
+        boolean conflict = false;
+        String website = o.getWebsite(), username = o.getUsername();
+        if(o.getWebsite().equals(b.getWebsite())) {
+            website = t.getWebsite();
+        } else if(!t.getWebsite().equals(b.getWebsite()) && !t.getWebsite().equals(o.getWebsite())) {
+            conflict = true;
+        }
+        if(o.getUsername().equals(b.getUsername())) {
+            username = t.getUsername();
+        } else if(!t.getUsername().equals(b.getUsername()) && !t.getUsername().equals(o.getUsername())) {
+            conflict = true;
+        }
+        byte[] passwordData = o.getPasswordData(), fingerprint = o.getFingerprint();
+        boolean theirPassword = false, keepTheirs = false;
+        if(sameCiphertext(passwordData, b.getPasswordData())) {
+            passwordData = t.getPasswordData();
+            fingerprint = t.getFingerprint();
+            theirPassword = true;
+        } else if(!sameCiphertext(t.getPasswordData(), b.getPasswordData())
+                && !samePassword(o, t)) {
+            conflict = true;
+            keepTheirs = true;
+        }
+        if(conflict) {
+            conflictCount++;
+        }
+        if(website.equals(o.getWebsite()) && username.equals(o.getUsername())
+                && (!theirPassword || sameCiphertext(passwordData, o.getPasswordData()))) {
+            merged.add(o);
+        } else if(website.equals(t.getWebsite()) && username.equals(t.getUsername()) && theirPassword) {
+            merged.add(t);
+        } else {
+            merged.add(o.getStore().add(o.getId(), website, username, passwordData, fingerprint, b.getCreated(),
+                    Math.max(o.getModified(), t.getModified())));
+        }
+        if(keepTheirs) {
+            merged.add(withNewId(t));
+        }
+    }
+
+    /**
+     * Matches each entry of a copy to the base entry it came from. Entries are matched first by ID, then by their
+     * encrypted password data and then by website and username; each base entry is matched at most once.
+     * @param base The base entries
+     * @param copy The copy's entries
+     * @return an array holding, for each entry of the copy, the index of its base entry, or -1 if it was added
+     */
+    private static int[] match(List<Entry> base, List<Entry> copy) {
+        HashMap<UUID, Integer> baseById = new HashMap<>(base.size() * 2);
+        HashMap<Ciphertext, Integer> baseByPassword = new HashMap<>(base.size() * 2);
+        HashMap<String, ArrayDeque<Integer>> baseByName = new HashMap<>(base.size() * 2);
+        for(int i = 0; i < base.size(); i++) {
+            Entry e = base.get(i);
+            baseById.putIfAbsent(e.getId(), i);
+            if(hasPassword(e.getPasswordData())) {
+                baseByPassword.putIfAbsent(new Ciphertext(e.getPasswordData()), i);
+            }
+            baseByName.computeIfAbsent(nameKey(e), k -> new ArrayDeque<>(1)).add(i);
+        }
+        int[] matches = new int[copy.size()];
+        Arrays.fill(matches, -1);
+        boolean[] claimed = new boolean[base.size()];
+        for(int i = 0; i < copy.size(); i++) {
+            Integer b = baseById.get(copy.get(i).getId());
+            if(b != null && !claimed[b]) {
+                claimed[b] = true;
+                matches[i] = b;
+            }
+        }
+        for(int i = 0; i < copy.size(); i++) {
+            if(matches[i] >= 0) {
+                continue;
+            }
+            byte[] passwordData = copy.get(i).getPasswordData();
+            if(hasPassword(passwordData)) {
+                Integer b = baseByPassword.get(new Ciphertext(passwordData));
+                if(b != null && !claimed[b]) {
+                    claimed[b] = true;
+                    matches[i] = b;
+                }
+            }
+        }
+        for(int i = 0; i < copy.size(); i++) {
+            if(matches[i] >= 0) {
+                continue;
+            }
+            ArrayDeque<Integer> candidates = baseByName.get(nameKey(copy.get(i)));
+            if(candidates == null) {
+                continue;
+            }
+            // Skip base entries already matched by password
+            while(!candidates.isEmpty() && claimed[candidates.peek()]) {
+                candidates.poll();
+            }
+            if(!candidates.isEmpty()) {
+                int b = candidates.poll();
+                claimed[b] = true;
+                matches[i] = b;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Inverts the result of {@link #match}
+     * @param matches The base index matched to each entry of a copy, or -1
+     * @param baseSize The number of base entries
+     * @return an array holding, for each base entry, the index of the copy's entry matched to it, or -1 if the copy
+     * removed it
+     */
+    private static int[] invert(int[] matches, int baseSize) {
+        int[] inverse = new int[baseSize];
+        Arrays.fill(inverse, -1);
+        for(int i = 0; i < matches.length; i++) {
+            if(matches[i] >= 0) {
+                inverse[matches[i]] = i;
+            }
+        }
+        return inverse;
+    }
+
+    /**
+     * Copies an entry under a new ID, used when both versions of a conflicting entry are kept
+     * @param e The entry to copy
+     * @return a new {@link Entry} with the same fields and times, but a new random ID
+     */
+    private static Entry withNewId(Entry e) {
+        return e.getStore().add(UUID.randomUUID(), e.getWebsite(), e.getUsername(), e.getPasswordData(),
+                e.getFingerprint(), e.getCreated(), e.getModified());
+    }
+
+    /**
+     * Determines whether a copy changed any field of an entry
+     * @param b The entry in the base
+     * @param e The copy's version of the entry
+     * @return true if the website, username or password differs from the base
+     */
+    private static boolean changed(Entry b, Entry e) {
+        return !b.getWebsite().equals(e.getWebsite()) || !b.getUsername().equals(e.getUsername())
+                || !sameCiphertext(b.getPasswordData(), e.getPasswordData());
+    }
+
+    /**
+     * Determines whether two entries' passwords are the same, comparing their fingerprints if both have one, and
+     * otherwise decrypting them only if their encrypted data differs and a manager was given
+     * @param first The first entry
+     * @param second The second entry
+     * @return true if the passwords are known to be the same, otherwise false
+     */
+    private boolean samePassword(Entry first, Entry second) {
+        byte[] a = first.getPasswordData(), b = second.getPasswordData();
+        if(sameCiphertext(a, b)) {
+            return true;
+        }
+        if(!hasPassword(a) || !hasPassword(b)) {
+            return false;
+        }
+        if(first.getFingerprint() != null && second.getFingerprint() != null) {
+            return Arrays.equals(first.getFingerprint(), second.getFingerprint());
+        }
+        if(manager == null) {
+            return false;
+        }
+        byte[] plaintextA = null, plaintextB = null;
+        try {
+            plaintextA = manager.decryptPasswordBytes(a);
+            plaintextB = manager.decryptPasswordBytes(b);
+            return MessageDigest.isEqual(plaintextA, plaintextB);
+        } catch (CryptographicFailureException e) {
+            return false;
+        } finally {
+            Utility.erase(plaintextA);
+            Utility.erase(plaintextB);
+        }
+    }
+
+    /**
+     * Determines whether two entries' encrypted password data are identical
+     * @param a The first entry's password data, or null if it has no password
+     * @param b The second entry's password data, or null if it has no password
+     * @return true if the data is identical, otherwise false
+     */
+    private static boolean sameCiphertext(byte[] a, byte[] b) {
+        if(!hasPassword(a)) {
+            return !hasPassword(b);
+        }
+        return Arrays.equals(a, b);
+    }
+
+    private static boolean hasPassword(byte[] passwordData) {
+        return passwordData != null && passwordData.length > 0;
+    }
+
+    /**
+     * Creates a key identifying an entry by its website and username, ignoring case
+     * @param e The entry
+     * @return a {@link String} key
+     */
+    private static String nameKey(Entry e) {
+        return e.getWebsite().toLowerCase() + '\0' + e.getUsername().toLowerCase();
+    }
+
+    /**
+     * Wraps encrypted password data so it can be used as a hash key, computing its hash once
+     */
+    private static final class Ciphertext {
+
+        private final byte[] data;
+        private final int hash;
+
+        Ciphertext(byte[] data) {
+            this.data = data;
+            hash = Arrays.hashCode(data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Ciphertext && hash == ((Ciphertext) o).hash
+                    && Arrays.equals(data, ((Ciphertext) o).data);
+        }
+
+    }
+
+}
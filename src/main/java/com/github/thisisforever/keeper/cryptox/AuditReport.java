@@ -0,0 +1,254 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Summarizes the health of an archive's passwords, as found by a {@link VaultAuditor}: how many passwords there are
+ * of each length, type coverage and age, and which entries have each kind of weakness. Reports are tallied separately
+ * by each of the auditor's workers and then combined.
+ */
+public class AuditReport {
+
+    /**
+     * A weakness found in a password
+     */
+    public enum Issue {
+        SHORT("Shorter than " + VaultAuditor.MIN_LENGTH + " characters"),
+        LOW_ENTROPY("Weaker than " + VaultAuditor.MIN_ENTROPY_BITS + " bits, judging by length and character types"),
+        COMMON_WORD("Contain a common password"),
+        SEQUENCE("Contain a sequence such as abcd, 4321 or qwer"),
+        REPETITION("Repeat characters or sequences"),
+        CONTAINS_NAME("Contain their website or username"),
+        OLD("Unchanged for over " + VaultAuditor.MAX_AGE_DAYS + " days"),
+        REUSED("Shared with another entry"),
+        BREACHED("Found in the breached password list"),
+        UNREADABLE("Could not be decrypted");
+
+        // Describes the passwords with the issue
+        private final String description;
+
+        Issue(String description) {
+            this.description = description;
+        }
+
+        /**
+         * Gets a description of the issue
+         * @return a description of the passwords with the issue, such as "Shorter than 12 characters"
+         */
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    // Defines the upper bounds of the length ranges counted, and labels for each range
+    private static final int[] LENGTH_LIMITS = {8, 12, 16, 20, Integer.MAX_VALUE};
+    private static final String[] LENGTH_LABELS = {"under 8", "8-11", "12-15", "16-19", "20 or more"};
+    // Defines the upper bounds of the age ranges counted, in days, and labels for each range
+    private static final long[] AGE_LIMITS = {90, 365, 730, Long.MAX_VALUE};
+    private static final String[] AGE_LABELS = {"under 90 days", "90 days to a year", "1-2 years", "over 2 years"};
+
+    // Holds the entries found with each issue
+    private final EnumMap<Issue, ArrayList<Entry>> findings;
+    // Counts passwords by length range, number of character types used (0-4) and age range
+    private final int[] lengthCounts, classCounts, ageCounts;
+    // Counts passwords audited, entries without a password and passwords of unknown age, and totals password lengths
+    private int passwords, empty, unknownAge;
+    private long totalLength;
+    // Counts the groups of entries sharing a password
+    private int reusedGroups;
+    // The number of workers, the most plaintext passwords held at once and the time taken by the audit
+    private int window, peakLive;
+    private long elapsedNanos;
+
+    /**
+     * Creates an empty report
+     */
+    AuditReport() {
+        findings = new EnumMap<>(Issue.class);
+        for(Issue issue : Issue.values()) {
+            findings.put(issue, new ArrayList<>());
+        }
+        lengthCounts = new int[LENGTH_LIMITS.length];
+        classCounts = new int[5];
+        ageCounts = new int[AGE_LIMITS.length];
+    }
+
+    /**
+     * Counts an entry without a password
+     */
+    void addEmpty() {
+        empty++;
+    }
+
+    /**
+     * Counts a password which was analyzed
+     * @param length The password's length
+     * @param classes The number of character types the password uses
+     * @param ageDays The number of days since the password was changed, or -1 if unknown
+     */
+    void addPassword(int length, int classes, long ageDays) {
+        passwords++;
+        totalLength += length;
+        int range = 0;
+        while(length >= LENGTH_LIMITS[range]) {
+            range++;
+        }
+        lengthCounts[range]++;
+        classCounts[classes]++;
+        if(ageDays < 0) {
+            unknownAge++;
+        } else {
+            range = 0;
+            while(ageDays >= AGE_LIMITS[range]) {
+                range++;
+            }
+            ageCounts[range]++;
+        }
+    }
+
+    /**
+     * Records an issue found with an entry's password
+     * @param e The entry
+     * @param issue The issue found
+     */
+    void addFinding(Entry e, Issue issue) {
+        findings.get(issue).add(e);
+    }
+
+    /**
+     * Records a group of entries sharing a password
+     * @param group The entries
+     */
+    void addReused(List<Entry> group) {
+        reusedGroups++;
+        findings.get(Issue.REUSED).addAll(group);
+    }
+
+    /**
+     * Adds the counts and findings of another report, such as one tallied by another worker, to this report
+     * @param other The report to add
+     */
+    void add(AuditReport other) {
+        for(Issue issue : Issue.values()) {
+            findings.get(issue).addAll(other.findings.get(issue));
+        }
+        for(int i = 0; i < lengthCounts.length; i++) {
+            lengthCounts[i] += other.lengthCounts[i];
+        }
+        for(int i = 0; i < classCounts.length; i++) {
+            classCounts[i] += other.classCounts[i];
+        }
+        for(int i = 0; i < ageCounts.length; i++) {
+            ageCounts[i] += other.ageCounts[i];
+        }
+        passwords += other.passwords;
+        empty += other.empty;
+        unknownAge += other.unknownAge;
+        totalLength += other.totalLength;
+    }
+
+    /**
+     * Records how the audit was run, once it has finished
+     * @param window The number of workers
+     * @param peakLive The most plaintext passwords held at once
+     * @param elapsedNanos The time taken by the audit, in nanoseconds
+     */
+    void finish(int window, int peakLive, long elapsedNanos) {
+        this.window = window;
+        this.peakLive = peakLive;
+        this.elapsedNanos = elapsedNanos;
+        for(ArrayList<Entry> entries : findings.values()) {
+            Entry.sort(entries);
+        }
+    }
+
+    /**
+     * Gets the entries found with an issue
+     * @param issue The issue
+     * @return a sorted list of the entries with the issue
+     */
+    public List<Entry> getFindings(Issue issue) {
+        return findings.get(issue);
+    }
+
+    /**
+     * Gets the number of passwords audited
+     * @return the number of entries which have a password
+     */
+    public int getPasswordCount() {
+        return passwords;
+    }
+
+    /**
+     * Gets the time the audit took
+     * @return the time taken, in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedNanos / 1_000_000;
+    }
+
+    /**
+     * Gets the most plaintext passwords held in memory at once during the audit
+     * @return the peak number of plaintext passwords, which never exceeds the auditor's window
+     */
+    public int getPeakLivePasswords() {
+        return peakLive;
+    }
+
+    /**
+     * Describes the report in a few lines of text, suitable for printing or displaying in a dialog
+     * @return a {@link String} summarizing the report, with lines separated by newlines
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("Audited ").append(passwords).append(" passwords");
+        if(empty > 0) {
+            summary.append(" (").append(empty).append(" entries have no password)");
+        }
+        summary.append(" in ").append(getElapsedMillis()).append(" ms, with at most ").append(peakLive)
+                .append(" decrypted at once (limit ").append(window).append(")\n");
+        if(passwords > 0) {
+            summary.append(String.format("Average length: %.1f characters\n", (double) totalLength / passwords));
+        }
+        summary.append("Length:");
+        appendCounts(summary, LENGTH_LABELS, lengthCounts);
+        summary.append("Character types used:");
+        appendCounts(summary, new String[]{"0", "1", "2", "3", "4"}, classCounts);
+        summary.append("Age:");
+        appendCounts(summary, AGE_LABELS, ageCounts);
+        if(unknownAge > 0) {
+            summary.append("Age unknown: ").append(unknownAge).append('\n');
+        }
+        for(Issue issue : Issue.values()) {
+            int count = findings.get(issue).size();
+            if(count > 0) {
+                summary.append(issue.getDescription()).append(": ").append(count);
+                if(issue == Issue.REUSED) {
+                    summary.append(" in ").append(reusedGroups).append(reusedGroups == 1 ? " group" : " groups");
+                }
+                summary.append('\n');
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Appends labeled counts to a summary, skipping labels with no passwords
+     * @param summary The summary to append to
+     * @param labels The label of each count
+     * @param counts The counts
+     */
+    private static void appendCounts(StringBuilder summary, String[] labels, int[] counts) {
+        for(int i = 0; i < counts.length; i++) {
+            if(counts[i] > 0) {
+                summary.append(' ').append(labels[i]).append(": ").append(counts[i]).append(';');
+            }
+        }
+        if(summary.charAt(summary.length() - 1) == ';') {
+            summary.setLength(summary.length() - 1);
+        }
+        summary.append('\n');
+    }
+}
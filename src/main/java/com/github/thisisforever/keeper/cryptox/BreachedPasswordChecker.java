@@ -0,0 +1,435 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.Utility;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Checks passwords against a local copy of a breached password corpus: a file of SHA-1 hashes of breached passwords,
+ * sorted by hash. Both the text format distributed by Have I Been Pwned, with one uppercase hexadecimal hash per line
+ * optionally followed by a colon and a count, and a binary format of consecutive 20-byte hashes are supported.
+ * <p>
+ * The corpus is memory-mapped rather than read, so it may be far larger than the heap, and only the pages a lookup
+ * touches are read from disk. Each lookup hashes the password, finds the range of the file holding hashes with the
+ * same first 16 bits using a table of ranges filled in as prefixes are first looked up, and binary searches that
+ * range. If a Bloom filter has been built for the corpus with {@link #buildBloomFilter}, it is memory-mapped as well
+ * and consulted first, so most passwords which aren't in the corpus are rejected without touching the corpus at all.
+ * <p>
+ * Lookups don't change any shared state other than the range table, so a checker may be used from several threads at
+ * once.
+ */
+public class BreachedPasswordChecker implements Closeable {
+
+    // Defines the extension appended to the corpus's file name to form the name of its Bloom filter
+    public static final String BLOOM_FILTER_EXTENSION = ".bloom";
+
+    // Defines the length of a SHA-1 hash in bytes, and in hexadecimal digits
+    private static final int HASH_LENGTH = 20;
+    private static final int HEX_LENGTH = HASH_LENGTH * 2;
+    // Defines the number of leading hash bits used to index the range table
+    private static final int PREFIX_BITS = 16;
+    // Defines the size of each mapped segment of a file. Segments overlap by more than the longest line, so every
+    // line can be read from a single segment.
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+    private static final int SEGMENT_OVERLAP = 256;
+    // Identifies Bloom filter files, and defines the length of their header: identifier, number of hash functions
+    // and number of bits
+    private static final int BLOOM_MAGIC = 0x4B424C4D;
+    private static final int BLOOM_HEADER_LENGTH = Integer.BYTES * 2 + Long.BYTES;
+    // Defines the false positive rate Bloom filters are built for
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    // References the mapped segments of the corpus and of its Bloom filter, which is null if there is none
+    private final MappedByteBuffer[] corpus;
+    private final MappedByteBuffer[] bloom;
+    // The size of the corpus in bytes
+    private final long size;
+    // Flag set if the corpus holds binary hashes rather than lines of hexadecimal
+    private final boolean binary;
+    // Holds, for each hash prefix, the offset of the first record with that prefix or greater, or -1 if it has yet to
+    // be found. The entry after the last prefix holds the size of the corpus.
+    private final AtomicLongArray ranges;
+    // The number of hash functions used by the Bloom filter and the number of bits in it
+    private final int bloomHashes;
+    private final long bloomBits;
+
+    /**
+     * Opens a corpus, along with its Bloom filter if one has been built
+     * @param corpusFile The sorted file of hashes
+     * @throws IOException if the corpus couldn't be mapped, or is in neither format
+     */
+    public BreachedPasswordChecker(File corpusFile) throws IOException {
+        try(FileChannel channel = FileChannel.open(corpusFile.toPath(), StandardOpenOption.READ)) {
+            size = channel.size();
+            corpus = map(channel, FileChannel.MapMode.READ_ONLY);
+        }
+        binary = !isText();
+        if(binary && size % HASH_LENGTH != 0) {
+            throw new IOException("Not a sorted file of SHA-1 hashes: " + corpusFile);
+        }
+        ranges = new AtomicLongArray((1 << PREFIX_BITS) + 1);
+        for(int i = 0; i < ranges.length(); i++) {
+            ranges.set(i, -1);
+        }
+        ranges.set(0, 0);
+        ranges.set(1 << PREFIX_BITS, size);
+
+        File bloomFile = new File(corpusFile.getPath() + BLOOM_FILTER_EXTENSION);
+        if(bloomFile.exists() && bloomFile.lastModified() >= corpusFile.lastModified()) {
+            try(FileChannel channel = FileChannel.open(bloomFile.toPath(), StandardOpenOption.READ)) {
+                bloom = map(channel, FileChannel.MapMode.READ_ONLY);
+            }
+            ByteBuffer header = bloom[0].duplicate();
+            if(header.getInt() != BLOOM_MAGIC) {
+                throw new IOException("Not a Bloom filter: " + bloomFile);
+            }
+            bloomHashes = header.getInt();
+            bloomBits = header.getLong();
+        } else {
+            bloom = null;
+            bloomHashes = 0;
+            bloomBits = 0;
+        }
+    }
+
+    /**
+     * Determines whether a password appears in the corpus
+     * @param password The password to check; trailing null characters are ignored
+     * @return true if the password's hash is in the corpus, otherwise false
+     */
+    public boolean isBreached(char[] password) {
+        byte[] passwordBytes = Utility.encode(password);
+        try {
+            return isBreached(passwordBytes);
+        } finally {
+            Utility.erase(passwordBytes);
+        }
+    }
+
+    /**
+     * Determines whether an encoded password appears in the corpus
+     * @param passwordBytes The password, encoded with {@link Utility#encode}; trailing zero bytes are ignored
+     * @return true if the password's hash is in the corpus, otherwise false
+     */
+    public boolean isBreached(byte[] passwordBytes) {
+        int length = passwordBytes.length;
+        while(length > 0 && passwordBytes[length - 1] == 0) {
+            length--;
+        }
+        byte[] hash = sha1(passwordBytes, length);
+        if(bloom != null && !bloomContains(hash)) {
+            return false;
+        }
+        int prefix = ((hash[0] & 0xFF) << 8) | (hash[1] & 0xFF);
+        long from = rangeStart(prefix), to = rangeStart(prefix + 1);
+        long position = lowerBound(hash, HASH_LENGTH, from, to);
+        return position < to && compare(hash, HASH_LENGTH, position) == 0;
+    }
+
+    /**
+     * Finds the offset of the first record whose hash begins with a given prefix or a greater one, looking it up in
+     * the range table or, the first time the prefix is used, searching the whole corpus for it
+     * @param prefix The first 16 bits of a hash
+     * @return the offset of the first record with the prefix or greater
+     */
+    private long rangeStart(int prefix) {
+        long start = ranges.get(prefix);
+        if(start < 0) {
+            byte[] key = {(byte) (prefix >>> 8), (byte) prefix};
+            start = lowerBound(key, key.length, 0, size);
+            ranges.set(prefix, start);
+        }
+        return start;
+    }
+
+    /**
+     * Finds the first record in a range of the corpus whose hash is not less than a key
+     * @param key The hash, or leading bytes of a hash, to look for
+     * @param keyLength The number of bytes of the key to compare
+     * @param low The offset of the first record in the range
+     * @param high The offset just past the last record in the range
+     * @return the offset of the first record not less than the key, or high if there is none
+     */
+    private long lowerBound(byte[] key, int keyLength, long low, long high) {
+        while(low < high) {
+            long middle = recordStart(low + (high - low) / 2, low);
+            if(middle >= high) {
+                // No record begins in the upper half of the range, which holds at most part of one line
+                while(low < high && compare(key, keyLength, low) > 0) {
+                    low = nextRecord(low);
+                }
+                return low;
+            }
+            if(compare(key, keyLength, middle) > 0) {
+                low = nextRecord(middle);
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the first record beginning at or after a position
+     * @param position A position within the corpus
+     * @param low The offset of a record at or before the position
+     * @return the offset of the first record beginning at or after the position
+     */
+    private long recordStart(long position, long low) {
+        if(binary) {
+            return low + (position - low + HASH_LENGTH - 1) / HASH_LENGTH * HASH_LENGTH;
+        }
+        while(position > low && position < size && byteAt(position - 1) != '\n') {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Finds the record following the one beginning at a given offset
+     * @param record The offset of a record
+     * @return the offset of the next record, or the size of the corpus if it was the last
+     */
+    private long nextRecord(long record) {
+        if(binary) {
+            return record + HASH_LENGTH;
+        }
+        long position = record;
+        while(position < size && byteAt(position) != '\n') {
+            position++;
+        }
+        return Math.min(size, position + 1);
+    }
+
+    /**
+     * Compares a key to the hash of the record beginning at a given offset
+     * @param key The hash, or leading bytes of a hash, to compare
+     * @param keyLength The number of bytes of the key to compare
+     * @param record The offset of the record
+     * @return a negative number, zero or a positive number as the key is less than, equal to or greater than the
+     * record's hash. A partial record at the end of the corpus is greater than any key.
+     */
+    private int compare(byte[] key, int keyLength, long record) {
+        if(record + (binary ? HASH_LENGTH : HEX_LENGTH) > size) {
+            return -1;
+        }
+        ByteBuffer segment = corpus[(int) (record >>> SEGMENT_BITS)];
+        int offset = (int) (record & (SEGMENT_SIZE - 1));
+        for(int i = 0; i < keyLength; i++) {
+            int stored;
+            if(binary) {
+                stored = segment.get(offset + i) & 0xFF;
+            } else {
+                stored = (hexValue(segment.get(offset + i * 2)) << 4) | hexValue(segment.get(offset + i * 2 + 1));
+            }
+            int difference = (key[i] & 0xFF) - stored;
+            if(difference != 0) {
+                return difference;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Determines whether the Bloom filter might contain a hash
+     * @param hash The hash
+     * @return false if the hash is certainly not in the corpus, or true if it may be
+     */
+    private boolean bloomContains(byte[] hash) {
+        long h1 = ByteBuffer.wrap(hash, 4, Long.BYTES).getLong();
+        long h2 = ByteBuffer.wrap(hash, 12, Long.BYTES).getLong() | 1;
+        for(int i = 0; i < bloomHashes; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bloomBits);
+            long position = BLOOM_HEADER_LENGTH + (bit >>> 3);
+            byte b = bloom[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1)));
+            if((b & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a single byte of the corpus
+     * @param position The byte's offset
+     * @return the byte
+     */
+    private byte byteAt(long position) {
+        return corpus[(int) (position >>> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    /**
+     * Determines whether the corpus is in the text format by checking that it begins with a line of hexadecimal
+     * @return true if the corpus holds lines of text, otherwise false
+     */
+    private boolean isText() {
+        if(size < HEX_LENGTH) {
+            return false;
+        }
+        for(int i = 0; i < HEX_LENGTH; i++) {
+            if(hexValue(byteAt(i)) < 0) {
+                return false;
+            }
+        }
+        if(size == HEX_LENGTH) {
+            return true;
+        }
+        byte next = byteAt(HEX_LENGTH);
+        return next == ':' || next == '\r' || next == '\n';
+    }
+
+    /**
+     * Releases the corpus and its Bloom filter. The operating system reclaims the mapped memory once the checker has
+     * been garbage collected.
+     */
+    @Override
+    public void close() {
+        for(int i = 0; i < corpus.length; i++) {
+            corpus[i] = null;
+        }
+        if(bloom != null) {
+            for(int i = 0; i < bloom.length; i++) {
+                bloom[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Builds a Bloom filter for a corpus in a single sequential pass over it, saving it next to the corpus where the
+     * checker will find it. The filter is sized for a 1% false positive rate.
+     * @param corpusFile The sorted file of hashes
+     * @return the number of hashes added to the filter
+     * @throws IOException if the corpus couldn't be read or the filter couldn't be written
+     */
+    public static long buildBloomFilter(File corpusFile) throws IOException {
+        BreachedPasswordChecker checker = new BreachedPasswordChecker(corpusFile);
+        // Text records are at least one hash and a newline long, so this overestimates the number of text hashes
+        long expected = Math.max(1, checker.size / (checker.binary ? HASH_LENGTH : HEX_LENGTH + 1));
+        long bits = (long) Math.ceil(-expected * Math.log(BLOOM_FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+        bits = (bits + 7) / 8 * 8;
+        int hashes = Math.max(1, (int) Math.round((double) bits / expected * Math.log(2)));
+
+        File bloomFile = new File(corpusFile.getPath() + BLOOM_FILTER_EXTENSION);
+        File partialFile = new File(bloomFile.getPath() + ".partial");
+        long count = 0;
+        try(FileChannel channel = FileChannel.open(partialFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(BLOOM_HEADER_LENGTH);
+            header.putInt(BLOOM_MAGIC).putInt(hashes).putLong(bits).flip();
+            channel.write(header, 0);
+            // Extend the file to its full length; the bits are zero until set
+            channel.write(ByteBuffer.allocate(1), BLOOM_HEADER_LENGTH + bits / 8 - 1);
+            MappedByteBuffer[] filter = map(channel, FileChannel.MapMode.READ_WRITE);
+            byte[] hash = new byte[HASH_LENGTH];
+            for(long record = 0; record < checker.size; record = checker.nextRecord(record)) {
+                if(!checker.readHash(record, hash)) {
+                    continue;
+                }
+                long h1 = ByteBuffer.wrap(hash, 4, Long.BYTES).getLong();
+                long h2 = ByteBuffer.wrap(hash, 12, Long.BYTES).getLong() | 1;
+                for(int i = 0; i < hashes; i++) {
+                    long bit = Long.remainderUnsigned(h1 + i * h2, bits);
+                    long position = BLOOM_HEADER_LENGTH + (bit >>> 3);
+                    MappedByteBuffer segment = filter[(int) (position >>> SEGMENT_BITS)];
+                    int offset = (int) (position & (SEGMENT_SIZE - 1));
+                    segment.put(offset, (byte) (segment.get(offset) | (1 << (bit & 7))));
+                }
+                count++;
+            }
+            for(MappedByteBuffer segment : filter) {
+                segment.force();
+            }
+        } finally {
+            checker.close();
+        }
+        if(bloomFile.exists() && !bloomFile.delete() || !partialFile.renameTo(bloomFile)) {
+            throw new IOException("Unable to save Bloom filter to " + bloomFile);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the hash of the record beginning at a given offset
+     * @param record The offset of the record
+     * @param hash An array to read the hash into
+     * @return true if a whole hash was read, or false if the record is a blank or partial line
+     */
+    private boolean readHash(long record, byte[] hash) {
+        if(record + (binary ? HASH_LENGTH : HEX_LENGTH) > size) {
+            return false;
+        }
+        for(int i = 0; i < HASH_LENGTH; i++) {
+            if(binary) {
+                hash[i] = byteAt(record + i);
+            } else {
+                int high = hexValue(byteAt(record + i * 2)), low = hexValue(byteAt(record + i * 2 + 1));
+                if(high < 0 || low < 0) {
+                    return false;
+                }
+                hash[i] = (byte) ((high << 4) | low);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps a file into memory in overlapping segments, since a single mapping can't exceed 2GB
+     * @param channel The file's channel
+     * @param mode The mode to map the file in
+     * @return an array of the mapped segments, where segment i begins at offset i * 2^30
+     * @throws IOException if the file couldn't be mapped
+     */
+    private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode) throws IOException {
+        long size = channel.size();
+        int count = (int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        MappedByteBuffer[] segments = new MappedByteBuffer[count];
+        for(int i = 0; i < count; i++) {
+            long start = i * SEGMENT_SIZE;
+            segments[i] = channel.map(mode, start, Math.min(size - start, SEGMENT_SIZE + SEGMENT_OVERLAP));
+        }
+        return segments;
+    }
+
+    /**
+     * Computes the SHA-1 hash of part of an array
+     * @param data The data to hash
+     * @param length The number of bytes to hash
+     * @return a byte[] containing the hash
+     */
+    private static byte[] sha1(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(data, 0, length);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Fatal error: system does not support SHA-1");
+        }
+    }
+
+    /**
+     * Converts a hexadecimal digit, in either case, to its value
+     * @param digit The digit
+     * @return the digit's value, or -1 if it isn't a hexadecimal digit
+     */
+    private static int hexValue(byte digit) {
+        if(digit >= '0' && digit <= '9') {
+            return digit - '0';
+        } else if(digit >= 'A' && digit <= 'F') {
+            return digit - 'A' + 10;
+        } else if(digit >= 'a' && digit <= 'f') {
+            return digit - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,434 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.Utility;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports password entries from CSV data, such as the exports produced by browsers and other password managers.
+ * Records are parsed as a stream and encrypted in parallel batches, so only one batch of plaintext passwords is held
+ * in memory at a time. Entries whose website and username match an existing entry, or an entry imported earlier in
+ * the same file, are skipped as duplicates.
+ */
+public class CsvEntryImporter {
+
+    // Defines how many records are parsed before the batch is encrypted
+    private static final int BATCH_SIZE = 1024;
+    // Defines the longest field, in characters, the importer will read before rejecting a record
+    private static final int MAX_FIELD_LENGTH = 8192;
+    // Defines the longest encoded website, username or encrypted password the archive format can store
+    private static final int MAX_ENCODED_LENGTH = Short.MAX_VALUE;
+
+    // Header names recognized for each of the columns the importer reads
+    private static final List<String> WEBSITE_HEADERS = Arrays.asList("url", "website", "web site", "login_uri",
+            "site", "name", "title");
+    private static final List<String> USERNAME_HEADERS = Arrays.asList("username", "user name", "login name",
+            "login_username", "login", "user", "email");
+    private static final List<String> PASSWORD_HEADERS = Arrays.asList("password", "login_password");
+
+    // References the manager used to encrypt imported passwords
+    private final PasswordArchiveManager manager;
+    // Contains the duplicate-detection keys of every existing and imported entry
+    private final HashSet<String> index;
+
+    // Counts the records imported, skipped as duplicates and rejected as malformed
+    private int imported, duplicates, rejected;
+
+    /**
+     * Creates an importer which adds entries to an archive already containing the given entries
+     * @param manager The manager used to encrypt imported passwords
+     * @param existing The entries already in the archive, used to detect duplicates
+     */
+    public CsvEntryImporter(PasswordArchiveManager manager, List<Entry> existing) {
+        this.manager = manager;
+        index = new HashSet<>(existing.size() * 2);
+        for(Entry e : existing) {
+            index.add(duplicateKey(e.getWebsite(), e.getUsername()));
+        }
+    }
+
+    /**
+     * Reads all records from the given CSV data, encrypting their passwords and creating entries for them. If the
+     * first record contains recognized column names (such as url, username and password) the columns are read by
+     * name, otherwise the first three columns are read as website, username and password.
+     * @param in The CSV data to read
+     * @return an {@link ArrayList} of the new entries, sorted in the same order as {@link Entry#compareTo}
+     * @throws IOException if an error occurs while reading
+     */
+    public ArrayList<Entry> importEntries(Reader in) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        CsvParser parser = new CsvParser(reader);
+        ArrayList<Entry> entries = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        ArrayList<PendingEntry> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            int[] columns = null;
+            ArrayList<char[]> record;
+            while((record = parser.next()) != null) {
+                if(columns == null) {
+                    columns = findColumns(record);
+                    if(columns[3] == 1) {
+                        // The first record was a header; there's nothing to import from it
+                        eraseRecord(record);
+                        continue;
+                    }
+                }
+                PendingEntry pending = createPendingEntry(record, columns);
+                eraseRecord(record);
+                if(pending != null) {
+                    batch.add(pending);
+                    if(batch.size() == BATCH_SIZE) {
+                        encryptBatch(executor, threads, batch, entries);
+                    }
+                }
+            }
+            encryptBatch(executor, threads, batch, entries);
+        } finally {
+            executor.shutdownNow();
+            for(PendingEntry pending : batch) {
+                Utility.erase(pending.password);
+            }
+            parser.erase();
+        }
+        Entry.sort(entries);
+        return entries;
+    }
+
+    /**
+     * Merges two lists which are each sorted by the same order into a single sorted list, in a single pass over both
+     * lists
+     * @param existing The first sorted list
+     * @param imported The second sorted list
+     * @param order The order both lists are sorted by
+     * @param <T> The type of elements in the lists
+     * @return a new sorted {@link ArrayList} containing the elements of both lists
+     */
+    public static <T> ArrayList<T> merge(List<T> existing, List<T> imported, Comparator<? super T> order) {
+        ArrayList<T> merged = new ArrayList<>(existing.size() + imported.size());
+        int i = 0, j = 0;
+        while(i < existing.size() && j < imported.size()) {
+            if(order.compare(existing.get(i), imported.get(j)) <= 0) {
+                merged.add(existing.get(i++));
+            } else {
+                merged.add(imported.get(j++));
+            }
+        }
+        merged.addAll(existing.subList(i, existing.size()));
+        merged.addAll(imported.subList(j, imported.size()));
+        return merged;
+    }
+
+    /**
+     * Gets the number of records imported during the last call to {@link #importEntries}
+     * @return the number of entries created
+     */
+    public int getImportedCount() {
+        return imported;
+    }
+
+    /**
+     * Gets the number of records skipped because an entry with the same website and username already existed
+     * @return the number of duplicate records
+     */
+    public int getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * Gets the number of records skipped because they were missing columns or too long to store in the archive
+     * @return the number of rejected records
+     */
+    public int getRejectedCount() {
+        return rejected;
+    }
+
+    /**
+     * Encrypts the passwords of a batch of pending entries in parallel, adding the resulting entries to a list and
+     * erasing the plaintext passwords. The batch is emptied once finished.
+     * @param executor The executor to run encryption tasks on
+     * @param threads The number of tasks to split the batch into
+     * @param batch The entries to encrypt
+     * @param entries The list to add the encrypted entries to
+     */
+    private void encryptBatch(ExecutorService executor, int threads, ArrayList<PendingEntry> batch,
+                              ArrayList<Entry> entries) {
+        if(batch.isEmpty()) {
+            return;
+        }
+        final int size = batch.size();
+        final int chunk = (size + threads - 1) / threads;
+        final Entry[] results = new Entry[size];
+        ArrayList<Future<?>> tasks = new ArrayList<>(threads);
+        for(int start = 0; start < size; start += chunk) {
+            final int from = start, to = Math.min(size, start + chunk);
+            tasks.add(executor.submit(() -> {
+                for(int i = from; i < to; i++) {
+                    PendingEntry pending = batch.get(i);
+                    byte[] passwordData = null, fingerprint = null;
+                    if(pending.password.length > 0) {
+                        passwordData = manager.encryptPassword(pending.password);
+                        fingerprint = manager.fingerprintPassword(pending.password);
+                    }
+                    Utility.erase(pending.password);
+                    // Only add entries which fit in the archive to the store, leaving results[i] null otherwise
+                    if(passwordData == null || passwordData.length <= MAX_ENCODED_LENGTH) {
+                        results[i] = manager.getEntryStore().add(pending.website, pending.username);
+                        if(passwordData != null) {
+                            results[i].setPasswordData(passwordData, fingerprint);
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for(Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while encrypting imported passwords");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error: unable to encrypt imported passwords", e.getCause());
+        }
+        for(int i = 0; i < size; i++) {
+            if(results[i] == null) {
+                // The record was too long to store, so a later record for the same website and username isn't a
+                // duplicate
+                PendingEntry pending = batch.get(i);
+                index.remove(duplicateKey(pending.website, pending.username));
+                rejected++;
+                continue;
+            }
+            entries.add(results[i]);
+            imported++;
+        }
+        batch.clear();
+    }
+
+    /**
+     * Creates a pending entry from a record, unless the record is malformed or duplicates an existing entry
+     * @param record The fields of the record
+     * @param columns The indexes of the website, username and password columns
+     * @return a {@link PendingEntry} holding a copy of the record's password, or null if the record was skipped
+     */
+    private PendingEntry createPendingEntry(ArrayList<char[]> record, int[] columns) {
+        char[] websiteChars = field(record, columns[0]);
+        char[] usernameChars = field(record, columns[1]);
+        char[] password = field(record, columns[2]);
+        if(websiteChars == null || usernameChars == null || password == null) {
+            rejected++;
+            return null;
+        }
+        String website = new String(websiteChars).trim();
+        String username = new String(usernameChars).trim();
+        if(Utility.encode(website).length > MAX_ENCODED_LENGTH || Utility.encode(username).length > MAX_ENCODED_LENGTH) {
+            rejected++;
+            return null;
+        }
+        if(!index.add(duplicateKey(website, username))) {
+            duplicates++;
+            return null;
+        }
+        return new PendingEntry(website, username, Arrays.copyOf(password, password.length));
+    }
+
+    /**
+     * Determines which columns hold the website, username and password by looking for recognized column names in the
+     * first record
+     * @param header The first record in the file
+     * @return an int[] with the indexes of the website, username and password columns, followed by 1 if the record
+     * was a header or 0 if it should be imported
+     */
+    private static int[] findColumns(ArrayList<char[]> header) {
+        int website = -1, username = -1, password = -1;
+        int websitePriority = Integer.MAX_VALUE, usernamePriority = Integer.MAX_VALUE;
+        for(int i = 0; i < header.size(); i++) {
+            String name = new String(header.get(i)).trim().toLowerCase(Locale.ROOT);
+            int priority = WEBSITE_HEADERS.indexOf(name);
+            if(priority >= 0 && priority < websitePriority) {
+                website = i;
+                websitePriority = priority;
+            }
+            priority = USERNAME_HEADERS.indexOf(name);
+            if(priority >= 0 && priority < usernamePriority) {
+                username = i;
+                usernamePriority = priority;
+            }
+            if(password < 0 && PASSWORD_HEADERS.contains(name)) {
+                password = i;
+            }
+        }
+        if(website < 0 || username < 0 || password < 0) {
+            return new int[] { 0, 1, 2, 0 };
+        }
+        return new int[] { website, username, password, 1 };
+    }
+
+    /**
+     * Retrieves a field from a record
+     * @param record The record's fields
+     * @param column The index of the field
+     * @return the field's characters, or null if the record doesn't have the column
+     */
+    private static char[] field(ArrayList<char[]> record, int column) {
+        return column < record.size() ? record.get(column) : null;
+    }
+
+    /**
+     * Erases each field of a record
+     * @param record The record to erase
+     */
+    private static void eraseRecord(ArrayList<char[]> record) {
+        for(char[] field : record) {
+            Utility.erase(field);
+        }
+    }
+
+    /**
+     * Creates the key used to detect entries with the same website and username, ignoring case in the same way as
+     * {@link Entry#compareTo}
+     * @param website The entry's website
+     * @param username The entry's username
+     * @return a {@link String} identifying the website and username pair
+     */
+    private static String duplicateKey(String website, String username) {
+        return website.toLowerCase() + '\0' + username.toLowerCase();
+    }
+
+    /**
+     * An entry whose password has been read but not yet encrypted
+     */
+    private static class PendingEntry {
+        private final String website, username;
+        private final char[] password;
+
+        private PendingEntry(String website, String username, char[] password) {
+            this.website = website;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    /**
+     * A streaming RFC 4180 parser which reads one record at a time. Field characters are collected in a reusable
+     * buffer which is erased once parsing finishes.
+     */
+    private static class CsvParser {
+        private final BufferedReader reader;
+        private char[] buffer;
+        private int length;
+        private boolean finished;
+
+        private CsvParser(BufferedReader reader) {
+            this.reader = reader;
+            buffer = new char[256];
+        }
+
+        /**
+         * Reads the next record, skipping blank lines
+         * @return a list of the record's fields, or null once the end of the data has been reached. Records with an
+         * overly long field are returned with no fields.
+         * @throws IOException if an error occurs while reading
+         */
+        private ArrayList<char[]> next() throws IOException {
+            while(!finished) {
+                ArrayList<char[]> record = new ArrayList<>();
+                boolean tooLong = false;
+                boolean quoted = false, fieldStarted = false;
+                length = 0;
+                while(true) {
+                    int c = reader.read();
+                    if(c == -1) {
+                        finished = true;
+                        break;
+                    }
+                    if(quoted) {
+                        if(c == '"') {
+                            reader.mark(1);
+                            if(reader.read() == '"') {
+                                tooLong |= !append('"');
+                            } else {
+                                reader.reset();
+                                quoted = false;
+                            }
+                        } else {
+                            tooLong |= !append((char) c);
+                        }
+                    } else if(c == '"' && length == 0) {
+                        quoted = true;
+                        fieldStarted = true;
+                    } else if(c == ',') {
+                        record.add(takeField());
+                        fieldStarted = true;
+                    } else if(c == '\n') {
+                        break;
+                    } else if(c != '\r') {
+                        tooLong |= !append((char) c);
+                        fieldStarted = true;
+                    }
+                }
+                if(fieldStarted || length > 0 || !record.isEmpty()) {
+                    record.add(takeField());
+                }
+                if(tooLong) {
+                    eraseRecord(record);
+                    record.clear();
+                }
+                if(!record.isEmpty() || tooLong) {
+                    return record;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Appends a character to the current field, growing the buffer as needed
+         * @param c The character to append
+         * @return false if the field has grown too long, otherwise true
+         */
+        private boolean append(char c) {
+            if(length == MAX_FIELD_LENGTH) {
+                return false;
+            }
+            if(length == buffer.length) {
+                char[] grown = Arrays.copyOf(buffer, Math.min(MAX_FIELD_LENGTH, buffer.length * 2));
+                Utility.erase(buffer);
+                buffer = grown;
+            }
+            buffer[length++] = c;
+            return true;
+        }
+
+        /**
+         * Copies the current field out of the buffer and resets it
+         * @return a char[] with the field's characters
+         */
+        private char[] takeField() {
+            char[] field = Arrays.copyOf(buffer, length);
+            Arrays.fill(buffer, 0, length, (char) 0);
+            length = 0;
+            return field;
+        }
+
+        /**
+         * Erases the parser's buffer
+         */
+        private void erase() {
+            Utility.erase(buffer);
+        }
+    }
+
+}
@@ -2,26 +2,79 @@ package com.github.thisisforever.keeper.cryptox;
 
 import com.github.thisisforever.crypto.CryptographicFailureException;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
 /**
- * Defines a password entry, with website, username and password information
+ * Defines a password entry, with website, username and password information. Each entry has a random 128-bit ID which
+ * stays the same for the life of the entry, even as its website, username and password change, along with the times
+ * at which it was created and last modified. Alongside its encrypted password, an entry stores a fingerprint of the
+ * password, a keyed hash which is the same for entries sharing a password but reveals nothing about it without the
+ * archive's entry key.
+ * <p>
+ * An entry is a flyweight view of a row in an {@link EntryStore}, which holds the data of all of an archive's entries
+ * compactly; entries are created by the store rather than constructed directly. Entries are sorted by website and
+ * then by username, each lowercased according to the rules of the user's locale and then compared in Unicode code
+ * point order; the locale's collation rules, such as ignoring accents, aren't applied. The store keeps each entry's
+ * lowercase website and username, so sorting compares bytes in place rather than creating strings, and entries from
+ * different stores are compared by the same bytes, so lists of entries from several stores sort the same way.
  */
 public class Entry implements Comparable<Entry> {
 
-    // References the entry's website and username
-    private String website, username;
-    // References the entry's encrypted password data
-    private byte[] passwordData;
+    // References the store holding the entry's data
+    private final EntryStore store;
+    // The entry's row in the store
+    private final int row;
+
+    /**
+     * Creates a view of a row in a store. Called by {@link EntryStore} as rows are added.
+     * @param store The store
+     * @param row The row
+     */
+    Entry(EntryStore store, int row) {
+        this.store = store;
+        this.row = row;
+    }
+
+    /**
+     * Gets the store holding this entry's data
+     * @return the {@link EntryStore}
+     */
+    EntryStore getStore() {
+        return store;
+    }
+
+    /**
+     * Gets this entry's row in its store
+     * @return the row
+     */
+    int getRow() {
+        return row;
+    }
 
     /**
-     * Constructs a new {@link Entry} object with given website, username and encrypted password data
-     * @param website The entry's website
-     * @param username The entry's username
-     * @param passwordData Encrypted password data for this entry
+     * Gets this entry's ID
+     * @return the {@link UUID} identifying this entry
      */
-    public Entry(String website, String username, byte[] passwordData) {
-        this.website = website;
-        this.username = username;
-        this.passwordData = passwordData;
+    public UUID getId() {
+        return store.getId(row);
+    }
+
+    /**
+     * Gets the time at which this entry was created
+     * @return the time in milliseconds since the epoch, or 0 if unknown
+     */
+    public long getCreated() {
+        return store.getCreated(row);
+    }
+
+    /**
+     * Gets the time at which this entry's website, username or password was last changed
+     * @return the time in milliseconds since the epoch, or 0 if unknown
+     */
+    public long getModified() {
+        return store.getModified(row);
     }
 
     /**
@@ -29,7 +82,9 @@ public class Entry implements Comparable<Entry> {
      * @param website The new website
      */
     public void setWebsite(String website) {
-        this.website = website;
+        if(store.setWebsite(row, website)) {
+            store.setModified(row, System.currentTimeMillis());
+        }
     }
 
     /**
@@ -37,7 +92,7 @@ public class Entry implements Comparable<Entry> {
      * @return a {@link String} with the entry's website
      */
     public String getWebsite() {
-        return website;
+        return store.getWebsite(row);
     }
 
     /**
@@ -45,7 +100,9 @@ public class Entry implements Comparable<Entry> {
      * @param username The new username
      */
     public void setUsername(String username) {
-        this.username = username;
+        if(store.setUsername(row, username)) {
+            store.setModified(row, System.currentTimeMillis());
+        }
     }
 
     /**
@@ -53,28 +110,76 @@ public class Entry implements Comparable<Entry> {
      * @return a {@link String} with the entry's username
      */
     public String getUsername() {
-        return username;
+        return store.getUsername(row);
     }
 
     /**
-     * Changes the entry's password to a new one, encrypting the new password in the process
+     * Changes the entry's password to a new one, encrypting and fingerprinting the new password in the process and
+     * moving the entry to its new group in the manager's {@link FingerprintIndex}
      * @param manager A {@link PasswordArchiveManager} which will be used to encrypt the password
      * @param password the char[] containing the new password
      */
     public void setPassword(PasswordArchiveManager manager, char[] password) {
+        byte[] previous = getFingerprint();
         if(password.length == 0) {
-            passwordData = null;
+            store.setPasswordData(row, null, null);
         } else {
-            passwordData = manager.encryptPassword(password);
+            store.setPasswordData(row, manager.encryptPassword(password), manager.fingerprintPassword(password));
         }
+        store.setModified(row, System.currentTimeMillis());
+        manager.getFingerprintIndex().update(this, previous);
+    }
+
+    /**
+     * Replaces this entry's encrypted password data and fingerprint, such as when its password has been re-encrypted
+     * with another key
+     * @param passwordData The new encrypted password data, or null if the entry has no password
+     * @param fingerprint The password's fingerprint, or null if the entry has no password
+     */
+    void setPasswordData(byte[] passwordData, byte[] fingerprint) {
+        store.setPasswordData(row, passwordData, fingerprint);
+    }
+
+    /**
+     * Stores the fingerprint of this entry's existing password, such as one loaded from an archive saved before
+     * passwords were fingerprinted
+     * @param fingerprint The password's fingerprint
+     */
+    void setFingerprint(byte[] fingerprint) {
+        store.setFingerprint(row, fingerprint);
+    }
+
+    /**
+     * Gets the fingerprint of this entry's password
+     * @return a byte[] with the fingerprint, or null if the entry has no password or it has yet to be fingerprinted
+     */
+    public byte[] getFingerprint() {
+        return store.getFingerprint(row);
+    }
+
+    /**
+     * Writes this entry's website, username, encrypted password data and fingerprint to a stream as they're saved in
+     * an archive, each preceded by its length, without copying them out of the store
+     * @param out The stream to write to
+     */
+    void writeFields(ErasableByteStream out) {
+        store.writeFields(row, out);
+    }
+
+    /**
+     * Determines whether this entry has a password, without copying its encrypted password data
+     * @return true if the entry has a password, otherwise false
+     */
+    public boolean hasPassword() {
+        return store.hasPassword(row);
     }
 
     /**
      * Retrieves this entry's encrypted password data
-     * @return a byte[] with the encrypted password data
+     * @return a copy of the encrypted password data, or null if the entry has no password
      */
     public byte[] getPasswordData() {
-        return passwordData;
+        return store.getPasswordData(row);
     }
 
     /**
@@ -84,6 +189,7 @@ public class Entry implements Comparable<Entry> {
      * entry does not have any password data
      */
     public String getPassword(PasswordArchiveManager manager) throws CryptographicFailureException {
+        byte[] passwordData = getPasswordData();
         if(passwordData == null) {
             return "";
         }
@@ -91,17 +197,79 @@ public class Entry implements Comparable<Entry> {
     }
 
     /**
-     * Compares one {@link Entry} object to another, first by their website and then their username
+     * Determines whether this entry's lowercase website or username contains some text, reading them from the store
+     * without creating strings
+     * @param text The text, lowercased as the store lowercases websites and usernames and encoded as UTF-8
+     * @return true if the lowercase website or username contains the text
+     */
+    boolean lowercaseContains(byte[] text) {
+        return store.lowercaseContains(row, text);
+    }
+
+    /**
+     * Compares one {@link Entry} object to another, first by their website and then their username, ignoring case
      * @param e The object to compare to
      * @return an integer value that can be used to determine whether this {@link Entry} object comes before,
      * after or is equal to another
      */
     @Override
     public int compareTo(Entry e) {
-        int comp = website.toLowerCase().compareTo(e.getWebsite().toLowerCase());
-        if(comp == 0) {
-            comp = username.toLowerCase().compareTo(e.getUsername().toLowerCase());
+        return store.compare(row, e.store, e.row);
+    }
+
+    /**
+     * Sorts a list of entries in the order defined by {@link #compareTo}, sorting large lists on several threads
+     * @param entries The entries to sort
+     */
+    public static void sort(List<Entry> entries) {
+        Entry[] sorted = entries.toArray(new Entry[0]);
+        Arrays.parallelSort(sorted);
+        for(int i = 0; i < sorted.length; i++) {
+            entries.set(i, sorted[i]);
+        }
+    }
+
+    /**
+     * Finds the position in a sorted list at which an entry belongs, after any entries which compare equal to it,
+     * with a binary search
+     * @param entries The list, sorted in the order defined by {@link #compareTo}
+     * @param entry The entry to position
+     * @return the index in the list at which to add the entry
+     */
+    public static int insertionPoint(List<Entry> entries, Entry entry) {
+        int low = 0, high = entries.size();
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(entries.get(middle).compareTo(entry) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds an entry in a sorted list with a binary search, checking each of the entries which compare equal to it
+     * @param entries The list, sorted in the order defined by {@link #compareTo}
+     * @param entry The entry to find
+     * @return the entry's index in the list, or -1 if it isn't in the list
+     */
+    public static int indexOf(List<Entry> entries, Entry entry) {
+        int low = 0, high = entries.size();
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(entries.get(middle).compareTo(entry) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for(int i = low; i < entries.size() && entries.get(i).compareTo(entry) == 0; i++) {
+            if(entries.get(i) == entry) {
+                return i;
+            }
         }
-        return comp;
+        return -1;
     }
 }
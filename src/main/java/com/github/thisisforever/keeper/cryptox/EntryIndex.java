@@ -0,0 +1,100 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+
+/**
+ * Holds a collection of {@link Entry} objects indexed by their IDs, so that entries can be looked up, replaced and
+ * removed in constant time. Entries are kept in the order in which they were added.
+ */
+public class EntryIndex implements Iterable<Entry> {
+
+    // Maps each entry's ID to the entry, in the order entries were added
+    private final LinkedHashMap<UUID, Entry> entries;
+
+    /**
+     * Creates an empty index
+     */
+    public EntryIndex() {
+        entries = new LinkedHashMap<>();
+    }
+
+    /**
+     * Creates an index holding the given entries, in order
+     * @param entries The entries to index
+     */
+    public EntryIndex(Collection<Entry> entries) {
+        this.entries = new LinkedHashMap<>(entries.size() * 2);
+        for(Entry e : entries) {
+            add(e);
+        }
+    }
+
+    /**
+     * Adds an entry to the end of the index, or replaces the entry with the same ID in place
+     * @param entry The entry to add
+     * @return the entry which was replaced, or null if no entry had the same ID
+     */
+    public Entry add(Entry entry) {
+        return entries.put(entry.getId(), entry);
+    }
+
+    /**
+     * Looks up an entry by its ID
+     * @param id The entry's ID
+     * @return the {@link Entry} with the ID, or null if there is none
+     */
+    public Entry get(UUID id) {
+        return entries.get(id);
+    }
+
+    /**
+     * Determines whether the index holds an entry with a given ID
+     * @param id The ID to look for
+     * @return true if an entry has the ID, otherwise false
+     */
+    public boolean contains(UUID id) {
+        return entries.containsKey(id);
+    }
+
+    /**
+     * Removes the entry with a given ID
+     * @param id The entry's ID
+     * @return the removed {@link Entry}, or null if no entry had the ID
+     */
+    public Entry remove(UUID id) {
+        return entries.remove(id);
+    }
+
+    /**
+     * Gets the number of entries in the index
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes every entry from the index
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Copies the index's entries into a list
+     * @return a new {@link ArrayList} of the entries, in order
+     */
+    public ArrayList<Entry> toList() {
+        return new ArrayList<>(entries.values());
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        return entries.values().iterator();
+    }
+
+}
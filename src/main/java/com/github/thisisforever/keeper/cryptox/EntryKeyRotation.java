@@ -0,0 +1,421 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.AESGCMCryptographerWithKey;
+import com.github.thisisforever.crypto.Cryptographer;
+import com.github.thisisforever.crypto.CryptographicFailureException;
+import com.github.thisisforever.crypto.DestroyableKey;
+import com.github.thisisforever.crypto.SensitiveFileScribe;
+import com.github.thisisforever.crypto.Utility;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Re-encrypts every entry's password with a new entry key, in parallel batches, recording its progress in a journal
+ * so that a rotation interrupted by a crash resumes where it left off instead of starting over.
+ * <p>
+ * The journal begins with the old and new keys, encrypted with the master password like the key file. Each batch of
+ * re-encrypted passwords is then appended to the journal, with a checksum, and flushed to disk before the next is
+ * claimed. Until the archive has been saved with the new key the journal is kept, and on opening the archive each
+ * password is resumed from whichever is usable: the saved ciphertext if it's already under the new key, the journaled
+ * ciphertext if there is one, or else the old key's ciphertext, which is re-encrypted. This holds whether the crash
+ * came before, during or after the key file and archive were written. Once the archive is saved the journal is
+ * overwritten and deleted, and the old key is erased.
+ */
+class EntryKeyRotation {
+
+    // Defines the extension appended to the key file's name to form the name of the journal
+    static final String JOURNAL_EXTENSION = ".rotation";
+    // Begins every journal, so that a file which isn't one is never mistaken for one
+    private static final int JOURNAL_MAGIC = 0x4B524F54;
+    // Defines the number of entries re-encrypted between checkpoints
+    private static final int BATCH_SIZE = 256;
+
+    // References the journal file
+    private final File journal;
+    // References the old key, which is erased once the rotation is complete
+    private final DestroyableKey previousKey;
+    private final Cryptographer previousCryptographer;
+    // References the manager's new cryptographer and fingerprint key, which outlive the rotation
+    private final Cryptographer cryptographer;
+    private final DestroyableKey fingerprintKey;
+    // Holds the re-encrypted password data and fingerprint of each entry checkpointed by an interrupted run
+    private final HashMap<UUID, byte[][]> checkpoints;
+    // Counts the passwords which couldn't be decrypted with either key by the last run
+    private final AtomicInteger failed;
+    // Flag set once passwords have been re-encrypted, after which some may already be under the new key
+    private boolean started;
+
+    /**
+     * Creates a rotation from an old key to the manager's new one, whose journal has already been written
+     * @param journal The journal file
+     * @param previousKey The old key, owned by the rotation from now on
+     * @param cryptographer The cryptographer of the new key
+     * @param fingerprintKey The fingerprint key derived from the new key
+     */
+    EntryKeyRotation(File journal, DestroyableKey previousKey, Cryptographer cryptographer,
+                     DestroyableKey fingerprintKey) {
+        this.journal = journal;
+        this.previousKey = previousKey;
+        this.previousCryptographer = new AESGCMCryptographerWithKey(previousKey);
+        this.cryptographer = cryptographer;
+        this.fingerprintKey = fingerprintKey;
+        checkpoints = new HashMap<>();
+        failed = new AtomicInteger();
+    }
+
+    /**
+     * Starts a journal recording a rotation from one key to another. The journal is written to a temporary file and
+     * then moved into place, so that it either exists in full or not at all.
+     * @param journal The journal file
+     * @param scribe The scribe used to encrypt the keys with the master password
+     * @param previousKey The old key's bytes
+     * @param key The new key's bytes
+     * @throws IOException if the journal couldn't be written
+     */
+    static void writeJournal(File journal, SensitiveFileScribe scribe, byte[] previousKey, byte[] key)
+            throws IOException {
+        byte[] keys = new byte[previousKey.length + key.length];
+        System.arraycopy(previousKey, 0, keys, 0, previousKey.length);
+        System.arraycopy(key, 0, keys, previousKey.length, key.length);
+        byte[] encryptedKeys = scribe.encrypt(keys);
+        Utility.erase(keys);
+        File partial = new File(journal.getPath() + ".partial");
+        try(FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2 + encryptedKeys.length);
+            header.putInt(JOURNAL_MAGIC);
+            header.putInt(encryptedKeys.length);
+            header.put(encryptedKeys);
+            header.flip();
+            while(header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+        }
+        Files.move(partial.toPath(), journal.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the old and new keys from a journal
+     * @param journal The journal file
+     * @param scribe The scribe used to decrypt the keys with the master password
+     * @return a byte[] containing the old key followed by the new key, which the caller should erase
+     * @throws IOException if the journal couldn't be read or isn't a journal
+     * @throws CryptographicFailureException if the keys couldn't be decrypted
+     */
+    static byte[] readKeys(File journal, SensitiveFileScribe scribe) throws IOException,
+            CryptographicFailureException {
+        try(FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2);
+            readFully(channel, header);
+            if(header.getInt(0) != JOURNAL_MAGIC || header.getInt(Integer.BYTES) <= 0
+                    || header.getInt(Integer.BYTES) > channel.size()) {
+                throw new IOException(journal + " is not a key rotation journal");
+            }
+            ByteBuffer encryptedKeys = ByteBuffer.allocate(header.getInt(Integer.BYTES));
+            readFully(channel, encryptedKeys);
+            return scribe.decrypt(encryptedKeys.array());
+        }
+    }
+
+    /**
+     * Determines whether a key is the one being rotated from
+     * @param keyBytes The key's bytes
+     * @return true if the key is the old key
+     */
+    boolean isPreviousKey(byte[] keyBytes) {
+        byte[] previousKeyBytes = previousKey.getEncoded();
+        try {
+            return MessageDigest.isEqual(previousKeyBytes, keyBytes);
+        } finally {
+            Utility.erase(previousKeyBytes);
+        }
+    }
+
+    /**
+     * Resumes an interrupted rotation of the entries just read from the archive, using the passwords checkpointed by
+     * the interrupted run where the archive still holds the old key's ciphertext
+     * @param entries The archive's entries
+     * @param threads The number of threads to re-encrypt passwords with
+     * @return the number of passwords re-encrypted, not counting those found already re-encrypted
+     * @throws IOException if the journal couldn't be read or written
+     */
+    int resume(List<Entry> entries, int threads) throws IOException {
+        readCheckpoints();
+        try {
+            return run(entries, threads, true);
+        } finally {
+            checkpoints.clear();
+        }
+    }
+
+    /**
+     * Re-encrypts every entry's password which isn't already under the new key, checkpointing each batch to the
+     * journal
+     * @param entries The entries to re-encrypt
+     * @param threads The number of threads to re-encrypt passwords with
+     * @return the number of passwords re-encrypted
+     * @throws IOException if the journal couldn't be written
+     */
+    int run(List<Entry> entries, int threads) throws IOException {
+        return run(entries, threads, started);
+    }
+
+    /**
+     * Re-encrypts passwords which are still under the old key, without journaling them. Used for entries which are
+     * saved along with the rotated ones but weren't part of the rotation, such as entries another process saved under
+     * the old key in the meantime.
+     * @param entries The entries to re-encrypt
+     */
+    void rekey(List<Entry> entries) {
+        for(Entry e : entries) {
+            rotateEntry(e, true);
+        }
+    }
+
+    /**
+     * Re-encrypts entries' passwords in parallel, each thread claiming a batch at a time and appending it to the
+     * journal before claiming the next
+     * @param entries The entries to re-encrypt
+     * @param threads The number of threads
+     * @param resuming true if some passwords may already be under the new key or checkpointed
+     * @return the number of passwords re-encrypted
+     * @throws IOException if the journal couldn't be written
+     */
+    private int run(List<Entry> entries, int threads, boolean resuming) throws IOException {
+        started = true;
+        failed.set(0);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger rotated = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        ArrayList<Future<?>> workers = new ArrayList<>(threads);
+        try(FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            for(int i = 0; i < Math.max(1, threads); i++) {
+                workers.add(executor.submit(() -> {
+                    ByteArrayOutputStream batchBytes = new ByteArrayOutputStream();
+                    DataOutputStream batch = new DataOutputStream(batchBytes);
+                    int from;
+                    while((from = next.getAndAdd(BATCH_SIZE)) < entries.size()) {
+                        int to = Math.min(entries.size(), from + BATCH_SIZE);
+                        batchBytes.reset();
+                        int count = 0;
+                        for(int j = from; j < to; j++) {
+                            Entry e = entries.get(j);
+                            if(rotateEntry(e, resuming)) {
+                                writeRecord(batch, e);
+                                count++;
+                            }
+                        }
+                        if(count > 0) {
+                            checkpoint(channel, batchBytes.toByteArray());
+                            rotated.addAndGet(count);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rotating the entry key");
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException("Error: unable to rotate the entry key", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        if(failed.get() > 0) {
+            System.err.println(failed.get() + " passwords could not be decrypted and were left as they were");
+        }
+        return rotated.get();
+    }
+
+    /**
+     * Moves a single entry's password to the new key
+     * @param e The entry
+     * @param resuming true if the password may already be under the new key or checkpointed
+     * @return true if the password was re-encrypted, or false if it was empty, already under the new key, restored
+     * from a checkpoint or couldn't be decrypted
+     */
+    private boolean rotateEntry(Entry e, boolean resuming) {
+        byte[] passwordData = e.getPasswordData();
+        if(passwordData == null || passwordData.length == 0) {
+            return false;
+        }
+        if(resuming) {
+            // The archive may have been saved after the rotation, or the entry checkpointed before the crash
+            if(decrypts(passwordData)) {
+                return false;
+            }
+            byte[][] checkpoint = checkpoints.get(e.getId());
+            if(checkpoint != null && decrypts(checkpoint[0])) {
+                e.setPasswordData(checkpoint[0], checkpoint[1]);
+                return false;
+            }
+        }
+        byte[] plaintext = null;
+        try {
+            plaintext = previousCryptographer.decrypt(passwordData);
+            e.setPasswordData(cryptographer.encrypt(plaintext),
+                    PasswordArchiveManager.fingerprint(fingerprintKey, plaintext));
+            return true;
+        } catch (CryptographicFailureException ex) {
+            failed.incrementAndGet();
+            return false;
+        } finally {
+            Utility.erase(plaintext);
+        }
+    }
+
+    /**
+     * Determines whether password data was encrypted with the new key
+     * @param passwordData The password data
+     * @return true if the data decrypts with the new key
+     */
+    private boolean decrypts(byte[] passwordData) {
+        try {
+            Utility.erase(cryptographer.decrypt(passwordData));
+            return true;
+        } catch (CryptographicFailureException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes an entry's ID, re-encrypted password data and fingerprint to a batch
+     * @param batch The batch being written
+     * @param e The entry
+     */
+    private static void writeRecord(DataOutputStream batch, Entry e) throws IOException {
+        batch.writeLong(e.getId().getMostSignificantBits());
+        batch.writeLong(e.getId().getLeastSignificantBits());
+        byte[] passwordData = e.getPasswordData();
+        batch.writeShort(passwordData.length);
+        batch.write(passwordData);
+        byte[] fingerprint = e.getFingerprint();
+        batch.writeShort(fingerprint.length);
+        batch.write(fingerprint);
+    }
+
+    /**
+     * Appends a batch of records to the journal, framed by its length and checksum, and flushes it to disk
+     * @param channel The journal, opened for appending
+     * @param records The batch's records
+     */
+    private static void checkpoint(FileChannel channel, byte[] records) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(records);
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + records.length + Long.BYTES);
+        frame.putInt(records.length);
+        frame.put(records);
+        frame.putLong(crc.getValue());
+        frame.flip();
+        synchronized(channel) {
+            while(frame.hasRemaining()) {
+                channel.write(frame);
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Reads the batches checkpointed to the journal. Reading stops at the first incomplete or corrupt batch, which
+     * can only be the last one written before a crash.
+     */
+    private void readCheckpoints() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(journal.toPath()));
+        data.position(Integer.BYTES);
+        data.position(data.position() + Integer.BYTES + data.getInt());
+        while(data.remaining() >= Integer.BYTES) {
+            int length = data.getInt();
+            if(length < 0 || data.remaining() < length + Long.BYTES) {
+                break;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data.array(), data.position(), length);
+            if(crc.getValue() != data.getLong(data.position() + length)) {
+                break;
+            }
+            int end = data.position() + length;
+            while(data.position() < end) {
+                UUID id = new UUID(data.getLong(), data.getLong());
+                byte[] passwordData = new byte[data.getShort() & 0xFFFF];
+                data.get(passwordData);
+                byte[] fingerprint = new byte[data.getShort() & 0xFFFF];
+                data.get(fingerprint);
+                checkpoints.put(id, new byte[][] {passwordData, fingerprint});
+            }
+            data.position(end + Long.BYTES);
+        }
+    }
+
+    /**
+     * Completes the rotation once the archive has been saved with the new key, overwriting and deleting the journal
+     * and erasing the old key
+     */
+    void finish() {
+        try(FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer zeros = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+            while(zeros.hasRemaining()) {
+                channel.write(zeros);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            System.err.println("Unable to overwrite key rotation journal " + journal);
+        }
+        if(!journal.delete()) {
+            System.err.println("Unable to delete key rotation journal " + journal);
+        }
+        destroy();
+    }
+
+    /**
+     * Erases the old key without completing the rotation, leaving the journal so the rotation resumes the next time
+     * the archive is opened
+     */
+    void destroy() {
+        if(!previousKey.isDestroyed()) {
+            previousCryptographer.destroy();
+        }
+    }
+
+    /**
+     * Reads bytes from a channel until a buffer is full
+     * @param channel The channel
+     * @param buffer The buffer to fill
+     * @throws IOException if the channel ends first
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of key rotation journal");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,673 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.Utility;
+import com.github.thisisforever.crypto.WipeableArena;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Stores the data of an archive's entries compactly, so that archives with a million entries fit comfortably in the
+ * heap. Each {@link Entry} is a flyweight holding only its store and its row; the row's fields live in parallel
+ * arrays rather than in objects of their own.
+ * <p>
+ * Websites and usernames are kept as UTF-8 in a single arena, each prefixed by its length and referred to by its
+ * offset. Strings are interned, so a username shared by thousands of entries is stored once, and an entry's
+ * lowercase website and username, by which entries are sorted, share the original's bytes whenever they're already
+ * lowercase. Encrypted password data and fingerprints are packed into one contiguous slab addressed by offset.
+ * Changing a password appends its new data to the slab; the slab is compacted once more than half of it is no longer
+ * referred to.
+ * <p>
+ * The arena and slab are allocated outside the heap from a {@link WipeableArena}, so that wiping the arena when the
+ * archive is locked erases every website, username and password the store holds. A slab which is replaced, when it
+ * grows or is compacted, is overwritten straight away. Replaced arenas are kept until the arena is wiped, since they
+ * may still be being read.
+ * <p>
+ * Rows are never removed; a removed entry's row is released along with the store, when the archive is closed.
+ * Changes are made under the store's lock. Websites, usernames, IDs and times can be read without it, since the
+ * arena is only ever appended to, and the lowercase forms entries are sorted by are interned as each row is added or
+ * changed, so entries can be sorted on several threads without contending for the lock.
+ */
+public class EntryStore {
+
+    // Defines the initial capacity of the row arrays, the arena and the slab
+    private static final int INITIAL_ROWS = 64;
+    private static final int INITIAL_BYTES = 4096;
+    // Defines the number of bytes preceding each string in the arena, holding its length, and so the longest string
+    private static final int LENGTH_PREFIX = 2;
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+    // Defines the smallest slab which is compacted, so small archives are never compacted
+    private static final int MIN_COMPACTED_SLAB = 1 << 20;
+
+    // Hold each row's ID, created and modified times
+    private volatile long[] idHigh, idLow, created, modified;
+    // Hold the arena offsets of each row's website and username, and of their lowercase forms, which are interned
+    // whenever the website or username is set so that sorting never needs the lock
+    private volatile int[] websites, usernames, sortWebsites, sortUsernames;
+    // Hold the slab offset of each row's password data, its length and the length of the fingerprint following it
+    private int[] dataOffsets;
+    private short[] dataLengths;
+    private byte[] fingerprintLengths;
+    // The number of rows
+    private volatile int rows;
+
+    // Allocates the string arena and the slab, and wipes them when the archive is locked
+    private final WipeableArena memory;
+    // Holds every string, each preceded by its length
+    private volatile ByteBuffer arena;
+    private int arenaLength;
+    // Hash table of the arena offset, plus one, of each distinct string, and the hash of each string in the table
+    private int[] internTable, internHashes;
+    private int internCount;
+
+    // Holds every row's password data and fingerprint
+    private ByteBuffer slab;
+    private int slabLength;
+    // Counts the bytes of the slab no longer referred to by their rows, at most, since it was last compacted
+    private int garbage;
+
+    /**
+     * Creates an empty store with an arena of its own
+     */
+    public EntryStore() {
+        this(new WipeableArena());
+    }
+
+    /**
+     * Creates an empty store
+     * @param memory The arena to allocate the store's strings and password data from
+     */
+    public EntryStore(WipeableArena memory) {
+        this.memory = memory;
+        idHigh = new long[INITIAL_ROWS];
+        idLow = new long[INITIAL_ROWS];
+        created = new long[INITIAL_ROWS];
+        modified = new long[INITIAL_ROWS];
+        websites = new int[INITIAL_ROWS];
+        usernames = new int[INITIAL_ROWS];
+        sortWebsites = new int[INITIAL_ROWS];
+        sortUsernames = new int[INITIAL_ROWS];
+        dataOffsets = new int[INITIAL_ROWS];
+        dataLengths = new short[INITIAL_ROWS];
+        fingerprintLengths = new byte[INITIAL_ROWS];
+        arena = memory.allocate(INITIAL_BYTES);
+        internTable = new int[256];
+        internHashes = new int[256];
+        slab = memory.allocate(INITIAL_BYTES);
+    }
+
+    /**
+     * Adds a new entry with no password, giving it a new random ID and setting its created and modified times to the
+     * current time
+     * @param website The entry's website
+     * @param username The entry's username
+     * @return the new {@link Entry}
+     */
+    public Entry add(String website, String username) {
+        long now = System.currentTimeMillis();
+        return add(UUID.randomUUID(), website, username, null, null, now, now);
+    }
+
+    /**
+     * Adds an existing entry, such as one loaded from an archive or merged from another copy of it
+     * @param id The entry's ID
+     * @param website The entry's website
+     * @param username The entry's username
+     * @param passwordData Encrypted password data for the entry, or null if it has no password
+     * @param fingerprint The fingerprint of the entry's password, or null if it has none
+     * @param created The time at which the entry was created, in milliseconds since the epoch, or 0 if unknown
+     * @param modified The time at which the entry was last modified, in milliseconds since the epoch, or 0 if unknown
+     * @return the new {@link Entry}
+     */
+    public Entry add(UUID id, String website, String username, byte[] passwordData, byte[] fingerprint, long created,
+                     long modified) {
+        byte[] encodedWebsite = Utility.encode(website), encodedUsername = Utility.encode(username);
+        try {
+            return add(id, ByteBuffer.wrap(encodedWebsite), ByteBuffer.wrap(encodedUsername), wrap(passwordData),
+                    wrap(fingerprint), created, modified);
+        } finally {
+            Utility.erase(encodedWebsite);
+            Utility.erase(encodedUsername);
+        }
+    }
+
+    /**
+     * Adds an existing entry whose website and username are already encoded as UTF-8, such as one being read from a
+     * decrypted archive, copying each field from between its buffer's position and limit
+     * @param id The entry's ID
+     * @param website The entry's encoded website
+     * @param username The entry's encoded username
+     * @param passwordData Encrypted password data for the entry, or null if it has no password
+     * @param fingerprint The fingerprint of the entry's password, or null if it has none
+     * @param created The time at which the entry was created, in milliseconds since the epoch, or 0 if unknown
+     * @param modified The time at which the entry was last modified, in milliseconds since the epoch, or 0 if unknown
+     * @return the new {@link Entry}
+     */
+    synchronized Entry add(UUID id, ByteBuffer website, ByteBuffer username, ByteBuffer passwordData,
+                           ByteBuffer fingerprint, long created, long modified) {
+        if(rows == idHigh.length) {
+            growRows();
+        }
+        int row = rows;
+        idHigh[row] = id.getMostSignificantBits();
+        idLow[row] = id.getLeastSignificantBits();
+        this.created[row] = created;
+        this.modified[row] = modified;
+        websites[row] = intern(website);
+        usernames[row] = intern(username);
+        sortWebsites[row] = internLowercase(websites[row]);
+        sortUsernames[row] = internLowercase(usernames[row]);
+        storePassword(row, passwordData, fingerprint);
+        rows = row + 1;
+        return new Entry(this, row);
+    }
+
+    /**
+     * Adds a copy of an entry in this store, sharing its strings and password data
+     * @param e The entry to copy
+     * @return the new {@link Entry}, with the same ID, website, username, password and times
+     */
+    synchronized Entry copy(Entry e) {
+        if(e.getStore() != this) {
+            return add(e.getId(), e.getWebsite(), e.getUsername(), e.getPasswordData(), e.getFingerprint(),
+                    e.getCreated(), e.getModified());
+        }
+        if(rows == idHigh.length) {
+            growRows();
+        }
+        int from = e.getRow(), row = rows;
+        idHigh[row] = idHigh[from];
+        idLow[row] = idLow[from];
+        created[row] = created[from];
+        modified[row] = modified[from];
+        websites[row] = websites[from];
+        usernames[row] = usernames[from];
+        sortWebsites[row] = sortWebsites[from];
+        sortUsernames[row] = sortUsernames[from];
+        dataOffsets[row] = dataOffsets[from];
+        dataLengths[row] = dataLengths[from];
+        fingerprintLengths[row] = fingerprintLengths[from];
+        rows = row + 1;
+        return new Entry(this, row);
+    }
+
+    /**
+     * Gets the number of rows in the store, including those of entries which have since been removed from the archive
+     * @return the number of rows
+     */
+    public int size() {
+        return rows;
+    }
+
+    /**
+     * Gets the number of bytes used by the store's arrays, arena and slab, not counting the {@link Entry} objects or
+     * arenas which have been replaced
+     * @return the store's size in bytes, both in and outside the heap
+     */
+    public synchronized long getFootprint() {
+        long rowBytes = (long) idHigh.length * (Long.BYTES * 4 + Integer.BYTES * 5 + Short.BYTES + Byte.BYTES);
+        return rowBytes + arena.capacity() + (long) internTable.length * Integer.BYTES * 2 + slab.capacity();
+    }
+
+    UUID getId(int row) {
+        return new UUID(idHigh[row], idLow[row]);
+    }
+
+    long getCreated(int row) {
+        return created[row];
+    }
+
+    long getModified(int row) {
+        return modified[row];
+    }
+
+    synchronized void setModified(int row, long time) {
+        modified[row] = time;
+    }
+
+    String getWebsite(int row) {
+        return decode(websites[row]);
+    }
+
+    String getUsername(int row) {
+        return decode(usernames[row]);
+    }
+
+    /**
+     * Writes a row's website, username, password data and fingerprint to a stream, each preceded by its length as two
+     * bytes, most significant first. Strings are written as they're held in the arena, length and all.
+     * @param row The row
+     * @param out The stream to write to
+     */
+    synchronized void writeFields(int row, ErasableByteStream out) {
+        int website = websites[row], username = usernames[row];
+        out.write(view(arena, website, LENGTH_PREFIX + stringLength(website)));
+        out.write(view(arena, username, LENGTH_PREFIX + stringLength(username)));
+        int dataLength = dataLengths[row], fingerprintLength = fingerprintLengths[row];
+        out.write(dataLength >>> 8);
+        out.write(dataLength);
+        out.write(view(slab, dataOffsets[row], dataLength));
+        out.write(fingerprintLength >>> 8);
+        out.write(fingerprintLength);
+        out.write(view(slab, dataOffsets[row] + dataLength, fingerprintLength));
+    }
+
+    /**
+     * Changes a row's website
+     * @param row The row
+     * @param website The new website
+     * @return true if the website changed
+     */
+    synchronized boolean setWebsite(int row, String website) {
+        byte[] encoded = Utility.encode(website);
+        int offset = intern(ByteBuffer.wrap(encoded));
+        Utility.erase(encoded);
+        if(offset == websites[row]) {
+            return false;
+        }
+        sortWebsites[row] = internLowercase(offset);
+        websites[row] = offset;
+        return true;
+    }
+
+    /**
+     * Changes a row's username
+     * @param row The row
+     * @param username The new username
+     * @return true if the username changed
+     */
+    synchronized boolean setUsername(int row, String username) {
+        byte[] encoded = Utility.encode(username);
+        int offset = intern(ByteBuffer.wrap(encoded));
+        Utility.erase(encoded);
+        if(offset == usernames[row]) {
+            return false;
+        }
+        sortUsernames[row] = internLowercase(offset);
+        usernames[row] = offset;
+        return true;
+    }
+
+    /**
+     * Determines whether a row has a password, without copying its password data
+     * @param row The row
+     * @return true if the row has password data, otherwise false
+     */
+    synchronized boolean hasPassword(int row) {
+        return dataLengths[row] != 0;
+    }
+
+    /**
+     * Copies a row's encrypted password data out of the slab
+     * @param row The row
+     * @return a new byte[] holding the data, or null if the row has no password
+     */
+    synchronized byte[] getPasswordData(int row) {
+        int length = dataLengths[row];
+        if(length == 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        view(slab, dataOffsets[row], length).get(data);
+        return data;
+    }
+
+    /**
+     * Copies a row's fingerprint out of the slab
+     * @param row The row
+     * @return a new byte[] holding the fingerprint, or null if the row has none
+     */
+    synchronized byte[] getFingerprint(int row) {
+        int length = fingerprintLengths[row];
+        if(length == 0) {
+            return null;
+        }
+        byte[] fingerprint = new byte[length];
+        view(slab, dataOffsets[row] + dataLengths[row], length).get(fingerprint);
+        return fingerprint;
+    }
+
+    /**
+     * Replaces a row's password data and fingerprint
+     * @param row The row
+     * @param passwordData The new encrypted password data, or null if the row has no password
+     * @param fingerprint The new fingerprint, or null if the row has none
+     */
+    synchronized void setPasswordData(int row, byte[] passwordData, byte[] fingerprint) {
+        storePassword(row, wrap(passwordData), wrap(fingerprint));
+    }
+
+    /**
+     * Replaces a row's fingerprint, keeping its password data
+     * @param row The row
+     * @param fingerprint The new fingerprint
+     */
+    synchronized void setFingerprint(int row, byte[] fingerprint) {
+        storePassword(row, wrap(getPasswordData(row)), wrap(fingerprint));
+    }
+
+    /**
+     * Compares a row with a row of this or another store by their lowercase websites and then their lowercase usernames
+     * @param a The row of this store
+     * @param other The store holding the second row
+     * @param b The second row
+     * @return a negative number, zero or a positive number as the first row sorts before, with or after the second
+     */
+    int compare(int a, EntryStore other, int b) {
+        ByteBuffer strings = arena, otherStrings = other.arena;
+        int result = compareStrings(strings, sortWebsites[a], otherStrings, other.sortWebsites[b]);
+        if(result == 0) {
+            result = compareStrings(strings, sortUsernames[a], otherStrings, other.sortUsernames[b]);
+        }
+        return result;
+    }
+
+    /**
+     * Interns the lowercase form of a website or username, lowercased according to the rules of the user's locale
+     * @param offset The arena offset of the string
+     * @return the offset of the lowercase string, which is the string's own offset if it's already lowercase
+     */
+    private int internLowercase(int offset) {
+        int start = offset + LENGTH_PREFIX, end = start + stringLength(offset);
+        boolean lowercase = true;
+        ByteBuffer strings = arena;
+        for(int i = start; i < end && lowercase; i++) {
+            byte b = strings.get(i);
+            lowercase = b >= 0 && (b < 'A' || b > 'Z');
+        }
+        int sortOffset = offset;
+        if(!lowercase) {
+            byte[] encoded = Utility.encode(lowercase(decode(offset)));
+            sortOffset = intern(ByteBuffer.wrap(encoded));
+            Utility.erase(encoded);
+        }
+        return sortOffset;
+    }
+
+    /**
+     * Lowercases a website or username as the store does before sorting and searching, according to the rules of the
+     * user's locale
+     * @param text The text to lowercase
+     * @return the text in lowercase
+     */
+    static String lowercase(String text) {
+        return text.toLowerCase(Locale.getDefault());
+    }
+
+    /**
+     * Determines whether a row's lowercase website or username contains some text, without decoding either
+     * @param row The row
+     * @param text The text, already lowercased with {@link #lowercase} and encoded as UTF-8
+     * @return true if the lowercase website or username contains the text
+     */
+    boolean lowercaseContains(int row, byte[] text) {
+        ByteBuffer strings = arena;
+        return contains(strings, sortWebsites[row], text) || contains(strings, sortUsernames[row], text);
+    }
+
+    /**
+     * Determines whether a string in the arena contains some text, comparing their UTF-8 bytes. Since no character's
+     * encoding appears inside another's, the bytes match wherever the characters do.
+     * @param strings The arena
+     * @param offset The string's offset
+     * @param text The encoded text
+     * @return true if the string contains the text
+     */
+    private static boolean contains(ByteBuffer strings, int offset, byte[] text) {
+        int start = offset + LENGTH_PREFIX, last = start + (strings.getShort(offset) & 0xFFFF) - text.length;
+        search:
+        for(int i = start; i <= last; i++) {
+            for(int j = 0; j < text.length; j++) {
+                if(strings.get(i + j) != text[j]) {
+                    continue search;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Finds a string in the arena, adding it if it isn't there yet
+     * @param bytes A buffer holding the encoded string between its position and limit, which are left unchanged
+     * @return the string's arena offset
+     */
+    private int intern(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        if(length > MAX_STRING_LENGTH) {
+            throw new IllegalArgumentException("Websites and usernames must be shorter than " + MAX_STRING_LENGTH
+                    + " bytes");
+        }
+        int hash = 1;
+        for(int i = bytes.position(); i < bytes.limit(); i++) {
+            hash = 31 * hash + bytes.get(i);
+        }
+        int mask = internTable.length - 1;
+        int slot = mix(hash) & mask;
+        while(internTable[slot] != 0) {
+            int offset = internTable[slot] - 1;
+            if(internHashes[slot] == hash && stringLength(offset) == length
+                    && view(arena, offset + LENGTH_PREFIX, length).equals(bytes)) {
+                return offset;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // Add the string to the arena, replacing the arena with a larger one if it's full
+        if(arenaLength + LENGTH_PREFIX + length > arena.capacity()) {
+            ByteBuffer grown = memory.allocate(Math.max(arena.capacity() * 2, arenaLength + LENGTH_PREFIX + length));
+            grown.put(view(arena, 0, arenaLength));
+            arena = grown;
+        }
+        int offset = arenaLength;
+        ByteBuffer target = view(arena, offset, LENGTH_PREFIX + length);
+        target.putShort((short) length);
+        target.put(bytes.duplicate());
+        arenaLength += LENGTH_PREFIX + length;
+        internTable[slot] = offset + 1;
+        internHashes[slot] = hash;
+        if(++internCount * 2 > internTable.length) {
+            growInternTable();
+        }
+        return offset;
+    }
+
+    /**
+     * Doubles the size of the intern table, once it's half full
+     */
+    private void growInternTable() {
+        int[] table = new int[internTable.length * 2], hashes = new int[table.length];
+        int mask = table.length - 1;
+        for(int i = 0; i < internTable.length; i++) {
+            if(internTable[i] != 0) {
+                int slot = mix(internHashes[i]) & mask;
+                while(table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = internTable[i];
+                hashes[slot] = internHashes[i];
+            }
+        }
+        internTable = table;
+        internHashes = hashes;
+    }
+
+    /**
+     * Spreads the bits of a hash so that similar strings don't cluster in the intern table
+     * @param hash The hash
+     * @return the mixed hash
+     */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Writes a row's password data and fingerprint to the end of the slab, compacting the slab first if most of it is
+     * no longer referred to
+     * @param row The row
+     * @param passwordData A buffer holding the encrypted password data between its position and limit, or null
+     * @param fingerprint A buffer holding the fingerprint between its position and limit, or null
+     */
+    private void storePassword(int row, ByteBuffer passwordData, ByteBuffer fingerprint) {
+        int dataLength = passwordData == null ? 0 : passwordData.remaining();
+        int fingerprintLength = fingerprint == null ? 0 : fingerprint.remaining();
+        if(row < rows) {
+            // The row's old data may still be shared with a copy, so this overestimates the garbage
+            garbage += dataLengths[row] + fingerprintLengths[row];
+        }
+        if(slabLength + dataLength + fingerprintLength > slab.capacity()) {
+            if(slabLength >= MIN_COMPACTED_SLAB && garbage > slabLength / 2) {
+                compactSlab();
+            }
+            if(slabLength + dataLength + fingerprintLength > slab.capacity()) {
+                ByteBuffer grown = memory.allocate(Math.max(slab.capacity() * 2,
+                        slabLength + dataLength + fingerprintLength));
+                grown.put(view(slab, 0, slabLength));
+                memory.release(slab);
+                slab = grown;
+            }
+        }
+        dataOffsets[row] = slabLength;
+        dataLengths[row] = (short) dataLength;
+        fingerprintLengths[row] = (byte) fingerprintLength;
+        ByteBuffer target = view(slab, slabLength, dataLength + fingerprintLength);
+        if(dataLength > 0) {
+            target.put(passwordData.duplicate());
+        }
+        if(fingerprintLength > 0) {
+            target.put(fingerprint.duplicate());
+        }
+        slabLength += dataLength + fingerprintLength;
+    }
+
+    /**
+     * Copies the password data still referred to by a row into a new slab, keeping the data shared by copied rows
+     * shared, and erases the old slab
+     */
+    private void compactSlab() {
+        // Sort the rows by offset, so rows sharing data are adjacent and the data keeps its order
+        long[] order = new long[rows];
+        int count = 0;
+        for(int row = 0; row < rows; row++) {
+            if(dataLengths[row] + fingerprintLengths[row] > 0) {
+                order[count++] = ((long) dataOffsets[row] << 32) | row;
+            }
+        }
+        Arrays.sort(order, 0, count);
+        ByteBuffer compacted = memory.allocate(slab.capacity());
+        int previousOffset = -1, movedOffset = 0;
+        for(int i = 0; i < count; i++) {
+            int row = (int) order[i];
+            int offset = (int) (order[i] >>> 32);
+            if(offset != previousOffset) {
+                previousOffset = offset;
+                movedOffset = compacted.position();
+                compacted.put(view(slab, offset, dataLengths[row] + fingerprintLengths[row]));
+            }
+            dataOffsets[row] = movedOffset;
+        }
+        memory.release(slab);
+        slab = compacted;
+        slabLength = compacted.position();
+        garbage = 0;
+    }
+
+    /**
+     * Grows the row arrays by half
+     */
+    private void growRows() {
+        int capacity = idHigh.length + (idHigh.length >> 1);
+        idHigh = Arrays.copyOf(idHigh, capacity);
+        idLow = Arrays.copyOf(idLow, capacity);
+        created = Arrays.copyOf(created, capacity);
+        modified = Arrays.copyOf(modified, capacity);
+        websites = Arrays.copyOf(websites, capacity);
+        usernames = Arrays.copyOf(usernames, capacity);
+        sortWebsites = Arrays.copyOf(sortWebsites, capacity);
+        sortUsernames = Arrays.copyOf(sortUsernames, capacity);
+        dataOffsets = Arrays.copyOf(dataOffsets, capacity);
+        dataLengths = Arrays.copyOf(dataLengths, capacity);
+        fingerprintLengths = Arrays.copyOf(fingerprintLengths, capacity);
+    }
+
+    /**
+     * Gets the length of a string in the arena
+     * @param offset The string's offset
+     * @return the length of the encoded string
+     */
+    private int stringLength(int offset) {
+        return arena.getShort(offset) & 0xFFFF;
+    }
+
+    /**
+     * Decodes a string in the arena
+     * @param offset The string's offset
+     * @return the decoded {@link String}
+     */
+    private String decode(int offset) {
+        byte[] bytes = copyString(offset);
+        String decoded = new String(bytes, StandardCharsets.UTF_8);
+        Utility.erase(bytes);
+        return decoded;
+    }
+
+    /**
+     * Copies a string in the arena without decoding it
+     * @param offset The string's offset
+     * @return a new byte[] holding the encoded string
+     */
+    private byte[] copyString(int offset) {
+        ByteBuffer strings = arena;
+        byte[] bytes = new byte[strings.getShort(offset) & 0xFFFF];
+        view(strings, offset + LENGTH_PREFIX, bytes.length).get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Compares two strings by their UTF-8 bytes, which orders them by code point
+     * @param stringsA The arena holding the first string
+     * @param a The first string's offset
+     * @param stringsB The arena holding the second string
+     * @param b The second string's offset
+     * @return a negative number, zero or a positive number as the first string sorts before, with or after the second
+     */
+    private static int compareStrings(ByteBuffer stringsA, int a, ByteBuffer stringsB, int b) {
+        if(stringsA == stringsB && a == b) {
+            return 0;
+        }
+        int lengthA = stringsA.getShort(a) & 0xFFFF, lengthB = stringsB.getShort(b) & 0xFFFF;
+        int mismatch = view(stringsA, a + LENGTH_PREFIX, lengthA).mismatch(view(stringsB, b + LENGTH_PREFIX, lengthB));
+        if(mismatch < 0 || mismatch == lengthA || mismatch == lengthB) {
+            return lengthA - lengthB;
+        }
+        return (stringsA.get(a + LENGTH_PREFIX + mismatch) & 0xFF)
+                - (stringsB.get(b + LENGTH_PREFIX + mismatch) & 0xFF);
+    }
+
+    /**
+     * Creates a view of part of a buffer, without changing the buffer's position, so that the buffer can be shared
+     * between threads
+     * @param buffer The buffer
+     * @param offset The offset of the first byte of the view
+     * @param length The number of bytes in the view
+     * @return a new {@link ByteBuffer} positioned at the offset, with its limit after the last byte
+     */
+    private static ByteBuffer view(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view;
+    }
+
+    /**
+     * Wraps an array, if there is one, in a buffer
+     * @param bytes The array, or null
+     * @return a {@link ByteBuffer} wrapping the array, or null
+     */
+    private static ByteBuffer wrap(byte[] bytes) {
+        return bytes == null ? null : ByteBuffer.wrap(bytes);
+    }
+}
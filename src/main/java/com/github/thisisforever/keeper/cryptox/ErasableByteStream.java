@@ -1,19 +1,26 @@
 package com.github.thisisforever.keeper.cryptox;
 
+import com.github.thisisforever.crypto.BufferPool;
+
 import java.io.ByteArrayOutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.Objects;
 
 /**
  * An implementation of {@link ByteArrayOutputStream} whose underlying byte array can be overwritten for security
- * purposes.
+ * purposes. The array is borrowed from the {@link BufferPool}, and each array outgrown is erased and returned to the
+ * pool, so no copies of the data are left behind.
  */
 public class ErasableByteStream extends ByteArrayOutputStream {
 
+    // Stands in for the buffer once it has been erased and returned to the pool
+    private static final byte[] EMPTY = new byte[0];
+
     /**
      * Instantiates a new object with default initial capacity
      */
     public ErasableByteStream() {
-        super();
+        this(BufferPool.MIN_SIZE);
     }
 
     /**
@@ -21,14 +28,63 @@ public class ErasableByteStream extends ByteArrayOutputStream {
      * @param initialCapacity The number of bytes the stream should be initialized with
      */
     public ErasableByteStream(int initialCapacity) {
-        super(initialCapacity);
+        super(0);
+        buf = BufferPool.acquire(initialCapacity);
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ensureCapacity(count + 1);
+        super.write(b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        ensureCapacity(count + len);
+        super.write(b, off, len);
+    }
+
+    /**
+     * Writes the bytes between a buffer's position and limit to the stream, leaving the buffer's position unchanged
+     * @param src The buffer to write from, which may be outside the heap
+     */
+    public synchronized void write(ByteBuffer src) {
+        int length = src.remaining();
+        ensureCapacity(count + length);
+        src.duplicate().get(buf, count, length);
+        count += length;
+    }
+
+    /**
+     * Gets the stream's underlying array without copying it, so its contents can be encrypted without another copy
+     * being made
+     * @return the array holding the data written, which is the first {@link #size()} bytes
+     */
+    public synchronized byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Overwrites all data in the buffer with zeroes, and returns the buffer to the pool.
+     */
+    public synchronized void erase() {
+        BufferPool.release(buf);
+        buf = EMPTY;
+        count = 0;
     }
 
     /**
-     * Overwrites all data in the buffer with zeroes.
+     * Replaces the buffer with a larger one from the pool if it can't hold the given number of bytes
+     * @param capacity The number of bytes the buffer must hold
      */
-    public void erase() {
-        Arrays.fill(buf, (byte)0);
+    private void ensureCapacity(int capacity) {
+        if(capacity > buf.length) {
+            byte[] grown = BufferPool.acquire(Math.max(capacity, buf.length * 2));
+            System.arraycopy(buf, 0, grown, 0, count);
+            BufferPool.release(buf);
+            buf = grown;
+        }
     }
 
 }
@@ -0,0 +1,141 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Groups the entries of an archive by the fingerprints of their passwords, so that entries sharing a password can be
+ * found without decrypting any of them. Entries without a password, or whose password has yet to be fingerprinted,
+ * aren't indexed. The index is safe to use from several threads.
+ */
+public class FingerprintIndex {
+
+    // Maps each fingerprint to the entries whose password has it
+    private final HashMap<Fingerprint, ArrayList<Entry>> groups;
+    // The number of entries indexed
+    private int size;
+
+    /**
+     * Creates an empty index
+     */
+    public FingerprintIndex() {
+        groups = new HashMap<>();
+    }
+
+    /**
+     * Adds an entry to the group of entries sharing its password's fingerprint
+     * @param entry The entry to add; ignored if it has no fingerprint
+     */
+    public synchronized void add(Entry entry) {
+        byte[] fingerprint = entry.getFingerprint();
+        if(fingerprint == null) {
+            return;
+        }
+        groups.computeIfAbsent(new Fingerprint(fingerprint), k -> new ArrayList<>(1)).add(entry);
+        size++;
+    }
+
+    /**
+     * Removes an entry from the index
+     * @param entry The entry to remove
+     */
+    public synchronized void remove(Entry entry) {
+        remove(entry, entry.getFingerprint());
+    }
+
+    /**
+     * Moves an entry to the group for its new fingerprint after its password has changed
+     * @param entry The changed entry
+     * @param previous The fingerprint of the entry's previous password, or null if it had none
+     */
+    synchronized void update(Entry entry, byte[] previous) {
+        remove(entry, previous);
+        add(entry);
+    }
+
+    /**
+     * Removes an entry from the group for a given fingerprint, if it is in that group
+     * @param entry The entry to remove
+     * @param fingerprint The fingerprint the entry was indexed under, or null
+     */
+    private void remove(Entry entry, byte[] fingerprint) {
+        if(fingerprint == null) {
+            return;
+        }
+        Fingerprint key = new Fingerprint(fingerprint);
+        ArrayList<Entry> group = groups.get(key);
+        if(group == null) {
+            return;
+        }
+        for(int i = 0; i < group.size(); i++) {
+            if(group.get(i) == entry) {
+                group.remove(i);
+                size--;
+                break;
+            }
+        }
+        if(group.isEmpty()) {
+            groups.remove(key);
+        }
+    }
+
+    /**
+     * Finds every group of entries sharing a password
+     * @return an {@link ArrayList} holding, for each password used by more than one entry, a list of those entries
+     */
+    public synchronized ArrayList<ArrayList<Entry>> findReused() {
+        ArrayList<ArrayList<Entry>> reused = new ArrayList<>();
+        for(ArrayList<Entry> group : groups.values()) {
+            if(group.size() > 1) {
+                reused.add(new ArrayList<>(group));
+            }
+        }
+        return reused;
+    }
+
+    /**
+     * Gets the number of entries indexed
+     * @return the number of entries with a fingerprint in the index
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes every entry from the index
+     */
+    public synchronized void clear() {
+        groups.clear();
+        size = 0;
+    }
+
+    /**
+     * Wraps a fingerprint so it can be used as a map key. Fingerprints are keyed hashes, so their first bytes serve as
+     * a hash code.
+     */
+    private static class Fingerprint {
+
+        private final byte[] data;
+        private final int hash;
+
+        Fingerprint(byte[] data) {
+            this.data = data;
+            int h = 0;
+            for(int i = 0; i < Math.min(Integer.BYTES, data.length); i++) {
+                h = (h << 8) | (data[i] & 0xFF);
+            }
+            hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Fingerprint && Arrays.equals(data, ((Fingerprint) o).data);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.CryptographicFailureException;
+import com.github.thisisforever.crypto.Utility;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+
+/**
+ * Exports password entries as JSON, streaming one entry at a time. Each password is decrypted just before it is
+ * written and erased immediately afterwards, so the decrypted archive is never held in memory as a whole and memory
+ * use does not grow with the size of the archive. The output has the form
+ * <pre>{"entries":[{"website":"...","username":"...","password":"..."}, ...]}</pre>
+ */
+public class JsonEntryExporter {
+
+    // Defines the hexadecimal digits used when escaping control characters
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // References the manager used to decrypt each entry's password
+    private final PasswordArchiveManager manager;
+
+    /**
+     * Creates an exporter which decrypts passwords with the given manager
+     * @param manager The manager whose entry key encrypted the entries' passwords
+     */
+    public JsonEntryExporter(PasswordArchiveManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Writes the given entries to a writer as JSON. The writer is closed once all entries have been written. If an
+     * entry fails to export, the writer is left open so the caller can abandon the output instead, for instance with
+     * {@link com.github.thisisforever.crypto.EncryptingOutputStream#abort()}, rather than close it as if complete.
+     * @param entries An iterator over the entries to export
+     * @param out The writer to write JSON to; wrap an {@link com.github.thisisforever.crypto.EncryptingOutputStream}
+     *            to encrypt the exported data
+     * @return the number of entries written
+     * @throws IOException if an error occurs while writing
+     * @throws CryptographicFailureException if an entry's password fails to decrypt
+     */
+    public int export(Iterator<Entry> entries, Writer out) throws IOException, CryptographicFailureException {
+        int count = 0;
+        BufferedWriter writer = new BufferedWriter(out);
+        writer.write("{\"entries\":[");
+        while(entries.hasNext()) {
+            Entry e = entries.next();
+            if(count++ > 0) {
+                writer.write(',');
+            }
+            writer.write("\n{\"website\":\"");
+            writeEscaped(writer, e.getWebsite());
+            writer.write("\",\"username\":\"");
+            writeEscaped(writer, e.getUsername());
+            writer.write("\",\"password\":\"");
+            byte[] passwordData = e.getPasswordData();
+            if(passwordData != null) {
+                char[] password = manager.decryptPasswordChars(passwordData);
+                try {
+                    writeEscaped(writer, password);
+                } finally {
+                    Utility.erase(password);
+                }
+            }
+            writer.write("\"}");
+        }
+        writer.write("\n]}\n");
+        writer.close();
+        return count;
+    }
+
+    /**
+     * Writes a {@link String} as the contents of a JSON string literal
+     * @param writer The writer to write to
+     * @param s The {@link String} to write
+     * @throws IOException if an error occurs while writing
+     */
+    private static void writeEscaped(Writer writer, String s) throws IOException {
+        final int length = s.length();
+        for(int i = 0; i < length; i++) {
+            writeEscaped(writer, s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes characters as the contents of a JSON string literal
+     * @param writer The writer to write to
+     * @param chars The characters to write
+     * @throws IOException if an error occurs while writing
+     */
+    private static void writeEscaped(Writer writer, char[] chars) throws IOException {
+        for(char c : chars) {
+            writeEscaped(writer, c);
+        }
+    }
+
+    /**
+     * Writes a single character, escaping it if JSON requires it
+     * @param writer The writer to write to
+     * @param c The character to write
+     * @throws IOException if an error occurs while writing
+     */
+    private static void writeEscaped(Writer writer, char c) throws IOException {
+        if(c == '"' || c == '\\') {
+            writer.write('\\');
+            writer.write(c);
+        } else if(c < 0x20) {
+            writer.write("\\u00");
+            writer.write(HEX_DIGITS[c >> 4]);
+            writer.write(HEX_DIGITS[c & 0xF]);
+        } else {
+            writer.write(c);
+        }
+    }
+
+}
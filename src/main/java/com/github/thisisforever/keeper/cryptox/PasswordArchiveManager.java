@@ -1,26 +1,89 @@
 package com.github.thisisforever.keeper.cryptox;
 
-import com.github.thisisforever.keeper.application.ui.UIEntry;
 import com.github.thisisforever.crypto.*;
 
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
 
 /**
  * Implements methods that enable the encryption and decryption of passwords, as well as the encryption and
- * decryption of a database of {@link UIEntry} objects
+ * decryption of a database of {@link Entry} objects
  */
 public class PasswordArchiveManager {
 
     // Defines the length of the key, in bytes, used for password encryption/decryption and for authentication
     private static final int PASSWORD_KEY_LENGTH = 32;
+    // Begins the header of archives which record their generation. Older archives have no header and begin with a
+    // website length, which is never negative.
+    private static final short HEADER_MARKER = -1;
+    // Defines the archive format version written to the header. Version 1 added the generation; version 2 added
+    // each entry's ID and created and modified times; version 3 added each entry's password fingerprint.
+    private static final byte FORMAT_VERSION = 3;
+    // Defines the length of the header: marker, version and generation
+    private static final int HEADER_LENGTH = Short.BYTES + Byte.BYTES + Long.BYTES;
+    // Defines the first format version in which each entry begins with its ID and created and modified times
+    private static final int ENTRY_ID_VERSION = 2;
+    // Defines the length of the data preceding each entry's website: ID, created time and modified time
+    private static final int ENTRY_HEADER_LENGTH = Long.BYTES * 4;
+    // Defines the first format version in which each entry ends with its password's fingerprint
+    private static final int ENTRY_FINGERPRINT_VERSION = 3;
+    // Defines the MAC used to fingerprint passwords, and the number of bytes of its output kept as a fingerprint
+    private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+    private static final int FINGERPRINT_LENGTH = 16;
+    // Distinguishes the fingerprint key from any other key which might be derived from the entry key
+    private static final byte[] FINGERPRINT_KEY_LABEL = "Keeper password fingerprint key".getBytes(
+            StandardCharsets.US_ASCII);
+    // Defines the extension appended to the key file's name to form the name of the archive's lock file
+    private static final String LOCK_FILE_EXTENSION = ".lock";
+    // Defines the extension appended to the names of the key file and archive while their password is being changed
+    private static final String PENDING_FILE_EXTENSION = ".new";
     // References the file to which the key file will be saved
     private final File entryKeyFile;
+    // References the file locked while the archive is being read or written
+    private final File lockFile;
+    // References the journal of an entry key rotation, which exists until the rotated archive has been saved
+    private final File rotationJournal;
 
     private Cryptographer entryCryptographer;
     private SensitiveFileScribe scribe;
+    // References the cache keys are derived through, or null if keys are always derived directly
+    private final KeyDerivationCache cache;
     private DestroyableKey entryKey;
+    // References the key used to fingerprint passwords, derived from the entry key
+    private DestroyableKey fingerprintKey;
+    // Groups the opened archive's entries by their password fingerprints
+    private final FingerprintIndex fingerprints;
+    // Holds every piece of decrypted archive data outside the heap, until the archive is locked
+    private final WipeableArena arena;
+    // Holds the data of every entry loaded or created for this archive
+    private final EntryStore entryStore;
+    // Flag set when the key file didn't exist and a new entry key was created
+    private boolean newEntryKey;
+    // References the rotation to the current entry key while the archive has yet to be saved with it, otherwise null
+    private EntryKeyRotation rotation;
+
+    // The archive's generation when opened, incremented each time the archive is saved
+    private long generation;
+    // The SHA-256 digest of the archive file as opened, or null if it wasn't opened
+    private byte[] openedDigest;
+    // Holds the entries as opened, the base for merging changes another process saved in the meantime
+    private ArrayList<Entry> baseEntries;
 
     /**
      * Instantiates the archive manager with a given password and key file location
@@ -30,31 +93,258 @@ public class PasswordArchiveManager {
      *                file does not exist, a new key and auth key will be created and saved to the file
      */
     public PasswordArchiveManager(char[] password, File keyFile) {
-        scribe = new SensitiveFileScribe(new AESGCMCryptographerWithPasswordBasedKeyDerivation(password));
+        this(password, keyFile, null);
+    }
+
+    /**
+     * Instantiates the archive manager with a given password and key file location, deriving keys through a
+     * {@link KeyDerivationCache} shared with other archive managers. Archives sharing a master password can then be
+     * unlocked and saved without deriving the same key more than once.
+     * @param password A char[] containing the password to the database, which will be erased when the database is
+     *                 saved
+     * @param keyFile A reference to a {@link File} object, from which the key file will be read and decrypted. If the
+     *                file does not exist, a new key and auth key will be created and saved to the file
+     * @param cache The cache to derive keys through, or null if keys should always be derived directly
+     */
+    public PasswordArchiveManager(char[] password, File keyFile, KeyDerivationCache cache) {
+        scribe = new SensitiveFileScribe(new AESGCMCryptographerWithPasswordBasedKeyDerivation(password, cache));
+        this.cache = cache;
         entryKeyFile = keyFile;
+        lockFile = new File(keyFile.getPath() + LOCK_FILE_EXTENSION);
+        rotationJournal = new File(keyFile.getPath() + EntryKeyRotation.JOURNAL_EXTENSION);
+        fingerprints = new FingerprintIndex();
+        arena = new WipeableArena();
+        entryStore = new EntryStore(arena);
     }
 
+    @SuppressWarnings("try")
     public void populateEntryKeys() throws CryptographicFailureException, IOException {
         // Decrypt the key file and obtain the keys used for password encrypt/decrypt
         // If the key file doesn't exist, create new keys which will be saved later
         byte[] keyBytes;
-        if(!entryKeyFile.exists())
-            keyBytes = Utility.generateRandomBytes(PASSWORD_KEY_LENGTH);
-        else {
-            keyBytes = scribe.readAndDecrypt(entryKeyFile);
+        byte[] journalKeys = null;
+        completePasswordChange(entryKeyFile);
+        try(FileChannel lock = lockArchive(true)) {
+            newEntryKey = !entryKeyFile.exists();
+            if(newEntryKey)
+                keyBytes = Utility.generateRandomBytes(PASSWORD_KEY_LENGTH);
+            else {
+                keyBytes = scribe.readAndDecrypt(entryKeyFile);
+                discardPendingFile(entryKeyFile);
+                if(rotationJournal.exists()) {
+                    journalKeys = EntryKeyRotation.readKeys(rotationJournal, scribe);
+                }
+            }
+        }
+        // An interrupted rotation leaves the old key or the new key in the key file, depending on when it stopped;
+        // either way the rotation continues with the new key once the archive is opened
+        DestroyableKey previousKey = null;
+        if(journalKeys != null) {
+            if(Arrays.equals(keyBytes, 0, keyBytes.length, journalKeys, 0, PASSWORD_KEY_LENGTH)
+                    || Arrays.equals(keyBytes, 0, keyBytes.length, journalKeys, PASSWORD_KEY_LENGTH,
+                    PASSWORD_KEY_LENGTH * 2)) {
+                previousKey = new DestroyableKey(journalKeys, 0, PASSWORD_KEY_LENGTH);
+                Utility.erase(keyBytes);
+                keyBytes = Arrays.copyOfRange(journalKeys, PASSWORD_KEY_LENGTH, PASSWORD_KEY_LENGTH * 2);
+            } else {
+                System.err.println("Ignoring key rotation journal " + rotationJournal + ", which does not match the " +
+                        "key file");
+            }
+            Utility.erase(journalKeys);
         }
         // Create handles to the keys which can be used by AES
         entryKey = new DestroyableKey(keyBytes);
         entryCryptographer = new AESGCMCryptographerWithKey(entryKey);
+        fingerprintKey = deriveFingerprintKey(entryKey);
         Utility.erase(keyBytes);
+        if(previousKey != null) {
+            rotation = new EntryKeyRotation(rotationJournal, previousKey, entryCryptographer, fingerprintKey);
+        }
+    }
+
+    /**
+     * Replaces the entry key with a new one, re-encrypting and re-fingerprinting every entry's password with it in
+     * parallel. Progress is journaled next to the key file, so that if Keeper stops before the archive is saved the
+     * rotation resumes the next time the archive is opened. The new key replaces the old one in the key file, and the
+     * old key is erased, when the archive is next saved with {@link #closeDatabase}. Calling this again before then
+     * continues the same rotation.
+     * @param database The archive's entries, whose passwords are re-encrypted in place
+     * @param threads The number of threads to re-encrypt passwords with
+     * @return the number of passwords re-encrypted
+     * @throws IOException if the journal couldn't be written
+     * @throws IllegalStateException if the archive has never been saved, so has no key to rotate
+     */
+    @SuppressWarnings("try")
+    public int rotateEntryKey(List<Entry> database, int threads) throws IOException {
+        if(newEntryKey) {
+            throw new IllegalStateException("The archive must be saved before its key can be rotated");
+        }
+        int rotated;
+        try(FileChannel lock = lockArchive(false)) {
+            if(rotation == null) {
+                byte[] previousKeyBytes = entryKey.getEncoded();
+                byte[] keyBytes = Utility.generateRandomBytes(PASSWORD_KEY_LENGTH);
+                try {
+                    EntryKeyRotation.writeJournal(rotationJournal, scribe, previousKeyBytes, keyBytes);
+                    // The old cryptographer's key now belongs to the rotation, which erases it once it's complete
+                    DestroyableKey previousKey = entryKey;
+                    fingerprintKey.destroy();
+                    entryKey = new DestroyableKey(keyBytes);
+                    entryCryptographer = new AESGCMCryptographerWithKey(entryKey);
+                    fingerprintKey = deriveFingerprintKey(entryKey);
+                    rotation = new EntryKeyRotation(rotationJournal, previousKey, entryCryptographer, fingerprintKey);
+                } finally {
+                    Utility.erase(previousKeyBytes);
+                    Utility.erase(keyBytes);
+                }
+            }
+            rotated = rotation.run(database, threads);
+        }
+        if(baseEntries != null) {
+            rotation.rekey(baseEntries);
+        }
+        fingerprints.clear();
+        for(Entry e : database) {
+            fingerprints.add(e);
+        }
+        return rotated;
+    }
+
+    /**
+     * Determines whether the entry key has been rotated but the archive has yet to be saved with the new key
+     * @return true if a rotation is waiting for the archive to be saved
+     */
+    public boolean isRotationPending() {
+        return rotation != null;
+    }
+
+    /**
+     * Changes the master password of the key file and an archive. Passwords are encrypted with the entry key, which
+     * doesn't change, so only the outer layer of the two files is re-encrypted, with a single key derived from the new
+     * password; the cost doesn't depend on the number of entries.
+     * <p>
+     * Both files are written in full next to the originals before either is replaced. Replacing the key file commits
+     * the change: if Keeper stops before the archive has been replaced too, the next time the archive is opened with
+     * the new password the swap is completed.
+     * @param f The archive file, which must have been saved
+     * @param password The new password, which the caller remains responsible for erasing
+     * @throws IOException if either file couldn't be read or written. The password is unchanged unless the key file
+     *                     had already been replaced, in which case the new password is used from then on.
+     * @throws CryptographicFailureException if either file couldn't be decrypted with the current password
+     * @throws IllegalStateException if the archive has never been saved, or its entry key is being rotated
+     */
+    @SuppressWarnings("try")
+    public void changePassword(File f, char[] password) throws IOException, CryptographicFailureException {
+        if(newEntryKey || rotation != null) {
+            throw new IllegalStateException("The archive must be saved before its password can be changed");
+        }
+        // Derive the new key only once for both files, even without a shared cache
+        KeyDerivationCache passwordCache = cache != null ? cache : new KeyDerivationCache();
+        SensitiveFileScribe newScribe = new SensitiveFileScribe(
+                new AESGCMCryptographerWithPasswordBasedKeyDerivation(password, passwordCache));
+        File pendingKeyFile = pendingFile(entryKeyFile);
+        File pendingArchive = pendingFile(f);
+        byte[] keyBytes = null, archiveData = null;
+        boolean committed = false;
+        try(FileChannel lock = lockArchive(false)) {
+            byte[] fileData = Files.readAllBytes(f.toPath());
+            boolean unchanged = openedDigest != null && MessageDigest.isEqual(digest(fileData), openedDigest);
+            keyBytes = scribe.readAndDecrypt(entryKeyFile);
+            archiveData = scribe.decrypt(fileData);
+            byte[] newFileData = newScribe.encrypt(archiveData);
+            writeDurably(pendingKeyFile, newScribe.encrypt(keyBytes));
+            writeDurably(pendingArchive, newFileData);
+            Files.move(pendingKeyFile.toPath(), entryKeyFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            Files.move(pendingArchive.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            // The archive's contents are as opened, so saving it later needn't merge with itself
+            if(unchanged) {
+                openedDigest = digest(newFileData);
+            }
+        } catch (IOException | CryptographicFailureException | RuntimeException e) {
+            if(committed) {
+                // The archive will be replaced the next time it's opened, or overwritten when it's saved
+                scribe.destroy();
+                scribe = newScribe;
+            } else {
+                newScribe.destroy();
+                pendingKeyFile.delete();
+                pendingArchive.delete();
+            }
+            throw e;
+        } finally {
+            Utility.erase(keyBytes);
+            Utility.erase(archiveData);
+            if(passwordCache != cache) {
+                passwordCache.clear();
+            }
+        }
+        scribe.destroy();
+        scribe = newScribe;
+    }
+
+    /**
+     * Completes a password change which was interrupted after the key file was replaced, replacing a file with the
+     * copy written under the new password if the copy can be decrypted with this manager's password
+     * @param file The key file or archive
+     * @throws IOException if the file couldn't be replaced
+     */
+    @SuppressWarnings("try")
+    private void completePasswordChange(File file) throws IOException {
+        File pending = pendingFile(file);
+        if(!pending.exists()) {
+            return;
+        }
+        try(FileChannel lock = lockArchive(false)) {
+            try {
+                Utility.erase(scribe.readAndDecrypt(pending));
+            } catch (CryptographicFailureException | RuntimeException e) {
+                // The copy is incomplete or under another password
+                return;
+            }
+            Files.move(pending.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Deletes the copy of a file left by an interrupted password change once the file itself has been decrypted with
+     * this manager's password, which means the change never took effect
+     * @param file The key file or archive
+     */
+    private static void discardPendingFile(File file) {
+        File pending = pendingFile(file);
+        if(pending.exists() && !pending.delete()) {
+            System.err.println("Unable to delete " + pending);
+        }
+    }
+
+    /**
+     * Gets the file a key file or archive is written to while its password is being changed
+     * @param file The key file or archive
+     * @return a reference to the pending {@link File}
+     */
+    private static File pendingFile(File file) {
+        return new File(file.getPath() + PENDING_FILE_EXTENSION);
     }
 
     /**
-     * Changes the database password NOTE: untested as of 7/28/2020
-     * @param password The new password for the database
+     * Writes data to a file and waits for it to reach the disk
+     * @param file The file to write
+     * @param data The data to write
+     * @throws IOException if the file couldn't be written
      */
-    public void changePassword(char[] password) {
-        //NYI archiveCryptographer.changePassword(password);
+    private static void writeDurably(File file, byte[] data) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
     }
 
     /**
@@ -90,148 +380,578 @@ public class PasswordArchiveManager {
     }
 
     /**
-     * Loads all password entries from a given file. If authentication or decryption fail, the method returns null
+     * Decrypts the given password data into a char[], which the caller should erase as soon as it is no longer needed
+     * @param encryptedData A byte[] containing the output of {@link PasswordArchiveManager#encryptPassword}
+     * @return a char[] containing the decrypted password
+     */
+    public char[] decryptPasswordChars(byte[] encryptedData) throws CryptographicFailureException {
+        byte[] plaintext = entryCryptographer.decrypt(encryptedData);
+        try {
+            return Utility.decodeChars(plaintext);
+        } finally {
+            Utility.erase(plaintext);
+        }
+    }
+
+    /**
+     * Decrypts the given password data into its encoded form, which the caller should erase as soon as it is no
+     * longer needed
+     * @param encryptedData A byte[] containing the output of {@link PasswordArchiveManager#encryptPassword}
+     * @return a byte[] containing the encoded password
+     */
+    public byte[] decryptPasswordBytes(byte[] encryptedData) throws CryptographicFailureException {
+        return entryCryptographer.decrypt(encryptedData);
+    }
+
+    /**
+     * Computes the fingerprint of a password: a MAC of the encoded password keyed with a subkey of the entry key, so
+     * that entries sharing a password can be found without decrypting their passwords
+     * @param password The password to fingerprint
+     * @return a byte[] containing the fingerprint
+     */
+    public byte[] fingerprintPassword(char[] password) {
+        byte[] passwordBytes = Utility.encode(password);
+        try {
+            return fingerprint(fingerprintKey, passwordBytes);
+        } finally {
+            Utility.erase(passwordBytes);
+        }
+    }
+
+    /**
+     * Fingerprints the passwords of any entries which have none, such as those loaded from an archive saved before
+     * passwords were fingerprinted, decrypting one password at a time and erasing it as soon as it is fingerprinted.
+     * Entries given fingerprints are added to the {@link FingerprintIndex}.
+     * @param entries The entries to check
+     * @return the number of passwords which were fingerprinted
+     */
+    public int fingerprintMissing(List<Entry> entries) throws CryptographicFailureException {
+        int count = 0;
+        for(Entry e : entries) {
+            byte[] passwordData = e.getPasswordData();
+            if(e.getFingerprint() != null || passwordData == null || passwordData.length == 0) {
+                continue;
+            }
+            byte[] plaintext = entryCryptographer.decrypt(passwordData);
+            e.setFingerprint(fingerprint(fingerprintKey, plaintext));
+            Utility.erase(plaintext);
+            fingerprints.add(e);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Gets the index grouping the opened archive's entries by their password fingerprints. Entries are added when the
+     * archive is opened and as their passwords are set; callers removing entries from the archive should remove them
+     * from the index as well.
+     * @return a reference to the manager's {@link FingerprintIndex}
+     */
+    public FingerprintIndex getFingerprintIndex() {
+        return fingerprints;
+    }
+
+    /**
+     * Gets the store holding the data of this archive's entries, through which new entries are created
+     * @return the {@link EntryStore}
+     */
+    public EntryStore getEntryStore() {
+        return entryStore;
+    }
+
+    /**
+     * Loads all password entries from a given file. If authentication or decryption fail, the method returns null.
+     * The archive's generation and the entries as loaded are remembered, so that changes another process saves to the
+     * same archive in the meantime can be merged when this archive is saved.
      * @param f The file to load entries from
      * @return an {@link ArrayList} of all {@link Entry} objects that were decrypted, or null if authentication or
      * decryption were unsuccessful.
      */
+    @SuppressWarnings("try")
     public ArrayList<Entry> openDatabase(File f) throws CryptographicFailureException, IOException {
-        byte[] plaintext = scribe.readAndDecrypt(f);
+        byte[] fileData;
+        completePasswordChange(f);
+        try(FileChannel lock = lockArchive(true)) {
+            fileData = Files.readAllBytes(f.toPath());
+        }
+        openedDigest = digest(fileData);
+        // Decrypt into the arena, from which the entries' data is copied into the store
+        ByteBuffer dataReader = scribe.decrypt(fileData, arena);
+        discardPendingFile(f);
+
+        ArrayList<Entry> entries;
+        try {
+            int version = readFormatVersion(dataReader);
+            generation = version > 0 ? dataReader.getLong() : 0;
+            entries = readEntries(dataReader, version, entryStore);
+        } finally {
+            // Erase the plaintext data
+            arena.release(dataReader);
+        }
+        // Finish rotating the entry key if Keeper stopped partway through
+        if(rotation != null) {
+            try(FileChannel lock = lockArchive(false)) {
+                int resumed = rotation.resume(entries, Runtime.getRuntime().availableProcessors());
+                System.err.println("Resumed an interrupted entry key rotation; re-encrypted " + resumed
+                        + " more passwords");
+            }
+        }
+        // Remember the entries as loaded, which the caller may change, as the base for merging when saving
+        baseEntries = new ArrayList<>(entries.size());
+        fingerprints.clear();
+        for(Entry e : entries) {
+            baseEntries.add(entryStore.copy(e));
+            fingerprints.add(e);
+        }
+        // Return the list of entries
+        return entries;
+    }
+
+    /**
+     * Loads the entries of another copy of this archive, such as a backup or a copy synced from another machine,
+     * without treating it as the archive being edited. The copy must share this archive's master password and key.
+     * @param f The copy to load entries from
+     * @return an {@link ArrayList} of the copy's entries
+     */
+    public ArrayList<Entry> openDatabaseCopy(File f) throws CryptographicFailureException, IOException {
+        ByteBuffer dataReader = scribe.readAndDecrypt(f, arena);
+        try {
+            int version = readFormatVersion(dataReader);
+            if(version > 0) {
+                dataReader.getLong();
+            }
+            return readEntries(dataReader, version, entryStore);
+        } finally {
+            arena.release(dataReader);
+        }
+    }
+
+    /**
+     * Reads the start of the archive header, if present, from decrypted archive data. The generation follows the
+     * format version in archives which have a header.
+     * @param dataReader A buffer positioned at the start of the decrypted archive
+     * @return the archive's format version, or 0 if the archive has no header
+     * @throws IOException if the archive was saved in a newer format
+     */
+    static int readFormatVersion(ByteBuffer dataReader) throws IOException {
+        // Archives without a header begin with a website length, which is never negative
+        if(dataReader.remaining() < HEADER_LENGTH || dataReader.getShort(dataReader.position()) != HEADER_MARKER) {
+            return 0;
+        }
+        dataReader.getShort();
+        byte version = dataReader.get();
+        if(version > FORMAT_VERSION) {
+            throw new IOException("Archive was saved by a newer version of Keeper");
+        }
+        return version;
+    }
 
-        if(plaintext == null)
-            return null;
-        // Decryption was successful; continue
-        // Wrap the plaintext in a byte buffer so we can grab chunks of data
-        ByteBuffer dataReader = ByteBuffer.wrap(plaintext);
+    /**
+     * Reads every entry from decrypted archive data into a store. Websites, usernames and password data are copied
+     * straight from the buffer into the store, without being decoded or copied into the heap. Entries from archives
+     * which predate entry IDs are given IDs derived from their encrypted password data, so that every process opening
+     * the same archive assigns the same IDs; their created and modified times are unknown.
+     * @param dataReader A buffer positioned at the first entry
+     * @param version The archive's format version
+     * @param store The store to add the entries to
+     * @return an {@link ArrayList} of the entries read
+     */
+    static ArrayList<Entry> readEntries(ByteBuffer dataReader, int version, EntryStore store) {
         // Begin a list of entry objects, which we will add to as we read each entry
         ArrayList<Entry> entries = new ArrayList<>();
+        // Tracks the IDs read so far, so a duplicated ID can't make two entries indistinguishable
+        HashSet<UUID> ids = new HashSet<>();
 
         // Continue reading in data so long as there is more data to read
-        byte[] data;
         while(dataReader.hasRemaining()) {
+            UUID id = null;
+            long created = 0, modified = 0;
+            if(version >= ENTRY_ID_VERSION) {
+                id = new UUID(dataReader.getLong(), dataReader.getLong());
+                created = dataReader.getLong();
+                modified = dataReader.getLong();
+            }
             // Read a website, username and encrypted password data for this entry, and add it to the list
-            short size = dataReader.getShort();
-            String website;
-            if(size > 0) {
-                assert dataReader.remaining() >= size : "Error reading archive; possible corruption or tampering";
-                assert dataReader.hasRemaining() : "Error: unexpectedly reached end of archive while parsing website";
-                data = new byte[size];
-                dataReader.get(data);
-                website = Utility.decode(data);
-                Utility.erase(data);
-            } else
-                website = "";
+            ByteBuffer website = readField(dataReader);
 
             assert dataReader.hasRemaining() : "Error: unexpectedly reached end of archive while parsing " +
                     "username length";
 
-            size = dataReader.getShort();
-            String username;
-            if(size > 0) {
-                assert dataReader.remaining() >= size : "Error reading archive; possible corruption or tampering";
-                assert dataReader.hasRemaining() : "Error: unexpectedly reached end of archive while parsing username";
-                data = new byte[size];
-                dataReader.get(data);
-                username = Utility.decode(data);
-                Utility.erase(data);
-            } else
-                username = "";
+            ByteBuffer username = readField(dataReader);
 
             assert dataReader.hasRemaining() : "Error: unexpectedly reached end of archive while parsing " +
                     "password length";
 
-            size = dataReader.getShort();
-            if(size > 0) {
-                assert dataReader.remaining() >= size : "Error reading archive; possible corruption or tampering";
-                assert dataReader.hasRemaining() : "Error: unexpectedly reached end of archive while parsing password";
-                data = new byte[size];
-                dataReader.get(data);
-            } else
-                data = null;
-            entries.add(new Entry(website, username, data));
-        }
-        // Erase the plaintext data
-        Utility.erase(plaintext);
-        // Return the list of entries
+            ByteBuffer data = readField(dataReader);
+            ByteBuffer fingerprint = null;
+            if(version >= ENTRY_FINGERPRINT_VERSION) {
+                fingerprint = readField(dataReader);
+            }
+            if(id == null) {
+                id = UUID.nameUUIDFromBytes(data.hasRemaining() ? copyField(data) : Utility.encode(
+                        Utility.decode(copyField(website)) + '\0' + Utility.decode(copyField(username)) + '\0'
+                                + entries.size()));
+            }
+            if(!ids.add(id)) {
+                id = UUID.randomUUID();
+                ids.add(id);
+            }
+            entries.add(store.add(id, website, username, data.hasRemaining() ? data : null,
+                    fingerprint != null && fingerprint.hasRemaining() ? fingerprint : null, created, modified));
+        }
         return entries;
     }
 
+    /**
+     * Reads a field preceded by its length from decrypted archive data, without copying it
+     * @param dataReader A buffer positioned at the field's length, which is moved past the field
+     * @return a view of the field's bytes, which is empty if the field's length isn't positive
+     */
+    private static ByteBuffer readField(ByteBuffer dataReader) {
+        int size = Math.max(0, dataReader.getShort());
+        assert dataReader.remaining() >= size : "Error reading archive; possible corruption or tampering";
+        ByteBuffer field = dataReader.slice();
+        field.limit(size);
+        dataReader.position(dataReader.position() + size);
+        return field;
+    }
+
+    /**
+     * Copies a field read by {@link #readField(ByteBuffer)} into an array
+     * @param field The field
+     * @return a new byte[] holding the field's bytes
+     */
+    private static byte[] copyField(ByteBuffer field) {
+        byte[] bytes = new byte[field.remaining()];
+        field.duplicate().get(bytes);
+        return bytes;
+    }
+
     /**
      * Closes the database, encrypting it and saving it to the given file. Additionally, encrypts and writes the
-     * keys to {@link PasswordArchiveManager#entryKeyFile} in the process.
+     * keys to {@link PasswordArchiveManager#entryKeyFile} in the process. If another process saved the archive since
+     * it was opened, its changes are merged with the given entries rather than overwritten: entries changed, added or
+     * removed by only one side keep that side's version, and when both sides changed the same entry differently,
+     * both versions are kept. The archive is locked only while it is being saved.
+     * <p>
+     * The key file and archive on disk are read and decrypted before either is written, so a save fails without
+     * writing anything if another process has changed the password since. If another process saved a different entry
+     * key, such as by rotating it, the entries are re-encrypted with the saved key and the key file is left as it is;
+     * the key file is only written when it doesn't exist yet or this process rotated the key.
      * @param f The file to save the archive to
-     * @param database An {@link ArrayList} of {@link UIEntry} objects containing entries to encrypt and save
+     * @param database A {@link List} of {@link Entry} objects containing entries to encrypt and save
      * @return true on success, otherwise false
      */
-    public boolean closeDatabase(File f, ArrayList<UIEntry> database)  {
-        byte[] keyBytes = entryKey.getEncoded();
-        try {
-            scribe.encryptAndWrite(entryKeyFile, keyBytes);
-        } catch(IOException e) {
+    @SuppressWarnings("try")
+    public boolean closeDatabase(File f, List<Entry> database)  {
+        ErasableByteStream byteStream = null;
+        try(FileChannel lock = lockArchive(false)) {
+            // Decrypt the saved key file and archive before writing either, failing if the password has changed
+            byte[] savedKeyBytes = entryKeyFile.exists() ? scribe.readAndDecrypt(entryKeyFile) : null;
+            ArrayList<Entry> saved = null;
+            long savedGeneration = generation;
+            if(f.exists()) {
+                byte[] fileData = Files.readAllBytes(f.toPath());
+                if(openedDigest == null || !MessageDigest.isEqual(digest(fileData), openedDigest)) {
+                    ByteBuffer dataReader = scribe.decrypt(fileData, arena);
+                    try {
+                        int savedVersion = readFormatVersion(dataReader);
+                        savedGeneration = savedVersion > 0 ? dataReader.getLong() : 0;
+                        saved = readEntries(dataReader, savedVersion, entryStore);
+                    } finally {
+                        arena.release(dataReader);
+                    }
+                }
+            }
+
+            // Another process may have created a key for this archive after we created ours, or rotated it since we
+            // opened it; unless we're rotating away from the saved key, the saved key is the one to keep
+            boolean keyChanged = savedKeyBytes == null;
+            if(savedKeyBytes != null) {
+                byte[] keyBytes = entryKey.getEncoded();
+                try {
+                    if(!MessageDigest.isEqual(savedKeyBytes, keyBytes)) {
+                        if(rotation != null && rotation.isPreviousKey(savedKeyBytes)) {
+                            keyChanged = true;
+                        } else {
+                            adoptSavedEntryKey(database, savedKeyBytes);
+                        }
+                    }
+                } finally {
+                    Utility.erase(keyBytes);
+                    Utility.erase(savedKeyBytes);
+                }
+            }
+            if(keyChanged) {
+                byte[] keyBytes = entryKey.getEncoded();
+                try {
+                    scribe.encryptAndWrite(entryKeyFile, keyBytes);
+                } catch(IOException e) {
+                    System.err.println("Unable to write to key file!");
+                    throw e;
+                } finally {
+                    Utility.erase(keyBytes);
+                }
+            }
+
+            // Merge with the archive on disk if another process has saved it since we opened it
+            List<Entry> entries = database;
+            if(saved != null) {
+                // Another process may have saved entries under the key being rotated from
+                if(rotation != null) {
+                    rotation.rekey(saved);
+                }
+                entries = mergeWithSaved(database, saved);
+            }
+
+            // Convert all of the entry data to bytes and write them to a byte stream
+            byteStream = new ErasableByteStream(16384);
+            writeArchive(byteStream, Math.max(generation, savedGeneration) + 1, entries);
+
+            // Encrypt the data using the given keys and salts, straight from the stream's buffer
+            scribe.encryptAndWrite(f, byteStream.getBuffer(), 0, byteStream.size());
+            discardPendingFile(f);
+            // The key file and archive are both under the new key, so the old one is no longer needed
+            if(rotation != null) {
+                rotation.finish();
+                rotation = null;
+            }
+            return true;
+        } catch (IOException e) {
             e.printStackTrace();
-            System.err.println("Unable to write to key file!");
             return false;
+        } catch (CryptographicFailureException e) {
+            System.err.println("Unable to save archive - the saved archive or key file could not be decrypted!");
+            return false;
+        } finally {
+            cleanup();
+            if(byteStream != null) {
+                byteStream.erase();
+            }
         }
-        Utility.erase(keyBytes);
-        // Convert all of the entry data to bytes and write them to a byte stream
-        ErasableByteStream byteStream = new ErasableByteStream(16384);
-        byte[] sizeBytes = new byte[2];
-        byte[] stringData;
-        ByteBuffer sizeBuffer = ByteBuffer.wrap(sizeBytes);
-        for (UIEntry uie : database) {
-            Entry e = uie.getEntry();
-            String website = e.getWebsite();
-            stringData = Utility.encode(website);
-            short size = (short) stringData.length;
-            sizeBuffer.putShort(size);
-            sizeBuffer.position(0);
-            byteStream.writeBytes(sizeBytes);
-            if(size > 0) {
-                byteStream.writeBytes(stringData);
-                Utility.erase(stringData);
-            }
-            String username = e.getUsername();
-            stringData = Utility.encode(username);
-            size = (short) stringData.length;
-            sizeBuffer.putShort(size);
-            sizeBuffer.position(0);
-            byteStream.writeBytes(sizeBytes);
-            if(size > 0) {
-                byteStream.writeBytes(stringData);
-                Utility.erase(stringData);
+    }
+
+    /**
+     * Writes the decrypted form of an archive: the header, followed by each entry's ID, times and fields
+     * @param byteStream The stream to write the archive to
+     * @param generation The generation to record in the header
+     * @param entries The entries to write
+     */
+    static void writeArchive(ErasableByteStream byteStream, long generation, List<Entry> entries) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putShort(HEADER_MARKER);
+        header.put(FORMAT_VERSION);
+        header.putLong(generation);
+        byteStream.writeBytes(header.array());
+        ByteBuffer entryHeader = ByteBuffer.allocate(ENTRY_HEADER_LENGTH);
+        for (Entry e : entries) {
+            UUID id = e.getId();
+            entryHeader.putLong(id.getMostSignificantBits());
+            entryHeader.putLong(id.getLeastSignificantBits());
+            entryHeader.putLong(e.getCreated());
+            entryHeader.putLong(e.getModified());
+            byteStream.writeBytes(entryHeader.array());
+            entryHeader.clear();
+            e.writeFields(byteStream);
+        }
+    }
+
+    /**
+     * Merges the entries being saved with those another process saved to the archive since it was opened, using the
+     * entries as opened as the common base
+     * @param ours The entries being saved
+     * @param theirs The entries currently saved in the archive
+     * @return a sorted {@link ArrayList} of the merged entries
+     */
+    private ArrayList<Entry> mergeWithSaved(List<Entry> ours, List<Entry> theirs) {
+        ArchiveMerger merger = new ArchiveMerger(this);
+        ArrayList<Entry> merged = merger.merge(baseEntries == null ? new ArrayList<>() : baseEntries, ours, theirs);
+        if(merger.getConflictCount() > 0) {
+            System.err.println(merger.getConflictCount() + " entries were changed by another Keeper while this " +
+                    "archive was open; both versions were kept where passwords disagreed");
+        }
+        return merged;
+    }
+
+    /**
+     * Replaces the entry key with the one another process saved to the key file in the meantime, either a key created
+     * for a new archive or one the archive's key was rotated to, re-encrypting and re-fingerprinting the given entries'
+     * passwords and those of the entries as opened with it. Passwords which were identical before keep identical
+     * encrypted data, so the merge still sees which entries were left unchanged. Any rotation this process started is
+     * abandoned, since the saved key supersedes it.
+     * @param database The entries whose passwords were encrypted with the current key
+     * @param savedKeyBytes The saved key, which the caller remains responsible for erasing
+     */
+    private void adoptSavedEntryKey(List<Entry> database, byte[] savedKeyBytes) throws CryptographicFailureException,
+            IOException {
+        DestroyableKey savedKey = new DestroyableKey(savedKeyBytes);
+        Cryptographer savedCryptographer = new AESGCMCryptographerWithKey(savedKey);
+        DestroyableKey savedFingerprintKey = deriveFingerprintKey(savedKey);
+        HashMap<ByteBuffer, byte[][]> rekeyed = new HashMap<>();
+        try {
+            if(baseEntries != null) {
+                rekey(baseEntries, savedCryptographer, savedFingerprintKey, rekeyed);
             }
+            rekey(database, savedCryptographer, savedFingerprintKey, rekeyed);
+        } catch (CryptographicFailureException | RuntimeException e) {
+            savedCryptographer.destroy();
+            savedFingerprintKey.destroy();
+            throw e;
+        } finally {
+            for(byte[][] passwordData : rekeyed.values()) {
+                Utility.erase(passwordData[1]);
+            }
+        }
+        if(rotation != null) {
+            rotation.finish();
+            rotation = null;
+        }
+        entryCryptographer.destroy();
+        fingerprintKey.destroy();
+        entryKey = savedKey;
+        entryCryptographer = savedCryptographer;
+        fingerprintKey = savedFingerprintKey;
+        newEntryKey = false;
+        // Every fingerprint changed along with the key
+        fingerprints.clear();
+        for(Entry e : database) {
+            fingerprints.add(e);
+        }
+    }
+
+    /**
+     * Re-encrypts and re-fingerprints entries' passwords with another key, encrypting each distinct piece of password
+     * data only once
+     * @param entries The entries whose passwords are encrypted with the current key
+     * @param cryptographer The cryptographer of the other key
+     * @param fingerprintKey The fingerprint key derived from the other key
+     * @param rekeyed Maps password data already re-encrypted to its new data and fingerprint
+     */
+    private void rekey(List<Entry> entries, Cryptographer cryptographer, DestroyableKey fingerprintKey,
+                       HashMap<ByteBuffer, byte[][]> rekeyed) throws CryptographicFailureException {
+        for(Entry e : entries) {
             byte[] passwordData = e.getPasswordData();
             if(passwordData == null || passwordData.length == 0) {
-                sizeBuffer.putShort((short) 0);
-                byteStream.writeBytes(sizeBytes);
-            } else {
-                sizeBuffer.putShort((short) passwordData.length);
-                byteStream.writeBytes(sizeBytes);
-                byteStream.writeBytes(passwordData);
-                Utility.erase(passwordData);
+                continue;
             }
-            sizeBuffer.position(0);
+            byte[][] replacement = rekeyed.get(ByteBuffer.wrap(passwordData));
+            if(replacement == null) {
+                byte[] plaintext = entryCryptographer.decrypt(passwordData);
+                try {
+                    replacement = new byte[][] {cryptographer.encrypt(plaintext), fingerprint(fingerprintKey,
+                            plaintext)};
+                } finally {
+                    Utility.erase(plaintext);
+                }
+                rekeyed.put(ByteBuffer.wrap(passwordData), replacement);
+            }
+            e.setPasswordData(replacement[0], replacement[1]);
         }
-        byte[] plaintextData = byteStream.toByteArray();
-        byteStream.erase();
+    }
 
+    /**
+     * Derives the key used to fingerprint passwords from the entry key, so that fingerprints can't be compared with
+     * those of another archive, or used to test guesses at a password, without the entry key
+     * @param entryKey The entry key
+     * @return a new {@link DestroyableKey} for fingerprinting passwords
+     */
+    private static DestroyableKey deriveFingerprintKey(DestroyableKey entryKey) {
+        byte[] keyBytes = null;
         try {
-            // Encrypt the data using the given keys and salts
-            scribe.encryptAndWrite(f, plaintextData);
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+            Mac mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+            mac.init(entryKey);
+            keyBytes = mac.doFinal(FINGERPRINT_KEY_LABEL);
+            return new DestroyableKey(keyBytes);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new RuntimeException("Fatal error: system does not support " + FINGERPRINT_ALGORITHM);
         } finally {
-            cleanup();
-            Utility.erase(plaintextData);
-            Utility.erase(sizeBytes);
+            Utility.erase(keyBytes);
         }
     }
 
+    /**
+     * Computes the fingerprint of an encoded password. Trailing zero bytes, which some older versions left after
+     * encoded passwords, are ignored so a password has the same fingerprint however it was encoded.
+     * @param key The fingerprint key
+     * @param passwordBytes The encoded password
+     * @return a byte[] containing the fingerprint
+     */
+    static byte[] fingerprint(DestroyableKey key, byte[] passwordBytes) {
+        int length = passwordBytes.length;
+        while(length > 0 && passwordBytes[length - 1] == 0) {
+            length--;
+        }
+        try {
+            Mac mac = Mac.getInstance(FINGERPRINT_ALGORITHM);
+            mac.init(key);
+            mac.update(passwordBytes, 0, length);
+            byte[] digest = BufferPool.acquire(mac.getMacLength());
+            try {
+                mac.doFinal(digest, 0);
+                return Arrays.copyOf(digest, FINGERPRINT_LENGTH);
+            } finally {
+                BufferPool.release(digest);
+            }
+        } catch (NoSuchAlgorithmException | InvalidKeyException | ShortBufferException e) {
+            throw new RuntimeException("Fatal error: system does not support " + FINGERPRINT_ALGORITHM);
+        }
+    }
+
+    /**
+     * Locks this archive against other processes using a lock file next to the key file. The lock is released when
+     * the returned channel is closed. Callers hold the lock for the length of a try-with-resources block without
+     * otherwise referring to the channel, so they suppress javac's "try" lint warning.
+     * @param shared true to take a shared lock for reading, or false to take an exclusive lock for writing
+     * @return the {@link FileChannel} holding the lock
+     * @throws IOException if the lock file couldn't be opened or locked
+     */
+    private FileChannel lockArchive(boolean shared) throws IOException {
+        FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            channel.lock(0, Long.MAX_VALUE, shared);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Computes the SHA-256 digest of an archive file's contents, used to detect whether another process has saved it
+     * @param fileData The archive file's contents
+     * @return a byte[] containing the digest
+     */
+    private static byte[] digest(byte[] fileData) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(fileData);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Fatal error: system does not support SHA-256");
+        }
+    }
+
+    /**
+     * Erases the entry key and the archive password without saving anything. Used when an archive could not be
+     * opened and the manager will not be used again.
+     */
+    public void discard() {
+        cleanup();
+    }
+
     private void cleanup() {
-        entryCryptographer.destroy();
+        if(rotation != null) {
+            rotation.destroy();
+            rotation = null;
+        }
+        if(entryCryptographer != null) {
+            entryCryptographer.destroy();
+        }
+        if(fingerprintKey != null && !fingerprintKey.isDestroyed()) {
+            fingerprintKey.destroy();
+        }
+        fingerprints.clear();
         scribe.destroy();
+        arena.wipe();
     }
 
 }
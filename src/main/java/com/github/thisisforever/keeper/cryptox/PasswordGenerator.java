@@ -1,14 +1,32 @@
 package com.github.thisisforever.keeper.cryptox;
 
-import java.security.SecureRandom;
+import com.github.thisisforever.crypto.Utility;
+
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Generates passwords with lower- and uppercase letters, numbers and symbols. Ensures passwords generated have at
  * least one of each type of desired character, if possible
+ * <p>
+ * The enabled character sets are compiled into a {@link PasswordPolicy} requiring each of them whenever the flags
+ * change, and a site's own policy can be followed instead by passing it to
+ * {@link #generatePassword(PasswordPolicy, int)}. Characters are drawn from a per-thread random number generator, a
+ * block of random bytes at a time, rejecting bytes which would favor some characters over others, so every password
+ * meeting the policy is equally likely. Batches of passwords can be generated on several threads at once with
+ * {@link #generatePasswords(int, int, int)}.
+ * <p>
+ * Passphrases of words separated by {@value #PASSPHRASE_SEPARATOR} can be generated instead, drawing words from an
+ * embedded list with the same per-thread random bytes. The entropy of either kind of password, in bits, is given by
+ * {@link #getEntropy(int)} and {@link #getPassphraseEntropy(int)}.
+ * <p>
+ * Pronounceable passwords, easier to read aloud, can be generated as well: runs of lowercase invented words drawn from
+ * a {@link PronounceableModel} of how letters follow one another. Because some letters are far likelier than others,
+ * their entropy is lower than that of random characters of the same length; {@link #getPronounceableEntropy(int,
+ * boolean)} gives both the average and the entropy of the likeliest password.
  */
 public class PasswordGenerator {
 
@@ -16,6 +34,8 @@ public class PasswordGenerator {
     public static final String LOWERCASE = "abcdefghijklmnopqrstuvwxyz";
     public static final String NUMBERS = "0123456789";
     public static final String SYMBOLS = "`~!@#$%^&*()-=_+,./<>?;':\"[]{}\\|";
+    // Defines the character placed between the words of a passphrase
+    public static final char PASSPHRASE_SEPARATOR = '-';
     // Contains the sets themselves
     private static String[] CHARACTER_SETS = {
             UPPERCASE, LOWERCASE, NUMBERS, SYMBOLS
@@ -29,9 +49,9 @@ public class PasswordGenerator {
 
     // Contains flags that determine whether each of the above character sets should be enabled during generation
     private final boolean[] characterSetFlags;
-
-    // Pseudo-random number generator used for generating password characters
-    private SecureRandom prng;
+    // References the policy compiled from the enabled character sets, replaced whenever the flags change, or null if
+    // none are enabled
+    private volatile PasswordPolicy policy;
 
     public PasswordGenerator() {
         characterSetFlags = new boolean[CHARACTER_SETS.length];
@@ -49,6 +69,7 @@ public class PasswordGenerator {
         characterSetFlags[LOWERCASE_INDEX] = lowercase;
         characterSetFlags[NUMBERS_INDEX] = numbers;
         characterSetFlags[SYMBOLS_INDEX] = symbols;
+        policy = PasswordPolicy.fromFlags(characterSetFlags.clone());
     }
 
     /**
@@ -73,93 +94,227 @@ public class PasswordGenerator {
      * @throws RuntimeException in the event no character sets were enabled prior to generating the password
      */
     public char[] generatePassword(int length) {
-        initRandom();
-        String charset = generateCharacterSetString();
+        return generatePassword(flagPolicy(), length);
+    }
 
-        if(charset.isEmpty()) {
-            throw new RuntimeException("Error: invalid choice of password character sets");
-        }
+    /**
+     * Generates a password following a site's policy
+     * @param policy The policy to follow
+     * @param length The desired length of the password, which is brought within the lengths the policy allows
+     * @return a char[] containing the generated password
+     */
+    public char[] generatePassword(PasswordPolicy policy, int length) {
+        return policy.generate(policy.clampLength(length), RandomBytes.get());
+    }
 
-        char[] password = generateUnvalidatedPassword(charset, length);
-        validatePassword(password);
-        return password;
+    /**
+     * Generates many passwords at once, splitting the work between several threads, each drawing from its own
+     * random number generator
+     * @param count The number of passwords to generate
+     * @param length The length of each password
+     * @param threads The number of threads to generate passwords on
+     * @return an array of count passwords, which the caller should erase once they're no longer needed
+     * @throws RuntimeException in the event no character sets were enabled prior to generating the passwords
+     */
+    public char[][] generatePasswords(int count, int length, int threads) {
+        return generatePasswords(flagPolicy(), count, length, threads);
     }
 
     /**
-     * Initializes this object's pseudo-random number generator
+     * Generates many passwords following a site's policy at once, splitting the work between several threads like
+     * {@link #generatePasswords(int, int, int)}
+     * @param policy The policy to follow
+     * @param count The number of passwords to generate
+     * @param length The desired length of each password, which is brought within the lengths the policy allows
+     * @param threads The number of threads to generate passwords on
+     * @return an array of count passwords, which the caller should erase once they're no longer needed
      */
-    private void initRandom() {
-        prng = new SecureRandom();
+    public char[][] generatePasswords(PasswordPolicy policy, int count, int length, int threads) {
+        int clamped = policy.clampLength(length);
+        return generateBatch(count, threads, random -> policy.generate(clamped, random));
     }
 
     /**
-     * Concatenates all currently selected character sets into one large {@link String}
-     * @return the resulting {@link String} after concatenation
+     * Generates a passphrase of words drawn from Keeper's embedded wordlist, separated by
+     * {@value #PASSPHRASE_SEPARATOR}. The character set flags don't apply to passphrases.
+     * @param words The number of words in the passphrase
+     * @return a char[] containing the generated passphrase
      */
-    private String generateCharacterSetString() {
-        String charset = "";
-        final int sets = CHARACTER_SETS.length;
-        for(int i = 0; i < sets; i++) {
-            if(characterSetFlags[i]) {
-                charset += CHARACTER_SETS[i];
-            }
-        }
-        return charset;
+    public char[] generatePassphrase(int words) {
+        return passphrase(words, Wordlist.get(), RandomBytes.get());
     }
 
     /**
-     * Produces a random series of characters with a given length using a given charset
-     * @param charset The set from which to choose characters. See
-     * {@link PasswordGenerator#generateCharacterSetString()}.
-     * @param length The length of the password to generate
-     * @return the resulting char[] with randomized characters
+     * Generates many passphrases at once, splitting the work between several threads like
+     * {@link #generatePasswords(int, int, int)}
+     * @param count The number of passphrases to generate
+     * @param words The number of words in each passphrase
+     * @param threads The number of threads to generate passphrases on
+     * @return an array of count passphrases, which the caller should erase once they're no longer needed
      */
-    private char[] generateUnvalidatedPassword(String charset, int length) {
-        char[] password = new char[length];
-        for(int i = 0; i < length; i++) {
-            password[i] = charset.charAt(prng.nextInt(charset.length()));
+    public char[][] generatePassphrases(int count, int words, int threads) {
+        final Wordlist wordlist = Wordlist.get();
+        return generateBatch(count, threads, random -> passphrase(words, wordlist, random));
+    }
+
+    /**
+     * Generates a pronounceable password of lowercase invented words separated by
+     * {@value PronounceableModel#SEPARATOR}. The character set flags don't apply to pronounceable passwords.
+     * @param length The length of the password
+     * @return a char[] containing the generated password
+     */
+    public char[] generatePronounceable(int length) {
+        return PronounceableModel.get().generate(length, RandomBytes.get());
+    }
+
+    /**
+     * Generates many pronounceable passwords at once, splitting the work between several threads like
+     * {@link #generatePasswords(int, int, int)}
+     * @param count The number of passwords to generate
+     * @param length The length of each password
+     * @param threads The number of threads to generate passwords on
+     * @return an array of count passwords, which the caller should erase once they're no longer needed
+     */
+    public char[][] generatePronounceables(int count, int length, int threads) {
+        final PronounceableModel model = PronounceableModel.get();
+        return generateBatch(count, threads, random -> model.generate(length, random));
+    }
+
+    /**
+     * Calculates the entropy of the passwords {@link #generatePronounceable(int)} produces. Unlike other passwords,
+     * they aren't all equally likely, so the average entropy overstates how hard the likeliest ones are to guess.
+     * @param length The length of the passwords
+     * @param minimum true for the min-entropy, the entropy of the likeliest password, otherwise the Shannon entropy,
+     *                the average over all passwords
+     * @return the entropy in bits
+     */
+    public static double getPronounceableEntropy(int length, boolean minimum) {
+        return length <= 0 ? 0 : PronounceableModel.get().getEntropy(length, minimum);
+    }
+
+    /**
+     * Calculates the entropy of the passwords {@link #generatePassword(int)} produces with the enabled character
+     * sets: the base-2 logarithm of the number of passwords it can produce, every one of which is equally likely
+     * @param length The length of the passwords
+     * @return the entropy in bits, or 0 if no character sets are enabled
+     */
+    public double getEntropy(int length) {
+        PasswordPolicy policy = this.policy;
+        return policy == null ? 0 : policy.getEntropy(length);
+    }
+
+    /**
+     * Calculates the entropy of the passphrases {@link #generatePassphrase(int)} produces
+     * @param words The number of words in the passphrases
+     * @return the entropy in bits
+     */
+    public static double getPassphraseEntropy(int words) {
+        return Math.max(0, words) * (double) Wordlist.BITS_PER_WORD;
+    }
+
+    /**
+     * Generates a passphrase
+     * @param words The number of words in the passphrase
+     * @param wordlist The list to draw words from
+     * @param random The calling thread's random bytes
+     * @return a char[] containing the passphrase
+     */
+    private static char[] passphrase(int words, Wordlist wordlist, RandomBytes random) {
+        if(words <= 0) {
+            return new char[0];
+        }
+        int[] chosen = new int[words];
+        int length = words - 1;
+        for(int i = 0; i < words; i++) {
+            chosen[i] = random.nextBits(Wordlist.BITS_PER_WORD);
+            length += wordlist.length(chosen[i]);
+        }
+        char[] passphrase = new char[length];
+        int position = 0;
+        for(int i = 0; i < words; i++) {
+            if(i > 0) {
+                passphrase[position++] = PASSPHRASE_SEPARATOR;
+            }
+            position = wordlist.copy(chosen[i], passphrase, position);
+            chosen[i] = 0;
         }
-        return password;
+        return passphrase;
     }
 
     /**
-     * Ensures a password contains at least one character from each of the enabled character sets for this
-     * {@link PasswordGenerator} object. If a charset is missing, a random character is changed to a random character
-     * from that charset. If the password's length is shorter than the number of chosen character sets, validation
-     * will ensure that each character is of a different charset instead of ensuring one of each is present.
-     * @param password The password to validate
+     * Generates a batch of passwords, splitting the work between several threads
+     * @param count The number of passwords to generate
+     * @param threads The number of threads to generate passwords on
+     * @param generator Generates each password from the calling thread's random bytes
+     * @return an array of count passwords
      */
-    private void validatePassword(char[] password) {
-        ArrayList<Integer> unchangedIndexes = range(password.length);
-        List passwordList = Arrays.asList(password);
-        // Verify that the password contains at least one of each character set
-        for(int i = 0; i < CHARACTER_SETS.length && unchangedIndexes.size() > 0; i++) {
-            // Skip this character set if it isn't enabled
-            if(!characterSetFlags[i]) {
-                continue;
+    private static char[][] generateBatch(int count, int threads, Generator generator) {
+        final char[][] passwords = new char[count][];
+        threads = Math.max(1, Math.min(threads, count));
+        if(threads == 1) {
+            RandomBytes random = RandomBytes.get();
+            for(int i = 0; i < count; i++) {
+                passwords[i] = generator.generate(random);
+            }
+            return passwords;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final int chunk = (count + threads - 1) / threads;
+            ArrayList<Future<?>> tasks = new ArrayList<>(threads);
+            for(int start = 0; start < count; start += chunk) {
+                final int from = start, to = Math.min(count, start + chunk);
+                tasks.add(executor.submit(() -> {
+                    RandomBytes random = RandomBytes.get();
+                    for(int i = from; i < to; i++) {
+                        passwords[i] = generator.generate(random);
+                    }
+                }));
             }
-            char[] chars = CHARACTER_SETS[i].toCharArray();
-            List charsetList = Arrays.asList(chars);
-            // Does the password contain at least one of the character set?
-            if(Collections.disjoint(passwordList, charsetList)) {
-                // No; pop a random index from the list of indexes and swap it out with a random character from this set
-                int index = unchangedIndexes.remove(prng.nextInt(unchangedIndexes.size()));
-                password[index] = chars[prng.nextInt(chars.length)];
+            for(Future<?> task : tasks) {
+                task.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            erase(passwords);
+            throw new RuntimeException("Interrupted while generating passwords");
+        } catch (ExecutionException e) {
+            erase(passwords);
+            throw new RuntimeException("Error: unable to generate passwords", e.getCause());
+        } finally {
+            executor.shutdown();
         }
+        return passwords;
     }
 
     /**
-     * Generates a list of int values ranging from 0 to a value, exclusive
-     * @param to The value to generate values up to
-     * @return An {@link ArrayList} containing the generated values
+     * Gets the policy compiled from the enabled character sets
+     * @return the {@link PasswordPolicy}
+     * @throws RuntimeException in the event no character sets are enabled
      */
-    private static ArrayList<Integer> range(int to) {
-        ArrayList<Integer> numbers = new ArrayList<>();
-        for(int i = 0; i < to; i++) {
-            numbers.add(i);
+    private PasswordPolicy flagPolicy() {
+        PasswordPolicy policy = this.policy;
+        if(policy == null) {
+            throw new RuntimeException("Error: invalid choice of password character sets");
         }
-        return numbers;
+        return policy;
+    }
+
+    /**
+     * Erases a batch of passwords, such as one abandoned partway through generation
+     * @param passwords The passwords, any of which may be null
+     */
+    private static void erase(char[][] passwords) {
+        for(char[] password : passwords) {
+            Utility.erase(password);
+        }
+    }
+
+    /**
+     * Generates a password from a thread's random bytes
+     */
+    private interface Generator {
+        char[] generate(RandomBytes random);
     }
 
 }
@@ -0,0 +1,469 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A site's rules for passwords: the range of lengths it accepts, which types of characters a password must or may
+ * contain, the alphabet of each type, and characters it forbids. Policies are written as a line of settings separated
+ * by spaces or semicolons, such as
+ * <pre>
+ *     length=12-20 uppercase=required numbers=required symbols=allowed:!@#$% forbid=0O1l
+ * </pre>
+ * where {@code length} is a single length or a range, each of {@code uppercase}, {@code lowercase}, {@code numbers}
+ * and {@code symbols} is {@code required}, {@code allowed} or {@code none}, optionally followed by a colon and the
+ * alphabet to use for that type in place of the usual one, and {@code forbid} lists characters never to use. Types
+ * left out are treated as the generator treats them by default: letters and numbers are required and symbols unused.
+ * <p>
+ * A policy is compiled once, when it's parsed: the characters it allows are laid out in one table grouped by type,
+ * and each type is given a bit in a mask of required types. Alongside, a table holds the probability that a given
+ * number of random characters includes each combination of types. Generating a password walks through it once,
+ * choosing the type of each character with the probability that the rest of the password can still include every
+ * missing type, so every password meeting the policy is equally likely and none has to be generated again.
+ * <p>
+ * Sites' policies are kept in the configuration under {@value #PROPERTY_PREFIX} followed by the site's host name,
+ * and {@link #forSite(String, Properties)} caches each policy it compiles.
+ */
+public class PasswordPolicy {
+
+    // Defines the prefix of configuration properties holding sites' policies
+    public static final String PROPERTY_PREFIX = "policy.";
+
+    // Defines the names of the settings in a policy, and of the types of character
+    private static final String LENGTH = "length";
+    private static final String FORBID = "forbid";
+    private static final String[] TYPE_NAMES = {"uppercase", "lowercase", "numbers", "symbols"};
+    private static final String[] TYPE_ALPHABETS = {
+            PasswordGenerator.UPPERCASE, PasswordGenerator.LOWERCASE, PasswordGenerator.NUMBERS,
+            PasswordGenerator.SYMBOLS
+    };
+    // Define whether each type of character is required, allowed or unused unless the policy says otherwise
+    private static final String REQUIRED = "required", ALLOWED = "allowed", NONE = "none";
+    private static final String[] DEFAULT_MODES = {REQUIRED, REQUIRED, REQUIRED, NONE};
+    // Defines the number of lengths the coverage table is built for when a policy is compiled
+    private static final int INITIAL_COVERAGE_LENGTH = 64;
+
+    // Caches the policy compiled for each site
+    private static final ConcurrentHashMap<String, PasswordPolicy> siteCache = new ConcurrentHashMap<>();
+
+    // The text the policy was parsed from
+    private final String specification;
+    // The shortest and longest passwords allowed
+    private final int minLength, maxLength;
+    // Holds every character allowed, grouped by type, and the index each type starts at; the entry after the last
+    // type is the number of characters
+    private final char[] characters;
+    private final int[] typeStarts;
+    // Has a bit set for each required type, numbered by their order in the table, and counts them
+    private final int requiredTypes, requiredCount;
+    // Holds, for each number of characters, the probability that that many random characters include every type in
+    // each mask of types. Grown as longer passwords are generated.
+    private volatile double[][] coverage;
+
+    private PasswordPolicy(String specification, int minLength, int maxLength, String[] alphabets, boolean[] required,
+                           String forbidden) {
+        this.specification = specification;
+        BitSet used = new BitSet(Character.MAX_VALUE + 1);
+        for(char c : forbidden.toCharArray()) {
+            used.set(c);
+        }
+        StringBuilder table = new StringBuilder();
+        int[] starts = new int[alphabets.length + 1];
+        int types = 0, mask = 0;
+        for(int i = 0; i < alphabets.length; i++) {
+            if(alphabets[i] == null) {
+                continue;
+            }
+            int start = table.length();
+            for(char c : alphabets[i].toCharArray()) {
+                if(!used.get(c)) {
+                    used.set(c);
+                    table.append(c);
+                }
+            }
+            if(table.length() == start) {
+                if(required[i]) {
+                    throw new IllegalArgumentException("Password policy requires " + TYPE_NAMES[i]
+                            + " but allows none");
+                }
+                continue;
+            }
+            if(required[i]) {
+                mask |= 1 << types;
+            }
+            starts[types++] = start;
+        }
+        if(table.length() == 0) {
+            throw new IllegalArgumentException("Password policy allows no characters");
+        }
+        starts[types] = table.length();
+        characters = table.toString().toCharArray();
+        typeStarts = new int[types + 1];
+        System.arraycopy(starts, 0, typeStarts, 0, types + 1);
+        requiredTypes = mask;
+        requiredCount = Integer.bitCount(mask);
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        coverage = buildCoverage(new double[0][], Math.min(maxLength, INITIAL_COVERAGE_LENGTH));
+    }
+
+    /**
+     * Parses and compiles a policy
+     * @param specification The policy's settings, as described by {@link PasswordPolicy}
+     * @return the compiled {@link PasswordPolicy}
+     * @throws IllegalArgumentException in the event the policy is malformed or can't be met
+     */
+    public static PasswordPolicy parse(String specification) {
+        String[] modes = DEFAULT_MODES.clone();
+        String[] alphabets = TYPE_ALPHABETS.clone();
+        String forbidden = "";
+        int minLength = -1, maxLength = -1;
+        for(String setting : specification.trim().split("[\\s;]+")) {
+            if(setting.isEmpty()) {
+                continue;
+            }
+            int equals = setting.indexOf('=');
+            if(equals <= 0) {
+                throw new IllegalArgumentException("Malformed password policy setting: " + setting);
+            }
+            String name = setting.substring(0, equals).toLowerCase(Locale.ROOT), value = setting.substring(equals + 1);
+            if(name.equals(LENGTH)) {
+                if(!value.matches("\\d{1,6}(-\\d{1,6})?")) {
+                    throw new IllegalArgumentException("Malformed password length range: " + value);
+                }
+                int dash = value.indexOf('-');
+                minLength = Integer.parseInt(dash < 0 ? value : value.substring(0, dash));
+                maxLength = dash < 0 ? minLength : Integer.parseInt(value.substring(dash + 1));
+                continue;
+            }
+            if(name.equals(FORBID)) {
+                forbidden += value;
+                continue;
+            }
+            int type = typeNamed(name);
+            int colon = value.indexOf(':');
+            String mode = (colon < 0 ? value : value.substring(0, colon)).toLowerCase(Locale.ROOT);
+            if(!mode.equals(REQUIRED) && !mode.equals(ALLOWED) && !mode.equals(NONE)) {
+                throw new IllegalArgumentException("Unknown mode for " + name + ": " + mode);
+            }
+            modes[type] = mode;
+            if(colon >= 0) {
+                alphabets[type] = value.substring(colon + 1);
+            }
+        }
+        boolean[] required = new boolean[modes.length];
+        int requiredCount = 0;
+        for(int i = 0; i < modes.length; i++) {
+            required[i] = modes[i].equals(REQUIRED);
+            requiredCount += required[i] ? 1 : 0;
+            if(modes[i].equals(NONE)) {
+                alphabets[i] = null;
+            }
+        }
+        if(minLength < 0) {
+            minLength = Math.max(1, requiredCount);
+            maxLength = Integer.MAX_VALUE;
+        }
+        if(minLength == 0 || maxLength < minLength) {
+            throw new IllegalArgumentException("Invalid password length range: " + minLength + "-" + maxLength);
+        }
+        if(minLength < requiredCount) {
+            throw new IllegalArgumentException("Passwords of " + minLength + " characters can't include all "
+                    + requiredCount + " required types");
+        }
+        return new PasswordPolicy(specification.trim(), minLength, maxLength, alphabets, required, forbidden);
+    }
+
+    /**
+     * Compiles the policy followed by the generator's character set flags: each enabled set is required, and
+     * passwords may be any length
+     * @param flags The flags of the generator's character sets
+     * @return the compiled {@link PasswordPolicy}, or null if no sets are enabled
+     */
+    static PasswordPolicy fromFlags(boolean[] flags) {
+        String[] alphabets = new String[TYPE_ALPHABETS.length];
+        StringBuilder specification = new StringBuilder();
+        boolean any = false;
+        for(int i = 0; i < flags.length; i++) {
+            alphabets[i] = flags[i] ? TYPE_ALPHABETS[i] : null;
+            any |= flags[i];
+            specification.append(specification.length() > 0 ? " " : "").append(TYPE_NAMES[i]).append('=')
+                    .append(flags[i] ? REQUIRED : NONE);
+        }
+        return any ? new PasswordPolicy(specification.toString(), 1, Integer.MAX_VALUE, alphabets, flags, "") : null;
+    }
+
+    /**
+     * Finds the policy configured for a website, looking for its host name and then each domain the host belongs
+     * to, so a policy for "example.com" also covers "https://login.example.com/". Each policy is compiled once and
+     * cached until its configuration changes.
+     * @param website The website, which may be a URL
+     * @param configuration The configuration holding sites' policies
+     * @return the site's compiled {@link PasswordPolicy}, or null if none is configured
+     * @throws IllegalArgumentException in the event the site's policy is malformed or can't be met
+     */
+    public static PasswordPolicy forSite(String website, Properties configuration) {
+        String site = hostOf(website);
+        while(!site.isEmpty()) {
+            String specification = configuration.getProperty(PROPERTY_PREFIX + site);
+            if(specification != null) {
+                PasswordPolicy policy = siteCache.get(site);
+                if(policy == null || !policy.specification.equals(specification.trim())) {
+                    policy = parse(specification);
+                    siteCache.put(site, policy);
+                }
+                return policy;
+            }
+            siteCache.remove(site);
+            int dot = site.indexOf('.');
+            site = dot < 0 ? "" : site.substring(dot + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Extracts the host name from a website, such as "login.example.com" from "https://www.login.example.com/home"
+     * @param website The website
+     * @return the host name in lowercase, without any leading "www."
+     */
+    private static String hostOf(String website) {
+        String host = website.trim().toLowerCase(Locale.ROOT);
+        int scheme = host.indexOf("://");
+        if(scheme >= 0) {
+            host = host.substring(scheme + 3);
+        }
+        int at = host.indexOf('@');
+        if(at >= 0) {
+            host = host.substring(at + 1);
+        }
+        int end = 0;
+        while(end < host.length() && "/:?#".indexOf(host.charAt(end)) < 0) {
+            end++;
+        }
+        host = host.substring(0, end);
+        return host.startsWith("www.") ? host.substring(4) : host;
+    }
+
+    /**
+     * Finds the index of a type of character
+     * @param name The type's name
+     * @return the index of the type in {@link #TYPE_NAMES}
+     * @throws IllegalArgumentException in the event there is no type with the given name
+     */
+    private static int typeNamed(String name) {
+        for(int i = 0; i < TYPE_NAMES.length; i++) {
+            if(TYPE_NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown password policy setting: " + name);
+    }
+
+    /**
+     * Gets the shortest password the policy allows
+     * @return the minimum length
+     */
+    public int getMinLength() {
+        return minLength;
+    }
+
+    /**
+     * Gets the longest password the policy allows
+     * @return the maximum length
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Brings a length within the range the policy allows
+     * @param length The desired length
+     * @return the closest length the policy allows
+     */
+    public int clampLength(int length) {
+        return Math.max(minLength, Math.min(maxLength, length));
+    }
+
+    /**
+     * Generates a password following the policy. When the password is too short to include every required type,
+     * which only policies compiled from the generator's flags allow, each of its characters is of a different type.
+     * @param length The length of the password, which the caller has brought within the policy's range
+     * @param random The calling thread's random bytes
+     * @return a char[] containing the password
+     */
+    char[] generate(int length, RandomBytes random) {
+        char[] password = new char[length];
+        if(length < requiredCount) {
+            generateShort(password, random);
+            return password;
+        }
+        double[][] coverage = coverage(length);
+        int missing = requiredTypes, types = typeStarts.length - 1;
+        for(int i = 0; i < length; i++) {
+            if(missing == 0) {
+                password[i] = characters[random.nextInt(characters.length)];
+                continue;
+            }
+            // Weigh each type by its size and the chance the rest of the password includes the types still missing
+            double[] rest = coverage[length - i - 1];
+            double target = random.nextDouble() * coverage[length - i][missing] * characters.length;
+            int type = -1;
+            for(int t = 0; t < types; t++) {
+                double weight = (typeStarts[t + 1] - typeStarts[t]) * rest[missing & ~(1 << t)];
+                if(weight > 0) {
+                    type = t;
+                    target -= weight;
+                    if(target < 0) {
+                        break;
+                    }
+                }
+            }
+            int start = typeStarts[type];
+            password[i] = characters[start + random.nextInt(typeStarts[type + 1] - start)];
+            missing &= ~(1 << type);
+        }
+        return password;
+    }
+
+    /**
+     * Fills a password too short to include every required type with characters of different types, drawing whole
+     * passwords until one qualifies
+     * @param password The password to fill
+     * @param random The calling thread's random bytes
+     */
+    private void generateShort(char[] password, RandomBytes random) {
+        while(true) {
+            int found = 0;
+            for(int i = 0; i < password.length; i++) {
+                int index = random.nextInt(characters.length);
+                password[i] = characters[index];
+                found |= 1 << typeOf(index);
+            }
+            if(Integer.bitCount(found & requiredTypes) == password.length) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the type of a character in the table
+     * @param index The character's index in {@link #characters}
+     * @return the index of its type
+     */
+    private int typeOf(int index) {
+        int type = 0;
+        while(typeStarts[type + 1] <= index) {
+            type++;
+        }
+        return type;
+    }
+
+    /**
+     * Gets the coverage table, growing it if it doesn't yet reach a given length
+     * @param length The number of characters the table must reach
+     * @return the table, with at least length + 1 rows
+     */
+    private double[][] coverage(int length) {
+        double[][] table = coverage;
+        if(table.length > length) {
+            return table;
+        }
+        synchronized(this) {
+            table = coverage;
+            if(table.length <= length) {
+                table = coverage = buildCoverage(table, Math.max(length, (int) Math.min(maxLength, 2L * table.length)));
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Extends the coverage table: the probability that r random characters include every type in a mask is the sum,
+     * over each type the first character could be, of that type's share of the alphabet times the probability the
+     * other r - 1 characters include the rest of the mask
+     * @param table The existing rows
+     * @param length The number of characters the table should reach
+     * @return the table, with length + 1 rows
+     */
+    private double[][] buildCoverage(double[][] table, int length) {
+        int types = typeStarts.length - 1, masks = 1 << types;
+        double[][] grown = new double[length + 1][];
+        System.arraycopy(table, 0, grown, 0, table.length);
+        for(int r = table.length; r <= length; r++) {
+            double[] row = grown[r] = new double[masks];
+            if(r == 0) {
+                row[0] = 1;
+                continue;
+            }
+            double[] previous = grown[r - 1];
+            for(int mask = 0; mask < masks; mask++) {
+                double p = 0;
+                for(int t = 0; t < types; t++) {
+                    p += (typeStarts[t + 1] - typeStarts[t]) * previous[mask & ~(1 << t)];
+                }
+                row[mask] = p / characters.length;
+            }
+        }
+        return grown;
+    }
+
+    /**
+     * Calculates the entropy of passwords following the policy: the base-2 logarithm of the number of distinct
+     * passwords of a given length, every one of which is equally likely
+     * @param length The length of the passwords
+     * @return the entropy in bits
+     */
+    public double getEntropy(int length) {
+        if(length <= 0) {
+            return 0;
+        }
+        int types = typeStarts.length - 1;
+        BigInteger count = BigInteger.ZERO;
+        if(length >= requiredCount) {
+            // Count passwords including every required type by inclusion-exclusion over the types left out
+            for(int excluded = 0; excluded < 1 << types; excluded++) {
+                if((excluded & ~requiredTypes) != 0) {
+                    continue;
+                }
+                int available = characters.length;
+                for(int t = 0; t < types; t++) {
+                    if((excluded & (1 << t)) != 0) {
+                        available -= typeStarts[t + 1] - typeStarts[t];
+                    }
+                }
+                BigInteger term = BigInteger.valueOf(available).pow(length);
+                count = Integer.bitCount(excluded) % 2 == 0 ? count.add(term) : count.subtract(term);
+            }
+        } else {
+            // Choose the required types the characters come from, then arrange them in every order
+            for(int chosen = 0; chosen < 1 << types; chosen++) {
+                if((chosen & ~requiredTypes) == 0 && Integer.bitCount(chosen) == length) {
+                    BigInteger term = BigInteger.ONE;
+                    for(int t = 0; t < types; t++) {
+                        if((chosen & (1 << t)) != 0) {
+                            term = term.multiply(BigInteger.valueOf(typeStarts[t + 1] - typeStarts[t]));
+                        }
+                    }
+                    count = count.add(term);
+                }
+            }
+            for(int i = 2; i <= length; i++) {
+                count = count.multiply(BigInteger.valueOf(i));
+            }
+        }
+        int shift = Math.max(0, count.bitLength() - 62);
+        return shift + Math.log(count.shiftRight(shift).doubleValue()) / Math.log(2);
+    }
+
+    /**
+     * Gets the policy's settings
+     * @return the text the policy was parsed from
+     */
+    @Override
+    public String toString() {
+        return specification;
+    }
+}
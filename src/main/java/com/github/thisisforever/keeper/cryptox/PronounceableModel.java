@@ -0,0 +1,219 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import java.util.Arrays;
+
+/**
+ * A Markov model of how letters follow one another in English words, used to generate pronounceable passwords. The
+ * model is trained on the embedded {@link Wordlist} the first time it's needed: for each context of the two letters
+ * before it, it counts how often each letter comes next, and how often the word ends there. A generated password is
+ * a run of invented words, each drawn letter by letter from those counts and separated by {@value #SEPARATOR}.
+ * <p>
+ * The counts are kept in primitive arrays rather than maps: each context owns a run of entries in a table of the
+ * symbols that follow it and the running total of their counts, so the next symbol is found with a binary search of
+ * the run. Letters come before the end of the word in each run, so the final character of a password can be drawn
+ * from letters alone.
+ */
+class PronounceableModel {
+
+    // Defines the character placed between the invented words of a password
+    static final char SEPARATOR = '-';
+    // Define the symbols of the model: 0 marks the start of a word in a context, 1 to 26 are letters, and 27 is the
+    // end of a word
+    private static final int BOUNDARY = 0, LETTERS = 26, END = LETTERS + 1;
+    // Defines the number of contexts: every pair of preceding symbols, each either a letter or the start of the word
+    private static final int CONTEXTS = (LETTERS + 1) * (LETTERS + 1);
+    // Defines the context at the start of every word
+    private static final int START = BOUNDARY * (LETTERS + 1) + BOUNDARY;
+
+    // References the model, once it has been trained
+    private static volatile PronounceableModel instance;
+
+    // Holds the index each context's run of entries starts at; the entry after the last context is the table's size
+    private final int[] runStarts;
+    // Holds the symbol of each entry, and the running total of counts within its context up to and including it
+    private final byte[] symbols;
+    private final int[] cumulative;
+    // Holds, for each context, the total of the counts of the letters following it, excluding the end of the word
+    private final int[] letterTotals;
+
+    private PronounceableModel(int[] runStarts, byte[] symbols, int[] cumulative, int[] letterTotals) {
+        this.runStarts = runStarts;
+        this.symbols = symbols;
+        this.cumulative = cumulative;
+        this.letterTotals = letterTotals;
+    }
+
+    /**
+     * Gets the model, training it the first time it's needed
+     * @return the {@link PronounceableModel}
+     */
+    static PronounceableModel get() {
+        PronounceableModel model = instance;
+        if(model == null) {
+            synchronized(PronounceableModel.class) {
+                model = instance;
+                if(model == null) {
+                    model = instance = train(Wordlist.get());
+                }
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Counts the transitions in every word of a list, and packs them into the model's tables
+     * @param wordlist The words to learn from
+     * @return the trained {@link PronounceableModel}
+     */
+    private static PronounceableModel train(Wordlist wordlist) {
+        int[] counts = new int[CONTEXTS * (END + 1)];
+        char[] word = new char[64];
+        for(int i = 0; i < Wordlist.SIZE; i++) {
+            int length = wordlist.length(i);
+            if(length > word.length) {
+                word = new char[length];
+            }
+            wordlist.copy(i, word, 0);
+            int context = START;
+            for(int j = 0; j < length; j++) {
+                int symbol = word[j] - 'a' + 1;
+                counts[context * (END + 1) + symbol]++;
+                context = next(context, symbol);
+            }
+            counts[context * (END + 1) + END]++;
+        }
+        int entries = 0;
+        for(int count : counts) {
+            entries += count > 0 ? 1 : 0;
+        }
+        int[] runStarts = new int[CONTEXTS + 1];
+        byte[] symbols = new byte[entries];
+        int[] cumulative = new int[entries];
+        int[] letterTotals = new int[CONTEXTS];
+        int entry = 0;
+        for(int context = 0; context < CONTEXTS; context++) {
+            runStarts[context] = entry;
+            int total = 0;
+            for(int symbol = 1; symbol <= END; symbol++) {
+                int count = counts[context * (END + 1) + symbol];
+                if(count > 0) {
+                    total += count;
+                    symbols[entry] = (byte) symbol;
+                    cumulative[entry++] = total;
+                }
+                if(symbol == LETTERS) {
+                    letterTotals[context] = total;
+                }
+            }
+        }
+        runStarts[CONTEXTS] = entry;
+        return new PronounceableModel(runStarts, symbols, cumulative, letterTotals);
+    }
+
+    /**
+     * Finds the context after a symbol
+     * @param context The context before the symbol
+     * @param symbol The symbol
+     * @return the context made of the context's last symbol and the new one, or the start of a word after its end
+     */
+    private static int next(int context, int symbol) {
+        return symbol == END ? START : (context % (LETTERS + 1)) * (LETTERS + 1) + symbol;
+    }
+
+    /**
+     * Gets the context the final character of a password is drawn from: the current context if any letters follow
+     * it, otherwise the start of a word
+     * @param context The current context
+     * @return the context to draw the final letter from
+     */
+    private int finalContext(int context) {
+        return letterTotals[context] > 0 ? context : START;
+    }
+
+    /**
+     * Generates a pronounceable password
+     * @param length The length of the password
+     * @param random The calling thread's random bytes
+     * @return a char[] containing the password
+     */
+    char[] generate(int length, RandomBytes random) {
+        char[] password = new char[length];
+        int context = START;
+        for(int i = 0; i < length; i++) {
+            boolean last = i == length - 1;
+            if(last) {
+                context = finalContext(context);
+            }
+            int start = runStarts[context], end = runStarts[context + 1];
+            int target = random.nextInt(last ? letterTotals[context] : cumulative[end - 1]);
+            // Find the first entry whose running total exceeds the target
+            int low = start, high = end - 1;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(cumulative[middle] > target) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            int symbol = symbols[low];
+            password[i] = symbol == END ? SEPARATOR : (char) ('a' + symbol - 1);
+            context = next(context, symbol);
+        }
+        return password;
+    }
+
+    /**
+     * Calculates the entropy of the passwords {@link #generate(int, RandomBytes)} produces, following the
+     * distribution of contexts from one character to the next. Since each password is made in exactly one way, its
+     * probability is that of its sequence of symbols.
+     * @param length The length of the passwords
+     * @param minimum true for the min-entropy, set by the most likely password, otherwise the Shannon entropy, the
+     *                average over all passwords
+     * @return the entropy in bits
+     */
+    double getEntropy(int length, boolean minimum) {
+        // Holds the probability of reaching each context, or for min-entropy the fewest bits of any way to reach it
+        double[] reach = new double[CONTEXTS], nextReach = new double[CONTEXTS];
+        Arrays.fill(reach, minimum ? Double.POSITIVE_INFINITY : 0);
+        reach[START] = minimum ? 0 : 1;
+        double entropy = 0;
+        for(int i = 0; i < length; i++) {
+            boolean last = i == length - 1;
+            Arrays.fill(nextReach, minimum ? Double.POSITIVE_INFINITY : 0);
+            for(int context = 0; context < CONTEXTS; context++) {
+                if(minimum ? reach[context] == Double.POSITIVE_INFINITY : reach[context] == 0) {
+                    continue;
+                }
+                int from = last ? finalContext(context) : context;
+                int start = runStarts[from], end = runStarts[from + 1];
+                double total = last ? letterTotals[from] : cumulative[end - 1];
+                for(int entry = start; entry < end; entry++) {
+                    if(last && symbols[entry] == END) {
+                        break;
+                    }
+                    double p = (cumulative[entry] - (entry == start ? 0 : cumulative[entry - 1])) / total;
+                    double bits = -Math.log(p) / Math.log(2);
+                    int to = next(from, symbols[entry]);
+                    if(minimum) {
+                        nextReach[to] = Math.min(nextReach[to], reach[context] + bits);
+                    } else {
+                        entropy += reach[context] * p * bits;
+                        nextReach[to] += reach[context] * p;
+                    }
+                }
+            }
+            double[] swap = reach;
+            reach = nextReach;
+            nextReach = swap;
+        }
+        if(minimum) {
+            entropy = Double.POSITIVE_INFINITY;
+            for(double bits : reach) {
+                entropy = Math.min(entropy, bits);
+            }
+            return length <= 0 ? 0 : entropy;
+        }
+        return entropy;
+    }
+}
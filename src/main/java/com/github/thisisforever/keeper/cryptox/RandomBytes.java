@@ -0,0 +1,89 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import java.security.SecureRandom;
+
+/**
+ * A thread's random number generator, along with a block of random bytes drawn from it which have yet to be used.
+ * Each thread generating passwords has its own, given by {@link #get()}, so threads never contend for a generator,
+ * and the generator is only called once per block rather than once per character.
+ */
+class RandomBytes {
+
+    // Defines the number of random bytes drawn from the generator at a time
+    private static final int BLOCK_SIZE = 256;
+    // Holds each thread's random bytes
+    private static final ThreadLocal<RandomBytes> RANDOM = ThreadLocal.withInitial(RandomBytes::new);
+
+    private final SecureRandom prng = new SecureRandom();
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int position = BLOCK_SIZE;
+
+    private RandomBytes() {
+
+    }
+
+    /**
+     * Gets the calling thread's random bytes
+     * @return the {@link RandomBytes}, which must only be used by the calling thread
+     */
+    static RandomBytes get() {
+        return RANDOM.get();
+    }
+
+    /**
+     * Gets the next random byte, drawing another block from the generator once the current one is used up. Each
+     * byte is erased as it's used.
+     * @return a random value from 0 to 255
+     */
+    int next() {
+        if(position == BLOCK_SIZE) {
+            prng.nextBytes(block);
+            position = 0;
+        }
+        int b = block[position] & 0xFF;
+        block[position++] = 0;
+        return b;
+    }
+
+    /**
+     * Gets a random number with a given number of bits, every value being equally likely
+     * @param bits The number of bits, from 1 to 31
+     * @return a random value from 0 to 2^bits - 1
+     */
+    int nextBits(int bits) {
+        long value = 0;
+        for(int i = 0; i < bits; i += 8) {
+            value = (value << 8) | next();
+        }
+        return (int) (value & ((1L << bits) - 1));
+    }
+
+    /**
+     * Gets a random number below a bound, every value being equally likely. Values which would favor some numbers
+     * over others are rejected and drawn again.
+     * @param bound The number of possible values, which must be positive
+     * @return a random value from 0 to bound - 1
+     */
+    int nextInt(int bound) {
+        if(bound <= 256) {
+            int limit = 256 - 256 % bound, b;
+            do {
+                b = next();
+            } while(b >= limit);
+            return b % bound;
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(bound - 1), value;
+        do {
+            value = nextBits(bits);
+        } while(value >= bound);
+        return value;
+    }
+
+    /**
+     * Gets a random number between 0 and 1 with 53 random bits, the precision of a double
+     * @return a random value at least 0 and less than 1
+     */
+    double nextDouble() {
+        return (((long) nextBits(26) << 27) | nextBits(27)) * 0x1.0p-53;
+    }
+}
@@ -0,0 +1,491 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.Utility;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Indexes the websites and usernames of a collection of {@link Entry} objects so they can be searched as the user
+ * types, without scanning every entry on each keystroke. Websites and usernames are indexed in lowercase, as
+ * {@link EntryStore} lowercases them for sorting, so searches ignore case.
+ * <p>
+ * Queries of three or more characters match entries whose website or username contains the query. Each entry is
+ * listed under every three-character sequence (trigram) in its website and username; a query's candidates are the
+ * entries listed under its rarest trigrams, found by intersecting those sorted lists with exponential search, and
+ * each candidate is then checked for the query itself against the lowercase website and username its
+ * store keeps outside the heap, so the index holds no copy of them. Shorter queries have no trigrams, so they match
+ * entries with a word in their website or username beginning with the query, found with a prefix trie. An empty
+ * query matches every entry.
+ * <p>
+ * The index is updated as entries are added, changed and removed. Each entry indexed is given an ordinal, and lists
+ * hold ordinals in increasing order. Removed entries leave their ordinals in the lists until enough have accumulated
+ * that the index is rebuilt. A changed entry is removed and added again under a new ordinal.
+ */
+public class SearchIndex {
+
+    // Defines the length of the character sequences indexed for substring queries
+    private static final int GRAM_LENGTH = 3;
+    // Defines the length of the longest word prefix indexed by the trie, used for queries too short to have trigrams
+    private static final int PREFIX_DEPTH = GRAM_LENGTH - 1;
+    // Defines the number of a query's trigrams whose lists are intersected, starting from the shortest
+    private static final int MAX_LISTS_INTERSECTED = 3;
+    // Defines the number of removed entries which may accumulate before the index is rebuilt, provided they
+    // also outnumber the entries remaining
+    private static final int MIN_REMOVED_BEFORE_REBUILD = 1024;
+
+    // Holds the entry indexed under each ordinal, or null if the entry has since been removed
+    private final ArrayList<Entry> entries;
+    // Maps each indexed entry's ID to its ordinal
+    private final HashMap<UUID, Integer> ordinals;
+    // Maps each trigram, packed into a long, to the ordinals of the entries containing it
+    private final GramTable grams;
+    // The root of the trie of word prefixes
+    private PrefixNode root;
+    // Counts the ordinals whose entries have been removed
+    private int removedCount;
+
+    /**
+     * Creates an empty index
+     */
+    public SearchIndex() {
+        entries = new ArrayList<>();
+        ordinals = new HashMap<>();
+        grams = new GramTable();
+        root = new PrefixNode();
+    }
+
+    /**
+     * Creates an index of the given entries
+     * @param entries The entries to index
+     */
+    public SearchIndex(Collection<Entry> entries) {
+        this();
+        for(Entry e : entries) {
+            add(e);
+        }
+    }
+
+    /**
+     * Adds an entry to the index. If an entry with the same ID is already indexed, it is replaced.
+     * @param entry The entry to add
+     */
+    public void add(Entry entry) {
+        remove(entry.getId());
+        int ordinal = entries.size();
+        String website = normalize(entry.getWebsite()), username = normalize(entry.getUsername());
+        entries.add(entry);
+        ordinals.put(entry.getId(), ordinal);
+        indexGrams(website, ordinal);
+        indexGrams(username, ordinal);
+        indexPrefixes(website, ordinal);
+        indexPrefixes(username, ordinal);
+    }
+
+    /**
+     * Re-indexes an entry whose website or username has changed
+     * @param entry The changed entry
+     */
+    public void update(Entry entry) {
+        add(entry);
+    }
+
+    /**
+     * Removes an entry from the index
+     * @param id The entry's ID
+     * @return true if the entry was indexed, otherwise false
+     */
+    public boolean remove(UUID id) {
+        Integer ordinal = ordinals.remove(id);
+        if(ordinal == null) {
+            return false;
+        }
+        entries.set(ordinal, null);
+        removedCount++;
+        if(removedCount >= MIN_REMOVED_BEFORE_REBUILD && removedCount > ordinals.size()) {
+            rebuild();
+        }
+        return true;
+    }
+
+    /**
+     * Removes every entry from the index
+     */
+    public void clear() {
+        entries.clear();
+        ordinals.clear();
+        grams.clear();
+        root = new PrefixNode();
+        removedCount = 0;
+    }
+
+    /**
+     * Gets the number of entries in the index
+     * @return the number of entries
+     */
+    public int size() {
+        return ordinals.size();
+    }
+
+    /**
+     * Finds every entry matching a query, in the order they were indexed
+     * @param query The text to search for
+     * @return an {@link ArrayList} of the matching entries
+     */
+    public ArrayList<Entry> search(String query) {
+        return search(query, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Finds the first entries matching a query, in the order they were indexed
+     * @param query The text to search for
+     * @param limit The maximum number of entries to return
+     * @return an {@link ArrayList} of at most limit matching entries
+     */
+    public ArrayList<Entry> search(String query, int limit) {
+        String q = normalize(query);
+        ArrayList<Entry> results = new ArrayList<>();
+        if(q.isEmpty()) {
+            for(int i = 0; i < entries.size() && results.size() < limit; i++) {
+                if(entries.get(i) != null) {
+                    results.add(entries.get(i));
+                }
+            }
+        } else if(q.length() <= PREFIX_DEPTH) {
+            searchPrefix(q, limit, results);
+        } else {
+            searchGrams(q, limit, results);
+        }
+        return results;
+    }
+
+    /**
+     * Finds entries with a word beginning with a short query
+     * @param q The normalized query, no longer than {@link #PREFIX_DEPTH}
+     * @param limit The maximum number of entries to find
+     * @param results The list the entries found are added to
+     */
+    private void searchPrefix(String q, int limit, ArrayList<Entry> results) {
+        PrefixNode node = root;
+        for(int i = 0; i < q.length() && node != null; i++) {
+            node = node.child(q.charAt(i), false);
+        }
+        if(node == null) {
+            return;
+        }
+        IntList postings = node.postings;
+        for(int i = 0; i < postings.size && results.size() < limit; i++) {
+            Entry e = entries.get(postings.data[i]);
+            if(e != null) {
+                results.add(e);
+            }
+        }
+    }
+
+    /**
+     * Finds entries whose website or username contains a query of at least {@link #GRAM_LENGTH} characters by
+     * intersecting the lists of the query's trigrams
+     * @param q The normalized query
+     * @param limit The maximum number of entries to find
+     * @param results The list the entries found are added to
+     */
+    private void searchGrams(String q, int limit, ArrayList<Entry> results) {
+        // Gather the list for each distinct trigram in the query; if any is missing, nothing can match
+        ArrayList<IntList> lists = new ArrayList<>();
+        for(int i = 0; i + GRAM_LENGTH <= q.length(); i++) {
+            IntList list = grams.get(gram(q, i));
+            if(list == null) {
+                return;
+            }
+            if(!lists.contains(list)) {
+                lists.add(list);
+            }
+        }
+        // Intersect only the shortest lists; candidates are checked for the whole query anyway
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+        int listCount = Math.min(lists.size(), MAX_LISTS_INTERSECTED);
+        IntList shortest = lists.get(0);
+        int[] cursors = new int[listCount];
+        if(shortest.size == 0) {
+            return;
+        }
+        byte[] query = Utility.encode(q);
+        int candidate = shortest.data[0];
+        candidates:
+        while(results.size() < limit) {
+            for(int l = 1; l < listCount; l++) {
+                IntList list = lists.get(l);
+                cursors[l] = list.seek(candidate, cursors[l]);
+                if(cursors[l] == list.size) {
+                    return;
+                }
+                if(list.data[cursors[l]] != candidate) {
+                    // Skip ahead in the shortest list past every ordinal this list doesn't have
+                    cursors[0] = shortest.seek(list.data[cursors[l]], cursors[0]);
+                    if(cursors[0] == shortest.size) {
+                        return;
+                    }
+                    candidate = shortest.data[cursors[0]];
+                    continue candidates;
+                }
+            }
+            // Every trigram intersected is present, but not necessarily adjacent; check for the query itself
+            Entry e = entries.get(candidate);
+            if(e != null && e.lowercaseContains(query)) {
+                results.add(e);
+            }
+            if(++cursors[0] == shortest.size) {
+                return;
+            }
+            candidate = shortest.data[cursors[0]];
+        }
+    }
+
+    /**
+     * Lists an ordinal under each trigram in some text
+     * @param text The normalized text
+     * @param ordinal The ordinal of the entry the text belongs to
+     */
+    private void indexGrams(String text, int ordinal) {
+        for(int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            grams.getOrCreate(gram(text, i)).addOnce(ordinal);
+        }
+    }
+
+    /**
+     * Lists an ordinal in the trie under the first {@link #PREFIX_DEPTH} characters of each word in some text. Words
+     * are runs of letters and digits.
+     * @param text The normalized text
+     * @param ordinal The ordinal of the entry the text belongs to
+     */
+    private void indexPrefixes(String text, int ordinal) {
+        int i = 0;
+        while(i < text.length()) {
+            if(!Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+                continue;
+            }
+            PrefixNode node = root;
+            for(int depth = 0; depth < PREFIX_DEPTH && i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                    depth++, i++) {
+                node = node.child(text.charAt(i), true);
+                node.postings.addOnce(ordinal);
+            }
+            // Skip the rest of the word
+            while(i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from the entries remaining, discarding the ordinals of removed entries
+     */
+    private void rebuild() {
+        ArrayList<Entry> remaining = new ArrayList<>(ordinals.size());
+        for(Entry e : entries) {
+            if(e != null) {
+                remaining.add(e);
+            }
+        }
+        clear();
+        for(Entry e : remaining) {
+            add(e);
+        }
+    }
+
+    /**
+     * Packs the trigram at a position in some text into a long
+     * @param text The text
+     * @param index The position of the trigram's first character
+     * @return the packed trigram
+     */
+    private static long gram(String text, int index) {
+        return ((long) text.charAt(index) << 32) | ((long) text.charAt(index + 1) << 16) | text.charAt(index + 2);
+    }
+
+    /**
+     * Normalizes text for indexing and searching
+     * @param text The text to normalize
+     * @return the text in lowercase, as {@link EntryStore} lowercases websites and usernames
+     */
+    private static String normalize(String text) {
+        return EntryStore.lowercase(text);
+    }
+
+    /**
+     * A hash table mapping packed trigrams to their lists, using open addressing so that trigrams aren't boxed
+     */
+    private static final class GramTable {
+
+        // Holds each slot's trigram and list; a slot is empty when its list is null
+        private long[] keys = new long[1024];
+        private IntList[] values = new IntList[1024];
+        private int size;
+
+        /**
+         * Removes every trigram from the table, overwriting the trigrams it held
+         */
+        void clear() {
+            Arrays.fill(keys, 0);
+            keys = new long[1024];
+            values = new IntList[1024];
+            size = 0;
+        }
+
+        /**
+         * Looks up the list of a trigram
+         * @param key The packed trigram
+         * @return the trigram's list, or null if no entry contains the trigram
+         */
+        IntList get(long key) {
+            int mask = keys.length - 1;
+            for(int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+                if(keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Looks up the list of a trigram, creating an empty list if there is none
+         * @param key The packed trigram
+         * @return the trigram's list
+         */
+        IntList getOrCreate(long key) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            for(; values[slot] != null; slot = (slot + 1) & mask) {
+                if(keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            if((size + 1) * 2 > keys.length) {
+                grow();
+                return getOrCreate(key);
+            }
+            keys[slot] = key;
+            values[slot] = new IntList();
+            size++;
+            return values[slot];
+        }
+
+        /**
+         * Doubles the table's capacity, moving every trigram to its new slot
+         */
+        private void grow() {
+            long[] oldKeys = keys;
+            IntList[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new IntList[oldValues.length * 2];
+            int mask = keys.length - 1;
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldValues[i] != null) {
+                    int slot = hash(oldKeys[i]) & mask;
+                    while(values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+    }
+
+    /**
+     * A node in the trie of word prefixes, holding the ordinals of the entries with a word beginning with the
+     * characters leading to the node
+     */
+    private static final class PrefixNode {
+
+        // Holds the characters leading to each child, sorted, and the children themselves
+        private char[] keys = new char[0];
+        private PrefixNode[] children = new PrefixNode[0];
+        private final IntList postings = new IntList();
+
+        /**
+         * Finds the child reached by a character
+         * @param c The character
+         * @param create true if the child should be created when it doesn't exist
+         * @return the child, or null if it doesn't exist and create is false
+         */
+        PrefixNode child(char c, boolean create) {
+            int index = Arrays.binarySearch(keys, c);
+            if(index >= 0) {
+                return children[index];
+            }
+            if(!create) {
+                return null;
+            }
+            index = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            PrefixNode[] newChildren = new PrefixNode[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(children, 0, newChildren, 0, index);
+            newKeys[index] = c;
+            newChildren[index] = new PrefixNode();
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+            System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+            keys = newKeys;
+            children = newChildren;
+            return children[index];
+        }
+
+    }
+
+    /**
+     * A growable list of ordinals in increasing order
+     */
+    private static final class IntList {
+
+        private int[] data = new int[4];
+        private int size;
+
+        /**
+         * Appends an ordinal unless it is already the last in the list. Ordinals are only ever added in increasing
+         * order, so this keeps each ordinal from being listed twice.
+         * @param value The ordinal to add
+         */
+        void addOnce(int value) {
+            if(size > 0 && data[size - 1] == value) {
+                return;
+            }
+            if(size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        /**
+         * Finds the position of the first ordinal at least as large as a target, searching forward from a position
+         * with exponentially growing steps and then binary search
+         * @param target The ordinal to find
+         * @param from The position to start searching from
+         * @return the position found, or size if every remaining ordinal is smaller
+         */
+        int seek(int target, int from) {
+            int step = 1;
+            int high = from;
+            while(high < size && data[high] < target) {
+                from = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high, size);
+            int index = Arrays.binarySearch(data, from, high, target);
+            return index >= 0 ? index : -index - 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,364 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import com.github.thisisforever.crypto.CryptographicFailureException;
+import com.github.thisisforever.crypto.Utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Audits the health of every password in an archive: its age, length, the types of characters it uses and whether it
+ * follows a weak pattern, such as a common word, a keyboard sequence or the entry's own username. Passwords are
+ * decrypted in parallel by a fixed number of workers, each of which decrypts one password, analyzes it and erases it
+ * before decrypting the next, so no more plaintext passwords are in memory at once than there are workers. Each
+ * worker tallies its own {@link AuditReport}, and the reports are combined once every entry has been audited.
+ * <p>
+ * Reused passwords are found by comparing fingerprints rather than plaintexts. Entries whose passwords had yet to be
+ * fingerprinted are fingerprinted while their passwords are decrypted for the audit. If a
+ * {@link BreachedPasswordChecker} is given, each password is also checked against its corpus of breached passwords.
+ */
+public class VaultAuditor {
+
+    // Defines how many entries a worker claims at a time
+    private static final int CHUNK_SIZE = 64;
+    // Defines the shortest password which isn't reported as short
+    static final int MIN_LENGTH = 12;
+    // Defines the fewest bits of entropy, estimated from a password's length and character types, which aren't
+    // reported as weak
+    static final int MIN_ENTROPY_BITS = 60;
+    // Defines the shortest run of sequential or repeated characters reported as a pattern
+    private static final int MIN_RUN_LENGTH = 4;
+    // Defines the shortest username or website name looked for in passwords
+    private static final int MIN_NAME_LENGTH = 4;
+    // Defines the age, in days, after which a password is reported as old
+    static final int MAX_AGE_DAYS = 365;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    // Defines the number of characters of each type, used to estimate entropy: lowercase and uppercase letters,
+    // digits and symbols
+    private static final int[] CLASS_SIZES = {26, 26, 10, 33};
+    // Words and number sequences common enough to be among the first guesses made by password crackers
+    private static final String[] COMMON_WORDS = {"password", "passw0rd", "qwerty", "letmein", "welcome", "admin",
+            "iloveyou", "monkey", "dragon", "football", "baseball", "sunshine", "princess", "master", "shadow",
+            "superman", "trustno1", "123456", "654321", "111111", "abc123", "login", "secret", "hello"};
+    // Rows of a US keyboard, in which runs of adjacent keys are reported as sequences
+    private static final String[] KEYBOARD_ROWS = {"`1234567890-=", "qwertyuiop[]\\", "asdfghjkl;'", "zxcvbnm,./"};
+
+    // References the manager used to decrypt and fingerprint passwords
+    private final PasswordArchiveManager manager;
+    // The number of workers, and so the most plaintext passwords held at once
+    private final int window;
+    // References the checker used to find breached passwords, or null if they aren't checked
+    private final BreachedPasswordChecker breachChecker;
+    // Counts the plaintext passwords currently held by workers, and the most held at once
+    private final AtomicInteger live, peakLive;
+
+    /**
+     * Creates an auditor with one worker for each available processor
+     * @param manager The manager used to decrypt the archive's passwords
+     */
+    public VaultAuditor(PasswordArchiveManager manager) {
+        this(manager, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an auditor with a given number of workers
+     * @param manager The manager used to decrypt the archive's passwords
+     * @param window The number of workers, which is also the most plaintext passwords held in memory at once
+     */
+    public VaultAuditor(PasswordArchiveManager manager, int window) {
+        this(manager, window, null);
+    }
+
+    /**
+     * Creates an auditor with a given number of workers which also checks passwords against a corpus of breached
+     * passwords
+     * @param manager The manager used to decrypt the archive's passwords
+     * @param window The number of workers, which is also the most plaintext passwords held in memory at once
+     * @param breachChecker The checker used to find breached passwords, or null if they shouldn't be checked
+     */
+    public VaultAuditor(PasswordArchiveManager manager, int window, BreachedPasswordChecker breachChecker) {
+        this.manager = manager;
+        this.window = Math.max(1, window);
+        this.breachChecker = breachChecker;
+        live = new AtomicInteger();
+        peakLive = new AtomicInteger();
+    }
+
+    /**
+     * Audits every entry in a list
+     * @param entries The entries to audit
+     * @return an {@link AuditReport} summarizing the health of the entries' passwords
+     */
+    public AuditReport audit(List<Entry> entries) {
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(window);
+        ArrayList<Future<AuditReport>> workers = new ArrayList<>(window);
+        AuditReport report = new AuditReport();
+        try {
+            for(int i = 0; i < window; i++) {
+                workers.add(executor.submit(() -> {
+                    AuditReport partial = new AuditReport();
+                    int from;
+                    while((from = next.getAndAdd(CHUNK_SIZE)) < entries.size()) {
+                        int to = Math.min(entries.size(), from + CHUNK_SIZE);
+                        for(int j = from; j < to; j++) {
+                            auditEntry(entries.get(j), now, partial);
+                        }
+                    }
+                    return partial;
+                }));
+            }
+            for(Future<AuditReport> worker : workers) {
+                report.add(worker.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while auditing passwords");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error: unable to audit passwords", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        // Find reused passwords by their fingerprints, now that every password has one
+        FingerprintIndex index = new FingerprintIndex();
+        for(Entry e : entries) {
+            index.add(e);
+        }
+        for(ArrayList<Entry> group : index.findReused()) {
+            report.addReused(group);
+        }
+        report.finish(window, peakLive.get(), System.nanoTime() - start);
+        return report;
+    }
+
+    /**
+     * Decrypts, analyzes and erases a single entry's password, fingerprinting it if it has no fingerprint
+     * @param e The entry to audit
+     * @param now The time of the audit, in milliseconds since the epoch
+     * @param report The worker's report, to which the entry's findings are added
+     */
+    private void auditEntry(Entry e, long now, AuditReport report) {
+        byte[] passwordData = e.getPasswordData();
+        if(passwordData == null || passwordData.length == 0) {
+            report.addEmpty();
+            return;
+        }
+        char[] password = null;
+        peakLive.accumulateAndGet(live.incrementAndGet(), Math::max);
+        try {
+            password = manager.decryptPasswordChars(passwordData);
+            if(e.getFingerprint() == null) {
+                e.setFingerprint(manager.fingerprintPassword(password));
+                manager.getFingerprintIndex().add(e);
+            }
+            analyze(e, password, now, report);
+        } catch (CryptographicFailureException ex) {
+            report.addFinding(e, AuditReport.Issue.UNREADABLE);
+        } finally {
+            Utility.erase(password);
+            live.decrementAndGet();
+        }
+    }
+
+    /**
+     * Analyzes a decrypted password, adding its statistics and any weaknesses found to a report
+     * @param e The entry the password belongs to
+     * @param password The password; trailing null characters, which older versions could leave after passwords, are
+     *                 ignored
+     * @param now The time of the audit, in milliseconds since the epoch
+     * @param report The report to add to
+     */
+    private void analyze(Entry e, char[] password, long now, AuditReport report) {
+        int length = password.length;
+        while(length > 0 && password[length - 1] == 0) {
+            length--;
+        }
+        // Determine which types of characters the password uses
+        int classes = 0;
+        for(int i = 0; i < length; i++) {
+            classes |= 1 << characterClass(password[i]);
+        }
+        int pool = 0, classCount = 0;
+        for(int c = 0; c < CLASS_SIZES.length; c++) {
+            if((classes & (1 << c)) != 0) {
+                pool += CLASS_SIZES[c];
+                classCount++;
+            }
+        }
+        double entropy = length == 0 ? 0 : length * (Math.log(pool) / Math.log(2));
+        long ageDays = e.getModified() == 0 ? -1 : Math.max(0, (now - e.getModified()) / MILLIS_PER_DAY);
+        report.addPassword(length, classCount, ageDays);
+
+        if(length < MIN_LENGTH) {
+            report.addFinding(e, AuditReport.Issue.SHORT);
+        }
+        if(entropy < MIN_ENTROPY_BITS) {
+            report.addFinding(e, AuditReport.Issue.LOW_ENTROPY);
+        }
+        for(String word : COMMON_WORDS) {
+            if(containsIgnoreCase(password, length, word)) {
+                report.addFinding(e, AuditReport.Issue.COMMON_WORD);
+                break;
+            }
+        }
+        if(hasSequence(password, length)) {
+            report.addFinding(e, AuditReport.Issue.SEQUENCE);
+        }
+        if(hasRepetition(password, length)) {
+            report.addFinding(e, AuditReport.Issue.REPETITION);
+        }
+        String site = siteName(e.getWebsite()), user = userName(e.getUsername());
+        if((site.length() >= MIN_NAME_LENGTH && containsIgnoreCase(password, length, site))
+                || (user.length() >= MIN_NAME_LENGTH && containsIgnoreCase(password, length, user))) {
+            report.addFinding(e, AuditReport.Issue.CONTAINS_NAME);
+        }
+        if(ageDays > MAX_AGE_DAYS) {
+            report.addFinding(e, AuditReport.Issue.OLD);
+        }
+        if(breachChecker != null && breachChecker.isBreached(password)) {
+            report.addFinding(e, AuditReport.Issue.BREACHED);
+        }
+    }
+
+    /**
+     * Determines the type of a character
+     * @param c The character
+     * @return 0 for lowercase letters, 1 for uppercase letters, 2 for digits and 3 for anything else
+     */
+    private static int characterClass(char c) {
+        if(Character.isLowerCase(c)) {
+            return 0;
+        } else if(Character.isUpperCase(c)) {
+            return 1;
+        } else if(Character.isDigit(c)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * Determines whether a password contains a word, ignoring case
+     * @param password The password
+     * @param length The length of the password
+     * @param word The word to look for, in lowercase
+     * @return true if the password contains the word, otherwise false
+     */
+    private static boolean containsIgnoreCase(char[] password, int length, String word) {
+        int last = length - word.length();
+        for(int i = 0; i <= last; i++) {
+            int j = 0;
+            while(j < word.length() && Character.toLowerCase(password[i + j]) == word.charAt(j)) {
+                j++;
+            }
+            if(j == word.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether a password contains a run of consecutive characters, such as "abcd" or "4321", or of
+     * adjacent keys on a keyboard row, such as "qwer"
+     * @param password The password
+     * @param length The length of the password
+     * @return true if such a run is at least {@link #MIN_RUN_LENGTH} characters long, otherwise false
+     */
+    private static boolean hasSequence(char[] password, int length) {
+        int ascending = 1, descending = 1;
+        for(int i = 1; i < length; i++) {
+            int step = Character.toLowerCase(password[i]) - Character.toLowerCase(password[i - 1]);
+            ascending = step == 1 ? ascending + 1 : 1;
+            descending = step == -1 ? descending + 1 : 1;
+            if(ascending >= MIN_RUN_LENGTH || descending >= MIN_RUN_LENGTH) {
+                return true;
+            }
+        }
+        for(int i = 0; i + MIN_RUN_LENGTH <= length; i++) {
+            char first = Character.toLowerCase(password[i]);
+            for(String row : KEYBOARD_ROWS) {
+                int column = row.indexOf(first);
+                if(column < 0 || column + MIN_RUN_LENGTH > row.length()) {
+                    continue;
+                }
+                int run = 1;
+                while(run < MIN_RUN_LENGTH && Character.toLowerCase(password[i + run]) == row.charAt(column + run)) {
+                    run++;
+                }
+                if(run == MIN_RUN_LENGTH) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines whether a password repeats itself: a run of the same character, or the whole password made of a
+     * shorter sequence repeated, such as "abcabcabc"
+     * @param password The password
+     * @param length The length of the password
+     * @return true if the password repeats itself, otherwise false
+     */
+    private static boolean hasRepetition(char[] password, int length) {
+        int run = 1;
+        for(int i = 1; i < length; i++) {
+            run = password[i] == password[i - 1] ? run + 1 : 1;
+            if(run >= MIN_RUN_LENGTH) {
+                return true;
+            }
+        }
+        for(int period = 1; period <= length / 2; period++) {
+            if(length % period != 0) {
+                continue;
+            }
+            int i = period;
+            while(i < length && password[i] == password[i - period]) {
+                i++;
+            }
+            if(i == length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Extracts the name of a site from its website, such as "example" from "https://www.example.com/login"
+     * @param website The entry's website
+     * @return the site's name in lowercase, or an empty string if there is none
+     */
+    private static String siteName(String website) {
+        String host = website.toLowerCase(Locale.ROOT);
+        int scheme = host.indexOf("://");
+        if(scheme >= 0) {
+            host = host.substring(scheme + 3);
+        }
+        if(host.startsWith("www.")) {
+            host = host.substring(4);
+        }
+        int end = 0;
+        while(end < host.length() && Character.isLetterOrDigit(host.charAt(end))) {
+            end++;
+        }
+        return host.substring(0, end);
+    }
+
+    /**
+     * Extracts the name from a username, such as "alice" from "alice@example.com"
+     * @param username The entry's username
+     * @return the name in lowercase
+     */
+    private static String userName(String username) {
+        int at = username.indexOf('@');
+        return (at >= 0 ? username.substring(0, at) : username).toLowerCase(Locale.ROOT);
+    }
+}
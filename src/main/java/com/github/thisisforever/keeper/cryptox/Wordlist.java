@@ -0,0 +1,114 @@
+package com.github.thisisforever.keeper.cryptox;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The list of words passphrases are drawn from, embedded in Keeper as {@value #RESOURCE}: {@value #SIZE} distinct
+ * lowercase words, one per line, so each word chosen adds exactly {@value #BITS_PER_WORD} bits of entropy.
+ * <p>
+ * The list isn't loaded until a passphrase is first generated. Its words are then packed end to end in a single
+ * char[], with a table of where each word starts, rather than being held as thousands of separate {@link String}
+ * objects.
+ */
+class Wordlist {
+
+    // Defines the resource holding the words, and the number of words it must hold
+    private static final String RESOURCE = "wordlist.txt";
+    static final int BITS_PER_WORD = 12;
+    static final int SIZE = 1 << BITS_PER_WORD;
+
+    // References the list, once it has been loaded
+    private static volatile Wordlist instance;
+
+    // Holds every word end to end, and the offset each starts at; the offset after the last word is the array's length
+    private final char[] characters;
+    private final int[] offsets;
+
+    private Wordlist(char[] characters, int[] offsets) {
+        this.characters = characters;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Gets the list, loading it the first time it's needed
+     * @return the {@link Wordlist}
+     * @throws RuntimeException in the event the embedded list can't be read or is malformed
+     */
+    static Wordlist get() {
+        Wordlist wordlist = instance;
+        if(wordlist == null) {
+            synchronized(Wordlist.class) {
+                wordlist = instance;
+                if(wordlist == null) {
+                    wordlist = instance = load();
+                }
+            }
+        }
+        return wordlist;
+    }
+
+    /**
+     * Reads the embedded list, packing its words into one array
+     * @return the {@link Wordlist}
+     */
+    private static Wordlist load() {
+        byte[] data;
+        try(InputStream in = Wordlist.class.getResourceAsStream(RESOURCE)) {
+            if(in == null) {
+                throw new RuntimeException("Error: wordlist " + RESOURCE + " is missing");
+            }
+            data = in.readAllBytes();
+        } catch (IOException e) {
+            throw new RuntimeException("Error: unable to read wordlist " + RESOURCE, e);
+        }
+        char[] characters = new char[data.length];
+        int[] offsets = new int[SIZE + 1];
+        int length = 0, words = 0;
+        for(byte b : data) {
+            if(b == '\n' || b == '\r') {
+                if(length > offsets[words]) {
+                    if(words == SIZE) {
+                        throw new RuntimeException("Error: wordlist " + RESOURCE + " has more than " + SIZE + " words");
+                    }
+                    offsets[++words] = length;
+                }
+            } else if(b >= 'a' && b <= 'z') {
+                characters[length++] = (char) b;
+            } else {
+                throw new RuntimeException("Error: wordlist " + RESOURCE + " holds a character other than a-z");
+            }
+        }
+        if(length > offsets[words] && words < SIZE) {
+            offsets[++words] = length;
+        }
+        if(words != SIZE || length > offsets[words]) {
+            throw new RuntimeException("Error: wordlist " + RESOURCE + " must hold exactly " + SIZE + " words");
+        }
+        char[] packed = new char[length];
+        System.arraycopy(characters, 0, packed, 0, length);
+        return new Wordlist(packed, offsets);
+    }
+
+    /**
+     * Gets the length of a word
+     * @param index The index of the word, from 0 to {@link #SIZE} - 1
+     * @return the number of characters in the word
+     */
+    int length(int index) {
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /**
+     * Copies a word into an array
+     * @param index The index of the word, from 0 to {@link #SIZE} - 1
+     * @param destination The array to copy the word into
+     * @param position The position in the array to copy the word to
+     * @return the position just after the word
+     */
+    int copy(int index, char[] destination, int position) {
+        int length = length(index);
+        System.arraycopy(characters, offsets[index], destination, position, length);
+        return position + length;
+    }
+}